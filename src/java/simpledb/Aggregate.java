@@ -3,19 +3,78 @@ package simpledb;
 import java.util.*;
 
 /**
- * The Aggregation operator that computes an aggregate (e.g., sum, avg, max,
- * min). Note that we only support aggregates over a single column, grouped by a
- * single column.
+ * The Aggregation operator that computes aggregates (e.g., sum, avg, max,
+ * min), grouped by a single column. Any number of aggregates, each over its
+ * own column and optionally over its distinct values only, are computed in
+ * one pass over the child.
+ * <p>
+ * Grouping is done with a hash table whose size is bounded by a memory budget.
+ * Once the table is full, tuples of groups that are already in it are still
+ * aggregated in memory, while tuples of new groups are hash-partitioned into
+ * {@link SpillFile}s. After the in-memory groups have been returned, each
+ * partition is aggregated the same way, with a different hash function, so
+ * partitions that are still too large are split again.
+ * <p>
+ * If the child is known to return tuples ordered on the group-by field, the
+ * aggregate can instead be created in streaming mode: each group is
+ * aggregated on its own and returned as soon as the group-by value changes,
+ * so only one group is held in memory and the first group is returned
+ * without reading the whole child.
  */
 public class Aggregate extends Operator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
-    private int afield;
+    private int[] afields;
     private int gfield;
-    private Aggregator.Op aop;
+    private Aggregator.Op[] aops;
+    private boolean[] distinct;
     private DbIterator iterator;
 
+    /** Default memory budget, in pages, for the group table. */
+    public static final int DEFAULT_MEMORY_PAGES = BufferPool.DEFAULT_PAGES;
+
+    /**
+     * Partitions at this depth are aggregated in memory whatever their size,
+     * in case the hash function cannot split them.
+     */
+    static final int MAX_SPILL_DEPTH = 8;
+
+    /**
+     * The heap a group takes beyond its key and values: the entry of the
+     * group table, the boxed key Field and the object holding the group's
+     * aggregates.
+     */
+    static final int GROUP_OVERHEAD = 64;
+
+    /**
+     * The heap each aggregate of a group takes beyond its running value and
+     * count, which are kept in boxed objects.
+     */
+    static final int AGGREGATE_OVERHEAD = 64;
+
+    private int memoryPages;
+    private boolean streaming;
+    private transient int maxGroups;
+    private transient int fanOut;
+
+    /** A spilled partition of the input, and how many times it was split */
+    private static class Partition {
+        final SpillFile file;
+        final int depth;
+
+        Partition(SpillFile file, int depth) {
+            this.file = file;
+            this.depth = depth;
+        }
+    }
+
+    private transient LinkedList<Partition> pending;
+    private transient Aggregator aggregator;
+    private transient SpillFile[] partitions;
+    private transient int depth;
+    /** in streaming mode, the first tuple of the next group */
+    private transient Tuple lookahead;
 
     /**
      * Constructor.
@@ -37,10 +96,103 @@ public class Aggregate extends Operator {
      */
     public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop) {
 	    // some code goes here
+        this(child, afield, gfield, aop, DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Constructor for an aggregate whose group table is bounded by the given
+     * memory budget.
+     * 
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use
+     * @param memoryPages
+     *            The number of pages of memory the group table may use
+     *            before groups are spilled to disk; at least 3
+     */
+    public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop, int memoryPages) {
+        this(child, new int[] { afield }, new Aggregator.Op[] { aop },
+                new boolean[] { false }, gfield, memoryPages, false);
+    }
+
+    /**
+     * Constructor for an aggregate whose child may be ordered on the group-by
+     * field.
+     * 
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afield
+     *            The column over which we are computing an aggregate.
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param aop
+     *            The aggregation operator to use
+     * @param inputSorted
+     *            true if the child returns all tuples of a group
+     *            consecutively, in which case groups are computed one at a
+     *            time instead of with a hash table
+     */
+    public Aggregate(DbIterator child, int afield, int gfield, Aggregator.Op aop, boolean inputSorted) {
+        this(child, new int[] { afield }, new Aggregator.Op[] { aop },
+                new boolean[] { false }, gfield, DEFAULT_MEMORY_PAGES, inputSorted);
+    }
+
+    /**
+     * Constructor for an aggregate computing several aggregates at once. The
+     * output has the group-by field, if any, followed by one column per
+     * aggregate.
+     * 
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The column over which each aggregate is computed.
+     * @param aops
+     *            The aggregation operator of each aggregate
+     * @param distinct
+     *            For each aggregate, true if it only considers distinct
+     *            values of its column, as in COUNT(DISTINCT x)
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param memoryPages
+     *            The number of pages of memory the group table may use
+     *            before groups are spilled to disk; at least 3
+     * @param inputSorted
+     *            true if the child returns all tuples of a group
+     *            consecutively
+     */
+    public Aggregate(DbIterator child, int[] afields, Aggregator.Op[] aops, boolean[] distinct,
+            int gfield, int memoryPages, boolean inputSorted) {
+        if (afields.length == 0 || afields.length != aops.length || afields.length != distinct.length)
+            throw new IllegalArgumentException("need an operator and distinct flag for each of at least one aggregate");
+        if (memoryPages < 3)
+            throw new IllegalArgumentException("aggregation needs at least 3 pages of memory");
+        for (int i = 0; i < afields.length; i++) {
+            if (child.getTupleDesc().getFieldType(afields[i]) != Type.INT_TYPE && aops[i] != Aggregator.Op.COUNT)
+                throw new IllegalArgumentException("only COUNT is supported over STRING fields");
+        }
         this.child = child;
-        this.afield = afield;
+        this.afields = afields.clone();
         this.gfield = gfield;
-        this.aop = aop;
+        this.aops = aops.clone();
+        this.distinct = distinct.clone();
+        this.memoryPages = memoryPages;
+        this.streaming = inputSorted;
+    }
+
+    /**
+     * @return true if this aggregate computes one group at a time, relying on
+     *         its child being ordered on the group-by field
+     */
+    public boolean isStreaming() {
+        return streaming;
     }
 
     /**
@@ -61,34 +213,62 @@ public class Aggregate extends Operator {
     public String groupFieldName() {
 	    // some code goes here
 	    if (gfield != Aggregator.NO_GROUPING) {
-	        return this.getTupleDesc().getFieldName(gfield);
+	        return this.getTupleDesc().getFieldName(0);
         }
 	    return null;
     }
 
     /**
-     * @return the aggregate field
+     * @return the aggregate field (of the first aggregate)
      * */
     public int aggregateField() {
 	    // some code goes here
-	    return afield;
+	    return afields[0];
     }
 
     /**
      * @return return the name of the aggregate field in the <b>OUTPUT</b>
-     *         tuples
+     *         tuples (of the first aggregate)
      * */
     public String aggregateFieldName() {
 	    // some code goes here
-	    return this.getTupleDesc().getFieldName(afield);
+	    return this.getTupleDesc().getFieldName(gfield == Aggregator.NO_GROUPING ? 0 : 1);
     }
 
     /**
-     * @return return the aggregate operator
+     * @return return the aggregate operator (of the first aggregate)
      * */
     public Aggregator.Op aggregateOp() {
 	    // some code goes here
-	    return aop;
+	    return aops[0];
+    }
+
+    /**
+     * @return the number of aggregates computed
+     */
+    public int numAggregates() {
+        return afields.length;
+    }
+
+    /**
+     * @return the aggregate field of each aggregate
+     */
+    public int[] aggregateFields() {
+        return afields.clone();
+    }
+
+    /**
+     * @return the aggregate operator of each aggregate
+     */
+    public Aggregator.Op[] aggregateOps() {
+        return aops.clone();
+    }
+
+    /**
+     * @return true if the i-th aggregate only considers distinct values
+     */
+    public boolean isDistinct(int i) {
+        return distinct[i];
     }
 
     public static String nameOfAggregatorOp(Aggregator.Op aop) {
@@ -100,6 +280,46 @@ public class Aggregate extends Operator {
 	    // some code goes here
         child.open();
         super.open();
+
+        if (streaming) {
+            lookahead = child.hasNext() ? child.next() : null;
+            return;
+        }
+
+        if (gfield != Aggregator.NO_GROUPING)
+            maxGroups = maxGroups(child.getTupleDesc().getFieldType(gfield), afields.length, memoryPages);
+        // one output buffer per partition, plus one for the input
+        fanOut = memoryPages - 1;
+        pending = new LinkedList<Partition>();
+
+        startPass(0);
+        while (child.hasNext()) {
+            add(child.next());
+        }
+        iterator = endPass();
+        iterator.open();
+    }
+
+    /**
+     * Returns how many groups fit in a memory budget. A group costs its key,
+     * the running value and count of each aggregate, and the Java objects
+     * that hold them; the values kept for distinct aggregates are not
+     * counted.
+     *
+     * @param gbFieldType
+     *            the type of the group-by field
+     * @param numAggregates
+     *            the number of aggregates of each group
+     * @param memoryPages
+     *            the memory budget, in pages
+     */
+    static int maxGroups(Type gbFieldType, int numAggregates, int memoryPages) {
+        int groupSize = gbFieldType.getLen() + GROUP_OVERHEAD
+                + (2 * Type.INT_TYPE.getLen() + AGGREGATE_OVERHEAD) * numAggregates;
+        return Math.max(1, (int) ((long) memoryPages * BufferPool.getPageSize() / groupSize));
+    }
+
+    private Aggregator newAggregator() {
         Type gbFieldType;
         if (gfield != Aggregator.NO_GROUPING) {
             gbFieldType = child.getTupleDesc().getFieldType(gfield);
@@ -107,19 +327,82 @@ public class Aggregate extends Operator {
             gbFieldType = null;
         }
 
-        Aggregator aggregator;
-        if (child.getTupleDesc().getFieldType(afield) == Type.INT_TYPE) {
-            aggregator = new IntegerAggregator(gfield, gbFieldType, afield, aop);
+        TupleDesc td = child.getTupleDesc();
+        if (afields.length > 1 || distinct[0]) {
+            Type[] aTypes = new Type[afields.length];
+            for (int i = 0; i < afields.length; i++) {
+                aTypes[i] = td.getFieldType(afields[i]);
+            }
+            return new MultiAggregator(gfield, gbFieldType, afields, aTypes, aops, distinct);
+        }
+        if (td.getFieldType(afields[0]) == Type.INT_TYPE) {
+            return new IntegerAggregator(gfield, gbFieldType, afields[0], aops[0]);
         } else {
-            aggregator = new StringAggregator(gfield, gbFieldType, afield, aop);
+            return new StringAggregator(gfield, gbFieldType, afields[0], aops[0]);
         }
+    }
 
-        while (child.hasNext()) {
-            aggregator.mergeTupleIntoGroup(child.next());
+    private void startPass(int depth) {
+        this.depth = depth;
+        aggregator = newAggregator();
+        partitions = null;
+    }
+
+    /**
+     * Merges a tuple into the group table if its group is there or there is
+     * room for it, and otherwise writes it to the partition of its group.
+     */
+    private void add(Tuple t) throws DbException {
+        if (gfield == Aggregator.NO_GROUPING || depth >= MAX_SPILL_DEPTH
+                || aggregator.numGroups() < maxGroups || aggregator.hasGroup(t)) {
+            aggregator.mergeTupleIntoGroup(t);
+            return;
         }
+        if (partitions == null) {
+            partitions = new SpillFile[fanOut];
+        }
+        int p = partitionOf(t.getField(gfield), depth);
+        if (partitions[p] == null) {
+            partitions[p] = new SpillFile(child.getTupleDesc());
+        }
+        partitions[p].add(t);
+    }
 
-        iterator = aggregator.iterator();
-        iterator.open();
+    /**
+     * Queues the partitions written during this pass and returns an
+     * unopened iterator over the groups aggregated in memory.
+     */
+    private DbIterator endPass() throws DbException {
+        if (partitions != null) {
+            for (SpillFile partition : partitions) {
+                if (partition != null) {
+                    partition.finish();
+                    pending.add(new Partition(partition, depth + 1));
+                }
+            }
+        }
+        DbIterator result = aggregator.iterator();
+        aggregator = null;
+        partitions = null;
+        return result;
+    }
+
+    /** Hashes a group into one of fanOut partitions, differently at each depth */
+    private int partitionOf(Field group, int depth) {
+        int h = group.hashCode() ^ (depth * 0x9E3779B9);
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, fanOut);
+    }
+
+    /**
+     * @return the number of spilled partitions that have not been aggregated
+     *         yet
+     */
+    int numPendingPartitions() {
+        return pending == null ? 0 : pending.size();
     }
 
     /**
@@ -131,10 +414,51 @@ public class Aggregate extends Operator {
      */
     protected Tuple fetchNext() throws TransactionAbortedException, DbException {
 	    // some code goes here
-        if (iterator.hasNext()) {
-            return iterator.next();
+        if (streaming) {
+            return nextGroup();
+        }
+        while (true) {
+            if (iterator.hasNext()) {
+                return iterator.next();
+            }
+            if (pending.isEmpty()) {
+                return null;
+            }
+            // aggregate the next spilled partition
+            Partition partition = pending.removeFirst();
+            startPass(partition.depth);
+            DbFileIterator it = partition.file.iterator();
+            it.open();
+            while (it.hasNext()) {
+                add(it.next());
+            }
+            it.close();
+            partition.file.delete();
+            iterator = endPass();
+            iterator.open();
         }
-        return null;
+    }
+
+    /**
+     * Aggregates the tuples of the child up to the next change of the group-by
+     * value.
+     */
+    private Tuple nextGroup() throws TransactionAbortedException, DbException {
+        if (lookahead == null) {
+            return null;
+        }
+        Aggregator group = newAggregator();
+        Field key = gfield == Aggregator.NO_GROUPING ? null : lookahead.getField(gfield);
+        do {
+            group.mergeTupleIntoGroup(lookahead);
+            lookahead = child.hasNext() ? child.next() : null;
+        } while (lookahead != null && (key == null || key.equals(lookahead.getField(gfield))));
+
+        DbIterator it = group.iterator();
+        it.open();
+        Tuple result = it.next();
+        it.close();
+        return result;
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
@@ -145,29 +469,55 @@ public class Aggregate extends Operator {
 
     /**
      * Returns the TupleDesc of this Aggregate. If there is no group by field,
-     * this will have one field - the aggregate column. If there is a group by
-     * field, the first field will be the group by field, and the second will be
-     * the aggregate value column.
+     * this will have one field per aggregate - the aggregate columns. If there
+     * is a group by field, the first field will be the group by field, and the
+     * following ones will be the aggregate value columns.
      * 
      * The name of an aggregate column should be informative. For example:
      * "aggName(aop) (child_td.getFieldName(afield))" where aop and afield are
      * given in the constructor, and child_td is the TupleDesc of the child
-     * iterator.
+     * iterator; distinct aggregates are named "aggName(aop) (distinct ...)".
      */
     public TupleDesc getTupleDesc() {
 	    // some code goes here
         TupleDesc child_td = child.getTupleDesc();
-        if (gfield != Aggregator.NO_GROUPING) {
+        int offset = gfield == Aggregator.NO_GROUPING ? 0 : 1;
+        Type[] types = new Type[offset + afields.length];
+        String[] names = new String[offset + afields.length];
+        if (offset == 1) {
+            types[0] = child_td.getFieldType(gfield);
+            names[0] = child_td.getFieldName(gfield);
+        }
+        for (int i = 0; i < afields.length; i++) {
             //"aggName(aop) (child_td.getFieldName(afield))"
-            return new TupleDesc(new Type[]{child_td.getFieldType(gfield), Type.INT_TYPE},
-                    new String[]{child_td.getFieldName(gfield), nameOfAggregatorOp(aop) + " (" + child_td.getFieldName(afield) + ")"});
-        } else {
-            return new TupleDesc(new Type[]{Type.INT_TYPE}, new String[] { nameOfAggregatorOp(aop) + " (" + child_td.getFieldName(afield) + ")"});
+            types[offset + i] = Type.INT_TYPE;
+            names[offset + i] = nameOfAggregatorOp(aops[i]) + " ("
+                    + (distinct[i] ? "distinct " : "") + child_td.getFieldName(afields[i]) + ")";
         }
+        return new TupleDesc(types, names);
     }
 
     public void close() {
 	    // some code goes here
+        if (iterator != null) {
+            iterator.close();
+        }
+        if (pending != null) {
+            for (Partition partition : pending) {
+                partition.file.delete();
+            }
+            pending.clear();
+        }
+        if (partitions != null) {
+            for (SpillFile partition : partitions) {
+                if (partition != null) {
+                    partition.delete();
+                }
+            }
+            partitions = null;
+        }
+        aggregator = null;
+        lookahead = null;
         child.close();
         super.close();
     }
@@ -76,6 +76,18 @@ public interface Aggregator extends Serializable {
      */
     public void mergeTupleIntoGroup(Tuple tup);
 
+    /**
+     * @return the number of distinct groups merged into this aggregator so far
+     */
+    public int numGroups();
+
+    /**
+     * @param tup a Tuple containing a group-by field
+     * @return true if the group of tup has already been merged into this
+     *         aggregator
+     */
+    public boolean hasGroup(Tuple tup);
+
     /**
      * Create a DbIterator over group aggregate results.
      * @see simpledb.TupleIterator for a possible helper
@@ -2,6 +2,13 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.StampedLock;
 
 import simpledb.Predicate.Op;
 
@@ -11,6 +18,16 @@ import simpledb.Predicate.Op;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Threads may insert, delete and scan concurrently. An insert or delete that
+ * fits in its leaf page descends the tree under a shared tree latch, with no
+ * latches on the internal pages, and changes the leaf under an exclusive
+ * latch on that page alone; one that must split, merge or redistribute pages
+ * is redone under the exclusive tree latch. Scans read one leaf page at a
+ * time optimistically, taking no latches at all: they note the versions of
+ * the tree latch and the leaf latch, copy the tuples, and start over if
+ * either latch was taken exclusively in between. After a few conflicts they
+ * take both latches shared instead.
  *
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
@@ -23,7 +40,37 @@ public class BTreeFile implements DbFile {
 	private final File f;
 	private final TupleDesc td;
 	private final int tableid ;
-	private int keyField;
+	private final int keyField;
+	/** the fields of the key, most significant first; keyField is the first */
+	private final int[] keyFields;
+
+	/** shared by scans and by changes to a single leaf, exclusive for changes to the structure of the tree */
+	private final StampedLock treeLatch = new StampedLock();
+	/** the latches of the leaf pages, by page number */
+	private final ConcurrentHashMap<Integer, StampedLock> leafLatches =
+			new ConcurrentHashMap<Integer, StampedLock>();
+	/**
+	 * A page on the right edge that splits for an appended key moves one in
+	 * this many of its tuples or entries to the new page
+	 */
+	static final int APPEND_SPLIT = 10;
+
+	/** the right-most leaf, as last seen by an insert, or null */
+	private volatile RightmostLeaf rightmostLeaf;
+
+	/**
+	 * The right-most leaf of the tree, and the stamp of the tree latch under
+	 * which it was found; it stays right-most while the stamp validates.
+	 */
+	private static class RightmostLeaf {
+		final BTreePageId pid;
+		final long stamp;
+
+		RightmostLeaf(BTreePageId pid, long stamp) {
+			this.pid = pid;
+			this.stamp = stamp;
+		}
+	}
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -34,9 +81,28 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, new int[] { key }, td);
+	}
+
+	/**
+	 * Constructs a B+ tree file keyed on several fields, such as (last name,
+	 * first name). Tuples are ordered on the first key field, then on the second
+	 * one, and so on, and the keys of the internal pages are CompositeFields of
+	 * the key fields. Searches on a CompositeField of the first few key fields,
+	 * or on a Field of the first key field, find every tuple starting with them.
+	 *
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param keyFields - the fields which index is keyed on, most significant first
+	 * @param td - the tuple descriptor of tuples in the file
+	 */
+	public BTreeFile(File f, int[] keyFields, TupleDesc td) {
+		if (keyFields.length == 0)
+			throw new IllegalArgumentException("a B+ tree needs at least one key field");
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
-		this.keyField = key;
+		this.keyField = keyFields[0];
+		this.keyFields = keyFields.clone();
 		this.td = td;
 	}
 
@@ -113,11 +179,11 @@ public class BTreeFile implements DbFile {
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.pageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyFields);
 					return p;
 				}
 				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyFields);
 					return p;
 				}
 				else { // id.pgcateg() == BTreePageId.HEADER
@@ -169,12 +235,56 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Returns the index of the field that this B+ tree is keyed on
+	 * Returns the index of the field that this B+ tree is keyed on, or of the
+	 * first one if it is keyed on several
 	 */
 	public int keyField() {
 		return keyField;
 	}
 
+	/**
+	 * Returns the indexes of the fields that this B+ tree is keyed on, most
+	 * significant first
+	 */
+	public int[] keyFields() {
+		return keyFields.clone();
+	}
+
+	/**
+	 * Returns the key of a tuple of this file: its key field, or a CompositeField
+	 * of its key fields
+	 */
+	Field keyOf(Tuple t) {
+		return keyFields.length == 1 ? t.getField(keyField) : CompositeField.of(t, keyFields);
+	}
+
+	/**
+	 * Returns the key to separate a page of tuples up to last from a page of
+	 * tuples from first on: the key of first, cut short on trees keyed on
+	 * STRINGs to keep their internal pages compact.
+	 *
+	 * @param last - the last tuple of the left page, or null if it is empty
+	 * @param first - the first tuple of the right page
+	 * @see BTreePage#separator(Field, Field)
+	 */
+	Field separator(Tuple last, Tuple first) {
+		if (last == null || !BTreePage.compactKeys(td, keyFields))
+			return keyOf(first);
+		return BTreePage.separator(keyOf(last), keyOf(first));
+	}
+
+	/**
+	 * Returns a key to search this file for, as a CompositeField if the file is
+	 * keyed on several fields
+	 *
+	 * @param f - a key, a Field of the first key field, or null
+	 */
+	Field searchKey(Field f) {
+		if (f == null || keyFields.length == 1 || f instanceof CompositeField)
+			return f;
+		return new CompositeField(f);
+	}
+
 	/**
 	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
 	 * the left-most page possibly containing the key field f. It locks all internal
@@ -198,31 +308,8 @@ public class BTreeFile implements DbFile {
 		if (pid.pgcateg() == BTreePageId.LEAF) {
 			return (BTreeLeafPage) this.getPage(tid, dirtypages, pid, perm);
 		}
-		BTreePageId newPid;
 		BTreeInternalPage internalPage = (BTreeInternalPage) this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-		Iterator<BTreeEntry> internalIterator = internalPage.iterator();
-
-		if (!internalIterator.hasNext()) {
-			throw new DbException("no next");
-		}
-
-		BTreeEntry bTreeEntry = internalIterator.next();
-
-		if (f == null) {
-			return findLeafPage(tid, dirtypages, bTreeEntry.getLeftChild(), perm, f);
-		}
-
-		while (internalIterator.hasNext() && f.compare(Op.GREATER_THAN, bTreeEntry.getKey())) {
-			bTreeEntry = internalIterator.next();
-		}
-
-		if (f.compare(Op.LESS_THAN_OR_EQ, bTreeEntry.getKey())) {
-			newPid = bTreeEntry.getLeftChild();
-		} else {
-			newPid = bTreeEntry.getRightChild();
-		}
-
-        return findLeafPage(tid, dirtypages, newPid, perm, f);
+		return findLeafPage(tid, dirtypages, internalPage.findChild(f), perm, f);
 	}
 
 	/**
@@ -243,6 +330,33 @@ public class BTreeFile implements DbFile {
 		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
 	}
 
+	/**
+	 * Finds and locks the right-most leaf page in the B+ tree possibly containing
+	 * keys less than or equal to f (or less than f if strict), for reading the tree
+	 * backwards. It locks the internal nodes along the path with READ_ONLY
+	 * permission, and the leaf node with permission perm.
+	 *
+	 * If f is null, it finds the right-most leaf page -- used for the reverse iterator
+	 *
+	 * @param tid - the transaction id
+	 * @param pid - the current page being searched
+	 * @param perm - the permissions with which to lock the leaf page
+	 * @param f - the field to search for
+	 * @param strict - whether only keys less than f are searched for
+	 * @return the right-most leaf page possibly containing keys up to f
+	 *
+	 */
+	BTreeLeafPage findLastLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
+			Field f, boolean strict)
+					throws DbException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		while (pid.pgcateg() != BTreePageId.LEAF) {
+			BTreeInternalPage internalPage = (BTreeInternalPage) this.getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			pid = internalPage.findLastChild(f, strict);
+		}
+		return (BTreeLeafPage) this.getPage(tid, dirtypages, pid, perm);
+	}
+
 	/**
 	 * Split a leaf page to make room for new tuples and recursively split the parent node
 	 * as needed to accommodate a new entry. The new entry should have a key matching the key field
@@ -279,6 +393,11 @@ public class BTreeFile implements DbFile {
 		Iterator<Tuple> reverseIterator = page.reverseIterator();
 		int oldLeafSize = page.getNumTuples();
 		int newLeafSize = (oldLeafSize + 1) / 2;
+		if (page.getRightSiblingId() == null && oldLeafSize > 0
+				&& field.compare(Op.GREATER_THAN_OR_EQ, keyOf(page.reverseIterator().next()))) {
+			// appending at the right edge: keep this page 90% full for the keys that follow
+			newLeafSize = appendSplitSize(oldLeafSize, 1);
+		}
 		Tuple midTuple = null;
 
 		//split
@@ -292,7 +411,9 @@ public class BTreeFile implements DbFile {
 		if (midTuple == null) {
 			throw new DbException("invalid entry");
 		}
-		BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midTuple.getField(keyField));
+		Iterator<Tuple> left = page.reverseIterator();
+		Field separator = separator(left.hasNext() ? left.next() : null, midTuple);
+		BTreeInternalPage parentPage = getParentWithEmptySlots(tid, dirtypages, page.getParentId(), separator);
 		BTreePageId oldRightSibId = page.getRightSiblingId();
 
 		//left side
@@ -314,9 +435,9 @@ public class BTreeFile implements DbFile {
 		dirtypages.put(parentPage.getId(), parentPage);
 
 		//update entry
-		parentPage.insertEntry(new BTreeEntry(midTuple.getField(keyField), page.getId(), newLeafPage.getId()));
+		parentPage.insertEntry(new BTreeEntry(separator, page.getId(), newLeafPage.getId()));
 
-		if (field.compare(Op.GREATER_THAN, midTuple.getField(keyField))) {
+		if (BTreePage.compareSeparator(separator, field) < 0) {
 			return newLeafPage;
 		}
 		return page;
@@ -353,6 +474,19 @@ public class BTreeFile implements DbFile {
 		Iterator<BTreeEntry> reverseIterator = page.reverseIterator();
 		int oldPageSize = page.getNumEntries();
 		int newPageSize = (oldPageSize + 1) / 2;
+		boolean append = oldPageSize > 2 && field.compare(Op.GREATER_THAN, page.reverseIterator().next().getKey())
+				&& onRightEdge(tid, dirtypages, page);
+		if (append) {
+			// appending at the right edge, as in splitLeafPage
+			newPageSize = appendSplitSize(oldPageSize, 2);
+		}
+		if (BTreePage.compactKeys(td, keyFields)) {
+			// keys vary in length: split the bytes rather than the entries, but
+			// leave both pages at least half the entries of a page of the longest keys
+			int half = page.getMaxEntries() / 2;
+			newPageSize = append ? Math.max(2, page.getNumEntriesHolding(APPEND_SPLIT))
+					: Math.min(Math.max(page.getNumEntriesHolding(2), half + 1), oldPageSize - half);
+		}
 		BTreeEntry midEntry = null;
 
 		//split
@@ -384,13 +518,42 @@ public class BTreeFile implements DbFile {
 		newInternalPage.setParentId(parent.getId());
 		dirtypages.put(parent.getId(), parent);
 
-		if (field.compare(Op.GREATER_THAN, midEntry.getKey())) {
+		if (BTreePage.compareSeparator(midEntry.getKey(), field) < 0) {
 			return newInternalPage;
 		}
 		return page;
 
 	}
 
+	/**
+	 * @param size - the tuples or entries of the page to split
+	 * @param min - the fewest that may move
+	 * @return how many tuples or entries an append split moves to the new page
+	 */
+	static int appendSplitSize(int size, int min) {
+		return Math.max(min, size / APPEND_SPLIT);
+	}
+
+	/**
+	 * @return true if the page is the last child of its parent, which is the
+	 *         last child of its own parent and so on up to the root
+	 */
+	private boolean onRightEdge(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePage page)
+			throws DbException, TransactionAbortedException {
+		BTreePageId childId = page.getId();
+		BTreePageId parentId = page.getParentId();
+		while (parentId.pgcateg() != BTreePageId.ROOT_PTR) {
+			BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, parentId, Permissions.READ_ONLY);
+			Iterator<BTreeEntry> it = parent.reverseIterator();
+			if (!it.hasNext() || !it.next().getRightChild().equals(childId)) {
+				return false;
+			}
+			childId = parentId;
+			parentId = parent.getParentId();
+		}
+		return true;
+	}
+
 	/**
 	 * Method to encapsulate the process of getting a parent page ready to accept new entries.
 	 * This may mean creating a page to become the new root of the tree, splitting the existing 
@@ -443,6 +606,27 @@ public class BTreeFile implements DbFile {
 
 	}
 
+	/**
+	 * Split an internal page whose keys outgrew it, which happens on trees keyed on
+	 * STRINGs when redistributing the children of the page replaces one of its keys
+	 * with a longer one.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param page - the internal page
+	 * @see BTreeInternalPage#isOverfull()
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	private void splitOverfullPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeInternalPage page)
+			throws DbException, IOException, TransactionAbortedException {
+		if(page.isOverfull()) {
+			splitInternalPage(tid, dirtypages, page, page.iterator().next().getKey());
+		}
+	}
+
 	/**
 	 * Helper function to update the parent pointer of a node.
 	 *
@@ -538,6 +722,79 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
+		ArrayList<Page> dirtyPagesArr = insertIntoLeaf(tid, t);
+		if(dirtyPagesArr != null) {
+			return dirtyPagesArr;
+		}
+		long stamp = treeLatch.writeLock();
+		try {
+			return insertAndSplit(tid, t);
+		} finally {
+			treeLatch.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Insert a tuple into the leaf page where it belongs if the page has room for it,
+	 * holding the tree latch shared and an exclusive latch on the leaf page. Under the
+	 * shared tree latch no internal page changes, so the descent needs no latches.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return the dirtied leaf page, or null if the tree is empty or the leaf page is full
+	 */
+	private ArrayList<Page> insertIntoLeaf(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		long stamp = treeLatch.readLock();
+		try {
+			HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+			BTreePageId rootId = getRootPtrPage(tid, dirtypages).getRootId();
+			if(rootId == null) {
+				return null;
+			}
+			Field key = keyOf(t);
+			// keys that exceed every key in the tree go straight to the cached right-most leaf
+			RightmostLeaf rightmost = rightmostLeaf;
+			boolean append = rightmost != null && treeLatch.validate(rightmost.stamp);
+			while (true) {
+				BTreePageId leafId = append ? rightmost.pid
+						: findLeafPage(tid, dirtypages, rootId, Permissions.READ_ONLY, key).getId();
+				long leafStamp = latchLeaf(leafId, true);
+				try {
+					BTreeLeafPage leafPage = (BTreeLeafPage) getPage(tid, dirtypages, leafId, Permissions.READ_WRITE);
+					if(append && (leafPage.getNumTuples() == 0
+							|| key.compare(Op.LESS_THAN, keyOf(leafPage.reverseIterator().next())))) {
+						// the leaf is unlatched before the search, so it must not be cached as dirtied
+						dirtypages.remove(leafId);
+						append = false;
+						continue;
+					}
+					if(leafPage.getRightSiblingId() == null) {
+						rightmostLeaf = new RightmostLeaf(leafId, stamp);
+					}
+					if(leafPage.getNumEmptySlots() == 0) {
+						return null;
+					}
+					leafPage.insertTuple(t);
+					return cacheDirtyPages(tid, dirtypages);
+				} finally {
+					unlatchLeaf(leafId, leafStamp);
+				}
+			}
+		} finally {
+			treeLatch.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Insert a tuple, splitting pages as needed. The caller holds the tree latch exclusively.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to insert
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	private ArrayList<Page> insertAndSplit(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
 		// get a read lock on the root pointer page and use it to locate the root page
@@ -552,17 +809,15 @@ public class BTreeFile implements DbFile {
 
 		// find and lock the left-most leaf page corresponding to the key field,
 		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, keyOf(t));
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, keyOf(t));
 		}
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+		return cacheDirtyPages(tid, dirtypages);
 	}
 
 	/**
@@ -649,6 +904,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				stealFromLeafPage(page, leftSibling, parent, leftEntry, false);
+				splitOverfullPage(tid, dirtypages, parent);
 			}
 		}
 		else if(rightSiblingId != null) {
@@ -660,6 +916,7 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				stealFromLeafPage(page, rightSibling, parent, rightEntry, true);
+				splitOverfullPage(tid, dirtypages, parent);
 			}
 		}
 	}
@@ -701,7 +958,13 @@ public class BTreeFile implements DbFile {
 			}
 		}
 		if (localPage.getNumTuples() > 0) {
-			entry.setKey(localIterator.next().getField(keyField));
+			if (BTreePage.compactKeys(td, keyFields)) {
+				BTreeLeafPage left = isRightSibling ? page : sibling;
+				entry.setKey(separator(left.reverseIterator().next(), localPage.iterator().next()));
+			}
+			else {
+				entry.setKey(keyOf(localIterator.next()));
+			}
  			parent.updateEntry(entry);
 		}
 
@@ -734,27 +997,31 @@ public class BTreeFile implements DbFile {
 		if(leftEntry != null) leftSiblingId = leftEntry.getLeftChild();
 		if(rightEntry != null) rightSiblingId = rightEntry.getRightChild();
 
-		int maxEmptySlots = page.getMaxEntries() - page.getMaxEntries()/2; // ceiling
+		// occupancy is counted in entries, which on compact pages may outnumber
+		// getMaxEntries(); two pages at minimum occupancy still fit on one
+		int minEntries = page.getMaxEntries()/2;
 		if(leftSiblingId != null) {
 			BTreeInternalPage leftSibling = (BTreeInternalPage) getPage(tid, dirtypages, leftSiblingId, Permissions.READ_WRITE);
 			// if the left sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(leftSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(leftSibling.getNumEntries() <= minEntries) {
 				mergeInternalPages(tid, dirtypages, leftSibling, page, parent, leftEntry);
 			}
 			else {
 				stealFromLeftInternalPage(tid, dirtypages, page, leftSibling, parent, leftEntry);
+				splitOverfullPage(tid, dirtypages, parent);
 			}
 		}
 		else if(rightSiblingId != null) {
 			BTreeInternalPage rightSibling = (BTreeInternalPage) getPage(tid, dirtypages, rightSiblingId, Permissions.READ_WRITE);
 			// if the right sibling is at minimum occupancy, merge with it. Otherwise
 			// steal some entries from it
-			if(rightSibling.getNumEmptySlots() >= maxEmptySlots) {
+			if(rightSibling.getNumEntries() <= minEntries) {
 				mergeInternalPages(tid, dirtypages, page, rightSibling, parent, rightEntry);
 			}
 			else {
 				stealFromRightInternalPage(tid, dirtypages, page, rightSibling, parent, rightEntry);
+				splitOverfullPage(tid, dirtypages, parent);
 			}
 		}
 	}
@@ -785,7 +1052,8 @@ public class BTreeFile implements DbFile {
 		//from right to left
 		Iterator<BTreeEntry> tmpIterator = leftSibling.reverseIterator();
 
-		for(int i = 0; i < length; i++){
+		// a compact page may run out of room for the keys before it has half the entries
+		for(int i = 0; i < length && page.getNumEmptySlots() > 0; i++){
 			BTreeEntry nextEntry = tmpIterator.next();
 			leftSibling.deleteKeyAndRightChild(nextEntry);
 
@@ -835,7 +1103,7 @@ public class BTreeFile implements DbFile {
 		int length = (rightSibling.getNumEntries() - page.getNumEntries()) / 2;
 		//from right to left
 		Iterator<BTreeEntry> tmpIterator = rightSibling.iterator();
-		for(int i = 0; i < length; i++){
+		for(int i = 0; i < length && page.getNumEmptySlots() > 0; i++){
 			//  delete right one, parent = right left = parent
 			BTreeEntry nextEntry = tmpIterator.next();
 			rightSibling.deleteKeyAndLeftChild(nextEntry);
@@ -995,8 +1263,7 @@ public class BTreeFile implements DbFile {
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
 		parent.deleteKeyAndRightChild(parentEntry);
-		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
-		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
+		if(parent.getNumEntries() == 0) {
 			// This was the last entry in the parent.
 			// In this case, the parent (root node) should be deleted, and the merged
 			// page will become the new root
@@ -1011,7 +1278,7 @@ public class BTreeFile implements DbFile {
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().pageNumber());
 		}
-		else if(parent.getNumEmptySlots() > maxEmptySlots) {
+		else if(parent.getNumEntries() < parent.getMaxEntries()/2) {
 			handleMinOccupancyPage(tid, dirtypages, parent);
 		}
 	}
@@ -1029,11 +1296,71 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		ArrayList<Page> dirtyPagesArr = deleteFromLeaf(tid, t);
+		if(dirtyPagesArr != null) {
+			return dirtyPagesArr;
+		}
+		long stamp = treeLatch.writeLock();
+		try {
+			return deleteAndMerge(tid, t);
+		} finally {
+			treeLatch.unlockWrite(stamp);
+		}
+	}
 
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(),
+	/**
+	 * Get the id of the leaf page holding a tuple. Splits, merges and redistributions
+	 * move tuples, so the caller must hold the tree latch.
+	 */
+	private BTreePageId leafPageOf(Tuple t) {
+		return new BTreePageId(tableid, t.getRecordId().getPageId().pageNumber(),
 				BTreePageId.LEAF);
-		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+	}
+
+	/**
+	 * Delete a tuple from its leaf page if the page stays at least half full, holding
+	 * the tree latch shared and an exclusive latch on the leaf page.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return the dirtied leaf page, or null if the page would fall below minimum occupancy
+	 */
+	private ArrayList<Page> deleteFromLeaf(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		long stamp = treeLatch.readLock();
+		try {
+			BTreePageId pageId = leafPageOf(t);
+			long leafStamp = latchLeaf(pageId, true);
+			try {
+				HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+				BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+				int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+				if(page.getNumEmptySlots() + 1 > maxEmptySlots) {
+					return null;
+				}
+				page.deleteTuple(t);
+				return cacheDirtyPages(tid, dirtypages);
+			} finally {
+				unlatchLeaf(pageId, leafStamp);
+			}
+		} finally {
+			treeLatch.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Delete a tuple, merging or redistributing pages as needed. The caller holds the
+	 * tree latch exclusively.
+	 *
+	 * @param tid - the transaction id
+	 * @param t - the tuple to delete
+	 * @return a list of all pages that were dirtied by this operation
+	 */
+	private ArrayList<Page> deleteAndMerge(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+
+		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, leafPageOf(t), Permissions.READ_WRITE);
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
@@ -1043,114 +1370,505 @@ public class BTreeFile implements DbFile {
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+		return cacheDirtyPages(tid, dirtypages);
 	}
 
 	/**
-	 * Get a read lock on the root pointer page. Create the root pointer page and root page
-	 * if necessary.
+	 * Mark the pages dirtied by an operation dirty and make sure the BufferPool caches
+	 * them, while the operation still holds its latches.
 	 *
 	 * @param tid - the transaction id
-	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @return the root pointer page
-	 * @throws DbException
-	 * @throws IOException
-	 * @throws TransactionAbortedException
+	 * @param dirtypages - the dirtied pages
+	 * @return a list of the dirtied pages
 	 */
-	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
-		synchronized(this) {
-			if(f.length() == 0) {
-				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
-			}
-		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	private ArrayList<Page> cacheDirtyPages(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>(dirtypages.values());
+		Database.getBufferPool().cacheDirtyPages(tid, dirtyPagesArr);
+		return dirtyPagesArr;
 	}
 
 	/**
-	 * Get the page number of the first empty page in this BTreeFile.
-	 * Creates a new page if none of the existing pages are empty.
+	 * Add many tuples to this BTreeFile at once. Rather than inserting the tuples one by
+	 * one, this sorts them (externally, if they do not fit in memory), merges them with
+	 * the tuples already in the file and writes a new tree bottom-up: packed leaf pages
+	 * first, then each level of internal pages, all appended to the file in order. The
+	 * root pointer is then switched to the new tree and the pages of the old one are
+	 * freed. Until the switch the old tree is untouched, so a load that fails leaves
+	 * the file as it was.
 	 *
-	 * @param tid - the transaction id
-	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @return the page number of the first empty page
+	 * Each page is filled to the fill factor, but to at least half of its capacity, so
+	 * that later inserts can go into leaf pages without splitting them.
 	 *
-	 * @throws DbException
-	 * @throws IOException
-	 * @throws TransactionAbortedException
+	 * @param tid - the transaction id
+	 * @param tuples - an open iterator over the tuples to add, in any order; it may read
+	 * this file
+	 * @param fillFactor - the fraction of each page to fill, in (0, 1]
+	 * @return the number of tuples added
+	 * @throws DbException if a tuple does not match the TupleDesc of this file
 	 */
-	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages)
+	public int bulkLoad(TransactionId tid, DbIterator tuples, double fillFactor)
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
-		int emptyPageNo = 0;
+		if(!(fillFactor > 0 && fillFactor <= 1)) {
+			throw new IllegalArgumentException("fill factor must be in (0, 1]");
+		}
+		boolean[] asc = new boolean[keyFields.length];
+		Arrays.fill(asc, true);
+		TupleComparator comparator = TupleComparator.create(td, keyFields, asc);
+		// sort the new tuples before latching the tree, since they may come from it
+		ExternalSort sorter = new ExternalSort(td, comparator, ExternalSort.DEFAULT_MEMORY_PAGES);
+		try {
+			int added = 0;
+			while(tuples.hasNext()) {
+				Tuple t = tuples.next();
+				if(!t.getTupleDesc().equals(td)) {
+					throw new DbException("type mismatch, in bulkLoad");
+				}
+				sorter.add(t);
+				added++;
+			}
+			if(added == 0) {
+				return 0;
+			}
+			DbFileIterator sorted = sorter.finish();
 
-		if(headerId != null) {
-			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-			int headerPageCount = 0;
-			// try to find a header page with an empty slot
-			while(headerPage != null && headerPage.getEmptySlot() == -1) {
-				headerId = headerPage.getNextPageId();
-				if(headerId != null) {
-					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
-					headerPageCount++;
+			long stamp = treeLatch.writeLock();
+			try {
+				HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+				BTreePageId oldRoot = getRootPtrPage(tid, dirtypages).getRootId();
+				BTreeLeafPage first = null;
+				int existing = 0;
+				if(oldRoot != null) {
+					first = findLeafPage(tid, dirtypages, oldRoot, Permissions.READ_ONLY, null);
+					for(BTreeLeafPage leaf = first; leaf != null; ) {
+						existing += leaf.getNumTuples();
+						BTreePageId right = leaf.getRightSiblingId();
+						leaf = right == null ? null : (BTreeLeafPage) getPage(tid, dirtypages, right, Permissions.READ_ONLY);
+					}
 				}
-				else {
-					headerPage = null;
+
+				// existing tuples come before new tuples with the same key
+				DbFileIterator merged = new ExternalSort.MergeIterator(
+						new DbFileIterator[] { leafChain(tid, dirtypages, first), sorted }, comparator);
+				merged.open();
+				BTreePageId newRoot;
+				try {
+					newRoot = writeTree(merged, existing + added, fillFactor);
+				} finally {
+					merged.close();
 				}
-			}
 
-			// if headerPage is not null, it must have an empty slot
-			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+						BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+				rootPtr.setRootId(newRoot);
+				if(oldRoot != null) {
+					freeSubtree(tid, dirtypages, oldRoot);
+				}
+				cacheDirtyPages(tid, dirtypages);
+				return added;
+			} finally {
+				treeLatch.unlockWrite(stamp);
 			}
+		} finally {
+			sorter.close();
 		}
+	}
 
-		// at this point if headerId is null, either there are no header pages 
-		// or there are no free slots
-		if(headerId == null) {
-			synchronized(this) {
-				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
-				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
-				emptyPageNo = numPages();
+	/**
+	 * @return an iterator over the tuples of a leaf page and the leaf pages to its right,
+	 * which reads them without latches
+	 */
+	private DbFileIterator leafChain(final TransactionId tid, final HashMap<PageId, Page> dirtypages,
+			final BTreeLeafPage first) {
+		return new AbstractDbFileIterator() {
+			private BTreeLeafPage page;
+			private Iterator<Tuple> it;
+
+			public void open() {
+				page = first;
+				it = first == null ? null : first.iterator();
 			}
-		}
 
-		return emptyPageNo;
+			protected Tuple readNext() throws DbException, TransactionAbortedException {
+				while(it != null && !it.hasNext()) {
+					BTreePageId right = page.getRightSiblingId();
+					if(right == null) {
+						it = null;
+					}
+					else {
+						page = (BTreeLeafPage) getPage(tid, dirtypages, right, Permissions.READ_ONLY);
+						it = page.iterator();
+					}
+				}
+				return it == null ? null : it.next();
+			}
+
+			public void rewind() {
+				open();
+			}
+
+			public void close() {
+				super.close();
+				it = null;
+			}
+		};
 	}
 
 	/**
-	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
-	 * and creates a new page if none are available.  It wipes the page on disk and in the cache and 
-	 * returns a clean copy locked with read-write permission
-	 *
-	 * @param tid - the transaction id
-	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pgcateg - the BTreePageId category of the new page.  Either LEAF, INTERNAL, or HEADER
-	 * @return the new empty page
-	 * @see #getEmptyPageNo(TransactionId, HashMap)
-	 * @see #setEmptyPage(TransactionId, HashMap, int)
+	 * Write a tree holding tuples, in key order, to new pages at the end of this file.
+	 * The shape of the tree is worked out first, so that each page is written once,
+	 * with its parent and sibling pointers, and the pages of each level are contiguous.
 	 *
-	 * @throws DbException
-	 * @throws IOException
+	 * @param tuples - an open iterator over the tuples, sorted on the key field
+	 * @param numTuples - the number of tuples
+	 * @param fillFactor - the fraction of each page to fill
+	 * @return the id of the root page of the new tree
+	 */
+	private BTreePageId writeTree(DbFileIterator tuples, int numTuples, double fillFactor)
+			throws DbException, IOException, TransactionAbortedException {
+		int pageSize = BufferPool.getPageSize();
+		int maxTuples = new BTreeLeafPage(new BTreePageId(tableid, 0, BTreePageId.LEAF),
+				BTreeLeafPage.createEmptyPageData(), keyFields).getMaxTuples();
+		int maxEntries = new BTreeInternalPage(new BTreePageId(tableid, 0, BTreePageId.INTERNAL),
+				BTreeInternalPage.createEmptyPageData(), keyFields).getMaxEntries();
+
+		// the number of tuples in each leaf page, then of children in each internal page
+		ArrayList<int[]> levels = new ArrayList<int[]>();
+		levels.add(pageSizes(numTuples, Math.max(1, (int) (maxTuples * fillFactor)),
+				maxTuples / 2, maxTuples));
+		while(levels.get(levels.size() - 1).length > 1) {
+			levels.add(pageSizes(levels.get(levels.size() - 1).length,
+					Math.max(2, (int) (maxEntries * fillFactor) + 1), maxEntries / 2 + 1, maxEntries + 1));
+		}
+		int[] firstPage = new int[levels.size()];
+		firstPage[0] = numPages() + 1;
+		for(int l = 1; l < levels.size(); l++) {
+			firstPage[l] = firstPage[l - 1] + levels.get(l - 1).length;
+		}
+
+		Type[] types = new Type[td.numFields()];
+		for(int i = 0; i < types.length; i++) {
+			types[i] = td.getFieldType(i);
+		}
+
+		// the leaf pages, and the separator before each page of the level just written
+		int[] sizes = levels.get(0);
+		Field[] minKeys = new Field[sizes.length];
+		Tuple last = null;
+		int[] parents = parentIndexes(levels, 1, sizes.length);
+		for(int i = 0; i < sizes.length; i++) {
+			ArrayList<Tuple> pageTuples = new ArrayList<Tuple>(sizes[i]);
+			for(int j = 0; j < sizes[i]; j++) {
+				pageTuples.add(tuples.next());
+			}
+			minKeys[i] = sizes[i] > 0 ? separator(last, pageTuples.get(0)) : null;
+			last = sizes[i] > 0 ? pageTuples.get(sizes[i] - 1) : last;
+			BTreeLeafPage leaf = new BTreeLeafPage(new BTreePageId(tableid, firstPage[0] + i, BTreePageId.LEAF),
+					BTreeFileEncoder.convertToLeafPage(pageTuples, pageSize, types.length, types, keyField), keyFields);
+			if(i > 0) {
+				leaf.setLeftSiblingId(new BTreePageId(tableid, firstPage[0] + i - 1, BTreePageId.LEAF));
+			}
+			if(i < sizes.length - 1) {
+				leaf.setRightSiblingId(new BTreePageId(tableid, firstPage[0] + i + 1, BTreePageId.LEAF));
+			}
+			leaf.setParentId(parentId(firstPage, 1, parents[i]));
+			writePage(leaf);
+		}
+
+		// each level of internal pages, with one entry between each pair of children
+		for(int l = 1; l < levels.size(); l++) {
+			sizes = levels.get(l);
+			int childCategory = l == 1 ? BTreePageId.LEAF : BTreePageId.INTERNAL;
+			Field[] pageMinKeys = new Field[sizes.length];
+			parents = parentIndexes(levels, l + 1, sizes.length);
+			int child = 0;
+			for(int i = 0; i < sizes.length; i++) {
+				pageMinKeys[i] = minKeys[child];
+				ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+				for(int j = 1; j < sizes[i]; j++) {
+					entries.add(new BTreeEntry(minKeys[child + j],
+							new BTreePageId(tableid, firstPage[l - 1] + child + j - 1, childCategory),
+							new BTreePageId(tableid, firstPage[l - 1] + child + j, childCategory)));
+				}
+				child += sizes[i];
+				BTreePageId internalId = new BTreePageId(tableid, firstPage[l] + i, BTreePageId.INTERNAL);
+				BTreeInternalPage internal = new BTreeInternalPage(internalId,
+						BTreeFileEncoder.convertToInternalPage(entries, internalId, keyFields, childCategory), keyFields);
+				internal.setParentId(parentId(firstPage, l + 1, parents[i]));
+				writePage(internal);
+			}
+			minKeys = pageMinKeys;
+		}
+
+		int top = levels.size() - 1;
+		return new BTreePageId(tableid, firstPage[top], top == 0 ? BTreePageId.LEAF : BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * Divide items among pages, giving each page about target items, but at least min
+	 * and at most max unless there is only one page.
+	 *
+	 * @return the number of items in each page
+	 */
+	private static int[] pageSizes(int n, int target, int min, int max) {
+		int pages = Math.max((n + target - 1) / target, (n + max - 1) / max);
+		if(min > 0) {
+			pages = Math.min(pages, n / min);
+		}
+		pages = Math.max(pages, 1);
+		int[] sizes = new int[pages];
+		for(int i = 0; i < pages; i++) {
+			sizes[i] = n / pages + (i < n % pages ? 1 : 0);
+		}
+		return sizes;
+	}
+
+	/**
+	 * @return for each of the count pages of the level below a level, the index of its
+	 * parent in that level, or -1 if the level is above the root
+	 */
+	private static int[] parentIndexes(ArrayList<int[]> levels, int level, int count) {
+		int[] parents = new int[count];
+		if(level == levels.size()) {
+			Arrays.fill(parents, -1);
+			return parents;
+		}
+		int child = 0;
+		int[] sizes = levels.get(level);
+		for(int i = 0; i < sizes.length; i++) {
+			for(int j = 0; j < sizes[i]; j++) {
+				parents[child++] = i;
+			}
+		}
+		return parents;
+	}
+
+	/**
+	 * @return the id of the page at an index of an internal level, or of the root pointer
+	 * page if the index is -1
+	 */
+	private BTreePageId parentId(int[] firstPage, int level, int index) {
+		if(index == -1) {
+			return BTreeRootPtrPage.getId(tableid);
+		}
+		return new BTreePageId(tableid, firstPage[level] + index, BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * Free every page of a subtree, after the tree no longer points to it.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pid - the root of the subtree
+	 */
+	private void freeSubtree(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid)
+			throws DbException, IOException, TransactionAbortedException {
+		if(pid.pgcateg() == BTreePageId.INTERNAL) {
+			BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+			Iterator<BTreeEntry> it = page.iterator();
+			BTreeEntry e = null;
+			while(it.hasNext()) {
+				e = it.next();
+				freeSubtree(tid, dirtypages, e.getLeftChild());
+			}
+			if(e != null) {
+				freeSubtree(tid, dirtypages, e.getRightChild());
+			}
+		}
+		setEmptyPage(tid, dirtypages, pid.pageNumber());
+	}
+
+	/**
+	 * @return the latch of a leaf page
+	 */
+	private StampedLock leafLatch(BTreePageId pid) {
+		StampedLock latch = leafLatches.get(pid.pageNumber());
+		if(latch == null) {
+			StampedLock created = new StampedLock();
+			latch = leafLatches.putIfAbsent(pid.pageNumber(), created);
+			if(latch == null) {
+				latch = created;
+			}
+		}
+		return latch;
+	}
+
+	/**
+	 * Pin a leaf page in the BufferPool and latch it. The page should be fetched
+	 * from the BufferPool after it is latched.
+	 *
+	 * @param pid - the leaf page
+	 * @param exclusive - whether to latch it exclusively, to change it
+	 * @return the stamp to release the latch with
+	 */
+	long latchLeaf(BTreePageId pid, boolean exclusive) {
+		StampedLock latch = leafLatch(pid);
+		Database.getBufferPool().pinPage(pid);
+		return exclusive ? latch.writeLock() : latch.readLock();
+	}
+
+	/**
+	 * Release a latch taken by {@link #latchLeaf} and unpin the page.
+	 */
+	void unlatchLeaf(BTreePageId pid, long stamp) {
+		leafLatch(pid).unlock(stamp);
+		Database.getBufferPool().unpinPage(pid);
+	}
+
+	/**
+	 * Start reading a leaf page without latching it.
+	 *
+	 * @return a stamp to validate the read with, or 0 if the page is latched exclusively
+	 */
+	long tryOptimisticLeafRead(BTreePageId pid) {
+		return leafLatch(pid).tryOptimisticRead();
+	}
+
+	/**
+	 * @return true if the leaf page has not been latched exclusively since the stamp
+	 * was issued, so that what was read from it is consistent
+	 */
+	boolean validateLeaf(BTreePageId pid, long stamp) {
+		return leafLatch(pid).validate(stamp);
+	}
+
+	/**
+	 * Take the tree latch shared, for a scan to read a leaf page. No page splits, merges
+	 * or redistributes until {@link #endRead} is called.
+	 *
+	 * @return the stamp to release the latch with
+	 */
+	long beginRead() {
+		return treeLatch.readLock();
+	}
+
+	/**
+	 * Release the latch taken by {@link #beginRead}.
+	 */
+	void endRead(long stamp) {
+		treeLatch.unlockRead(stamp);
+	}
+
+	/**
+	 * Start reading the tree without latching it. Internal pages only change under the
+	 * exclusive tree latch, so a descent that validates needs no latches on them.
+	 *
+	 * @return a stamp to validate the read with, or 0 if the tree is latched exclusively
+	 */
+	long tryOptimisticRead() {
+		return treeLatch.tryOptimisticRead();
+	}
+
+	/**
+	 * @return true if no page has been split, merged or redistributed since the stamp
+	 * was issued. Stamps of shared latches validate too, after they are released.
+	 */
+	boolean validate(long stamp) {
+		return treeLatch.validate(stamp);
+	}
+
+	/**
+	 * Get a read lock on the root pointer page. Create the root pointer page and root page
+	 * if necessary.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the root pointer page
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		synchronized(this) {
+			if(f.length() == 0) {
+				// create the root pointer page and the root page
+				BufferedOutputStream bw = new BufferedOutputStream(
+						new FileOutputStream(f, true));
+				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
+				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
+				bw.write(emptyRootPtrData);
+				bw.write(emptyLeafData);
+				bw.close();
+			}
+		}
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Get the page number of the first empty page in this BTreeFile.
+	 * Creates a new page if none of the existing pages are empty.
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @return the page number of the first empty page
+	 *
+	 * @throws DbException
+	 * @throws IOException
+	 * @throws TransactionAbortedException
+	 */
+	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages)
+			throws DbException, IOException, TransactionAbortedException {
+		// get a read lock on the root pointer page and use it to locate the first header page
+		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
+		BTreePageId headerId = rootPtr.getHeaderId();
+		int emptyPageNo = 0;
+
+		if(headerId != null) {
+			BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+			int headerPageCount = 0;
+			// try to find a header page with an empty slot
+			while(headerPage != null && headerPage.getEmptySlot() == -1) {
+				headerId = headerPage.getNextPageId();
+				if(headerId != null) {
+					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
+					headerPageCount++;
+				}
+				else {
+					headerPage = null;
+				}
+			}
+
+			// if headerPage is not null, it must have an empty slot
+			if(headerPage != null) {
+				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+				int emptySlot = headerPage.getEmptySlot();
+				headerPage.markSlotUsed(emptySlot, true);
+				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+			}
+		}
+
+		// at this point if headerId is null, either there are no header pages 
+		// or there are no free slots
+		if(headerId == null) {
+			synchronized(this) {
+				// create the new page
+				BufferedOutputStream bw = new BufferedOutputStream(
+						new FileOutputStream(f, true));
+				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
+				bw.write(emptyData);
+				bw.close();
+				emptyPageNo = numPages();
+			}
+		}
+
+		return emptyPageNo;
+	}
+
+	/**
+	 * Method to encapsulate the process of creating a new page.  It reuses old pages if possible,
+	 * and creates a new page if none are available.  It wipes the page on disk and in the cache and 
+	 * returns a clean copy locked with read-write permission
+	 *
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param pgcateg - the BTreePageId category of the new page.  Either LEAF, INTERNAL, or HEADER
+	 * @return the new empty page
+	 * @see #getEmptyPageNo(TransactionId, HashMap)
+	 * @see #setEmptyPage(TransactionId, HashMap, int)
+	 *
+	 * @throws DbException
+	 * @throws IOException
 	 * @throws TransactionAbortedException
 	 */
 	private Page getEmptyPage(TransactionId tid, HashMap<PageId, Page> dirtypages, int pgcateg)
@@ -1284,6 +2002,541 @@ public class BTreeFile implements DbFile {
 		return new BTreeFileIterator(this, tid);
 	}
 
+	/**
+	 * Get an iterator for tuples in this B+ tree file that satisfy an IndexPredicate,
+	 * in descending key order. The iterator starts at the largest key that can match,
+	 * rather than at the left-most leaf page, and follows the left sibling pointers.
+	 *
+	 * @param tid - the transaction id
+	 * @param ipred - the index predicate value to filter on
+	 * @return an iterator for the filtered tuples, largest key first
+	 */
+	public DbFileIterator reverseIndexIterator(TransactionId tid, IndexPredicate ipred) {
+		return new BTreeSearchIterator(this, tid, ipred, null, true);
+	}
+
+	/**
+	 * Get an iterator for all tuples in this B+ tree file in descending key order,
+	 * starting at the right-most leaf page.
+	 *
+	 * @param tid - the transaction id
+	 * @return an iterator for all the tuples in this file, largest key first
+	 */
+	public DbFileIterator reverseIterator(TransactionId tid) {
+		return new BTreeFileIterator(this, tid, null, true);
+	}
+
+	/**
+	 * Get an iterator for the tuples in this B+ tree file that satisfy all of the
+	 * given predicates, in sorted order. A range or equality predicate on the key
+	 * is answered by searching the tree; the other predicates are tested on the
+	 * tuples of the leaf pages.
+	 *
+	 * @param tid - the transaction id
+	 * @param preds - the predicates tuples must all satisfy
+	 * @return an iterator for the matching tuples in this file
+	 */
+	public DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields) {
+		return iterator(tid, preds, fields, false);
+	}
+
+	/**
+	 * Get an iterator for the tuples in this B+ tree file that satisfy all of the
+	 * given predicates, in descending key order.
+	 *
+	 * @param tid - the transaction id
+	 * @param preds - the predicates tuples must all satisfy
+	 * @return an iterator for the matching tuples in this file, largest key first
+	 * @see #iterator(TransactionId, Predicate[], int[])
+	 */
+	public DbFileIterator reverseIterator(TransactionId tid, Predicate[] preds, int[] fields) {
+		return iterator(tid, preds, fields, true);
+	}
+
+	private DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields, boolean reverse) {
+		if (preds == null)
+			preds = new Predicate[0];
+		// the key steers the iterators, and the predicates are tested on parsed tuples
+		boolean[] mask = null;
+		if (fields != null) {
+			int[] read = Arrays.copyOf(fields, fields.length + keyFields.length + preds.length);
+			System.arraycopy(keyFields, 0, read, fields.length, keyFields.length);
+			for (int i = 0; i < preds.length; i++)
+				read[fields.length + keyFields.length + i] = preds[i].getField();
+			mask = TupleParser.mask(read, td.numFields());
+		}
+		ArrayList<Predicate> rest = new ArrayList<Predicate>(Arrays.asList(preds));
+		for (Predicate p : preds) {
+			if (p.getField() == keyField && p.getOp() != Op.NOT_EQUALS && p.getOp() != Op.LIKE) {
+				rest.remove(p);
+				return new BTreeFilterIterator(new BTreeSearchIterator(this, tid,
+						new IndexPredicate(p.getOp(), p.getOperand()), mask, reverse), rest.toArray(new Predicate[0]));
+			}
+		}
+		return new BTreeFilterIterator(new BTreeFileIterator(this, tid, mask, reverse), preds);
+	}
+
+}
+
+/**
+ * Helper class that returns the tuples of another iterator over a BTreeFile
+ * that satisfy a conjunction of predicates
+ */
+class BTreeFilterIterator extends AbstractDbFileIterator {
+
+	DbFileIterator it;
+	Predicate[] preds;
+
+	/**
+	 * Constructor for this iterator
+	 * @param it - the iterator whose tuples are filtered
+	 * @param preds - the predicates tuples must all satisfy
+	 */
+	public BTreeFilterIterator(DbFileIterator it, Predicate[] preds) {
+		this.it = it;
+		this.preds = preds;
+	}
+
+	public void open() throws DbException, TransactionAbortedException {
+		it.open();
+	}
+
+	/**
+	 * Read the next tuple of the underlying iterator that passes all predicates
+	 *
+	 * @return the next matching tuple, or null if none exists
+	 */
+	@Override
+	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			boolean pass = true;
+			for (int i = 0; pass && i < preds.length; i++)
+				pass = preds[i].filter(t);
+			if (pass)
+				return t;
+		}
+		return null;
+	}
+
+	public void rewind() throws DbException, TransactionAbortedException {
+		close();
+		open();
+	}
+
+	public void close() {
+		super.close();
+		it.close();
+	}
+}
+
+/**
+ * Helper class that reads the tuples of a BTreeFile in key order, one leaf page at a
+ * time, following the right sibling pointers, or the left ones for a cursor reading
+ * in descending key order. The tuples of a page are copied optimistically, and then under a shared latch
+ * on the page and the shared tree latch if that keeps failing; either way no latch
+ * is held while the tuples are returned. If pages were split, merged or
+ * redistributed before the cursor moves on to the next page,
+ * tuples may have moved past it, so the cursor searches the tree again for the
+ * last key it returned and skips the tuples with that key it has already returned.
+ * <p>
+ * Leaf pages split over time are rarely next to each other in the file. Once a
+ * cursor has followed a few sibling pointers, it reads the next leaf pages of the
+ * scan into the BufferPool on a background thread, following the sibling pointers
+ * ahead of it, so that a long range scan processes one page while the next ones
+ * are read. It reads no further ahead than where the scan ends, if it was told.
+ */
+class BTreeLeafCursor {
+
+	/** optimistic reads of a page before the cursor latches it */
+	private static final int OPTIMISTIC_TRIES = 3;
+	/** no B+ tree is deeper than this; a longer descent read pages that were changing */
+	private static final int MAX_DEPTH = 64;
+	/** the leaf pages read ahead of a long scan */
+	static final int READ_AHEAD_PAGES = 8;
+	/** the sibling pointers a scan follows before it reads ahead; shorter scans never do */
+	static final int READ_AHEAD_AFTER = 2;
+
+	/** Threads that read leaf pages ahead of scans; idle threads exit after a minute */
+	private static final ExecutorService READERS = Executors.newCachedThreadPool(
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "simpledb-readahead");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final BTreeFile f;
+	private final TransactionId tid;
+	private final boolean[] fields;
+	private final boolean reverse;
+
+	private ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+	private int pos;
+	/** the sibling of the current page to read next */
+	private BTreePageId nextId;
+	/** the stamp of the tree latch under which the current page was read */
+	private long version;
+
+	/** where the scan started */
+	private Field startKey;
+	private boolean startStrict;
+	/** the last key returned, the number of tuples with it returned, and how many of those to skip */
+	private Field lastKey;
+	private int lastCount;
+	private int skip;
+	/** where the scan ends, and whether it returns the tuples equal to endKey */
+	private Field endKey;
+	private boolean endInclusive;
+	/** the sibling pointers followed since the scan started, and the read ahead of it */
+	private int moves;
+	private Future<?> readAhead;
+	private volatile boolean closed;
+
+	/**
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param fields - the mask of the fields to read, which must include the key, or null
+	 * to read them all
+	 */
+	BTreeLeafCursor(BTreeFile f, TransactionId tid, boolean[] fields) {
+		this(f, tid, fields, false);
+	}
+
+	/**
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param fields - the mask of the fields to read, which must include the key, or null
+	 * to read them all
+	 * @param reverse - whether to read the tuples in descending key order
+	 */
+	BTreeLeafCursor(BTreeFile f, TransactionId tid, boolean[] fields, boolean reverse) {
+		this.f = f;
+		this.tid = tid;
+		this.fields = fields;
+		this.reverse = reverse;
+	}
+
+	/**
+	 * Position the cursor before the first tuple whose key is at least key, or, for a
+	 * reverse cursor, before the last tuple whose key is at most key
+	 *
+	 * @param key - the key, or null to start at the first (or last) tuple
+	 * @param strict - whether to start after the tuples equal to key instead
+	 */
+	void seek(Field key, boolean strict) throws DbException, TransactionAbortedException {
+		startKey = key;
+		startStrict = strict;
+		lastKey = null;
+		lastCount = 0;
+		skip = 0;
+		moves = 0;
+		read(false, key, strict);
+	}
+
+	/**
+	 * Tell the cursor where its scan ends, so that it does not read leaf pages ahead
+	 * past it: after the tuples whose key is at most key, or, for a reverse cursor,
+	 * at least key
+	 *
+	 * @param key - the last key of the scan
+	 * @param inclusive - whether the scan returns the tuples equal to key
+	 */
+	void setEnd(Field key, boolean inclusive) {
+		endKey = key;
+		endInclusive = inclusive;
+	}
+
+	/**
+	 * Stop reading ahead of the cursor, and wait for the page being read ahead, so
+	 * that no read outlives the scan; the cursor returns no more tuples.
+	 */
+	void close() {
+		closed = true;
+		if (readAhead == null)
+			return;
+		try {
+			readAhead.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// read ahead errors are left for scans to run into
+		}
+		readAhead = null;
+	}
+
+	/**
+	 * @return the next tuple in key order, or null if none exists
+	 */
+	Tuple next() throws DbException, TransactionAbortedException {
+		while (true) {
+			while (pos == tuples.size()) {
+				if (nextId == null)
+					return null;
+				if (!read(true, null, false)) {
+					// the pages changed under the scan; find its place again
+					skip = lastCount;
+					if (lastKey == null)
+						read(false, startKey, startStrict);
+					else
+						read(false, lastKey, false);
+				}
+				if (++moves >= READ_AHEAD_AFTER)
+					readAhead();
+			}
+			Tuple t = tuples.get(pos++);
+			Field key = f.keyOf(t);
+			boolean same = lastKey != null && key.equals(lastKey);
+			if (skip > 0 && same) {
+				skip--;
+				continue;
+			}
+			skip = 0;
+			if (same) {
+				lastCount++;
+			} else {
+				lastKey = key;
+				lastCount = 1;
+			}
+			return t;
+		}
+	}
+
+	/**
+	 * Copy the tuples of a leaf page.
+	 *
+	 * @param next - whether to read the next sibling of the page read last, rather
+	 * than search the tree for key
+	 * @param key - the key to start at, or null to start at the first (or last) tuple
+	 * of the page
+	 * @param strict - whether to start after the tuples equal to key instead
+	 * @return false if the tree changed its structure since the page read last
+	 */
+	private boolean read(boolean next, Field key, boolean strict)
+			throws DbException, TransactionAbortedException {
+		for (int i = 0; i < OPTIMISTIC_TRIES; i++) {
+			long stamp = f.tryOptimisticRead();
+			if (stamp == 0)
+				break;
+			if (next && !f.validate(version))
+				return false;
+			try {
+				if (readOptimistic(stamp, next, key, strict))
+					return true;
+			} catch (RuntimeException e) {
+				// pages read while they changed can hold anything
+				if (f.validate(stamp))
+					throw e;
+			} catch (DbException e) {
+				if (f.validate(stamp))
+					throw e;
+			}
+		}
+		return readLatched(next, key, strict);
+	}
+
+	/**
+	 * Copy the tuples of a leaf page without taking any latches.
+	 *
+	 * @param stamp - the optimistic stamp of the tree latch
+	 * @return false if a page changed while it was read
+	 */
+	private boolean readOptimistic(long stamp, boolean next, Field key, boolean strict)
+			throws DbException, TransactionAbortedException {
+		BTreePageId pid;
+		if (!next) {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+					tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+			pid = rootPtr.getRootId();
+			if (pid == null) {
+				if (!f.validate(stamp))
+					return false;
+				setPage(new ArrayList<Tuple>(), null, stamp);
+				return true;
+			}
+			for (int depth = 0; pid.pgcateg() != BTreePageId.LEAF; depth++) {
+				if (depth == MAX_DEPTH)
+					return false;
+				BTreeInternalPage internal = (BTreeInternalPage) Database.getBufferPool().getPage(
+						tid, pid, Permissions.READ_ONLY);
+				pid = reverse ? internal.findLastChild(key, strict) : internal.findChild(key);
+			}
+		} else {
+			pid = nextId;
+		}
+		long leafStamp = f.tryOptimisticLeafRead(pid);
+		if (leafStamp == 0)
+			return false;
+		ArrayList<Tuple> copy;
+		BTreePageId sibling;
+		try {
+			BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+			copy = copy(leaf, key, strict);
+			sibling = siblingOf(leaf);
+		} catch (RuntimeException e) {
+			if (f.validateLeaf(pid, leafStamp) && f.validate(stamp))
+				throw e;
+			return false;
+		}
+		if (!f.validateLeaf(pid, leafStamp) || !f.validate(stamp))
+			return false;
+		setPage(copy, sibling, stamp);
+		return true;
+	}
+
+	/**
+	 * Copy the tuples of a leaf page under the shared tree latch and a shared latch
+	 * on the page.
+	 */
+	private boolean readLatched(boolean next, Field key, boolean strict)
+			throws DbException, TransactionAbortedException {
+		long stamp = f.beginRead();
+		try {
+			if (next && !f.validate(version))
+				return false;
+			BTreePageId pid;
+			if (!next) {
+				BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
+						tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
+				BTreePageId root = rootPtr.getRootId();
+				if (root == null) {
+					setPage(new ArrayList<Tuple>(), null, stamp);
+					return true;
+				}
+				pid = reverse ? f.findLastLeafPage(tid, root, Permissions.READ_ONLY, key, strict).getId()
+						: f.findLeafPage(tid, root, Permissions.READ_ONLY, key).getId();
+			} else {
+				pid = nextId;
+			}
+			long leafStamp = f.latchLeaf(pid, false);
+			try {
+				BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+				setPage(copy(leaf, key, strict), siblingOf(leaf), stamp);
+				return true;
+			} finally {
+				f.unlatchLeaf(pid, leafStamp);
+			}
+		} finally {
+			f.endRead(stamp);
+		}
+	}
+
+	/**
+	 * @return the tuples of a leaf page, from the first one whose key is at least key
+	 * (or greater if strict), or all of them if key is null. A reverse cursor gets the
+	 * tuples whose key is at most key (or less if strict), last one first.
+	 */
+	private ArrayList<Tuple> copy(BTreeLeafPage leaf, Field key, boolean strict) {
+		ArrayList<Tuple> copy = new ArrayList<Tuple>();
+		Iterator<Tuple> it;
+		int end = Integer.MAX_VALUE;
+		if (key == null)
+			it = leaf.iterator(fields);
+		else if (reverse) {
+			it = leaf.iterator(fields);
+			end = leaf.findSlot(key, !strict);
+		} else
+			it = leaf.iterator(fields, leaf.findSlot(key, strict));
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			if (t == null)
+				throw new NoSuchElementException("slot emptied during read");
+			if (t.getRecordId().tupleno() >= end)
+				break;
+			copy.add(t);
+		}
+		if (reverse)
+			Collections.reverse(copy);
+		return copy;
+	}
+
+	/**
+	 * @return the sibling of a leaf page the cursor reads after it
+	 */
+	private BTreePageId siblingOf(BTreeLeafPage leaf) {
+		return reverse ? leaf.getLeftSiblingId() : leaf.getRightSiblingId();
+	}
+
+	/**
+	 * Start reading the leaf pages after the current one into the BufferPool on a
+	 * background thread, unless the last read ahead is still running. Pages read
+	 * ahead before are found in the BufferPool again, without reading them.
+	 */
+	private void readAhead() {
+		if (nextId == null || closed || (readAhead != null && !readAhead.isDone()))
+			return;
+		if (!tuples.isEmpty() && pastEnd(tuples.get(tuples.size() - 1)))
+			return; // the scan ends on the current page
+		final BTreePageId start = nextId;
+		final long stamp = version;
+		readAhead = READERS.submit(new Runnable() {
+			public void run() {
+				BTreePageId pid = start;
+				for (int i = 0; i < READ_AHEAD_PAGES && pid != null && !closed; i++)
+					pid = readAhead(pid, stamp);
+			}
+		});
+	}
+
+	/**
+	 * Read a leaf page ahead of the cursor, under the shared tree latch and a shared
+	 * latch on the page, if no page was split, merged or redistributed since the
+	 * cursor read the page before it. Errors are left for the cursor to run into.
+	 *
+	 * @return the sibling of the page to read next, or null to stop reading ahead
+	 */
+	private BTreePageId readAhead(BTreePageId pid, long stamp) {
+		long treeStamp = f.beginRead();
+		try {
+			if (!f.validate(stamp))
+				return null;
+			long leafStamp = f.latchLeaf(pid, false);
+			try {
+				BTreeLeafPage leaf = (BTreeLeafPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+				return endsOn(leaf) ? null : siblingOf(leaf);
+			} finally {
+				f.unlatchLeaf(pid, leafStamp);
+			}
+		} catch (DbException e) {
+			return null;
+		} catch (TransactionAbortedException e) {
+			return null;
+		} catch (RuntimeException e) {
+			return null;
+		} finally {
+			f.endRead(treeStamp);
+		}
+	}
+
+	/**
+	 * @return true if the scan ends on a leaf page, because its last tuple (or, for a
+	 * reverse cursor, its first) is past the end of the scan
+	 */
+	private boolean endsOn(BTreeLeafPage leaf) {
+		if (endKey == null)
+			return false;
+		Iterator<Tuple> it = reverse ? leaf.iterator() : leaf.reverseIterator();
+		return it.hasNext() && pastEnd(it.next());
+	}
+
+	/**
+	 * @return true if a tuple is past the end of the scan, which stops before it
+	 */
+	private boolean pastEnd(Tuple t) {
+		if (endKey == null)
+			return false;
+		Op op = reverse ? (endInclusive ? Op.GREATER_THAN_OR_EQ : Op.GREATER_THAN)
+				: (endInclusive ? Op.LESS_THAN_OR_EQ : Op.LESS_THAN);
+		return !f.keyOf(t).compare(op, endKey);
+	}
+
+	private void setPage(ArrayList<Tuple> copy, BTreePageId sibling, long stamp) {
+		tuples = copy;
+		pos = 0;
+		nextId = sibling;
+		version = stamp;
+	}
 }
 
 /**
@@ -1291,11 +2544,12 @@ public class BTreeFile implements DbFile {
  */
 class BTreeFileIterator extends AbstractDbFileIterator {
 
-	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	BTreeLeafCursor cursor = null;
 
 	TransactionId tid;
 	BTreeFile f;
+	boolean[] fields;
+	boolean reverse;
 
 	/**
 	 * Constructor for this iterator
@@ -1303,49 +2557,54 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * @param tid - the transaction id
 	 */
 	public BTreeFileIterator(BTreeFile f, TransactionId tid) {
+		this(f, tid, null);
+	}
+
+	/**
+	 * Constructor for an iterator that reads only some fields of the tuples
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param fields - the mask of the fields to read, or null to read them all
+	 */
+	public BTreeFileIterator(BTreeFile f, TransactionId tid, boolean[] fields) {
+		this(f, tid, fields, false);
+	}
+
+	/**
+	 * Constructor for an iterator that reads only some fields of the tuples,
+	 * in either direction
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param fields - the mask of the fields to read, or null to read them all
+	 * @param reverse - whether to return the tuples in descending key order
+	 */
+	public BTreeFileIterator(BTreeFile f, TransactionId tid, boolean[] fields, boolean reverse) {
 		this.f = f;
 		this.tid = tid;
+		this.fields = fields;
+		this.reverse = reverse;
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page
+	 * Open this iterator by positioning a cursor on the first (or, in reverse, the
+	 * last) leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		cursor = new BTreeLeafCursor(f, tid, fields, reverse);
+		cursor.seek(null, false);
 	}
 
 	/**
 	 * Read the next tuple either from the current page if it has more tuples or
-	 * from the next page by following the right sibling pointer.
+	 * from the next page by following the right (or left) sibling pointer.
 	 *
 	 * @return the next tuple, or null if none exists
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException {
-		if (it != null && !it.hasNext())
-			it = null;
-
-		while (it == null && curp != null) {
-			BTreePageId nextp = curp.getRightSiblingId();
-			if(nextp == null) {
-				curp = null;
-			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
-				if (!it.hasNext())
-					it = null;
-			}
-		}
-
-		if (it == null)
+		if (cursor == null)
 			return null;
-		return it.next();
+		return cursor.next();
 	}
 
 	/**
@@ -1361,8 +2620,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
-		it = null;
-		curp = null;
+		if (cursor != null)
+			cursor.close();
+		cursor = null;
 	}
 }
 
@@ -1372,12 +2632,15 @@ class BTreeFileIterator extends AbstractDbFileIterator {
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
-	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	BTreeLeafCursor cursor = null;
 
 	TransactionId tid;
 	BTreeFile f;
 	IndexPredicate ipred;
+	/** the field of the predicate, as a key of f */
+	Field key;
+	boolean[] fields;
+	boolean reverse;
 
 	/**
 	 * Constructor for this iterator
@@ -1386,67 +2649,107 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * @param ipred - the predicate to filter on
 	 */
 	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred) {
+		this(f, tid, ipred, null);
+	}
+
+	/**
+	 * Constructor for an iterator that reads only some fields of the tuples
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on
+	 * @param fields - the mask of the fields to read, which must include the
+	 * key, or null to read them all
+	 */
+	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred, boolean[] fields) {
+		this(f, tid, ipred, fields, false);
+	}
+
+	/**
+	 * Constructor for an iterator that reads only some fields of the tuples,
+	 * in either direction
+	 * @param f - the BTreeFile containing the tuples
+	 * @param tid - the transaction id
+	 * @param ipred - the predicate to filter on
+	 * @param fields - the mask of the fields to read, which must include the
+	 * key, or null to read them all
+	 * @param reverse - whether to return the tuples in descending key order
+	 */
+	public BTreeSearchIterator(BTreeFile f, TransactionId tid, IndexPredicate ipred, boolean[] fields,
+			boolean reverse) {
 		this.f = f;
 		this.tid = tid;
 		this.ipred = ipred;
+		this.key = f.searchKey(ipred.getField());
+		this.fields = fields;
+		this.reverse = reverse;
 	}
 
 	/**
-	 * Open this iterator by getting an iterator on the first leaf page applicable
+	 * Open this iterator by positioning a cursor on the first leaf page applicable
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
+		cursor = new BTreeLeafCursor(f, tid, fields, reverse);
+		Op op = ipred.getOp();
+		if (op == Op.EQUALS)
+			cursor.setEnd(key, true);
+		else if (reverse && (op == Op.GREATER_THAN || op == Op.GREATER_THAN_OR_EQ))
+			cursor.setEnd(key, op == Op.GREATER_THAN_OR_EQ);
+		else if (!reverse && (op == Op.LESS_THAN || op == Op.LESS_THAN_OR_EQ))
+			cursor.setEnd(key, op == Op.LESS_THAN_OR_EQ);
+		if (reverse) {
+			if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.LESS_THAN
+					|| ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+				// start at the last tuple that can match, rather than at the right-most page
+				cursor.seek(key, ipred.getOp() == Op.LESS_THAN);
+			}
+			else {
+				cursor.seek(null, false);
+			}
+		}
+		else if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			// start at the first tuple that can match, rather than at the start of the page
+			cursor.seek(key, ipred.getOp() == Op.GREATER_THAN);
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			cursor.seek(null, false);
 		}
-		it = curp.iterator();
 	}
 
 	/**
 	 * Read the next tuple either from the current page if it has more tuples matching
-	 * the predicate or from the next page by following the right sibling pointer.
+	 * the predicate or from the next page by following the right (or left) sibling
+	 * pointer.
 	 *
 	 * @return the next tuple matching the predicate, or null if none exists
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
-		while (it != null) {
-
-			while (it.hasNext()) {
-				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
-				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
-				}
-				else if(ipred.getOp() == Op.EQUALS &&
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
+		if (cursor == null)
+			return null;
+		Tuple t;
+		while ((t = cursor.next()) != null) {
+			if (f.keyOf(t).compare(ipred.getOp(), key)) {
+				return t;
+			}
+			else if (reverse) {
+				// going down, a key that fails a lower bound or an equality ends the scan
+				if (ipred.getOp() == Op.GREATER_THAN || ipred.getOp() == Op.GREATER_THAN_OR_EQ
+						|| ipred.getOp() == Op.EQUALS)
 					return null;
-				}
 			}
-
-			BTreePageId nextp = curp.getRightSiblingId();
-			// if there are no more pages to the right, end the iteration
-			if(nextp == null) {
+			else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+				// if the predicate was not satisfied and the operation is less than, we have
+				// hit the end
 				return null;
 			}
-			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+			else if(ipred.getOp() == Op.EQUALS &&
+					f.keyOf(t).compare(Op.GREATER_THAN, key)) {
+				// if the tuple is now greater than the field passed in and the operation
+				// is equals, we have reached the end
+				return null;
 			}
 		}
 
@@ -1466,6 +2769,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 */
 	public void close() {
 		super.close();
-		it = null;
+		if (cursor != null)
+			cursor.close();
+		cursor = null;
 	}
 }
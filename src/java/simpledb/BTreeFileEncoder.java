@@ -200,8 +200,10 @@ public class BTreeFileEncoder {
 			int numFields, Type[] typeAr, char fieldSeparator, int keyField) 
 					throws IOException, DbException, TransactionAbortedException {
 		// convert the inFile to HeapFile first.
-		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields);
-		HeapFile heapf = Utility.openHeapFile(numFields, hFile);
+		TupleDesc td = new TupleDesc(typeAr);
+		HeapFileEncoder.convert(inFile, hFile, BufferPool.getPageSize(), numFields, typeAr, fieldSeparator);
+		HeapFile heapf = new HeapFile(hFile, td);
+		Database.getCatalog().addTable(heapf, UUID.randomUUID().toString());
 
 		// read all the tuples from the heap file and sort them on the keyField
 		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
@@ -216,7 +218,7 @@ public class BTreeFileEncoder {
 		Collections.sort(tuples, new TupleComparator(keyField));
 
 		// add the tuples to B+ tree file
-		BTreeFile bf = BTreeUtility.openBTreeFile(numFields, bFile, keyField);
+		BTreeFile bf = BTreeUtility.openBTreeFile(td, bFile, new int[] { keyField });
 		Type keyType = typeAr[keyField];
 		int tableid = bf.getId();
 
@@ -232,6 +234,11 @@ public class BTreeFileEncoder {
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int internalpointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - internalpointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
+		if (keyType == Type.STRING_TYPE) {
+			// compact pages hold as many keys of the longest length as fit
+			nentries = new BTreeInternalPage(new BTreePageId(tableid, 0, BTreePageId.INTERNAL),
+					BTreeInternalPage.createEmptyPageData(), keyField).getMaxEntries();
+		}
 
 		ArrayList<ArrayList<BTreeEntry>> entries = new ArrayList<ArrayList<BTreeEntry>>();
 
@@ -264,7 +271,8 @@ public class BTreeFileEncoder {
 				leftSiblingId = leafPid;
 
 				// update the parent by "copying up" the next key
-				BTreeEntry copyUpEntry = new BTreeEntry(page2.get(0).getField(keyField), leafPid, null);
+				BTreeEntry copyUpEntry = new BTreeEntry(BTreePage.separator(page1.get(page1.size() - 1).getField(keyField),
+						page2.get(0).getField(keyField)), leafPid, null);
 				updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
 						keyType, tableid, keyField);
 
@@ -313,7 +321,8 @@ public class BTreeFileEncoder {
 			bf.writePage(lastPage);
 
 			// update the parent by "copying up" the next key
-			BTreeEntry copyUpEntry = new BTreeEntry(lastPg.get(0).getField(keyField), secondToLastPid, lastPid);
+			BTreeEntry copyUpEntry = new BTreeEntry(BTreePage.separator(secondToLastPg.get(secondToLastPg.size() - 1).getField(keyField),
+					lastPg.get(0).getField(keyField)), secondToLastPid, lastPid);
 			updateEntries(entries, bf, copyUpEntry, 0, nentries, npagebytes, 
 					keyType, tableid, keyField);
 		}
@@ -399,10 +408,11 @@ public class BTreeFileEncoder {
 	 * @param tableid - the table id of this BTreeFile
 	 * @param keyField - the index of the key field
 	 * @throws IOException
+	 * @throws DbException
 	 */
 	private static void cleanUpEntries(ArrayList<ArrayList<BTreeEntry>> entries,
 			BTreeFile bf, int nentries, int npagebytes, Type keyType, int tableid, 
-			int keyField) throws IOException {
+			int keyField) throws IOException, DbException {
 		// As with the leaf pages, there are two options:
 		// 1. We have less than or equal to a full page of entries. Because of the way the code
 		//    was written, we know this must be the root page
@@ -415,8 +425,8 @@ public class BTreeFileEncoder {
 			int size = entries.get(i).size();
 			if(size <= nentries) {
 				// write out a page of entries
-				byte[] internalPageBytes = convertToInternalPage(entries.get(i), npagebytes, keyType, childPageCategory);
 				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
+				byte[] internalPageBytes = convertToInternalPage(entries.get(i), internalPid, new int[] { keyField }, childPageCategory);
 				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
 			}
 			else {
@@ -427,12 +437,12 @@ public class BTreeFileEncoder {
 				lastPg.addAll(entries.get(i).subList(size/2 + 1, size));
 
 				// write out the last two pages of entries
-				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, npagebytes, keyType, childPageCategory);
 				BTreePageId secondToLastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
+				byte[] secondToLastPageBytes = convertToInternalPage(secondToLastPg, secondToLastPid, new int[] { keyField }, childPageCategory);
 				bf.writePage(new BTreeInternalPage(secondToLastPid, secondToLastPageBytes, keyField));
 
-				byte[] lastPageBytes = convertToInternalPage(lastPg, npagebytes, keyType, childPageCategory);
 				BTreePageId lastPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
+				byte[] lastPageBytes = convertToInternalPage(lastPg, lastPid, new int[] { keyField }, childPageCategory);
 				bf.writePage(new BTreeInternalPage(lastPid, lastPageBytes, keyField));
 
 				// update the parent by "pushing up" the next key
@@ -457,10 +467,11 @@ public class BTreeFileEncoder {
 	 * @param tableid - the table id of this BTreeFile
 	 * @param keyField - the index of the key field
 	 * @throws IOException
+	 * @throws DbException
 	 */
 	private static void updateEntries(ArrayList<ArrayList<BTreeEntry>> entries, 
 			BTreeFile bf, BTreeEntry e, int level, int nentries, int npagebytes, Type keyType, 
-			int tableid, int keyField) throws IOException {
+			int tableid, int keyField) throws IOException, DbException {
 		while(entries.size() <= level) {
 			entries.add(new ArrayList<BTreeEntry>());
 		}
@@ -475,8 +486,8 @@ public class BTreeFileEncoder {
 				// write out a page of entries
 				ArrayList<BTreeEntry> pageEntries = new ArrayList<BTreeEntry>();
 				pageEntries.addAll(entries.get(level).subList(0, nentries));
-				byte[] internalPageBytes = convertToInternalPage(pageEntries, npagebytes, keyType, childPageCategory);
 				BTreePageId internalPid = new BTreePageId(tableid, bf.numPages() + 1, BTreePageId.INTERNAL);
+				byte[] internalPageBytes = convertToInternalPage(pageEntries, internalPid, new int[] { keyField }, childPageCategory);
 				bf.writePage(new BTreeInternalPage(internalPid, internalPageBytes, keyField));
 
 				// update the parent by "pushing up" the next key
@@ -624,7 +635,25 @@ public class BTreeFileEncoder {
 	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
 			Type keyType, int childPageCategory)
 					throws IOException {
-		int nentrybytes = keyType.getLen() + BTreeInternalPage.INDEX_SIZE;
+		return convertToInternalPage(entries, npagebytes, keyType.getLen(), childPageCategory);
+	}
+
+	/**
+	 * Convert a set of entries to a byte array in the format of a BTreeInternalPage,
+	 * for keys of any length, such as the CompositeFields of a B+ tree keyed on
+	 * several fields
+	 * 
+	 * @param entries - the set of entries
+	 * @param npagebytes - number of bytes per page
+	 * @param keyLen - the number of bytes of a serialized key
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException
+	 */
+	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, int npagebytes,
+			int keyLen, int childPageCategory)
+					throws IOException {
+		int nentrybytes = keyLen + BTreeInternalPage.INDEX_SIZE;
 		// pointerbytes: one extra child pointer, parent pointer, child page category
 		int pointerbytes = 2 * BTreeLeafPage.INDEX_SIZE + 1; 
 		int nentries = (npagebytes * 8 - pointerbytes * 8 - 1) /  (nentrybytes * 8 + 1);  //floor comes for free
@@ -673,7 +702,7 @@ public class BTreeFileEncoder {
 		}
 
 		for(int e = entrycount; e < nentries; e++) {
-			for (int j=0; j<keyType.getLen(); j++) {
+			for (int j=0; j<keyLen; j++) {
 				dos.writeByte(0);
 			}
 		}
@@ -697,6 +726,31 @@ public class BTreeFileEncoder {
 
 	}
 
+	/**
+	 * Convert a set of entries to a byte array in the format of an internal page of
+	 * a B+ tree in the catalog, which is compact if the tree is keyed on STRINGs
+	 * 
+	 * @param entries - the entries, in key order
+	 * @param pid - the id of the page
+	 * @param keyFields - the fields which the tree is keyed on, most significant first
+	 * @param childPageCategory - the category of the child pages (either internal or leaf)
+	 * @return a byte array which can be passed to the BTreeInternalPage constructor
+	 * @throws IOException
+	 * @throws DbException if the entries do not fit on a page
+	 * @see BTreeInternalPage#BTreeInternalPage
+	 */
+	public static byte[] convertToInternalPage(ArrayList<BTreeEntry> entries, BTreePageId pid,
+			int[] keyFields, int childPageCategory)
+					throws IOException, DbException {
+		TupleDesc td = Database.getCatalog().getTupleDesc(pid.getTableId());
+		if (!BTreePage.compactKeys(td, keyFields))
+			return convertToInternalPage(entries, BufferPool.getPageSize(), CompositeField.getLen(td, keyFields), childPageCategory);
+		BTreeInternalPage page = new BTreeInternalPage(pid, BTreeInternalPage.createEmptyPageData(), keyFields);
+		for (BTreeEntry e : entries)
+			page.insertEntry(e);
+		return page.getPageData();
+	}
+
 	/**
 	 * Create a byte array in the format of a BTreeRootPtrPage
 	 * 
@@ -717,6 +771,8 @@ public class BTreeFileEncoder {
 
 		dos.writeInt(header); // header pointer
 
+		dos.writeByte(0); // not in step with any other data
+
 		return baos.toByteArray();
 	}
 
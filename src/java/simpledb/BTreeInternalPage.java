@@ -16,10 +16,16 @@ import simpledb.Predicate.Op;
 public class BTreeInternalPage extends BTreePage {
 	private final byte header[];
 	private final Field keys[];
+	/** the normalized encodings of the keys, which searches compare; null if the key is a single INT */
+	private final byte[][] encoded;
 	private final int children[];
 	private final int numSlots;
+	/** whether the keys hold a STRING, and are stored in as many bytes as they need */
+	private final boolean compact;
 	
 	private int childCategory; // either leaf or internal
+	/** the used slots in order, or null until they are next needed */
+	private volatile int[] used;
 
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
@@ -57,6 +63,16 @@ public class BTreeInternalPage extends BTreePage {
 	 * <p>
 	 *      ceiling((no. entry slots + 1) / 8)
 	 * <p>
+	 * Pages of B+ trees keyed on STRINGs are compact instead: after the header
+	 * come only the used slots, each a child pointer and (but for the first
+	 * slot) its key, in as many bytes as the key needs. A key is a byte holding
+	 * its number of fields, then its fields, each INT in four bytes and each
+	 * STRING as a length byte and the characters. Separators are cut short when
+	 * pages split (see {@link BTreePage#separator}), so a compact page has many
+	 * more slots than there would be room for full keys. Its capacity is
+	 * {@link #getMaxEntries()} entries of the longest keys, and
+	 * {@link #getNumEmptySlots()} counts how many more such entries fit.
+	 * <p>
 	 * @see Database#getCatalog
 	 * @see Catalog#getTupleDesc
 	 * @see BufferPool#getPageSize()
@@ -66,8 +82,21 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
-		this.numSlots = getMaxEntries() + 1;
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeInternalPage of a B+ tree keyed on several fields, whose keys
+	 * are CompositeFields.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
+		this.compact = compactKeys(td, keyFields);
+		this.numSlots = (compact ? getNumCompactSlots() : getMaxEntries()) + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
 		// Read the parent pointer
@@ -87,18 +116,31 @@ public class BTreeInternalPage extends BTreePage {
 			header[i] = dis.readByte();
 
 		keys = new Field[numSlots];
+		encoded = keyFields.length == 1 && td.getFieldType(keyField) == Type.INT_TYPE ? null : new byte[numSlots][];
+		children = new int[numSlots];
+		if (compact) {
+			for (int i=0; i<numSlots; i++) {
+				if (isSlotUsed(i)) {
+					children[i] = dis.readInt();
+					if (i > 0)
+						setKey(i, readCompactKey(dis));
+				}
+			}
+			dis.close();
+			setBeforeImage();
+			return;
+		}
 		try{
 			// allocate and read the keys of this page
 			// start from 1 because the first key slot is not used
 			// since a node with m keys has m+1 pointers
 			keys[0] = null;
 			for (int i=1; i<keys.length; i++)
-				keys[i] = readNextKey(dis,i);
+				setKey(i, readNextKey(dis,i));
 		}catch(NoSuchElementException e){
 			e.printStackTrace();
 		}
 
-		children = new int[numSlots];
 		try{
 			// allocate and read the child pointers of this page
 			for (int i=0; i<children.length; i++)
@@ -115,7 +157,12 @@ public class BTreeInternalPage extends BTreePage {
 	 * Retrieve the maximum number of entries this page can hold. (The number of keys)
  	 */
 	public int getMaxEntries() {        
-		int keySize = td.getFieldType(keyField).getLen();
+		if (compact) {
+			int slots = getNumCompactSlots();
+			int room = BufferPool.getPageSize() - 2 * INDEX_SIZE - 1 - (slots + 8) / 8;
+			return Math.min(room, slots * compactEntrySize(false)) / compactEntrySize(true);
+		}
+		int keySize = keyLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
 		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
@@ -124,12 +171,88 @@ public class BTreeInternalPage extends BTreePage {
 		return entriesPerPage;
 	}
 
+	/**
+	 * @return the number of bytes of an entry of a compact page with the
+	 * longest key, or with the shortest
+	 */
+	private int compactEntrySize(boolean longest) {
+		int size = INDEX_SIZE + 1;
+		for (int i = 0; i < (longest ? keyFields.length : 1); i++)
+			size += td.getFieldType(keyFields[i]) == Type.INT_TYPE ? 4 : longest ? 1 + Type.STRING_LEN : 1;
+		return size;
+	}
+
+	/**
+	 * @return the number of entry slots of a compact page: as many entries
+	 * with the shortest keys as fit, with a header bit each
+	 */
+	private int getNumCompactSlots() {
+		int bits = (BufferPool.getPageSize() - 2 * INDEX_SIZE - 1) * 8 - 8;
+		return bits / (compactEntrySize(false) * 8 + 1);
+	}
+
+	/**
+	 * @return the number of bytes the key takes on a compact page
+	 */
+	private static int compactKeySize(Field key) {
+		int size = 1;
+		for (int i = 0; i < numFields(key); i++) {
+			Field f = fieldOf(key, i);
+			size += f instanceof IntField ? 4 : 1 + Math.min(((StringField) f).getValue().length(), Type.STRING_LEN);
+		}
+		return size;
+	}
+
+	private static int numFields(Field key) {
+		return key instanceof CompositeField ? ((CompositeField) key).numFields() : 1;
+	}
+
+	private static Field fieldOf(Field key, int i) {
+		return key instanceof CompositeField ? ((CompositeField) key).getField(i) : key;
+	}
+
+	/**
+	 * Read a key of a compact page.
+	 */
+	private Field readCompactKey(DataInputStream dis) throws IOException {
+		Field[] fields = new Field[dis.readUnsignedByte()];
+		for (int i=0; i<fields.length; i++) {
+			if (td.getFieldType(keyFields[i]) == Type.INT_TYPE) {
+				fields[i] = new IntField(dis.readInt());
+			} else {
+				byte[] bs = new byte[dis.readUnsignedByte()];
+				dis.readFully(bs);
+				fields[i] = new StringField(new String(bs), Type.STRING_LEN);
+			}
+		}
+		return keyFields.length == 1 ? fields[0] : new CompositeField(fields);
+	}
+
+	/**
+	 * Write a key of a compact page.
+	 */
+	private static void writeCompactKey(DataOutputStream dos, Field key) throws IOException {
+		dos.writeByte(numFields(key));
+		for (int i=0; i<numFields(key); i++) {
+			Field f = fieldOf(key, i);
+			if (f instanceof IntField) {
+				dos.writeInt(((IntField) f).getValue());
+			} else {
+				String v = ((StringField) f).getValue();
+				if (v.length() > Type.STRING_LEN)
+					v = v.substring(0, Type.STRING_LEN);
+				dos.writeByte(v.length());
+				dos.writeBytes(v);
+			}
+		}
+	}
+
 	/**
 	 * Computes the number of bytes in the header of a B+ internal page with each entry occupying entrySize bytes
 	 * @return the number of bytes in the header
 	 */
 	private int getHeaderSize() {        
-		int slotsPerPage = getMaxEntries() + 1;
+		int slotsPerPage = numSlots;
 		int hb = (slotsPerPage / 8);
 		if (hb * 8 < slotsPerPage) hb++;
 
@@ -145,7 +268,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -168,7 +291,7 @@ public class BTreeInternalPage extends BTreePage {
 		// if associated bit is not set, read forward to the next key, and
 		// return null.
 		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getFieldType(keyField).getLen(); i++) {
+			for (int i=0; i<keyLen(); i++) {
 				try {
 					dis.readByte();
 				} catch (IOException e) {
@@ -181,7 +304,7 @@ public class BTreeInternalPage extends BTreePage {
 		// read the key field
 		Field f = null;
 		try {
-			f = td.getFieldType(keyField).parse(dis);
+			f = parseKey(dis);
 		} catch (java.text.ParseException e) {
 			e.printStackTrace();
 			throw new NoSuchElementException("parsing error!");
@@ -262,6 +385,24 @@ public class BTreeInternalPage extends BTreePage {
 			}
 		}
 
+		if (compact) {
+			// the used slots, then padding
+			try {
+				for (int i=0; i<numSlots; i++) {
+					if (isSlotUsed(i)) {
+						dos.writeInt(children[i]);
+						if (i > 0)
+							writeCompactKey(dos, keys[i]);
+					}
+				}
+				dos.write(new byte[len - dos.size()]);
+				dos.flush();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return baos.toByteArray();
+		}
+
 		// create the keys
 		// start from 1 because the first key slot is not used
 		// since a node with m keys has m+1 pointers
@@ -269,7 +410,7 @@ public class BTreeInternalPage extends BTreePage {
 
 			// empty slot
 			if (!isSlotUsed(i)) {
-				for (int j=0; j<td.getFieldType(keyField).getLen(); j++) {
+				for (int j=0; j<keyLen(); j++) {
 					try {
 						dos.writeByte(0);
 					} catch (IOException e) {
@@ -316,7 +457,7 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				keyLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -430,7 +571,7 @@ public class BTreeInternalPage extends BTreePage {
 			}	
 		}
 		children[rid.tupleno()] = e.getRightChild().pageNumber(); 
-		keys[rid.tupleno()] = e.getKey();
+		setKey(rid.tupleno(), e.getKey());
 	}
 
 	/**
@@ -441,7 +582,8 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param e The entry to add.
 	 */
 	public void insertEntry(BTreeEntry e) throws DbException {
-		if (!e.getKey().getType().equals(td.getFieldType(keyField)))
+		if (!e.getKey().getType().equals(td.getFieldType(keyField))
+				|| (keyFields.length > 1) != (e.getKey() instanceof CompositeField))
 			throw new DbException("key field type mismatch, in insertEntry");
 
 		if(e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
@@ -456,11 +598,14 @@ public class BTreeInternalPage extends BTreePage {
 		else if(e.getLeftChild().pgcateg() != childCategory || e.getRightChild().pgcateg() != childCategory)
 			throw new DbException("child page category mismatch in insertEntry");
 
+		if (compact && getNumEmptySlots() == 0)
+			throw new DbException("called insertEntry on page with no room for another key.");
+
 		// if this is the first entry, add it and return
-		if(getNumEmptySlots() == getMaxEntries()) {
+		if(getNumEntries() == 0) {
 			children[0] = e.getLeftChild().pageNumber();
 			children[1] = e.getRightChild().pageNumber();
-			keys[1] = e.getKey();
+			setKey(1, e.getKey());
 			markSlotUsed(0, true);
 			markSlotUsed(1, true);
 			e.setRecordId(new RecordId(pid, 1));
@@ -540,7 +685,7 @@ public class BTreeInternalPage extends BTreePage {
 		// insert new entry into the correct spot in sorted order
 		markSlotUsed(goodSlot, true);
 		Debug.log(1, "BTreeLeafPage.insertEntry: new entry, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
-		keys[goodSlot] = e.getKey();
+		setKey(goodSlot, e.getKey());
 		children[goodSlot] = e.getRightChild().pageNumber();
 		e.setRecordId(new RecordId(pid, goodSlot));
 	}
@@ -552,21 +697,35 @@ public class BTreeInternalPage extends BTreePage {
 	private void moveEntry(int from, int to) {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
-			keys[to] = keys[from];
+			setKey(to, keys[from]);
 			children[to] = children[from];
 			markSlotUsed(from, false);
 		}
 	}
 
+	/**
+	 * Set the key in a slot, with its normalized encoding.
+	 */
+	private void setKey(int slot, Field key) {
+		keys[slot] = key;
+		if (encoded != null)
+			encoded[slot] = key == null ? null : CompositeField.normalize(key);
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
 	public int getNumEntries() {
-		return numSlots - getNumEmptySlots() - 1;
+		int cnt = 0;
+		for(int i=1; i<numSlots; i++)
+			if(isSlotUsed(i))
+				cnt++;
+		return cnt;
 	}
 	
 	/**
-	 * Returns the number of empty slots on this page.
+	 * Returns the number of empty slots on this page. On a compact page, that
+	 * is the number of entries with the longest keys that still fit.
 	 */
 	public int getNumEmptySlots() {
 		int cnt = 0;
@@ -575,6 +734,52 @@ public class BTreeInternalPage extends BTreePage {
 		for(int i=1; i<numSlots; i++)
 			if(!isSlotUsed(i))
 				cnt++;
+		if (compact) {
+			int longest = compactEntrySize(true);
+			int room = getMaxEntries() * longest - getNumUsedBytes();
+			cnt = Math.max(0, Math.min(cnt, room / longest));
+		}
+		return cnt;
+	}
+
+	/**
+	 * @return the number of bytes of the entries of a compact page
+	 */
+	private int getNumUsedBytes() {
+		int bytes = 0;
+		for(int i=1; i<numSlots; i++)
+			if(isSlotUsed(i))
+				bytes += INDEX_SIZE + compactKeySize(keys[i]);
+		return bytes;
+	}
+
+	/**
+	 * Returns true if this is a compact page whose keys take more than its
+	 * capacity, which happens when an entry is updated with a longer key.
+	 * The page must then be split before it is written.
+	 */
+	boolean isOverfull() {
+		return compact && getNumUsedBytes() > getMaxEntries() * compactEntrySize(true);
+	}
+
+	/**
+	 * Returns how many entries, counted from the last, it takes to hold a
+	 * part of the bytes of the entries of a page: that many entries of a
+	 * compact page, or that part of the entries of any other page.
+	 * @param divisor - the part of the bytes to hold is 1 / divisor
+	 */
+	int getNumEntriesHolding(int divisor) {
+		if (!compact)
+			return getNumEntries() / divisor;
+		int bytes = 0;
+		int cnt = 0;
+		int target = getNumUsedBytes() / divisor;
+		for(int i=numSlots-1; i>0 && bytes < target; i--) {
+			if(isSlotUsed(i)) {
+				bytes += INDEX_SIZE + compactKeySize(keys[i]);
+				cnt++;
+			}
+		}
 		return cnt;
 	}
 
@@ -595,10 +800,112 @@ public class BTreeInternalPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeInternalPage.setSlot: setting slot %d to %b", i, value);
-		if(value)
-			header[headerbyte] |= 1 << headerbit;
-		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		synchronized (this) {
+			if(value)
+				header[headerbyte] |= 1 << headerbit;
+			else
+				header[headerbyte] &= (0xFF ^ (1 << headerbit));
+			used = null;
+		}
+	}
+
+	/**
+	 * Returns the used slots in order, computing them from the header unless
+	 * they were computed since the header last changed. Optimistic readers
+	 * call this while a writer changes the header, so the slots are computed
+	 * under the same monitor as the changes: a reader never caches the slots
+	 * of a half-changed header after the writer is done.
+	 */
+	private int[] usedSlots() {
+		int[] u = used;
+		if (u != null)
+			return u;
+		synchronized (this) {
+			if (used == null)
+				used = usedSlots(header, 0, numSlots);
+			return used;
+		}
+	}
+
+	/**
+	 * Compares the key in a used slot to f, as compareSeparator does: its
+	 * normalized encoding to that of f, encoded once per search, or a single
+	 * INT key to f. A key with fewer fields than f is a prefix of it exactly
+	 * when their encodings are.
+	 */
+	private int compareKeyAt(int slot, Field f, byte[] probe) {
+		if (probe == null)
+			return compareKeys(keys[slot], f);
+		int c = CompositeField.compareShared(encoded[slot], probe);
+		return c == 0 && encoded[slot].length < probe.length ? -1 : c;
+	}
+
+	/**
+	 * Finds the child page to descend to when searching for a key: the left
+	 * child of the first entry whose key is greater than or equal to f, or the
+	 * right child of the last entry if there is none. The entries are binary
+	 * searched, without creating BTreeEntry objects.
+	 * @param f - the key to search for, or null for the left-most child
+	 * @return the id of the child page
+	 * @throws DbException if the page has no entries
+	 */
+	public BTreePageId findChild(Field f) throws DbException {
+		int[] u = usedSlots();
+		// u[0] only holds the left-most child, and u[i] the key and right child of entry i
+		if (u.length < 2)
+			throw new DbException("no entries on internal page " + pid.pageNumber());
+		int lo = 1;
+		int hi = u.length;
+		if (f == null)
+			hi = lo;
+		byte[] probe = encoded != null && f != null ? CompositeField.normalize(f) : null;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (compareKeyAt(u[mid], f, probe) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		// lo is the first entry with a key >= f, or one past the last
+		return new BTreePageId(pid.getTableId(), children[u[lo - 1]], childCategory);
+	}
+
+	/**
+	 * Finds the child page to descend to when searching backwards from a key:
+	 * the right-most child that may hold keys less than or equal to f (or less
+	 * than f if strict). That is the left child of the first entry whose key is
+	 * greater than f (or at least f if strict), or the right child of the last
+	 * entry if there is none.
+	 * @param f - the key to search for, or null for the right-most child
+	 * @param strict - whether only keys less than f are searched for
+	 * @return the id of the child page
+	 * @throws DbException if the page has no entries
+	 */
+	public BTreePageId findLastChild(Field f, boolean strict) throws DbException {
+		int[] u = usedSlots();
+		if (u.length < 2)
+			throw new DbException("no entries on internal page " + pid.pageNumber());
+		int lo = 1;
+		int hi = u.length;
+		if (f == null)
+			lo = hi;
+		byte[] probe = encoded != null && f != null ? CompositeField.normalize(f) : null;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compareKeyAt(u[mid], f, probe);
+			if (c < 0 || (!strict && c == 0))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return new BTreePageId(pid.getTableId(), children[u[lo - 1]], childCategory);
+	}
+
+	/**
+	 * @return the last slot of this page
+	 */
+	int getLastSlot() {
+		return numSlots - 1;
 	}
 
 	/**
@@ -743,7 +1050,7 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 
 	public BTreeInternalPageReverseIterator(BTreeInternalPage p) {
 		this.p = p;
-		this.curEntry = p.getMaxEntries();
+		this.curEntry = p.getLastSlot();
 		while(!p.isSlotUsed(curEntry) && curEntry > 0) {
 			--curEntry;
 		}
@@ -13,8 +13,18 @@ import java.io.*;
  */
 public class BTreeLeafPage extends BTreePage {
 	private final byte header[];
+	/**
+	 * the tuples of the slots, parsed on first access; a used slot whose tuple
+	 * is null still holds its tuple in data
+	 */
 	private final Tuple tuples[];
 	private final int numSlots;
+	/** the bytes this page was read from */
+	private final byte[] data;
+	/** the offsets of the key fields in a serialized tuple */
+	private final int[] keyOffsets;
+	/** the used slots in order, or null until they are next needed */
+	private volatile int[] used;
 	
 	private int leftSibling; // leaf node or 0
 	private int rightSibling; // leaf node or 0
@@ -26,8 +36,9 @@ public class BTreeLeafPage extends BTreePage {
 		Iterator<Tuple> it = this.iterator();
 		while (it.hasNext()) {
 			Tuple t = it.next();
-			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, t.getField(fieldid)));
-			prev = t.getField(fieldid);
+			Field key = fieldid == keyField ? keyOf(t) : t.getField(fieldid);
+			assert(null == prev || prev.compare(Predicate.Op.LESS_THAN_OR_EQ, key));
+			prev = key;
 			assert(t.getRecordId().getPageId().equals(this.getId()));
 		}
 
@@ -58,11 +69,24 @@ public class BTreeLeafPage extends BTreePage {
 	 * @see BufferPool#getPageSize()
 	 * 
 	 * @param id - the id of this page
-	 * @param data - the raw data of this page
+	 * @param data - the raw data of this page, which the page keeps and which
+	 * must not be modified afterwards
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreeLeafPage of a B+ tree keyed on several fields.
+	 *
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page, which the page keeps and which
+	 * must not be modified afterwards
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int[] keyFields) throws IOException {
+		super(id, keyFields);
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -93,13 +117,13 @@ public class BTreeLeafPage extends BTreePage {
 		for (int i=0; i<header.length; i++)
 			header[i] = dis.readByte();
 
+		// the tuples are parsed from data when they are first accessed
 		tuples = new Tuple[numSlots];
-		try{
-			// allocate and read the actual records of this page
-			for (int i=0; i<tuples.length; i++)
-				tuples[i] = readNextTuple(dis,i);
-		}catch(NoSuchElementException e){
-			e.printStackTrace();
+		this.data = data;
+		this.keyOffsets = new int[keyFields.length];
+		for (int k = 0; k < keyFields.length; k++) {
+			for (int i = 0; i < keyFields[k]; i++)
+				keyOffsets[k] += td.getFieldType(i).getLen();
 		}
 		dis.close();
 
@@ -137,7 +161,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyFields);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -153,37 +177,21 @@ public class BTreeLeafPage extends BTreePage {
 		}
 	}
 
+	/** @return the position in data of the tuple in a slot */
+	private int slotOffset(int slotId) {
+		return 3 * INDEX_SIZE + header.length + slotId * td.getSize();
+	}
+
 	/**
-	 * Read tuples from the source file.
+	 * Returns the tuple in a used slot, parsing it from data unless it was
+	 * parsed, inserted or moved there before.
 	 */
-	private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-		// if associated bit is not set, read forward to the next tuple, and
-		// return null.
-		if (!isSlotUsed(slotId)) {
-			for (int i=0; i<td.getSize(); i++) {
-				try {
-					dis.readByte();
-				} catch (IOException e) {
-					throw new NoSuchElementException("error reading empty tuple");
-				}
-			}
-			return null;
-		}
-
-		// read fields in the tuple
-		Tuple t = new Tuple(td);
-		RecordId rid = new RecordId(pid, slotId);
-		t.setRecordId(rid);
-		try {
-			for (int j=0; j<td.numFields(); j++) {
-				Field f = td.getFieldType(j).parse(dis);
-				t.setField(j, f);
-			}
-		} catch (java.text.ParseException e) {
-			e.printStackTrace();
-			throw new NoSuchElementException("parsing error!");
+	private synchronized Tuple tupleAt(int slotId) {
+		Tuple t = tuples[slotId];
+		if (t == null) {
+			t = TupleParser.parse(td, new RecordId(pid, slotId), data, slotOffset(slotId), null);
+			tuples[slotId] = t;
 		}
-
 		return t;
 	}
 
@@ -249,9 +257,21 @@ public class BTreeLeafPage extends BTreePage {
 				continue;
 			}
 
-			// non-empty slot
+			// non-empty slot, never parsed: copy its bytes
+			Tuple t;
+			synchronized (this) {
+				t = tuples[i];
+			}
+			if (t == null) {
+				try {
+					dos.write(data, slotOffset(i), td.getSize());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				continue;
+			}
 			for (int j=0; j<td.numFields(); j++) {
-				Field f = tuples[i].getField(j);
+				Field f = t.getField(j);
 				try {
 					f.serialize(dos);
 
@@ -324,10 +344,10 @@ public class BTreeLeafPage extends BTreePage {
 
 		// find the last key less than or equal to the key being inserted
 		int lessOrEqKey = -1;
-		Field key = t.getField(keyField);
+		Field key = keyOf(t);
 		for (int i=0; i<numSlots; i++) {
 			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				if(compareKeyAt(i, key) <= 0)
 					lessOrEqKey = i;
 				else
 					break;	
@@ -355,7 +375,9 @@ public class BTreeLeafPage extends BTreePage {
 		Debug.log(1, "BTreeLeafPage.insertTuple: new tuple, tableId = %d pageId = %d slotId = %d", pid.getTableId(), pid.pageNumber(), goodSlot);
 		RecordId rid = new RecordId(pid, goodSlot);
 		t.setRecordId(rid);
-		tuples[goodSlot] = t;
+		synchronized (this) {
+			tuples[goodSlot] = t;
+		}
 	}
 
 	/**
@@ -366,8 +388,11 @@ public class BTreeLeafPage extends BTreePage {
 		if(!isSlotUsed(to) && isSlotUsed(from)) {
 			markSlotUsed(to, true);
 			RecordId rid = new RecordId(pid, to);
-			tuples[to] = tuples[from];
-			tuples[to].setRecordId(rid);
+			Tuple t = tupleAt(from);
+			synchronized (this) {
+				tuples[to] = t;
+			}
+			t.setRecordId(rid);
 			markSlotUsed(from, false);
 		}
 	}
@@ -469,10 +494,99 @@ public class BTreeLeafPage extends BTreePage {
 		int headerbyte = (i - headerbit) / 8;
 
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
-		if(value)
-			header[headerbyte] |= 1 << headerbit;
-		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		synchronized (this) {
+			if(value)
+				header[headerbyte] |= 1 << headerbit;
+			else
+				header[headerbyte] &= (0xFF ^ (1 << headerbit));
+			used = null;
+		}
+	}
+
+	/**
+	 * Returns the used slots in order, computing them from the header unless
+	 * they were computed since the header last changed. Optimistic readers
+	 * call this while a writer changes the header, so the slots are computed
+	 * under the same monitor as the changes: a reader never caches the slots
+	 * of a half-changed header after the writer is done.
+	 */
+	private int[] usedSlots() {
+		int[] u = used;
+		if (u != null)
+			return u;
+		synchronized (this) {
+			if (used == null)
+				used = usedSlots(header, 0, numSlots);
+			return used;
+		}
+	}
+
+	/**
+	 * Compares the key of the tuple in a used slot to f, one field after the
+	 * other on the fields they share, as compareKeys compares keys. The fields
+	 * of a tuple that was not parsed are read from the bytes of the page.
+	 */
+	private int compareKeyAt(int slot, Field f) {
+		Tuple t;
+		synchronized (this) {
+			t = tuples[slot];
+		}
+		CompositeField key = f instanceof CompositeField ? (CompositeField) f : null;
+		int n = key == null ? 1 : Math.min(keyFields.length, key.numFields());
+		for (int i = 0; i < n; i++) {
+			Field v = key == null ? f : key.getField(i);
+			int c;
+			if (t != null)
+				c = compareKeys(t.getField(keyFields[i]), v);
+			else if (v instanceof IntField)
+				c = Integer.compare(RawPredicate.readInt(data, slotOffset(slot) + keyOffsets[i]),
+						((IntField) v).getValue());
+			else
+				c = compareStringAt(slot, i, ((StringField) v).getValue());
+			if (c != 0)
+				return c;
+		}
+		return 0;
+	}
+
+	/**
+	 * Compares a STRING key field of the tuple in a used slot, which was not
+	 * parsed, to s as String.compareTo would. The characters are compared in
+	 * place while they are ASCII, which they parse to unchanged.
+	 */
+	private int compareStringAt(int slot, int i, String s) {
+		int off = slotOffset(slot) + keyOffsets[i];
+		int len = RawPredicate.readInt(data, off);
+		for (int j = 0; j < len && j < s.length(); j++) {
+			int c = data[off + 4 + j] & 0xFF; // after the length
+			if (c >= 0x80)
+				return ((StringField) tupleAt(slot).getField(keyFields[i])).getValue().compareTo(s);
+			if (c != s.charAt(j))
+				return c - s.charAt(j);
+		}
+		return len - s.length();
+	}
+
+	/**
+	 * Finds the first tuple whose key is at least f (or greater than f), by
+	 * binary search over the used slots.
+	 * @param f - the key to search for
+	 * @param strict - true to find the first key greater than f
+	 * @return the slot of the tuple, or the number of slots if there is none
+	 */
+	public int findSlot(Field f, boolean strict) {
+		int[] u = usedSlots();
+		int lo = 0;
+		int hi = u.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compareKeyAt(u[mid], f);
+			if (c < 0 || (strict && c == 0))
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo < u.length ? u[lo] : numSlots;
 	}
 
 	/**
@@ -483,6 +597,30 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageIterator(this);
 	}
 
+	/**
+	 * Returns an iterator over all tuples on this page, reading only some of
+	 * their fields. Tuples that were not parsed yet are returned with just
+	 * those fields set, and are not kept by the page.
+	 *
+	 * @param fields - the mask of the fields to read, or null to read them all
+	 */
+	public Iterator<Tuple> iterator(boolean[] fields) {
+		return new BTreeLeafPageIterator(this, fields);
+	}
+
+	/**
+	 * Returns an iterator over the tuples from a slot on, such as one found
+	 * by {@link #findSlot}, reading only some of their fields.
+	 *
+	 * @param fields - the mask of the fields to read, or null to read them all
+	 * @param from - the first slot to read
+	 */
+	public Iterator<Tuple> iterator(boolean[] fields, int from) {
+		BTreeLeafPageIterator it = new BTreeLeafPageIterator(this, fields);
+		it.curTuple = from;
+		return it;
+	}
+
 	/**
 	 * @return a reverse iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
 	 * (note that this iterator shouldn't return tuples in empty slots!)
@@ -498,6 +636,18 @@ public class BTreeLeafPage extends BTreePage {
 	 * @throws NoSuchElementException
 	 */
 	Tuple getTuple(int i) throws NoSuchElementException {
+		return getTuple(i, null);
+	}
+
+	/**
+	 * protected method used by the iterator to get the ith tuple out of this page,
+	 * with only some of its fields unless it was parsed before
+	 * @param i - the index of the tuple
+	 * @param fields - the mask of the fields to read, or null to read them all
+	 * @return the ith tuple in the page
+	 * @throws NoSuchElementException
+	 */
+	Tuple getTuple(int i, boolean[] fields) throws NoSuchElementException {
 
 		if (i >= tuples.length)
 			throw new NoSuchElementException();
@@ -509,7 +659,13 @@ public class BTreeLeafPage extends BTreePage {
 			}
 
 			Debug.log(1, "BTreeLeafPage.getTuple: returning tuple %d", i);
-			return tuples[i];
+			if (fields == null)
+				return tupleAt(i);
+			Tuple t;
+			synchronized (this) {
+				t = tuples[i];
+			}
+			return t != null ? t : TupleParser.parse(td, new RecordId(pid, i), data, slotOffset(i), fields);
 
 		} catch (ArrayIndexOutOfBoundsException e) {
 			throw new NoSuchElementException();
@@ -524,9 +680,15 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 	int curTuple = 0;
 	Tuple nextToReturn = null;
 	BTreeLeafPage p;
+	boolean[] fields;
 
 	public BTreeLeafPageIterator(BTreeLeafPage p) {
+		this(p, null);
+	}
+
+	public BTreeLeafPageIterator(BTreeLeafPage p, boolean[] fields) {
 		this.p = p;
+		this.fields = fields;
 	}
 
 	public boolean hasNext() {
@@ -535,7 +697,7 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 
 		try {
 			while (true) {
-				nextToReturn = p.getTuple(curTuple++);
+				nextToReturn = p.getTuple(curTuple++, fields);
 				if(nextToReturn != null)
 					return true;
 			}
@@ -21,6 +21,8 @@ public abstract class BTreePage implements Page {
 	protected final BTreePageId pid;
 	protected final TupleDesc td;
 	protected final int keyField;
+	/** the fields of the key, most significant first; keyField is the first */
+	protected final int[] keyFields;
 
 	protected int parent; // parent is always internal node or 0 for root node
 	protected byte[] oldData;
@@ -51,11 +53,143 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, new int[] { key });
+	}
+
+	/**
+	 * Create a BTreePage of a B+ tree keyed on several fields.
+	 *
+	 * @param id - the id of this page
+	 * @param keyFields - the fields which the index is keyed on, most significant first
+	 */
+	public BTreePage(BTreePageId id, int[] keyFields) throws IOException {
 		this.pid = id;
-		this.keyField = key;
+		this.keyField = keyFields[0];
+		this.keyFields = keyFields;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
+	/**
+	 * @return the key of a tuple: its key field, or a CompositeField of its key fields
+	 */
+	protected Field keyOf(Tuple t) {
+		return keyFields.length == 1 ? t.getField(keyField) : CompositeField.of(t, keyFields);
+	}
+
+	/**
+	 * @return the number of bytes of a serialized key
+	 */
+	protected int keyLen() {
+		return keyFields.length == 1 ? td.getFieldType(keyField).getLen()
+				: CompositeField.getLen(td, keyFields);
+	}
+
+	/**
+	 * Read a key written by Field.serialize.
+	 */
+	protected Field parseKey(DataInputStream dis) throws java.text.ParseException {
+		return keyFields.length == 1 ? td.getFieldType(keyField).parse(dis)
+				: CompositeField.parse(td, keyFields, dis);
+	}
+
+	/**
+	 * Compares two keys of the same type, as Field.compare would, without
+	 * going through an operator. CompositeFields are compared on the fields
+	 * they share.
+	 * @return a negative number, zero or a positive number as a is less than,
+	 * equal to or greater than b
+	 */
+	protected static int compareKeys(Field a, Field b) {
+		if (a instanceof CompositeField)
+			return ((CompositeField) a).compareTo(b);
+		if (b instanceof CompositeField)
+			return -((CompositeField) b).compareTo(a);
+		if (a instanceof IntField)
+			return Integer.compare(((IntField) a).getValue(), ((IntField) b).getValue());
+		return ((StringField) a).getValue().compareTo(((StringField) b).getValue());
+	}
+
+	/**
+	 * Compares a key of an internal page to f, as compareKeys does but for
+	 * separators cut short before the last key field: the keys that start with
+	 * such a separator are all on its right, so it is less than them.
+	 * @see #separator(Field, Field)
+	 */
+	protected static int compareSeparator(Field key, Field f) {
+		int c = compareKeys(key, f);
+		if (c == 0 && key instanceof CompositeField && f instanceof CompositeField
+				&& ((CompositeField) key).numFields() < ((CompositeField) f).numFields())
+			return -1;
+		return c;
+	}
+
+	/**
+	 * @return true if a B+ tree keyed on some fields of td has keys of varying
+	 * length on its internal pages, which it does when any key field is a STRING
+	 * @see BTreeInternalPage#BTreeInternalPage
+	 */
+	static boolean compactKeys(TupleDesc td, int[] keyFields) {
+		for (int f : keyFields) {
+			if (td.getFieldType(f) == Type.STRING_TYPE)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Finds a short key that separates a page of keys up to last from a page
+	 * of keys from first on: first, cut after the first field it does not
+	 * share with last, and, if that field is a STRING, cut to the shortest
+	 * prefix still greater than the STRING of last. Keys are compared on the
+	 * fields they share, so the separator is greater than last and no greater
+	 * than first. A separator with fewer fields than first is compared by
+	 * {@link #compareSeparator}, which sends the keys starting with it right.
+	 * @param last - the greatest key on the left page
+	 * @param first - the least key on the right page
+	 */
+	protected static Field separator(Field last, Field first) {
+		if (first instanceof StringField) {
+			String a = ((StringField) last).getValue();
+			String b = ((StringField) first).getValue();
+			int n = 0;
+			while (n < a.length() && n < b.length() && a.charAt(n) == b.charAt(n))
+				n++;
+			return n + 1 < b.length() ? new StringField(b.substring(0, n + 1), Type.STRING_LEN) : first;
+		}
+		if (!(first instanceof CompositeField))
+			return first;
+		CompositeField a = (CompositeField) last;
+		CompositeField b = (CompositeField) first;
+		for (int i = 0; i < b.numFields() && i < a.numFields(); i++) {
+			if (compareKeys(a.getField(i), b.getField(i)) != 0) {
+				if (i + 1 == b.numFields() && !(b.getField(i) instanceof StringField))
+					return first;
+				Field[] fields = new Field[i + 1];
+				for (int j = 0; j < i; j++)
+					fields[j] = b.getField(j);
+				fields[i] = separator(a.getField(i), b.getField(i));
+				return new CompositeField(fields);
+			}
+		}
+		return first;
+	}
+
+	/**
+	 * Lists the used slots of a page in order, from its header.
+	 * @param header - the header bytes of the page
+	 * @param from - the first slot to consider
+	 * @param numSlots - the number of slots of the page
+	 */
+	protected static int[] usedSlots(byte[] header, int from, int numSlots) {
+		int[] used = new int[numSlots - from];
+		int n = 0;
+		for (int i = from; i < numSlots; i++) {
+			if ((header[i >> 3] & (1 << (i & 7))) != 0)
+				used[n++] = i;
+		}
+		return java.util.Arrays.copyOf(used, n);
+	}
+
 	/**
 	 * @return the PageId associated with this page.
 	 */
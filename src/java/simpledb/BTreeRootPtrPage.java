@@ -10,7 +10,7 @@ import java.io.*;
  */
 public class BTreeRootPtrPage implements Page {
 	// size of this page
-	public final static int PAGE_SIZE = 9;
+	public final static int PAGE_SIZE = 10;
 
 	private boolean dirty = false;
 	private TransactionId dirtier = null;
@@ -21,6 +21,7 @@ public class BTreeRootPtrPage implements Page {
 	private int root; 
 	private int rootCategory;
 	private int header;
+	private boolean synced;
 
 	private byte[] oldData;
 
@@ -31,7 +32,8 @@ public class BTreeRootPtrPage implements Page {
 	 * The format of an BTreeRootPtrPage is an integer for the page number
 	 * of the root node, followed by a byte to encode the category of the root page
 	 * (either leaf or internal), followed by an integer for the page number
-	 * of the first header page
+	 * of the first header page, followed by a byte that is 1 if the tree is
+	 * marked as in step with the data it was derived from
 	 */
 	public BTreeRootPtrPage(BTreePageId id, byte[] data) throws IOException {
 		this.pid = id;
@@ -43,6 +45,8 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the header pointer
 		header = dis.readInt();
+
+		synced = dis.readByte() != 0;
 		
 		setBeforeImage();
 	}
@@ -103,6 +107,13 @@ public class BTreeRootPtrPage implements Page {
 			e.printStackTrace();
 		}
 
+		// write out whether the tree is in step with the data it was derived from
+		try{
+			dos.writeByte(synced ? 1 : 0);
+		}catch(IOException e){
+			e.printStackTrace();
+		}
+
 		try {
 			dos.flush();
 		}catch(IOException e) {
@@ -214,6 +225,24 @@ public class BTreeRootPtrPage implements Page {
 		}
 	}
 
+	/**
+	 * Whether the tree is marked as in step with the data it was derived
+	 * from, for trees such as secondary indexes that are kept alongside
+	 * another file. New trees are not.
+	 * @return true if the tree is marked as in step
+	 */
+	public boolean isSynced() {
+		return synced;
+	}
+
+	/**
+	 * Mark the tree as in step with the data it was derived from, or not
+	 * @param synced - whether the tree is in step
+	 */
+	public void setSynced(boolean synced) {
+		this.synced = synced;
+	}
+
 	/**
 	 * Get the page size of root pointer pages
 	 * @return the page size
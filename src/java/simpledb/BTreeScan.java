@@ -4,7 +4,7 @@ import java.util.*;
 
 /**
  * BTreeScan is an operator which reads tuples in sorted order 
- * according to a predicate
+ * according to a predicate, in ascending or descending key order
  */
 public class BTreeScan implements DbIterator {
 
@@ -17,6 +17,7 @@ public class BTreeScan implements DbIterator {
 	private transient DbFileIterator it;
 	private String tablename;
 	private String alias;
+	private boolean reverse;
 
 	/**
 	 * Creates a B+ tree scan over the specified table as a part of the
@@ -38,11 +39,31 @@ public class BTreeScan implements DbIterator {
 	 *            in sorted order
 	 */
 	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred) {
+		this(tid, tableid, tableAlias, ipred, false);
+	}
+
+	/**
+	 * Creates a B+ tree scan that returns its tuples in descending key order if
+	 * reverse is set. A reverse scan starts at the largest key matching the
+	 * predicate and follows the left sibling pointers, so reading the largest
+	 * keys of the table reads only the right-most leaf pages.
+	 *
+	 * @see #BTreeScan(TransactionId, int, String, IndexPredicate)
+	 */
+	public BTreeScan(TransactionId tid, int tableid, String tableAlias, IndexPredicate ipred, boolean reverse) {
 		this.tid = tid;
 		this.ipred = ipred;
+		this.reverse = reverse;
 		reset(tableid,tableAlias);
 	}
 
+	/**
+	 * @return true if the scan returns its tuples in descending key order
+	 */
+	public boolean isReverse() {
+		return reverse;
+	}
+
 	/**
 	 * @return
 	 *       return the table name of the table the operator scans. This should
@@ -76,11 +97,15 @@ public class BTreeScan implements DbIterator {
 		this.isOpen=false;
 		this.alias = tableAlias;
 		this.tablename = Database.getCatalog().getTableName(tableid);
-		if(ipred == null) {
+		if(ipred == null && !reverse) {
 			this.it = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
 		}
 		else {
-			this.it = ((BTreeFile) Database.getCatalog().getDatabaseFile(tableid)).indexIterator(tid, ipred);
+			BTreeFile f = (BTreeFile) Database.getCatalog().getDatabaseFile(tableid);
+			if (ipred == null)
+				this.it = f.reverseIterator(tid);
+			else
+				this.it = reverse ? f.reverseIndexIterator(tid, ipred) : f.indexIterator(tid, ipred);
 		}
 		myTd = Database.getCatalog().getTupleDesc(tableid);
 		String[] newNames = new String[myTd.numFields()];
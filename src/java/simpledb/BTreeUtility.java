@@ -437,6 +437,20 @@ public class BTreeUtility {
 		return bf;
 	}
 
+	/** Opens a BTreeFile with fields of any types, keyed on one or more of
+	 * them, and adds it to the catalog.
+	 *
+	 * @param td the TupleDesc of the table.
+	 * @param f location of the file storing the table.
+	 * @param keyFields the fields the B+ tree is keyed on, most significant first
+	 * @return the opened table.
+	 */
+	public static BTreeFile openBTreeFile(TupleDesc td, File f, int[] keyFields) {
+		BTreeFile bf = new BTreeFile(f, keyFields, td);
+		Database.getCatalog().addTable(bf, UUID.randomUUID().toString());
+		return bf;
+	}
+
 	/**
 	 * A utility method to create a new BTreeFile with no data,
 	 * assuming the path does not already exist. If the path exists, the file
@@ -456,6 +470,23 @@ public class BTreeUtility {
 		return bf;
 	}
 
+	/**
+	 * A utility method to create a new BTreeFile with no data,
+	 * assuming the path does not already exist. If the path exists, the file
+	 * will be overwritten. The new table will be added to the Catalog with
+	 * the specified TupleDesc, indexed on the keyFields.
+	 */
+	public static BTreeFile createEmptyBTreeFile(String path, TupleDesc td, int[] keyFields)
+			throws IOException {
+		File f = new File(path);
+		// touch the file
+		FileOutputStream fos = new FileOutputStream(f);
+		fos.write(new byte[0]);
+		fos.close();
+
+		return openBTreeFile(td, f, keyFields);
+	}
+
 	/**
 	 * A utility method to create a new BTreeFile with no data, with the specified
 	 * number of pages, assuming the path does not already exist. If the path exists, 
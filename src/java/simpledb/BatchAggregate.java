@@ -0,0 +1,236 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BatchAggregate is the vectorized counterpart of {@link Aggregate}. For each
+ * input batch it first looks up the group of every live row, then updates
+ * each aggregate in its own loop over the batch, keeping the running values
+ * and counts of all groups in flat int arrays. Like Aggregate, it computes
+ * any number of aggregates grouped by at most one column; DISTINCT
+ * aggregates and spilling to disk are not supported.
+ */
+public class BatchAggregate implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+    private BatchIterator child;
+    private int[] afields;
+    private Aggregator.Op[] aops;
+    private int gfield;
+    private TupleDesc td;
+
+    private transient int numGroups;
+    private transient IntIntHashMap intGroups;
+    private transient HashMap<String, Integer> stringGroups;
+    private transient int[] groupInts;
+    private transient String[] groupStrings;
+    /** value and count of aggregate a of group g, at index g * afields.length + a */
+    private transient int[] values;
+    private transient int[] counts;
+
+    private transient TupleBatch out;
+    private transient int emitted;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The BatchIterator that is feeding us rows.
+     * @param afields
+     *            The column over which each aggregate is computed.
+     * @param aops
+     *            The aggregation operator of each aggregate; only COUNT is
+     *            supported over STRING_TYPE columns
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     */
+    public BatchAggregate(BatchIterator child, int[] afields, Aggregator.Op[] aops, int gfield) {
+        if (afields.length == 0 || afields.length != aops.length)
+            throw new IllegalArgumentException("need an operator for each of at least one aggregate");
+        TupleDesc childTd = child.getTupleDesc();
+        int offset = gfield == Aggregator.NO_GROUPING ? 0 : 1;
+        Type[] types = new Type[offset + afields.length];
+        String[] names = new String[offset + afields.length];
+        if (offset == 1) {
+            types[0] = childTd.getFieldType(gfield);
+            names[0] = childTd.getFieldName(gfield);
+        }
+        for (int i = 0; i < afields.length; i++) {
+            if (aops[i] == Aggregator.Op.SUM_COUNT || aops[i] == Aggregator.Op.SC_AVG)
+                throw new IllegalArgumentException("unsupported aggregate " + aops[i]);
+            if (childTd.getFieldType(afields[i]) != Type.INT_TYPE && aops[i] != Aggregator.Op.COUNT)
+                throw new IllegalArgumentException("only COUNT is supported over STRING fields");
+            types[offset + i] = Type.INT_TYPE;
+            names[offset + i] = Aggregate.nameOfAggregatorOp(aops[i]) + " ("
+                    + childTd.getFieldName(afields[i]) + ")";
+        }
+        this.child = child;
+        this.afields = afields.clone();
+        this.aops = aops.clone();
+        this.gfield = gfield;
+        this.td = new TupleDesc(types, names);
+    }
+
+    public int groupField() {
+        return gfield;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        numGroups = 0;
+        intGroups = new IntIntHashMap();
+        stringGroups = new HashMap<String, Integer>();
+        groupInts = new int[16];
+        groupStrings = new String[16];
+        values = new int[16 * afields.length];
+        counts = new int[16 * afields.length];
+
+        int[] groupOf = new int[TupleBatch.CAPACITY];
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            findGroups(batch, groupOf);
+            for (int a = 0; a < afields.length; a++)
+                aggregate(batch, groupOf, a);
+        }
+
+        out = new TupleBatch(td);
+        emitted = 0;
+    }
+
+    /** Sets groupOf[i] to the group of the i-th live row, creating groups */
+    private void findGroups(TupleBatch batch, int[] groupOf) {
+        int rows = batch.numRows();
+        if (gfield == Aggregator.NO_GROUPING) {
+            // like Aggregate, no row is returned without input rows
+            if (numGroups == 0 && rows > 0)
+                newGroup();
+            Arrays.fill(groupOf, 0, rows, 0);
+        } else if (td.getFieldType(0) == Type.INT_TYPE) {
+            int[] col = batch.intColumn(gfield);
+            for (int i = 0; i < rows; i++) {
+                int key = col[batch.row(i)];
+                int g = intGroups.get(key);
+                if (g == -1) {
+                    g = newGroup();
+                    intGroups.put(key, g);
+                    groupInts[g] = key;
+                }
+                groupOf[i] = g;
+            }
+        } else {
+            String[] col = batch.stringColumn(gfield);
+            for (int i = 0; i < rows; i++) {
+                String key = col[batch.row(i)];
+                Integer g = stringGroups.get(key);
+                if (g == null) {
+                    g = newGroup();
+                    stringGroups.put(key, g);
+                    groupStrings[g] = key;
+                }
+                groupOf[i] = g;
+            }
+        }
+    }
+
+    private int newGroup() {
+        if (numGroups == groupInts.length) {
+            groupInts = Arrays.copyOf(groupInts, numGroups * 2);
+            groupStrings = Arrays.copyOf(groupStrings, numGroups * 2);
+            values = Arrays.copyOf(values, numGroups * 2 * afields.length);
+            counts = Arrays.copyOf(counts, numGroups * 2 * afields.length);
+        }
+        return numGroups++;
+    }
+
+    /** Merges the live rows of a batch into aggregate a of their groups */
+    private void aggregate(TupleBatch batch, int[] groupOf, int a) {
+        int rows = batch.numRows();
+        int n = afields.length;
+        if (aops[a] == Aggregator.Op.COUNT) {
+            for (int i = 0; i < rows; i++)
+                counts[groupOf[i] * n + a]++;
+            return;
+        }
+        int[] col = batch.intColumn(afields[a]);
+        switch (aops[a]) {
+        case MIN:
+            for (int i = 0; i < rows; i++) {
+                int s = groupOf[i] * n + a;
+                int v = col[batch.row(i)];
+                if (counts[s]++ == 0 || v < values[s])
+                    values[s] = v;
+            }
+            break;
+        case MAX:
+            for (int i = 0; i < rows; i++) {
+                int s = groupOf[i] * n + a;
+                int v = col[batch.row(i)];
+                if (counts[s]++ == 0 || v > values[s])
+                    values[s] = v;
+            }
+            break;
+        default: // SUM, AVG
+            for (int i = 0; i < rows; i++) {
+                int s = groupOf[i] * n + a;
+                values[s] += col[batch.row(i)];
+                counts[s]++;
+            }
+            break;
+        }
+    }
+
+    /**
+     * Returns the next batch of groups. If there is a group by field, the
+     * first column is the group by value, followed by one column per
+     * aggregate.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (out == null)
+            throw new IllegalStateException("BatchAggregate not yet open");
+        out.clear();
+        int n = afields.length;
+        int offset = gfield == Aggregator.NO_GROUPING ? 0 : 1;
+        while (!out.isFull() && emitted < numGroups) {
+            int g = emitted++;
+            int r = out.addRow();
+            if (offset == 1) {
+                if (td.getFieldType(0) == Type.INT_TYPE)
+                    out.intColumn(0)[r] = groupInts[g];
+                else
+                    out.stringColumn(0)[r] = groupStrings[g];
+            }
+            for (int a = 0; a < n; a++) {
+                int s = g * n + a;
+                int result;
+                if (aops[a] == Aggregator.Op.COUNT)
+                    result = counts[s];
+                else if (aops[a] == Aggregator.Op.AVG)
+                    result = counts[s] == 0 ? 0 : values[s] / counts[s];
+                else
+                    result = values[s];
+                out.intColumn(offset + a)[r] = result;
+            }
+        }
+        return out.numRows() == 0 ? null : out;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        emitted = 0;
+    }
+
+    public void close() {
+        child.close();
+        intGroups = null;
+        stringGroups = null;
+        groupInts = null;
+        groupStrings = null;
+        values = null;
+        counts = null;
+        out = null;
+    }
+}
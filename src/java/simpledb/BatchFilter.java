@@ -0,0 +1,166 @@
+package simpledb;
+
+/**
+ * BatchFilter is the vectorized counterpart of {@link Filter}. It evaluates
+ * its predicate over a whole column of each batch in one loop per operator
+ * and narrows the batch's selection vector to the rows that pass, without
+ * copying any values.
+ */
+public class BatchFilter implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+    private Predicate p;
+    private BatchIterator child;
+    private transient int[] sel;
+
+    /**
+     * Constructor accepts a predicate to apply and a child operator to read
+     * batches to filter from.
+     *
+     * @param p
+     *            The predicate to filter rows with
+     * @param child
+     *            The child operator
+     */
+    public BatchFilter(Predicate p, BatchIterator child) {
+        this.p = p;
+        this.child = child;
+    }
+
+    public Predicate getPredicate() {
+        return p;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        sel = new int[TupleBatch.CAPACITY];
+    }
+
+    public void close() {
+        child.close();
+        sel = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    /**
+     * Returns the next batch of the child that has rows satisfying the
+     * predicate, restricted to those rows.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (sel == null)
+            throw new IllegalStateException("BatchFilter not yet open");
+        TupleBatch batch;
+        while ((batch = child.nextBatch()) != null) {
+            int n;
+            if (getTupleDesc().getFieldType(p.getField()) == Type.INT_TYPE)
+                n = selectInts(batch, batch.intColumn(p.getField()),
+                        ((IntField) p.getOperand()).getValue());
+            else
+                n = selectStrings(batch, batch.stringColumn(p.getField()),
+                        ((StringField) p.getOperand()).getValue());
+            if (n > 0) {
+                batch.setSelection(sel, n);
+                return batch;
+            }
+        }
+        return null;
+    }
+
+    /** Writes the positions of the live rows with col[row] op v into sel */
+    private int selectInts(TupleBatch batch, int[] col, int v) {
+        int rows = batch.numRows();
+        int n = 0;
+        switch (p.getOp()) {
+        case EQUALS:
+        case LIKE:
+            for (int i = 0; i < rows; i++) {
+                int r = batch.row(i);
+                if (col[r] == v)
+                    sel[n++] = r;
+            }
+            break;
+        case NOT_EQUALS:
+            for (int i = 0; i < rows; i++) {
+                int r = batch.row(i);
+                if (col[r] != v)
+                    sel[n++] = r;
+            }
+            break;
+        case GREATER_THAN:
+            for (int i = 0; i < rows; i++) {
+                int r = batch.row(i);
+                if (col[r] > v)
+                    sel[n++] = r;
+            }
+            break;
+        case GREATER_THAN_OR_EQ:
+            for (int i = 0; i < rows; i++) {
+                int r = batch.row(i);
+                if (col[r] >= v)
+                    sel[n++] = r;
+            }
+            break;
+        case LESS_THAN:
+            for (int i = 0; i < rows; i++) {
+                int r = batch.row(i);
+                if (col[r] < v)
+                    sel[n++] = r;
+            }
+            break;
+        case LESS_THAN_OR_EQ:
+            for (int i = 0; i < rows; i++) {
+                int r = batch.row(i);
+                if (col[r] <= v)
+                    sel[n++] = r;
+            }
+            break;
+        }
+        return n;
+    }
+
+    /** Writes the positions of the live rows with col[row] op v into sel */
+    private int selectStrings(TupleBatch batch, String[] col, String v) {
+        int rows = batch.numRows();
+        int n = 0;
+        Predicate.Op op = p.getOp();
+        for (int i = 0; i < rows; i++) {
+            int r = batch.row(i);
+            boolean pass;
+            if (op == Predicate.Op.LIKE) {
+                pass = col[r].indexOf(v) >= 0;
+            } else {
+                int c = col[r].compareTo(v);
+                switch (op) {
+                case EQUALS:
+                    pass = c == 0;
+                    break;
+                case NOT_EQUALS:
+                    pass = c != 0;
+                    break;
+                case GREATER_THAN:
+                    pass = c > 0;
+                    break;
+                case GREATER_THAN_OR_EQ:
+                    pass = c >= 0;
+                    break;
+                case LESS_THAN:
+                    pass = c < 0;
+                    break;
+                default:
+                    pass = c <= 0;
+                    break;
+                }
+            }
+            if (pass)
+                sel[n++] = r;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,159 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BatchHashEquiJoin is the vectorized counterpart of {@link HashEquiJoin}.
+ * It reads the whole inner (right) child into columnar batches and chains
+ * rows with equal join keys through an int array, then probes with each
+ * batch of the outer (left) child, writing the concatenation of each pair of
+ * matching rows into its output batch.
+ */
+public class BatchHashEquiJoin implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+    private JoinPredicate p;
+    private BatchIterator child1;
+    private BatchIterator child2;
+    private TupleDesc td;
+    private boolean intKey;
+
+    /** the rows of child2; row e is at position e % CAPACITY of batch e / CAPACITY */
+    private transient ArrayList<TupleBatch> build;
+    /** for INT_TYPE keys, the first build row of each key */
+    private transient IntIntHashMap intHeads;
+    /** for STRING_TYPE keys, the first build row of each key */
+    private transient HashMap<String, Integer> stringHeads;
+    /** for each build row, the next build row with the same key, or -1 */
+    private transient int[] chain;
+
+    private transient TupleBatch out;
+    private transient TupleBatch probe;
+    private transient int probePos;
+    private transient int probeRow;
+    private transient int match;
+
+    /**
+     * Constructor. Accepts two children to join and the predicate to join
+     * them on
+     *
+     * @param p
+     *            The predicate to use to join the children; must be an
+     *            EQUALS predicate
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     */
+    public BatchHashEquiJoin(JoinPredicate p, BatchIterator child1, BatchIterator child2) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("BatchHashEquiJoin only supports equality predicates");
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.td = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
+        this.intKey = child2.getTupleDesc().getFieldType(p.getField2()) == Type.INT_TYPE;
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child1.open();
+        child2.open();
+        buildTable();
+        out = new TupleBatch(td);
+        probe = null;
+        match = -1;
+    }
+
+    /** Copies the rows of child2 and links the rows of each key */
+    private void buildTable() throws DbException, TransactionAbortedException {
+        build = new ArrayList<TupleBatch>();
+        intHeads = new IntIntHashMap();
+        stringHeads = new HashMap<String, Integer>();
+        chain = new int[TupleBatch.CAPACITY];
+        int n = 0;
+        int key = p.getField2();
+        TupleBatch in;
+        while ((in = child2.nextBatch()) != null) {
+            for (int i = 0; i < in.numRows(); i++) {
+                if (n % TupleBatch.CAPACITY == 0) {
+                    build.add(new TupleBatch(child2.getTupleDesc()));
+                    if (n == chain.length)
+                        chain = Arrays.copyOf(chain, chain.length * 2);
+                }
+                TupleBatch b = build.get(build.size() - 1);
+                int r = b.addRow();
+                b.copyRow(in, in.row(i), r, 0);
+                int head;
+                if (intKey) {
+                    head = intHeads.get(b.intColumn(key)[r]);
+                    intHeads.put(b.intColumn(key)[r], n);
+                } else {
+                    Integer h = stringHeads.put(b.stringColumn(key)[r], n);
+                    head = h == null ? -1 : h;
+                }
+                chain[n++] = head;
+            }
+        }
+    }
+
+    public void close() {
+        child1.close();
+        child2.close();
+        build = null;
+        intHeads = null;
+        stringHeads = null;
+        chain = null;
+        out = null;
+        probe = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child1.rewind();
+        probe = null;
+        match = -1;
+    }
+
+    /**
+     * Returns the next batch of joined rows, each the concatenation of a row
+     * of child1 and a matching row of child2.
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (out == null)
+            throw new IllegalStateException("BatchHashEquiJoin not yet open");
+        out.clear();
+        int width1 = child1.getTupleDesc().numFields();
+        int key = p.getField1();
+        while (!out.isFull()) {
+            if (match != -1) {
+                int r = out.addRow();
+                out.copyRow(probe, probeRow, r, 0);
+                out.copyRow(build.get(match / TupleBatch.CAPACITY),
+                        match % TupleBatch.CAPACITY, r, width1);
+                match = chain[match];
+                continue;
+            }
+            if (probe == null || probePos == probe.numRows()) {
+                probe = child1.nextBatch();
+                probePos = 0;
+                if (probe == null)
+                    break;
+            }
+            probeRow = probe.row(probePos++);
+            if (intKey) {
+                match = intHeads.get(probe.intColumn(key)[probeRow]);
+            } else {
+                Integer h = stringHeads.get(probe.stringColumn(key)[probeRow]);
+                match = h == null ? -1 : h;
+            }
+        }
+        return out.numRows() == 0 ? null : out;
+    }
+}
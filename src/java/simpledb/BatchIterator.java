@@ -0,0 +1,50 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * BatchIterator is the iterator interface of the vectorized operators. It
+ * plays the role of {@link DbIterator}, except that each call returns a
+ * {@link TupleBatch} of up to TupleBatch.CAPACITY rows instead of a single
+ * tuple. {@link TupleToBatch} and {@link BatchToTuple} adapt between the two,
+ * so batched and tuple-at-a-time operators can be mixed in one plan.
+ * <p>
+ * A batch returned by nextBatch() belongs to the operator that returned it:
+ * its contents are only valid until the next call to nextBatch(), rewind() or
+ * close(), which lets operators reuse their output batch. A consumer may
+ * change the selection vector of a batch it received, but not its values.
+ */
+public interface BatchIterator extends Serializable {
+    /**
+     * Opens the iterator. This must be called before any of the other methods.
+     * @throws DbException when there are problems opening/accessing the database.
+     */
+    public void open() throws DbException, TransactionAbortedException;
+
+    /**
+     * Returns the next batch of rows. A returned batch always has at least
+     * one live row.
+     *
+     * @return the next batch, or null if there are no more rows
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException;
+
+    /**
+     * Resets the iterator to the start.
+     * @throws DbException when rewind is unsupported.
+     * @throws IllegalStateException If the iterator has not been opened
+     */
+    public void rewind() throws DbException, TransactionAbortedException;
+
+    /**
+     * Returns the TupleDesc associated with this BatchIterator.
+     * @return the TupleDesc associated with this BatchIterator.
+     */
+    public TupleDesc getTupleDesc();
+
+    /**
+     * Closes the iterator.
+     */
+    public void close();
+}
@@ -0,0 +1,56 @@
+package simpledb;
+
+/**
+ * BatchProject is the vectorized counterpart of {@link Project}. Since
+ * batches are stored by column, a projection only selects column arrays of
+ * the child's batches and copies no values.
+ */
+public class BatchProject implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+    private BatchIterator child;
+    private int[] outFieldIds;
+    private TupleDesc td;
+
+    /**
+     * Constructor.
+     *
+     * @param fieldList
+     *            The ids of the fields of the child's TupleDesc to project out
+     * @param child
+     *            The child operator
+     */
+    public BatchProject(int[] fieldList, BatchIterator child) {
+        this.child = child;
+        this.outFieldIds = fieldList.clone();
+        TupleDesc childtd = child.getTupleDesc();
+        Type[] types = new Type[fieldList.length];
+        String[] names = new String[fieldList.length];
+        for (int i = 0; i < fieldList.length; i++) {
+            types[i] = childtd.getFieldType(fieldList[i]);
+            names[i] = childtd.getFieldName(fieldList[i]);
+        }
+        td = new TupleDesc(types, names);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+    }
+
+    public void close() {
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        TupleBatch batch = child.nextBatch();
+        return batch == null ? null : batch.project(outFieldIds, td);
+    }
+}
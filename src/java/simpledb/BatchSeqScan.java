@@ -0,0 +1,131 @@
+package simpledb;
+
+/**
+ * BatchSeqScan is the vectorized counterpart of {@link SeqScan}: it reads a
+ * table in the order of its pages and returns its tuples in batches, with
+ * the same alias-prefixed field names as SeqScan. The slots of a HeapFile
+ * page are decoded straight into the columns of a batch; tuples of other
+ * files are read through their iterator.
+ */
+public class BatchSeqScan implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+    private TransactionId tid;
+    private int tableid;
+    private String tableAlias;
+    private TupleDesc td;
+    private transient DbFileIterator it;
+    private transient TupleBatch batch;
+    /** the file being scanned, if it is a HeapFile */
+    private transient HeapFile heap;
+    /** the page being read, or null between pages, its number, and the next slot to read */
+    private transient HeapPage page;
+    private transient int pageNo;
+    private transient int slot;
+
+    /**
+     * Creates a batched sequential scan over the specified table as a part of
+     * the specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan.
+     * @param tableAlias
+     *            the alias of this table, used as the prefix of field names
+     */
+    public BatchSeqScan(TransactionId tid, int tableid, String tableAlias) {
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        TupleDesc fileTd = Database.getCatalog().getTupleDesc(tableid);
+        Type[] types = new Type[fileTd.numFields()];
+        String[] names = new String[fileTd.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = fileTd.getFieldType(i);
+            names[i] = tableAlias + "." + fileTd.getFieldName(i);
+        }
+        td = new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the table name of the table the operator scans
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        if (file instanceof HeapFile) {
+            heap = (HeapFile) file;
+            page = null;
+            pageNo = -1;
+        } else {
+            it = file.iterator(tid);
+            it.open();
+        }
+        batch = new TupleBatch(td);
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (batch == null)
+            throw new IllegalStateException("BatchSeqScan not yet open");
+        batch.clear();
+        if (heap != null) {
+            readPages();
+        } else {
+            while (!batch.isFull() && it.hasNext())
+                batch.addTuple(it.next());
+        }
+        return batch.numRows() == 0 ? null : batch;
+    }
+
+    /**
+     * Fills the batch from the slots of the heap pages, in page order.
+     */
+    private void readPages() throws DbException, TransactionAbortedException {
+        while (!batch.isFull()) {
+            if (page == null) {
+                if (pageNo + 1 >= heap.numPages())
+                    return;
+                pageNo++;
+                page = (HeapPage) Database.getBufferPool().getPage(tid,
+                        new HeapPageId(tableid, pageNo), Permissions.READ_ONLY);
+                slot = 0;
+            }
+            slot = page.readInto(batch, slot);
+            if (slot == page.numSlots)
+                page = null;
+        }
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        if (heap != null) {
+            page = null;
+            pageNo = -1;
+        } else {
+            it.rewind();
+        }
+    }
+
+    public void close() {
+        if (it != null)
+            it.close();
+        it = null;
+        heap = null;
+        page = null;
+        batch = null;
+    }
+}
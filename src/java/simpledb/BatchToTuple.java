@@ -0,0 +1,86 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * BatchToTuple adapts a {@link BatchIterator} into a tuple-at-a-time
+ * operator, materializing each live row of its batches as a Tuple, so that
+ * batched operators can feed the rest of a plan.
+ */
+public class BatchToTuple extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private BatchIterator child;
+    private transient TupleBatch batch;
+    private transient int pos;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the batched operator whose rows are returned
+     */
+    public BatchToTuple(BatchIterator child) {
+        this.child = child;
+    }
+
+    /**
+     * @return the batched operator under this adapter
+     */
+    public BatchIterator getBatchChild() {
+        return child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        batch = null;
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        batch = null;
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+        batch = null;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the live rows of the child's
+     * batches in order.
+     *
+     * @return The next tuple, or null if there are no more tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (batch == null || pos == batch.numRows()) {
+            batch = child.nextBatch();
+            pos = 0;
+            if (batch == null)
+                return null;
+        }
+        return batch.getTuple(pos++);
+    }
+
+    /**
+     * A BatchToTuple has no tuple-at-a-time children; its input is returned by
+     * {@link #getBatchChild}.
+     */
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[0];
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+    }
+
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+/**
+ * BloomFilter is a set of join keys that answers membership queries with no
+ * false negatives and a small rate of false positives, in about ten bits per
+ * key. {@link HashEquiJoin} builds one over the keys of its inner relation
+ * and pushes it down into the scan of its outer relation, which then drops
+ * tuples whose key cannot join before it builds them.
+ * <p>
+ * Keys are hashed by value: an INT by its value and a STRING by the
+ * hashCode of its String, so that a key read from the bytes of a page hashes
+ * like the same key in a parsed tuple.
+ */
+public class BloomFilter {
+
+    /** bits per key, and the number of hash functions that is best for it */
+    private static final int BITS_PER_KEY = 10;
+    private static final int NUM_HASHES = 7;
+
+    private final long[] bits;
+    private final int numBits;
+    private final Type type;
+    private int count;
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param type
+     *            the type of the keys
+     * @param expected
+     *            the number of keys that will be added
+     */
+    public BloomFilter(Type type, int expected) {
+        this.type = type;
+        long n = Math.max(64, (long) Math.max(expected, 1) * BITS_PER_KEY);
+        bits = new long[(int) Math.min((n + 63) / 64, Integer.MAX_VALUE / 64)];
+        numBits = bits.length * 64;
+    }
+
+    /**
+     * @return the type of the keys
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return the number of keys added
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Adds a key to the filter.
+     */
+    public void add(Field key) {
+        long h = hash(key);
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        count++;
+    }
+
+    /**
+     * @return false if the key was certainly not added
+     */
+    public boolean mightContain(Field key) {
+        return mightContain(hash(key));
+    }
+
+    /**
+     * Tests the key serialized at position pos of data.
+     *
+     * @return false if the key was certainly not added
+     */
+    public boolean mightContain(byte[] data, int pos) {
+        if (type == Type.INT_TYPE)
+            return mightContain(mix(RawPredicate.readInt(data, pos)));
+        // decoded as Type.STRING_TYPE parses it
+        int len = RawPredicate.readInt(data, pos);
+        return mightContain(mix(new String(data, pos + 4, len).hashCode()));
+    }
+
+    private boolean mightContain(long h) {
+        int h1 = (int) h;
+        int h2 = (int) (h >>> 32);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % numBits;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static long hash(Field key) {
+        if (key instanceof IntField)
+            return mix(((IntField) key).getValue());
+        return mix(((StringField) key).getValue().hashCode());
+    }
+
+    /** Spreads the bits of a value over a long (the finalizer of MurmurHash3) */
+    private static long mix(int value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
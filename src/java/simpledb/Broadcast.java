@@ -0,0 +1,32 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Broadcast sends every tuple of its producers to every output. It lets each
+ * worker of a parallel join build a hash table of a small input, so that the
+ * large input of the join does not need to be repartitioned.
+ */
+public class Broadcast extends Redistribute {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * @param producers
+     *            the plans whose tuples are redistributed
+     * @param numOutputs
+     *            the number of consumers
+     */
+    public Broadcast(DbIterator[] producers, int numOutputs) {
+        super(producers, numOutputs);
+    }
+
+    public String getName() {
+        return "broadcast(dop=" + numOutputs() + ")";
+    }
+
+    protected void route(Tuple t, List<List<Tuple>> buffers) {
+        for (List<Tuple> buffer : buffers)
+            buffer.add(t);
+    }
+}
@@ -33,6 +33,8 @@ public class BufferPool {
      */
     private int pageNum;
     private ConcurrentHashMap<PageId, Page> pid2page;
+    /** the pages that must not be evicted, with the number of times each is pinned */
+    private final ConcurrentHashMap<PageId, Integer> pins = new ConcurrentHashMap<>();
 
     public BufferPool(int numPages) {
         // Done
@@ -72,7 +74,10 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         //Done
-        //Page page;
+        Page cached = pid2page.get(pid);
+        if (cached != null) {
+            return cached;
+        }
         synchronized (this) {
             if (pid2page.containsKey(pid)) {
                 return pid2page.get(pid);
@@ -89,6 +94,63 @@ public class BufferPool {
             return page;
         }
     }
+        /**
+         * Keeps a page from being evicted until it is unpinned, so that a
+         * thread can change the cached page without another thread writing
+         * it out half changed and reading it back. Pin a page before getting
+         * it, since a page fetched earlier may already have been evicted.
+         * Pinning takes the pool monitor, so that it waits for an eviction of
+         * the page in progress: the page is then either kept or already
+         * written out and removed, never removed after it was pinned.
+         *
+         * @param pid the ID of the page to pin
+         */
+        synchronized void pinPage(PageId pid) {
+            pins.merge(pid, 1, Integer::sum);
+        }
+
+        /**
+         * Undoes one call to {@link #pinPage}.
+         *
+         * @param pid the ID of the page to unpin
+         */
+        void unpinPage(PageId pid) {
+            pins.computeIfPresent(pid, (k, n) -> n == 1 ? null : n - 1);
+        }
+
+        /**
+         * Marks pages dirtied by an operation as dirty, and caches them in
+         * place of any other copy. The operation must still hold the pages
+         * exclusively, so that no other thread changed them since it got
+         * them: another copy in the pool can only have been read back from
+         * disk, without the operation's changes, after the page was evicted.
+         *
+         * @param tid the transaction that dirtied the pages
+         * @param pages the dirtied pages
+         */
+        synchronized void cacheDirtyPages(TransactionId tid, Collection<Page> pages) {
+            for (Page page : pages) {
+                page.markDirty(true, tid);
+                pid2page.put(page.getId(), page);
+            }
+        }
+
+        /**
+         * Marks the pages a file returned from an insert or delete as dirty,
+         * and caches those that are no longer in the pool. A BTreeFile
+         * already did so with {@link #cacheDirtyPages} while it still
+         * latched the pages; once the latches are released its pages may
+         * have been changed and evicted again, so they are left alone here.
+         */
+        private synchronized void markDirtyPages(DbFile file, TransactionId tid, Collection<Page> pages) {
+            if (file instanceof BTreeFile)
+                return;
+            for (Page page : pages) {
+                page.markDirty(true, tid);
+                pid2page.putIfAbsent(page.getId(), page);
+            }
+        }
+
         /**
          * Releases the lock on a page.
          * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -142,7 +204,9 @@ public class BufferPool {
          * Marks any pages that were dirtied by the operation as dirty by calling
          * their markDirty bit, and adds versions of any pages that have
          * been dirtied to the cache (replacing any existing versions of those pages) so
-         * that future requests see up-to-date pages.
+         * that future requests see up-to-date pages. The secondary indexes of
+         * the table get an entry for the tuple, and are marked on disk as no
+         * longer in step with it until all pages are flushed.
          *
          * @param tid the transaction adding the tuple
          * @param tableId the table to add the tuple to
@@ -153,11 +217,21 @@ public class BufferPool {
             // some code goes here
             // not necessary for lab1
             // Lock acquisition is not needed for lab2
-            ArrayList<Page> pages = Database.getCatalog().getDatabaseFile(tableId).insertTuple(tid,t);
-            for (Page page : pages){
-                page.markDirty(true,tid);
-                pid2page.remove(page.getId());
-                pid2page.put(page.getId(),page);
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(tableId);
+            int begun = 0;
+            try {
+                for (SecondaryIndex index : indexes) {
+                    index.beginChange(tid);
+                    begun++;
+                }
+                markDirtyPages(file, tid, file.insertTuple(tid,t));
+                // the index trees cache their pages themselves, see markDirtyPages
+                for (SecondaryIndex index : indexes)
+                    index.insert(tid, t);
+            } finally {
+                for (int i = 0; i < begun; i++)
+                    indexes.get(i).endChange();
             }
         }
 
@@ -169,7 +243,9 @@ public class BufferPool {
          * Marks any pages that were dirtied by the operation as dirty by calling
          * their markDirty bit, and adds versions of any pages that have
          * been dirtied to the cache (replacing any existing versions of those pages) so
-         * that future requests see up-to-date pages.
+         * that future requests see up-to-date pages. The entries of the tuple
+         * are removed from the secondary indexes of its table, which are
+         * marked as in {@link #insertTuple}.
          *
          * @param tid the transaction deleting the tuple.
          * @param t the tuple to delete
@@ -180,20 +256,65 @@ public class BufferPool {
             // not necessary for lab1
             // tuple => recordid => pid => tableId
             int tableId = t.getRecordId().getPageId().getTableId();
-            Database.getCatalog().getDatabaseFile(tableId).deleteTuple(tid, t);
+            List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(tableId);
+            // the indexes need the keys of tuples read with only some of their fields
+            Tuple stored = indexes.isEmpty() ? t : SecondaryIndex.storedTuple(tid, t);
+            DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+            int begun = 0;
+            try {
+                for (SecondaryIndex index : indexes) {
+                    index.beginChange(tid);
+                    begun++;
+                }
+                markDirtyPages(file, tid, file.deleteTuple(tid, t));
+                for (SecondaryIndex index : indexes)
+                    index.delete(tid, stored);
+            } finally {
+                for (int i = 0; i < begun; i++)
+                    indexes.get(i).endChange();
+            }
         }
 
         /**
-         * Flush all dirty pages to disk.
+         * Flush all dirty pages to disk, and mark the secondary indexes, whose
+         * tables are now on disk as they are cached, as in step with them.
          * NB: Be careful using this routine -- it writes dirty data to disk so will
          *     break simpledb if running in NO STEAL mode.
          */
         public synchronized void flushAllPages() throws IOException {
+            Catalog catalog = Database.getCatalog();
+            HashMap<SecondaryIndex, Long> versions = new HashMap<SecondaryIndex, Long>();
+            for (Iterator<Integer> it = catalog.tableIdIterator(); it.hasNext(); ) {
+                for (SecondaryIndex index : catalog.getIndexes(it.next()))
+                    versions.put(index, index.stableVersion());
+            }
             // use for each to flush all page
             for(PageId pid : pid2page.keySet()){
                 //pid2page.remove(pid);
                 flushPage(pid);
             }
+            for (Map.Entry<SecondaryIndex, Long> e : versions.entrySet())
+                e.getKey().written(e.getValue());
+        }
+
+        /** Write all pages of the specified file to disk */
+        synchronized void flushPages(int tableId) throws IOException {
+            for (PageId pid : pid2page.keySet()) {
+                if (pid.getTableId() == tableId)
+                    flushPage(pid);
+            }
+        }
+
+        /**
+         * @return true if a page of the specified file was changed in the pool
+         *         since it was last written
+         */
+        synchronized boolean holdsDirtyPages(int tableId) {
+            for (Page page : pid2page.values()) {
+                if (page.getId().getTableId() == tableId && page.isDirty() != null)
+                    return true;
+            }
+            return false;
         }
 
         /** Remove the specific page id from the buffer pool.
@@ -210,6 +331,12 @@ public class BufferPool {
             pid2page.remove(pid);
         }
 
+        /** Remove all pages of the specified file from the buffer pool, without
+         writing them; used when the file is rebuilt from scratch */
+        synchronized void discardPages(int tableId) {
+            pid2page.keySet().removeIf(pid -> pid.getTableId() == tableId);
+        }
+
         /**
          * Flushes a certain page to disk
          * flushPage should write any dirty page to disk and mark it as not dirty,
@@ -234,11 +361,15 @@ public class BufferPool {
         /**
          * Discards a page from the buffer pool.
          * Flushes the page to disk to ensure dirty pages are updated on disk.
+         * Pinned pages are not evicted.
          */
         private synchronized  void evictPage() throws DbException, IOException {
             // some code goes here
             // delete the first one
             for(PageId pid: pid2page.keySet()){
+                if (pins.containsKey(pid)) {
+                    continue;
+                }
                 try {
                     flushPage(pid);
                 } catch (IOException e) {
@@ -247,7 +378,7 @@ public class BufferPool {
                 pid2page.remove(pid);
                 return;
             }
-            throw new DbException("all pages in the buffer pool are dirty");
+            throw new DbException("all pages in the buffer pool are pinned");
             // delete the last recent use one?
         }
 
@@ -6,6 +6,7 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
@@ -28,6 +29,9 @@ public class Catalog {
     private ConcurrentHashMap<Integer, String> id2Name;
     private ConcurrentHashMap<Integer, DbFile> id2File;
     private ConcurrentHashMap<Integer, String> id2Pkey;
+    /** the secondary indexes of each table, and the files of all indexes by id */
+    private ConcurrentHashMap<Integer, List<SecondaryIndex>> id2Indexes;
+    private ConcurrentHashMap<Integer, DbFile> indexId2File;
 
 
     /**
@@ -40,6 +44,8 @@ public class Catalog {
         this.id2Name = new ConcurrentHashMap<>();
         this.id2File = new ConcurrentHashMap<>();
         this.id2Pkey = new ConcurrentHashMap<>();
+        this.id2Indexes = new ConcurrentHashMap<>();
+        this.indexId2File = new ConcurrentHashMap<>();
     }
 
     /**
@@ -66,6 +72,8 @@ public class Catalog {
         id2Name.put(id, name);
         id2File.put(id, file);
         id2Pkey.put(id, pkeyField);
+        // the indexes of a table added again belong to the file it replaces
+        dropIndexes(id);
     }
 
     public void addTable(DbFile file, String name) {
@@ -108,14 +116,85 @@ public class Catalog {
 
     /**
      * Returns the DbFile that can be used to read the contents of the
-     * specified table.
+     * specified table, or of the specified secondary index.
      * @param tableid The id of the table, as specified by the DbFile.getId()
      *     function passed to addTable
      */
     public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
         // Done
-        if (!id2File.containsKey(tableid)) throw new NoSuchElementException();
-        return id2File.get(tableid);
+        DbFile file = id2File.get(tableid);
+        if (file == null) file = indexId2File.get(tableid);
+        if (file == null) throw new NoSuchElementException();
+        return file;
+    }
+
+    /**
+     * Adds a secondary index on a field of a table stored in a HeapFile. The
+     * index is kept in a file next to the heap file, which is built from the
+     * table unless it is already up to date.
+     * @param tableid the id of the table
+     * @param fieldName the name of the field to index
+     * @return the index
+     * @throws NoSuchElementException if the table or the field doesn't exist
+     * @throws DbException if the table is not a HeapFile, or the index cannot be built
+     */
+    public SecondaryIndex addIndex(int tableid, String fieldName) throws DbException {
+        return addIndex(tableid, fieldName, new String[0]);
+    }
+
+    /**
+     * Adds a covering secondary index on a field of a table stored in a
+     * HeapFile, whose entries also hold the values of other fields, so that
+     * queries referring only to these fields never read the table.
+     * @param tableid the id of the table
+     * @param fieldName the name of the field to index
+     * @param include the names of the fields to include in the entries
+     * @return the index
+     * @throws NoSuchElementException if the table or a field doesn't exist
+     * @throws DbException if the table is not a HeapFile, or the index cannot be built
+     */
+    public SecondaryIndex addIndex(int tableid, String fieldName, String[] include) throws DbException {
+        DbFile file = getDatabaseFile(tableid);
+        if (!(file instanceof HeapFile) || !id2File.containsKey(tableid))
+            throw new DbException("secondary indexes need a HeapFile table");
+        HeapFile table = (HeapFile) file;
+        int field = table.getTupleDesc().fieldNameToIndex(fieldName);
+        TreeSet<Integer> fields = new TreeSet<Integer>();
+        for (String name : include)
+            fields.add(table.getTupleDesc().fieldNameToIndex(name));
+        fields.remove(field);
+        int[] included = new int[fields.size()];
+        int n = 0;
+        for (int f : fields)
+            included[n++] = f;
+        for (SecondaryIndex index : getIndexes(tableid)) {
+            if (index.getField() == field && Arrays.equals(index.getIncludedFields(), included))
+                return index;
+        }
+        SecondaryIndex index = new SecondaryIndex(table, field, included,
+                SecondaryIndex.fileOf(table, field, included));
+        indexId2File.put(index.getFile().getId(), index.getFile());
+        if (index.isStale())
+            index.build();
+        id2Indexes.computeIfAbsent(tableid, id -> new CopyOnWriteArrayList<SecondaryIndex>()).add(index);
+        return index;
+    }
+
+    /**
+     * Returns the secondary indexes of a table.
+     * @param tableid the id of the table
+     */
+    public List<SecondaryIndex> getIndexes(int tableid) {
+        List<SecondaryIndex> indexes = id2Indexes.get(tableid);
+        return indexes == null ? Collections.<SecondaryIndex>emptyList() : Collections.unmodifiableList(indexes);
+    }
+
+    private void dropIndexes(int tableid) {
+        List<SecondaryIndex> indexes = id2Indexes.remove(tableid);
+        if (indexes != null) {
+            for (SecondaryIndex index : indexes)
+                indexId2File.remove(index.getFile().getId());
+        }
     }
 
     public String getPrimaryKey(int tableid) {
@@ -142,6 +221,8 @@ public class Catalog {
         id2Name.clear();
         id2Pkey.clear();
         id2File.clear();
+        id2Indexes.clear();
+        indexId2File.clear();
     }
 
     /**
@@ -155,13 +236,17 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
 
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...),
+                //where a field may be followed by pk and/or idx (a secondary index),
+                //written idx:f:g for an index that includes fields f and g
                 String name = line.substring(0, line.indexOf("(")).trim();
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
                 String primaryKey = "";
+                ArrayList<String> indexed = new ArrayList<String>();
+                ArrayList<String[]> includes = new ArrayList<String[]>();
                 for (String e : els) {
                     String[] els2 = e.trim().split(" ");
                     names.add(els2[0].trim());
@@ -173,11 +258,16 @@ public class Catalog {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
                     }
-                    if (els2.length == 3) {
-                        if (els2[2].trim().equals("pk"))
+                    for (int i = 2; i < els2.length; i++) {
+                        if (els2[i].trim().equals("pk"))
                             primaryKey = els2[0].trim();
+                        else if (els2[i].trim().equals("idx") || els2[i].trim().startsWith("idx:")) {
+                            String[] parts = els2[i].trim().split(":");
+                            indexed.add(els2[0].trim());
+                            includes.add(Arrays.copyOfRange(parts, 1, parts.length));
+                        }
                         else {
-                            System.out.println("Unknown annotation " + els2[2]);
+                            System.out.println("Unknown annotation " + els2[i]);
                             System.exit(0);
                         }
                     }
@@ -188,6 +278,11 @@ public class Catalog {
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
                 addTable(tabHf,name,primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
+                for (int i = 0; i < indexed.size(); i++) {
+                    addIndex(tabHf.getId(), indexed.get(i), includes.get(i));
+                    System.out.println("Added index : " + name + "." + indexed.get(i)
+                            + (includes.get(i).length > 0 ? " including " + String.join(", ", includes.get(i)) : ""));
+                }
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -195,6 +290,12 @@ public class Catalog {
         } catch (IndexOutOfBoundsException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
+        } catch (DbException e) {
+            System.out.println ("Invalid index in catalog entry : " + line + ": " + e.getMessage());
+            System.exit(0);
+        } catch (NoSuchElementException e) {
+            System.out.println ("Unknown field in index in catalog entry : " + line);
+            System.exit(0);
         }
     }
 }
@@ -0,0 +1,275 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Instance of Field that stores the key of a B+ tree keyed on several fields,
+ * such as (last name, first name). Keys are ordered on their first field,
+ * then on their second field, and so on.
+ * <p>
+ * A key is compared through its normalized encoding: the fields are encoded
+ * one after the other into bytes whose unsigned lexicographic order is the
+ * order of the keys, so that comparing two keys is a single byte comparison
+ * rather than a comparison of each pair of fields. INT fields are encoded as
+ * four big-endian bytes with the sign bit flipped. STRING fields are encoded
+ * one character at a time, as the UTF-8 bytes of the character plus one, and
+ * end with a zero byte, which sorts a string before its extensions.
+ * <p>
+ * A key with fewer fields than another is compared on the fields they share,
+ * so a key of the first fields of a B+ tree finds all tuples starting with
+ * them.
+ */
+public class CompositeField implements Field {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Field[] fields;
+	/** the normalized encoding, and where the encoding of each field ends in it */
+	private transient volatile byte[] key;
+	private transient int[] ends;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param fields The fields of this key, most significant first.
+	 */
+	public CompositeField(Field... fields) {
+		if (fields.length == 0)
+			throw new IllegalArgumentException("a key needs at least one field");
+		this.fields = fields.clone();
+	}
+
+	/**
+	 * @return the key of a tuple on some of its fields
+	 */
+	public static CompositeField of(Tuple t, int[] keyFields) {
+		Field[] fields = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++)
+			fields[i] = t.getField(keyFields[i]);
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * Reads a key, written by serialize, from a stream.
+	 *
+	 * @param td the TupleDesc of the tuples the key is part of
+	 * @param keyFields the fields of the key
+	 */
+	public static CompositeField parse(TupleDesc td, int[] keyFields, DataInputStream dis)
+			throws java.text.ParseException {
+		Field[] fields = new Field[keyFields.length];
+		for (int i = 0; i < keyFields.length; i++)
+			fields[i] = td.getFieldType(keyFields[i]).parse(dis);
+		return new CompositeField(fields);
+	}
+
+	/**
+	 * @return the number of bytes serialize writes for keys on some fields
+	 */
+	public static int getLen(TupleDesc td, int[] keyFields) {
+		int len = 0;
+		for (int f : keyFields)
+			len += td.getFieldType(f).getLen();
+		return len;
+	}
+
+	/**
+	 * @return the number of fields in this key
+	 */
+	public int numFields() {
+		return fields.length;
+	}
+
+	/**
+	 * @return the ith field of this key
+	 */
+	public Field getField(int i) {
+		return fields[i];
+	}
+
+	/**
+	 * Write the fields of this key to dos, one after the other, each as long
+	 * as its type.
+	 */
+	public void serialize(DataOutputStream dos) throws IOException {
+		for (Field f : fields)
+			f.serialize(dos);
+	}
+
+	/**
+	 * Compares this key to another, on the fields they share.
+	 *
+	 * @param val a CompositeField, or a Field compared to the first field
+	 * @return a negative number, zero or a positive number as this key is less
+	 *         than, equal to or greater than val
+	 */
+	public int compareTo(Field val) {
+		CompositeField other = val instanceof CompositeField
+				? (CompositeField) val : new CompositeField(val);
+		encode();
+		other.encode();
+		int n = Math.min(fields.length, other.fields.length);
+		return compareBytes(key, ends[n - 1], other.key, other.ends[n - 1]);
+	}
+
+	/**
+	 * Compare the specified key to this key. Return semantics are as
+	 * specified by Field.compare; LIKE is EQUALS.
+	 *
+	 * @see Field#compare
+	 */
+	public boolean compare(Predicate.Op op, Field val) {
+		int cmpVal = compareTo(val);
+
+		switch (op) {
+		case EQUALS:
+		case LIKE:
+			return cmpVal == 0;
+
+		case NOT_EQUALS:
+			return cmpVal != 0;
+
+		case GREATER_THAN:
+			return cmpVal > 0;
+
+		case GREATER_THAN_OR_EQ:
+			return cmpVal >= 0;
+
+		case LESS_THAN:
+			return cmpVal < 0;
+
+		case LESS_THAN_OR_EQ:
+			return cmpVal <= 0;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the Type of the first field of this key
+	 */
+	public Type getType() {
+		return fields[0].getType();
+	}
+
+	public int hashCode() {
+		encode();
+		return Arrays.hashCode(key);
+	}
+
+	public boolean equals(Object field) {
+		if (!(field instanceof CompositeField))
+			return false;
+		CompositeField other = (CompositeField) field;
+		encode();
+		other.encode();
+		return Arrays.equals(key, other.key);
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("(");
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(fields[i]);
+		}
+		return sb.append(")").toString();
+	}
+
+	/**
+	 * Computes the normalized encoding of this key, if it has not been yet.
+	 */
+	private void encode() {
+		if (key != null)
+			return;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int[] ends = new int[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			encode(fields[i], out);
+			ends[i] = out.size();
+		}
+		this.ends = ends; // before the key, which other threads test
+		this.key = out.toByteArray();
+	}
+
+	/**
+	 * @return the normalized encoding of this key
+	 */
+	byte[] bytes() {
+		encode();
+		return key;
+	}
+
+	/**
+	 * @return the normalized encoding of a key: a CompositeField, or a single
+	 *         field encoded as a key of that field alone
+	 */
+	static byte[] normalize(Field f) {
+		if (f instanceof CompositeField)
+			return ((CompositeField) f).bytes();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encode(f, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Compares two normalized encodings on the fields they share. No field
+	 * encodes to a prefix of another value of its type, so two keys agree on
+	 * the fields they share exactly when the shorter encoding is a prefix of
+	 * the longer one, and otherwise the first byte they differ in orders them.
+	 */
+	static int compareShared(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for (int i = 0; i < n; i++) {
+			if (a[i] != b[i])
+				return (a[i] & 0xFF) - (b[i] & 0xFF);
+		}
+		return 0;
+	}
+
+	/**
+	 * Appends the normalized encoding of a field to out.
+	 */
+	static void encode(Field f, ByteArrayOutputStream out) {
+		if (f instanceof IntField) {
+			int v = ((IntField) f).getValue() ^ Integer.MIN_VALUE;
+			out.write(v >>> 24);
+			out.write(v >>> 16);
+			out.write(v >>> 8);
+			out.write(v);
+			return;
+		}
+		String s = ((StringField) f).getValue();
+		for (int i = 0; i < s.length(); i++) {
+			// one more than the character, so that no character encodes to the terminator
+			int c = s.charAt(i) + 1;
+			if (c < 0x80) {
+				out.write(c);
+			} else if (c < 0x800) {
+				out.write(0xC0 | (c >> 6));
+				out.write(0x80 | (c & 0x3F));
+			} else if (c < 0x10000) {
+				out.write(0xE0 | (c >> 12));
+				out.write(0x80 | ((c >> 6) & 0x3F));
+				out.write(0x80 | (c & 0x3F));
+			} else {
+				out.write(0xF0); // the last character, 0xFFFF, plus one
+			}
+		}
+		out.write(0);
+	}
+
+	/**
+	 * Compares the first alen bytes of a to the first blen bytes of b as
+	 * unsigned numbers, like memcmp, with a shorter prefix first.
+	 */
+	static int compareBytes(byte[] a, int alen, byte[] b, int blen) {
+		int n = Math.min(alen, blen);
+		for (int i = 0; i < n; i++) {
+			if (a[i] != b[i])
+				return (a[i] & 0xFF) - (b[i] & 0xFF);
+		}
+		return alen - blen;
+	}
+}
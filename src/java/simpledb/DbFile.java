@@ -68,6 +68,21 @@ public interface DbFile {
      */
     public DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over the tuples stored in this DbFile that satisfy
+     * all of the given predicates, which compare fields of the file's
+     * TupleDesc to constants. Files may test the predicates before building
+     * tuples, so that rejected tuples cost as little as possible.
+     * <p>
+     * If only some fields are needed, the returned tuples may have the
+     * other fields unset, so that they are never decoded.
+     *
+     * @param preds the predicates tuples must all satisfy, or null
+     * @param fields the indexes of the fields to read, or null to read them all
+     * @return an iterator over the matching tuples stored in this DbFile.
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields);
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
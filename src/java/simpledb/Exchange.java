@@ -0,0 +1,191 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Exchange is the base class of operators that run parts of a plan on
+ * several threads. Subclasses decide which producer plans to run; Exchange
+ * runs each of them on a thread of a shared worker pool, and hands their
+ * tuples to the consumer in chunks through a bounded queue, so producers
+ * block instead of buffering without limit when the consumer falls behind.
+ * Tuples of different producers are interleaved in no particular order.
+ * <p>
+ * An Exchange gathers many producers into one consumer. {@link Repartition}
+ * and {@link Broadcast} connect many producers to many consumers, and the
+ * parallel operators build on both: {@link ParallelSeqScan},
+ * {@link ParallelHashJoin} and {@link ParallelAggregate}.
+ */
+public abstract class Exchange extends Operator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of tuples a producer sends at a time */
+    static final int CHUNK_SIZE = 256;
+
+    /** Threads shared by all exchanges; idle threads exit after a minute */
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(
+            new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "simpledb-exchange");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    /** A chunk of tuples, or the end of a producer's output */
+    private static class Chunk {
+        final ArrayList<Tuple> tuples;
+        final Exception error;
+
+        Chunk(ArrayList<Tuple> tuples, Exception error) {
+            this.tuples = tuples;
+            this.error = error;
+        }
+
+        boolean isEnd() {
+            return tuples == null;
+        }
+    }
+
+    private transient BlockingQueue<Chunk> queue;
+    private transient ArrayList<Future<?>> producers;
+    private transient volatile boolean cancelled;
+    private transient int running;
+    private transient Iterator<Tuple> current;
+
+    /**
+     * Runs a task on a thread of the worker pool.
+     */
+    static Future<?> submit(Runnable task) {
+        return WORKERS.submit(task);
+    }
+
+    /**
+     * Returns plans that together return the tuples of a plan: the producers
+     * of an Exchange, which can then run without gathering their output
+     * first, or the plan itself.
+     */
+    static DbIterator[] producersOf(DbIterator plan) throws DbException,
+            TransactionAbortedException {
+        if (plan instanceof Exchange)
+            return ((Exchange) plan).createProducers();
+        return new DbIterator[] { plan };
+    }
+
+    /**
+     * @return a short description of this exchange, shown in query plans
+     */
+    public abstract String getName();
+
+    /**
+     * Returns the plans to run on worker threads. Each is opened, drained and
+     * closed by its own thread.
+     */
+    protected abstract DbIterator[] createProducers() throws DbException,
+            TransactionAbortedException;
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        DbIterator[] plans = createProducers();
+        queue = new ArrayBlockingQueue<Chunk>(Math.max(2, plans.length * 4));
+        producers = new ArrayList<Future<?>>(plans.length);
+        cancelled = false;
+        running = plans.length;
+        current = null;
+        for (final DbIterator plan : plans) {
+            producers.add(submit(new Runnable() {
+                public void run() {
+                    produce(plan);
+                }
+            }));
+        }
+        super.open();
+    }
+
+    /** Runs one producer plan, sending its tuples to the queue */
+    private void produce(DbIterator plan) {
+        Exception error = null;
+        try {
+            plan.open();
+            ArrayList<Tuple> chunk = new ArrayList<Tuple>(CHUNK_SIZE);
+            while (!cancelled && plan.hasNext()) {
+                chunk.add(plan.next());
+                if (chunk.size() == CHUNK_SIZE) {
+                    queue.put(new Chunk(chunk, null));
+                    chunk = new ArrayList<Tuple>(CHUNK_SIZE);
+                }
+            }
+            if (!chunk.isEmpty() && !cancelled)
+                queue.put(new Chunk(chunk, null));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            plan.close();
+            try {
+                queue.put(new Chunk(null, error));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the tuples of all producers
+     * as they arrive.
+     */
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        while (current == null || !current.hasNext()) {
+            if (running == 0)
+                return null;
+            Chunk chunk;
+            try {
+                chunk = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for " + getName());
+            }
+            if (chunk.isEnd()) {
+                running--;
+                if (chunk.error instanceof TransactionAbortedException)
+                    throw (TransactionAbortedException) chunk.error;
+                if (chunk.error != null)
+                    throw new DbException(getName() + " failed: " + chunk.error);
+                current = null;
+            } else {
+                current = chunk.tuples.iterator();
+            }
+        }
+        return current.next();
+    }
+
+    /**
+     * Stops the producers and waits for them to close their plans.
+     */
+    public void close() {
+        super.close();
+        if (producers == null)
+            return;
+        cancelled = true;
+        // take chunks until every producer has sent its end marker
+        while (running > 0) {
+            try {
+                if (queue.take().isEnd())
+                    running--;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        producers = null;
+        queue = null;
+        current = null;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        close();
+        open();
+    }
+}
@@ -0,0 +1,315 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.tools.*;
+
+/**
+ * ExpressionCompiler turns conjunctions of predicates and projections into
+ * generated Java classes, compiled in memory with the JDK compiler API. The
+ * generated code reads each field with a cast to its known type and compares
+ * it to its constant with the operator written out, so that a filter runs
+ * one straight-line method per tuple instead of a switch on the operator of
+ * each predicate.
+ * <p>
+ * Compiled classes are cached by the shape of the expression (the fields,
+ * types and operators, but not the constants), so queries that only differ
+ * in their constants share a class. If no compiler is available, as when
+ * running on a JRE, or compilation fails, an interpreter of the same
+ * expression is returned instead, and no further compilation is attempted.
+ */
+public class ExpressionCompiler {
+
+    private static final String PACKAGE = "simpledb.generated";
+
+    private static volatile boolean enabled = true;
+    private static volatile boolean failed = false;
+    private static final AtomicInteger classCount = new AtomicInteger();
+    /** compiled classes, by the source of their body */
+    private static final ConcurrentHashMap<String, Class<?>> cache = new ConcurrentHashMap<String, Class<?>>();
+
+    /**
+     * Turns compilation on or off; when off, every expression is interpreted.
+     */
+    public static void setEnabled(boolean enabled) {
+        ExpressionCompiler.enabled = enabled;
+    }
+
+    /**
+     * @return true if expressions are compiled, and a compiler is available
+     */
+    public static boolean isAvailable() {
+        return enabled && !failed && ToolProvider.getSystemJavaCompiler() != null;
+    }
+
+    /**
+     * @return true if the evaluator is generated code, rather than an
+     *         interpreter
+     */
+    public static boolean isCompiled(Object evaluator) {
+        return !(evaluator instanceof Interpreted || evaluator instanceof InterpretedProjection);
+    }
+
+    /**
+     * Returns an interpreter of a conjunction of predicates.
+     */
+    public static TuplePredicate interpret(Predicate[] preds) {
+        return new Interpreted(preds);
+    }
+
+    /**
+     * Returns an interpreter of a projection.
+     */
+    public static TupleProjector interpret(int[] fields, TupleDesc outTd) {
+        return new InterpretedProjection(fields, outTd);
+    }
+
+    /**
+     * Compiles a conjunction of predicates, evaluated in the given order and
+     * stopping at the first that fails.
+     *
+     * @param preds
+     *            the predicates
+     * @param td
+     *            the schema of the tuples the predicates are applied to
+     * @return the compiled conjunction, or an interpreter of it if it cannot
+     *         be compiled
+     */
+    public static TuplePredicate compile(Predicate[] preds, TupleDesc td) {
+        if (!isAvailable() || preds.length == 0)
+            return interpret(preds);
+        StringBuilder fields = new StringBuilder();
+        StringBuilder init = new StringBuilder();
+        StringBuilder test = new StringBuilder();
+        Object[] constants = new Object[preds.length];
+        for (int i = 0; i < preds.length; i++) {
+            Predicate p = preds[i];
+            Type type = td.getFieldType(p.getField());
+            if (type != p.getOperand().getType())
+                return interpret(preds);
+            if (i > 0)
+                test.append("\n            && ");
+            if (type == Type.INT_TYPE) {
+                constants[i] = ((IntField) p.getOperand()).getValue();
+                fields.append("    private final int c" + i + ";\n");
+                init.append("        c" + i + " = (java.lang.Integer) k[" + i + "];\n");
+                test.append(intTest("((simpledb.IntField) t.getField(" + p.getField() + ")).getValue()",
+                        p.getOp(), "c" + i));
+            } else {
+                constants[i] = ((StringField) p.getOperand()).getValue();
+                fields.append("    private final java.lang.String c" + i + ";\n");
+                init.append("        c" + i + " = (java.lang.String) k[" + i + "];\n");
+                test.append(stringTest("((simpledb.StringField) t.getField(" + p.getField() + ")).getValue()",
+                        p.getOp(), "c" + i));
+            }
+        }
+        String body = " implements simpledb.TuplePredicate {\n"
+                + fields
+                + "    public %s(java.lang.Object[] k) {\n" + init + "    }\n"
+                + "    public boolean test(simpledb.Tuple t) {\n"
+                + "        return " + test + ";\n"
+                + "    }\n"
+                + "}\n";
+        TuplePredicate compiled = (TuplePredicate) instantiate("Conjunction", body, constants);
+        return compiled != null ? compiled : interpret(preds);
+    }
+
+    /**
+     * Compiles a projection.
+     *
+     * @param fields
+     *            the fields of the input that make up the output, in order
+     * @param outTd
+     *            the schema of the output tuples
+     * @return the compiled projection, or an interpreter of it if it cannot
+     *         be compiled
+     */
+    public static TupleProjector compile(int[] fields, TupleDesc outTd) {
+        if (!isAvailable())
+            return interpret(fields, outTd);
+        StringBuilder copy = new StringBuilder();
+        for (int i = 0; i < fields.length; i++)
+            copy.append("        out.setField(" + i + ", t.getField(" + fields[i] + "));\n");
+        String body = " implements simpledb.TupleProjector {\n"
+                + "    private final simpledb.TupleDesc td;\n"
+                + "    public %s(java.lang.Object[] k) {\n"
+                + "        td = (simpledb.TupleDesc) k[0];\n"
+                + "    }\n"
+                + "    public simpledb.Tuple project(simpledb.Tuple t) {\n"
+                + "        simpledb.Tuple out = new simpledb.Tuple(td);\n"
+                + "        out.setRecordId(t.getRecordId());\n"
+                + copy
+                + "        return out;\n"
+                + "    }\n"
+                + "}\n";
+        TupleProjector compiled = (TupleProjector) instantiate("Projection", body, new Object[] { outTd });
+        return compiled != null ? compiled : interpret(fields, outTd);
+    }
+
+    private static String intTest(String value, Predicate.Op op, String c) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return value + " == " + c;
+        case NOT_EQUALS:
+            return value + " != " + c;
+        case GREATER_THAN:
+            return value + " > " + c;
+        case GREATER_THAN_OR_EQ:
+            return value + " >= " + c;
+        case LESS_THAN:
+            return value + " < " + c;
+        default:
+            return value + " <= " + c;
+        }
+    }
+
+    private static String stringTest(String value, Predicate.Op op, String c) {
+        switch (op) {
+        case EQUALS:
+            return value + ".equals(" + c + ")";
+        case NOT_EQUALS:
+            return "!" + value + ".equals(" + c + ")";
+        case LIKE:
+            return value + ".indexOf(" + c + ") >= 0";
+        default:
+            return value + ".compareTo(" + c + ") " + op + " 0";
+        }
+    }
+
+    /**
+     * Creates an instance of a generated class, compiling the class unless
+     * one with the same body was compiled before.
+     *
+     * @param prefix
+     *            the prefix of the class name
+     * @param body
+     *            the source of the class after its name, with %s in place of
+     *            the name of its constructor
+     * @param constants
+     *            the argument of the constructor
+     * @return the instance, or null if compilation failed
+     */
+    private static Object instantiate(String prefix, String body, Object[] constants) {
+        try {
+            Class<?> c = cache.get(body);
+            if (c == null) {
+                synchronized (cache) {
+                    c = cache.get(body);
+                    if (c == null) {
+                        c = compileClass(prefix + classCount.incrementAndGet(), body);
+                        if (c == null)
+                            return null;
+                        cache.put(body, c);
+                    }
+                }
+            }
+            return c.getConstructor(Object[].class).newInstance((Object) constants);
+        } catch (ReflectiveOperationException e) {
+            Debug.log("could not instantiate generated class: %s", e);
+            failed = true;
+            return null;
+        } catch (RuntimeException e) {
+            Debug.log("could not compile expression: %s", e);
+            failed = true;
+            return null;
+        }
+    }
+
+    /** Compiles one class in memory, or returns null and disables compilation */
+    private static Class<?> compileClass(String name, String body) throws ClassNotFoundException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            failed = true;
+            return null;
+        }
+        String source = "package " + PACKAGE + ";\n\npublic final class " + name
+                + String.format(body, name);
+        final Map<String, ByteArrayOutputStream> classes = new HashMap<String, ByteArrayOutputStream>();
+        JavaFileManager fm = new ForwardingJavaFileManager<JavaFileManager>(
+                compiler.getStandardFileManager(null, null, null)) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, final String className,
+                    JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/')
+                        + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        classes.put(className, out);
+                        return out;
+                    }
+                };
+            }
+        };
+        final String text = source;
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("mem:///" + PACKAGE.replace('.', '/')
+                + "/" + name + JavaFileObject.Kind.SOURCE.extension), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return text;
+            }
+        };
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        List<String> options = Arrays.asList("-classpath", System.getProperty("java.class.path"),
+                "-g:none", "-nowarn");
+        boolean ok = compiler.getTask(null, fm, diagnostics, options, null,
+                Collections.singletonList(file)).call();
+        if (!ok) {
+            Debug.log("could not compile expression: %s", diagnostics.getDiagnostics());
+            failed = true;
+            return null;
+        }
+        final byte[] bytes = classes.get(PACKAGE + "." + name).toByteArray();
+        ClassLoader loader = new ClassLoader(ExpressionCompiler.class.getClassLoader()) {
+            @Override
+            protected Class<?> findClass(String className) throws ClassNotFoundException {
+                if (!className.equals(PACKAGE + "." + name))
+                    throw new ClassNotFoundException(className);
+                return defineClass(className, bytes, 0, bytes.length);
+            }
+        };
+        return loader.loadClass(PACKAGE + "." + name);
+    }
+
+    /** Evaluates a conjunction of predicates one by one */
+    private static class Interpreted implements TuplePredicate {
+        private final Predicate[] preds;
+
+        Interpreted(Predicate[] preds) {
+            this.preds = preds.clone();
+        }
+
+        public boolean test(Tuple t) {
+            for (Predicate p : preds) {
+                if (!p.filter(t))
+                    return false;
+            }
+            return true;
+        }
+    }
+
+    /** Copies the projected fields one by one */
+    private static class InterpretedProjection implements TupleProjector {
+        private final int[] fields;
+        private final TupleDesc td;
+
+        InterpretedProjection(int[] fields, TupleDesc td) {
+            this.fields = fields.clone();
+            this.td = td;
+        }
+
+        public Tuple project(Tuple t) {
+            Tuple out = new Tuple(td);
+            out.setRecordId(t.getRecordId());
+            for (int i = 0; i < fields.length; i++)
+                out.setField(i, t.getField(fields[i]));
+            return out;
+        }
+    }
+}
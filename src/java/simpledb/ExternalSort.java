@@ -0,0 +1,277 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ExternalSort sorts a stream of tuples under a fixed memory budget.
+ * <p>
+ * Tuples are accumulated in memory until the budget is exhausted; the buffer
+ * is then sorted and written out as a run to a {@link SpillFile}. Once all
+ * input has been added, the runs are merged with a loser tree, at most
+ * {@link #getMaxFanIn} runs at a time, and the final merge is streamed to the
+ * caller without being materialized. If the whole input fits in the budget
+ * nothing is written to disk.
+ * <p>
+ * The sort is stable: tuples that compare equal are returned in the order in
+ * which they were added.
+ */
+public class ExternalSort {
+
+    /** Default memory budget, in pages, used by operators that sort. */
+    public static final int DEFAULT_MEMORY_PAGES = BufferPool.DEFAULT_PAGES;
+
+    private final TupleDesc td;
+    private final Comparator<Tuple> comparator;
+    private final int maxTuples;
+    private final int maxFanIn;
+
+    private ArrayList<Tuple> buffer = new ArrayList<Tuple>();
+    private ArrayList<SpillFile> runs = new ArrayList<SpillFile>();
+
+    /**
+     * Creates a new sorter.
+     *
+     * @param td
+     *            the schema of the tuples to sort
+     * @param comparator
+     *            the order to sort in
+     * @param memoryPages
+     *            the memory budget, in pages of {@link BufferPool#getPageSize}
+     *            bytes; must be at least 3 so that two runs can be merged
+     */
+    public ExternalSort(TupleDesc td, Comparator<Tuple> comparator, int memoryPages) {
+        if (memoryPages < 3)
+            throw new IllegalArgumentException("external sort needs at least 3 pages of memory");
+        this.td = td;
+        this.comparator = comparator;
+        this.maxTuples = Math.max(1, (int) ((long) memoryPages * BufferPool.getPageSize() / td.getSize()));
+        // one input buffer per run being merged, plus one for the output run
+        this.maxFanIn = memoryPages - 1;
+    }
+
+    /**
+     * @return the number of tuples that are sorted in memory before a run is
+     *         written to disk
+     */
+    public int getMaxTuplesInMemory() {
+        return maxTuples;
+    }
+
+    /**
+     * @return the number of runs merged in a single pass
+     */
+    public int getMaxFanIn() {
+        return maxFanIn;
+    }
+
+    /**
+     * @return the number of runs currently on disk
+     */
+    public int numRuns() {
+        return runs.size();
+    }
+
+    /**
+     * Adds a tuple to the input of the sort.
+     */
+    public void add(Tuple t) throws DbException {
+        buffer.add(t);
+        if (buffer.size() >= maxTuples)
+            spillBuffer();
+    }
+
+    private void spillBuffer() throws DbException {
+        Collections.sort(buffer, comparator);
+        SpillFile run = new SpillFile(td);
+        for (Tuple t : buffer)
+            run.add(t);
+        run.finish();
+        runs.add(run);
+        buffer = new ArrayList<Tuple>();
+    }
+
+    /**
+     * Ends the input and returns an unopened iterator over the sorted tuples.
+     * The iterator supports rewind, and remains valid until {@link #close}.
+     */
+    public DbFileIterator finish() throws DbException {
+        if (runs.isEmpty()) {
+            Collections.sort(buffer, comparator);
+            return new BufferIterator(buffer);
+        }
+        if (!buffer.isEmpty())
+            spillBuffer();
+
+        // intermediate passes until the remaining runs can be merged at once
+        while (runs.size() > maxFanIn) {
+            ArrayList<SpillFile> merged = new ArrayList<SpillFile>();
+            for (int i = 0; i < runs.size(); i += maxFanIn) {
+                List<SpillFile> group = runs.subList(i, Math.min(i + maxFanIn, runs.size()));
+                if (group.size() == 1) {
+                    merged.add(group.get(0));
+                    continue;
+                }
+                SpillFile out = new SpillFile(td);
+                DbFileIterator it = merge(group);
+                try {
+                    it.open();
+                    while (it.hasNext())
+                        out.add(it.next());
+                } catch (TransactionAbortedException e) {
+                    throw new DbException("unexpected abort while merging runs");
+                } finally {
+                    it.close();
+                }
+                out.finish();
+                for (SpillFile run : group)
+                    run.delete();
+                merged.add(out);
+            }
+            runs = merged;
+        }
+        return merge(runs);
+    }
+
+    private DbFileIterator merge(List<SpillFile> group) {
+        DbFileIterator[] sources = new DbFileIterator[group.size()];
+        for (int i = 0; i < sources.length; i++)
+            sources[i] = group.get(i).iterator();
+        return new MergeIterator(sources, comparator);
+    }
+
+    /**
+     * Releases the memory and deletes the runs held by this sorter.
+     */
+    public void close() {
+        for (SpillFile run : runs)
+            run.delete();
+        runs.clear();
+        buffer = new ArrayList<Tuple>();
+    }
+
+    /** Iterates over a sorted in-memory buffer. */
+    private static class BufferIterator extends AbstractDbFileIterator {
+
+        private final List<Tuple> tuples;
+        private Iterator<Tuple> it;
+
+        BufferIterator(List<Tuple> tuples) {
+            this.tuples = tuples;
+        }
+
+        public void open() {
+            it = tuples.iterator();
+        }
+
+        protected Tuple readNext() {
+            if (it != null && it.hasNext())
+                return it.next();
+            return null;
+        }
+
+        public void rewind() {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            it = null;
+        }
+    }
+
+    /**
+     * Merges k sorted inputs with a loser tree, which needs only log2(k)
+     * comparisons per output tuple. Internal node i of tree holds the index
+     * of the input that lost the match played at that node; tree[0] holds the
+     * overall winner. Inputs are leaves k..2k-1. Exhausted inputs have a null
+     * head and lose every match; ties go to the lower input index, which
+     * keeps the merge stable.
+     */
+    static class MergeIterator extends AbstractDbFileIterator {
+
+        private final DbFileIterator[] sources;
+        private final Comparator<Tuple> comparator;
+        private final Tuple[] heads;
+        private final int[] tree;
+
+        MergeIterator(DbFileIterator[] sources, Comparator<Tuple> comparator) {
+            this.sources = sources;
+            this.comparator = comparator;
+            this.heads = new Tuple[sources.length];
+            this.tree = new int[Math.max(1, sources.length)];
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            for (DbFileIterator source : sources)
+                source.open();
+            init();
+        }
+
+        private void init() throws DbException, TransactionAbortedException {
+            if (sources.length == 0)
+                return;
+            for (int i = 0; i < sources.length; i++)
+                heads[i] = sources[i].hasNext() ? sources[i].next() : null;
+            tree[0] = play(1);
+        }
+
+        /** Builds the subtree rooted at node and returns its winner. */
+        private int play(int node) {
+            int k = sources.length;
+            if (node >= k)
+                return node - k;
+            int left = play(2 * node);
+            int right = play(2 * node + 1);
+            if (beats(left, right)) {
+                tree[node] = right;
+                return left;
+            }
+            tree[node] = left;
+            return right;
+        }
+
+        private boolean beats(int a, int b) {
+            if (heads[a] == null)
+                return false;
+            if (heads[b] == null)
+                return true;
+            int c = comparator.compare(heads[a], heads[b]);
+            return c < 0 || (c == 0 && a < b);
+        }
+
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            if (sources.length == 0)
+                return null;
+            int winner = tree[0];
+            Tuple result = heads[winner];
+            if (result == null)
+                return null;
+            heads[winner] = sources[winner].hasNext() ? sources[winner].next() : null;
+            // replay the matches on the path from the winner's leaf to the root
+            for (int node = (winner + sources.length) / 2; node > 0; node /= 2) {
+                if (beats(tree[node], winner)) {
+                    int loser = winner;
+                    winner = tree[node];
+                    tree[node] = loser;
+                }
+            }
+            tree[0] = winner;
+            return result;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            super.close();
+            for (DbFileIterator source : sources)
+                source.rewind();
+            init();
+        }
+
+        public void close() {
+            super.close();
+            for (DbFileIterator source : sources)
+                source.close();
+            Arrays.fill(heads, null);
+        }
+    }
+}
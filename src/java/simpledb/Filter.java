@@ -3,13 +3,45 @@ package simpledb;
 import java.util.*;
 
 /**
- * Filter is an operator that implements a relational select.
+ * Filter is an operator that implements a relational select. It applies a
+ * conjunction of predicates and returns the tuples that satisfy all of them;
+ * the conjunction is interpreted unless {@link #compile} turns it into
+ * generated code.
+ * <p>
+ * The predicates are tested in order of rank, (selectivity - 1) / cost, which
+ * puts cheap predicates that reject many tuples first and minimizes the
+ * expected cost of testing a tuple. The planner provides estimated
+ * selectivities; while running, the filter also tests a sample of the tuples
+ * against every predicate, and reorders the predicates when the observed
+ * pass rates make another order clearly cheaper.
+ * <p>
+ * Over a scan of a table, the predicates can instead be pushed down into the
+ * scan with {@link #pushDown}, which tests them against the bytes of each
+ * tuple, reorders them the same way, and never builds the tuples they reject.
  */
 public class Filter extends Operator {
 
     private static final long serialVersionUID = 1L;
-    private Predicate p;
+
+    /** The number of tuples tested between two samples of the pass rates */
+    static final int ADAPT_INTERVAL = 4096;
+    /** The number of tuples in a sample of the pass rates */
+    static final int SAMPLE_SIZE = 128;
+    /** The fraction of the expected cost a new order must stay under to be used */
+    static final double MIN_GAIN = 0.9;
+
+    private Predicate[] preds;
+    /** the estimated selectivity of each predicate, in the order of preds */
+    private double[] selectivities;
+    private double[] costs;
+    private boolean compile;
+    /** true once the child scan tests the predicates itself */
+    private boolean pushed;
     private DbIterator child;
+    private transient TuplePredicate evaluator;
+    private transient int untilSample;
+    private transient int sampled;
+    private transient int[] passed;
     /**
      * Constructor accepts a predicate to apply and a child operator to read
      * tuples to filter from.
@@ -21,13 +53,207 @@ public class Filter extends Operator {
      */
     public Filter(Predicate p, DbIterator child) {
         // some code goes here
-        this.p = p;
+        this(new Predicate[] { p }, child);
+    }
+
+    /**
+     * Constructor accepts a conjunction of predicates to apply and a child
+     * operator to read tuples to filter from. The predicates are tested in
+     * the given order until pass rates have been observed.
+     *
+     * @param preds
+     *            The predicates tuples must all satisfy
+     * @param child
+     *            The child operator
+     */
+    public Filter(Predicate[] preds, DbIterator child) {
+        this(preds, null, child);
+    }
+
+    /**
+     * Constructor accepts a conjunction of predicates with their estimated
+     * selectivities, and a child operator to read tuples to filter from.
+     *
+     * @param preds
+     *            The predicates tuples must all satisfy
+     * @param selectivities
+     *            the estimated fraction of tuples passing each predicate, or
+     *            null if unknown
+     * @param child
+     *            The child operator
+     */
+    public Filter(Predicate[] preds, double[] selectivities, DbIterator child) {
+        if (preds.length == 0)
+            throw new IllegalArgumentException("a filter needs at least one predicate");
+        this.preds = preds.clone();
         this.child = child;
+        this.costs = new double[preds.length];
+        for (int i = 0; i < preds.length; i++)
+            costs[i] = cost(preds[i], child.getTupleDesc());
+        if (selectivities != null) {
+            this.selectivities = selectivities.clone();
+            reorder(bestOrder(this.selectivities, costs));
+        } else {
+            this.selectivities = new double[preds.length];
+            Arrays.fill(this.selectivities, 1.0);
+        }
+        this.evaluator = ExpressionCompiler.interpret(this.preds);
+    }
+
+    /**
+     * Returns the relative cost of testing a predicate: comparing strings
+     * costs more than comparing ints, and LIKE more than other operators.
+     */
+    static double cost(Predicate p, TupleDesc td) {
+        if (td.getFieldType(p.getField()) == Type.INT_TYPE)
+            return 1;
+        return p.getOp() == Predicate.Op.LIKE ? 8 : 4;
     }
 
+    /**
+     * @return the first predicate of the conjunction
+     */
     public Predicate getPredicate() {
         // some code goes here
-        return p;
+        return preds[0];
+    }
+
+    /**
+     * @return the predicates of the conjunction, in the order they are tested
+     */
+    public Predicate[] getPredicates() {
+        return preds.clone();
+    }
+
+    /**
+     * @return the estimated selectivities of the predicates, in the order of
+     *         {@link #getPredicates}
+     */
+    public double[] getSelectivities() {
+        return selectivities.clone();
+    }
+
+    /**
+     * Replaces the interpretation of the predicates by generated code, if
+     * the code can be compiled. The code is regenerated when the predicates
+     * are reordered.
+     *
+     * @return true if the filter now runs generated code
+     */
+    public boolean compile() {
+        compile = true;
+        evaluator = ExpressionCompiler.compile(preds, child.getTupleDesc());
+        return isCompiled();
+    }
+
+    /**
+     * @return true if the filter runs generated code
+     */
+    public boolean isCompiled() {
+        return evaluator != null && ExpressionCompiler.isCompiled(evaluator);
+    }
+
+    /**
+     * Pushes the predicates down into the child, if it is a scan of a table,
+     * so that they are tested before tuples are built; the filter then only
+     * passes on what the scan returns. The predicates are pushed in their
+     * current order, from which the scan goes on reordering them by the pass
+     * rates it samples (see {@link RawConjunction}).
+     *
+     * @return true if the child now tests the predicates
+     */
+    public boolean pushDown() {
+        if (child instanceof SeqScan)
+            ((SeqScan) child).setPredicates(preds);
+        else if (child instanceof MorselScan)
+            ((MorselScan) child).setPredicates(preds);
+        else
+            return false;
+        pushed = true;
+        return true;
+    }
+
+    /**
+     * @return true if the predicates were pushed down into the child scan
+     */
+    public boolean isPushedDown() {
+        return pushed;
+    }
+
+    /**
+     * @return the expected cost of testing a tuple, with the predicates in
+     *         the given order
+     */
+    static double expectedCost(Integer[] order, double[] selectivities, double[] costs) {
+        double cost = 0, reach = 1;
+        for (int i : order) {
+            cost += reach * costs[i];
+            reach *= selectivities[i];
+        }
+        return cost;
+    }
+
+    /** @return the indexes of the predicates, sorted by increasing rank */
+    static Integer[] bestOrder(final double[] selectivities, final double[] costs) {
+        Integer[] order = new Integer[selectivities.length];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Double.compare((selectivities[a] - 1) / costs[a],
+                        (selectivities[b] - 1) / costs[b]);
+            }
+        });
+        return order;
+    }
+
+    /** Puts the predicates, and what is known about them, in a new order */
+    private void reorder(Integer[] order) {
+        Predicate[] p = new Predicate[order.length];
+        double[] s = new double[order.length];
+        double[] c = new double[order.length];
+        for (int i = 0; i < order.length; i++) {
+            p[i] = preds[order[i]];
+            s[i] = selectivities[order[i]];
+            c[i] = costs[order[i]];
+        }
+        preds = p;
+        selectivities = s;
+        costs = c;
+    }
+
+    /**
+     * Tests a tuple against every predicate, counting how many it passes.
+     * At the end of a sample, the observed pass rates replace the estimated
+     * selectivities, and the predicates are reordered if that is worth it.
+     */
+    private boolean sample(Tuple t) {
+        boolean pass = true;
+        for (int i = 0; i < preds.length; i++) {
+            if (preds[i].filter(t))
+                passed[i]++;
+            else
+                pass = false;
+        }
+        if (++sampled == SAMPLE_SIZE) {
+            Integer[] current = new Integer[preds.length];
+            for (int i = 0; i < preds.length; i++) {
+                current[i] = i;
+                // smoothed, so that no predicate looks certain from a sample
+                selectivities[i] = (passed[i] + 1.0) / (SAMPLE_SIZE + 2.0);
+            }
+            Integer[] best = bestOrder(selectivities, costs);
+            if (expectedCost(best, selectivities, costs)
+                    < MIN_GAIN * expectedCost(current, selectivities, costs)) {
+                reorder(best);
+                evaluator = compile ? ExpressionCompiler.compile(preds, child.getTupleDesc())
+                        : ExpressionCompiler.interpret(preds);
+            }
+            sampled = 0;
+            Arrays.fill(passed, 0);
+            untilSample = ADAPT_INTERVAL;
+        }
+        return pass;
     }
 
     public TupleDesc getTupleDesc() {
@@ -38,6 +264,10 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        // sample right away, to correct poor estimates early
+        untilSample = 0;
+        sampled = 0;
+        passed = new int[preds.length];
         super.open();
         child.open();
     }
@@ -55,8 +285,8 @@ public class Filter extends Operator {
 
     /**
      * AbstractDbIterator.readNext implementation. Iterates over tuples from the
-     * child operator, applying the predicate to them and returning those that
-     * pass the predicate (i.e. for which the Predicate.filter() returns true.)
+     * child operator, applying the predicates to them and returning those that
+     * pass all predicates (i.e. for which Predicate.filter() returns true.)
      * 
      * @return The next tuple that passes the filter, or null if there are no
      *         more tuples
@@ -65,9 +295,18 @@ public class Filter extends Operator {
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
         // some code goes here
+        if (pushed)
+            return child.hasNext() ? child.next() : null;
+        if (evaluator == null)
+            evaluator = ExpressionCompiler.interpret(preds);
         while (child.hasNext()) {
             Tuple tuple = child.next();
-            if (p.filter(tuple)) {
+            boolean pass;
+            if (preds.length > 1 && untilSample-- <= 0)
+                pass = sample(tuple);
+            else
+                pass = evaluator.test(tuple);
+            if (pass) {
                 return tuple;
             }
         }
@@ -85,6 +324,8 @@ public class Filter extends Operator {
     @Override
     public void setChildren(DbIterator[] children) {
         // some code goes here
+        if (children[0] != child)
+            pushed = false;
         child = children[0];
     }
 
@@ -0,0 +1,45 @@
+package simpledb;
+
+/**
+ * Gather runs a fixed set of plans on worker threads and returns all of
+ * their tuples, in no particular order.
+ */
+public class Gather extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator[] producers;
+
+    /**
+     * @param producers
+     *            the plans to run, which must have the same TupleDesc; each
+     *            is opened and closed once per open() of the Gather
+     */
+    public Gather(DbIterator[] producers) {
+        if (producers.length == 0)
+            throw new IllegalArgumentException("need at least one producer");
+        this.producers = producers;
+    }
+
+    public String getName() {
+        return "gather(dop=" + producers.length + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return producers[0].getTupleDesc();
+    }
+
+    protected DbIterator[] createProducers() {
+        return producers;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return producers;
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        producers = children;
+    }
+}
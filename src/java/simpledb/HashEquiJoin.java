@@ -4,10 +4,18 @@ import java.util.*;
 
 /**
  * The Join operator implements the relational join operation.
+ * <p>
+ * Once the hash table of the inner relation is built, and before the outer
+ * relation is opened, a {@link BloomFilter} over the inner join keys is
+ * pushed down the outer plan to the scan that reads the outer join field
+ * (see {@link RuntimeFilters}). The scan then drops the tuples that cannot
+ * join before it builds them, or hands them to an exchange. The filter is
+ * removed when the join is closed.
  */
 public class HashEquiJoin extends Operator {
 
     private static final long serialVersionUID = 1L;
+
     private JoinPredicate p;
     private DbIterator child1;
     private DbIterator child2;
@@ -15,6 +23,9 @@ public class HashEquiJoin extends Operator {
     private Tuple tuple1;
     private Tuple tuple2;
     private HashMap<Field, ArrayList<Tuple>> map = new HashMap<>();
+    private transient RuntimeFilters filters = new RuntimeFilters();
+    /** set if this join builds one partition of the inner relation */
+    private transient ParallelHashJoin.PartitionedBuild partitions;
 
     /**
      * Constructor. Accepts to children to join and the predicate to join them
@@ -35,6 +46,22 @@ public class HashEquiJoin extends Operator {
         this.tupleDesc = TupleDesc.merge(child1.getTupleDesc(), child2.getTupleDesc());
     }
 
+    /**
+     * Turns the pushing down of Bloom filters into outer scans on or off.
+     */
+    public static void setRuntimeFilters(boolean enabled) {
+        RuntimeFilters.setEnabled(enabled);
+    }
+
+    /**
+     * Makes this join build one of the partitions of the inner relation that
+     * together make up the Bloom filter of a ParallelHashJoin, instead of a
+     * Bloom filter of its own.
+     */
+    void setPartitionedBuild(ParallelHashJoin.PartitionedBuild partitions) {
+        this.partitions = partitions;
+    }
+
     public JoinPredicate getJoinPredicate() {
         // some code goes here
         return p;
@@ -61,19 +88,40 @@ public class HashEquiJoin extends Operator {
             TransactionAbortedException {
         // some code goes here
 
-        child1.open();
-        child2.open();
-        while(child2.hasNext()){
-            Tuple t = child2.next();
-            Field key = t.getField(p.getField2());
-            if(!map.containsKey(key)) map.put(key,new ArrayList<>());
-            ArrayList<Tuple> block = map.get(key);
-            block.add(t);
+        try {
+            child2.open();
+            while(child2.hasNext()){
+                Tuple t = child2.next();
+                Field key = t.getField(p.getField2());
+                if(!map.containsKey(key)) map.put(key,new ArrayList<>());
+                ArrayList<Tuple> block = map.get(key);
+                block.add(t);
+            }
+        } catch (DbException | TransactionAbortedException | RuntimeException e) {
+            if (partitions != null)
+                partitions.abandon();
+            throw e;
         }
         //scanChild();
+        if (partitions != null) {
+            partitions.built(map.keySet());
+        } else if (p.getOperator() == Predicate.Op.EQUALS) {
+            BloomFilter bloom = RuntimeFilters.build(child2.getTupleDesc().getFieldType(p.getField2()),
+                    Collections.singletonList(map.keySet()));
+            if (bloom != null)
+                filters.push(child1, p.getField1(), bloom);
+        }
+        child1.open();
         super.open();
     }
 
+    /**
+     * @return the scans the Bloom filters of the open join were pushed into
+     */
+    public List<DbIterator> getFilteredScans() {
+        return filters.getTargets();
+    }
+
     public void close() {
         // some code goes here
         child1.close();
@@ -83,6 +131,7 @@ public class HashEquiJoin extends Operator {
         tuple2 = null;
         listIt = null;
         map.clear();
+        filters.removeAll();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
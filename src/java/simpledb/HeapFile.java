@@ -118,6 +118,15 @@ public class HeapFile implements DbFile {
         raf.seek(loc);
         raf.write(data,0,BufferPool.getPageSize());
         raf.close();
+        ZoneMap.of(this).pageWritten(pid.pageNumber(), data);
+    }
+
+    /**
+     * Returns the per-page ranges of the INT_TYPE columns of this file, which
+     * scans use to skip pages that cannot match their predicates.
+     */
+    public ZoneMap getZoneMap() {
+        return ZoneMap.of(this);
     }
 
     /**
@@ -213,6 +222,11 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(tid, this);
     }
 
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields) {
+        return new HeapFileIterator(tid, this, preds, fields);
+    }
+
 
 
 }
@@ -4,11 +4,17 @@ import java.util.*;
 
 /**
  * A helper class for iterator class HeapFile class.
- * This class implements the DbFileIterator interface
+ * This class implements the DbFileIterator interface; pages are read in
+ * order through the BufferPool, skipping pages without (matching) tuples.
  */
-public class HeapFileIterator implements DbFileIterator{
+public class HeapFileIterator extends AbstractDbFileIterator {
     private TransactionId tid;
     private HeapFile hf;
+    private RawConjunction preds;
+    private boolean[] fields;
+    /** the ranges of the pages, and the predicates they can answer */
+    private ZoneMap zones;
+    private Predicate[] zonePreds;
     private Iterator<Tuple> iterator;
     private int index;
 
@@ -16,8 +22,55 @@ public class HeapFileIterator implements DbFileIterator{
     * Constructs a iterator by tid and HeapFile
     */
     public HeapFileIterator(TransactionId tid, HeapFile hf){
+        this(tid, hf, null, null);
+    }
+
+    /**
+     * Constructs an iterator over the tuples of a HeapFile that satisfy all
+     * of the given predicates, which are tested before tuples are parsed.
+     * Tuples may be returned with only the given fields set.
+     *
+     * @param preds
+     *            the predicates, or null to return every tuple
+     * @param fields
+     *            the indexes of the fields to read, or null to read them all
+     */
+    public HeapFileIterator(TransactionId tid, HeapFile hf, Predicate[] preds, int[] fields){
+        this(tid, hf, preds, fields, null);
+    }
+
+    /**
+     * Constructs an iterator that also drops the tuples failing any of the
+     * given tests, such as Bloom filters pushed down by a join, which are
+     * applied after the predicates.
+     *
+     * @param filters
+     *            the tests, or null
+     */
+    public HeapFileIterator(TransactionId tid, HeapFile hf, Predicate[] preds, int[] fields,
+            RawPredicate[] filters){
         this.tid = tid;
         this.hf = hf;
+        if (preds != null && preds.length > 0) {
+            zones = hf.getZoneMap();
+            zonePreds = zones.usable(preds);
+            if (zonePreds == null)
+                zones = null;
+        } else {
+            preds = null;
+        }
+        RawConjunction conjunction = new RawConjunction(preds, filters, hf.getTupleDesc());
+        if (!conjunction.isEmpty())
+            this.preds = conjunction;
+        this.fields = TupleParser.mask(fields, hf.getTupleDesc().numFields());
+    }
+
+    /**
+     * @return the predicates, in the order the iterator tests them now, which
+     *         follows the pass rates it samples; null if it has none
+     */
+    public Predicate[] getPredicateOrder() {
+        return preds == null ? null : preds.getPredicates();
     }
 
     /**
@@ -29,57 +82,45 @@ public class HeapFileIterator implements DbFileIterator{
         Permissions perm = Permissions.READ_ONLY;
         PageId pageId = new HeapPageId(hf.getId(), id);
         HeapPage hp = (HeapPage) Database.getBufferPool().getPage(tid, pageId, perm);
-        return hp.iterator();
+        return hp.iterator(preds, fields);
     }
 
     /**
-     * Opens the iterator, index = 0, starting from the first page
+     * Opens the iterator, before the first page
      * @throws DbException when there are problems opening/accessing the database.
      */
     @Override
     public void open() throws TransactionAbortedException, DbException {
-        index = 0;
-        iterator = getIterator(index);
+        if (zones != null)
+            zones.prepare();
+        if (preds != null)
+            preds.reset();
+        index = -1;
+        iterator = Collections.<Tuple>emptyIterator();
     }
 
     /**
-     * check null, hasNext for this page, hasNext for whole HeapFile(next not empty)
-     * @return hasNext
+     * Moves on to the following pages until one has a tuple left; pages
+     * whose ranges rule out the predicates are not read
+     * @return the next Tuple, or null after the last page
      */
     @Override
-    public boolean hasNext() throws TransactionAbortedException, DbException {
-        if(iterator == null){
-            return false;
+    protected Tuple readNext() throws TransactionAbortedException, DbException {
+        if (iterator == null) {
+            return null;
         }
-        if (hf.numPages() > index + 1) {
-            return getIterator(index + 1).hasNext();
-        } else {
-            return iterator.hasNext();
-        }
-
-    }
-
-    /**
-     * check t == null => has next in this page => has next page => has tuple in next page
-     * @return the next Tuple
-     * @throws TransactionAbortedException
-     * @throws DbException
-     */
-    @Override
-    public Tuple next() throws TransactionAbortedException, DbException {
-        if (iterator == null) throw new NoSuchElementException("null");
-        if (iterator.hasNext()) {
-            return iterator.next();
-        }
-
-        if (hf.numPages() > index + 1) {
+        while (!iterator.hasNext()) {
+            if (index + 1 >= hf.numPages()) {
+                return null;
+            }
             index++;
-            iterator = getIterator(index);
-            if(iterator.hasNext()) {
-                return iterator.next();
+            if (zones != null && !zones.mayMatch(index, zonePreds)) {
+                iterator = Collections.<Tuple>emptyIterator();
+                continue;
             }
+            iterator = getIterator(index);
         }
-        throw new NoSuchElementException("end");
+        return iterator.next();
     }
 
     /**
@@ -97,6 +138,7 @@ public class HeapFileIterator implements DbFileIterator{
      */
     @Override
     public void close(){
+        super.close();
         iterator = null;
     }
 }
@@ -16,8 +16,14 @@ public class HeapPage implements Page {
     final HeapPageId pid;
     final TupleDesc td;
     final byte[] header;
+    /**
+     * the tuples of the used slots, parsed on first access; a used slot
+     * whose tuple is null still holds its tuple in data
+     */
     final Tuple[] tuples;
     final int numSlots;
+    /** the bytes this page was read from */
+    private final byte[] data;
 
     boolean dirty = false;
     TransactionId lastTid;
@@ -40,27 +46,22 @@ public class HeapPage implements Page {
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
+     * <p>
+     * Tuples are parsed from data when they are first accessed, so the page
+     * keeps data, which must not be modified afterwards.
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < BufferPool.getPageSize())
+            throw new EOFException("page data is too short");
+        this.data = data;
 
         // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
+        header = Arrays.copyOf(data, getHeaderSize());
 
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
 
         setBeforeImage();
     }
@@ -115,38 +116,57 @@ public class HeapPage implements Page {
         return pid;
     }
 
+    /** @return the position in data of the tuple in a slot */
+    private int slotOffset(int slotId) {
+        return header.length + slotId * td.getSize();
+    }
+
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple in a used slot, parsing it from data unless it was
+     * parsed or inserted before.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
+    synchronized Tuple getTuple(int slotId) {
+        Tuple t = tuples[slotId];
+        if (t == null) {
+            t = parseTuple(slotId);
+            tuples[slotId] = t;
         }
+        return t;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+    /**
+     * Appends the tuples of the used slots, from a slot on, to a batch until
+     * it is full. Tuples that were not parsed are decoded from data straight
+     * into the columns of the batch, so no Tuple is built for them.
+     *
+     * @param batch
+     *            the batch, whose columns have the types of the tuples
+     * @param slot
+     *            the first slot to read
+     * @return the slot to continue from, or the number of slots once every
+     *         slot was read
+     */
+    int readInto(TupleBatch batch, int slot) {
+        for (; slot < numSlots && !batch.isFull(); slot++) {
+            if (!isSlotUsed(slot))
+                continue;
+            Tuple t;
+            synchronized (this) {
+                t = tuples[slot];
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            if (t != null)
+                batch.addTuple(t);
+            else
+                TupleParser.parseInto(td, data, slotOffset(slot), batch, batch.addRow());
         }
+        return slot;
+    }
 
-        return t;
+    /**
+     * Suck up the tuple of a slot from the source data.
+     */
+    private Tuple parseTuple(int slotId) throws NoSuchElementException {
+        return TupleParser.parse(td, new RecordId(pid, slotId), data, slotOffset(slotId), null);
     }
 
     /**
@@ -191,9 +211,21 @@ public class HeapPage implements Page {
                 continue;
             }
 
-            // non-empty slot
+            // non-empty slot, never parsed: copy its bytes
+            Tuple t;
+            synchronized (this) {
+                t = tuples[i];
+            }
+            if (t == null) {
+                try {
+                    dos.write(data, slotOffset(i), td.getSize());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
             for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
+                Field f = t.getField(j);
                 try {
                     f.serialize(dos);
 
@@ -246,14 +278,17 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         RecordId rid = t.getRecordId();
-        if(rid.getPageId() != this.pid){
+        // record ids built from index entries hold their own copy of the page id
+        if(!this.pid.equals(rid.getPageId())){
             throw new DbException("not on this page");
         }
         if(!isSlotUsed(rid.tupleno())){
             throw new DbException("slot is already empty");
         }
         // clear the value and mark as not used
-        tuples[rid.tupleno()] = null;
+        synchronized (this) {
+            tuples[rid.tupleno()] = null;
+        }
         markSlotUsed(rid.tupleno(),false);
     }
 
@@ -285,7 +320,9 @@ public class HeapPage implements Page {
         }
         RecordId rid = new RecordId(pid, next);
         t.setRecordId(rid);
-        tuples[next] = t;
+        synchronized (this) {
+            tuples[next] = t;
+        }
         markSlotUsed(next,true);
 
     }
@@ -363,32 +400,60 @@ public class HeapPage implements Page {
      * (note that this iterator shouldn't return tuples in empty slots!)
      */
     public Iterator<Tuple> iterator() {
-        // Done
+        return iterator(null, null);
+    }
+
+    /**
+     * Returns an iterator over the tuples on this page that satisfy a
+     * conjunction. It is tested against the bytes of tuples that were not
+     * parsed yet, so rejected tuples are never built.
+     *
+     * <p>
+     * If only some fields are needed, tuples that were not parsed yet are
+     * returned with just those fields set; they are not kept by the page,
+     * since other readers may need all fields.
+     *
+     * @param preds
+     *            the conjunction, or null to return every tuple
+     * @param fields
+     *            the mask of the fields to read, or null to read them all
+     */
+    Iterator<Tuple> iterator(final RawConjunction preds, final boolean[] fields) {
         return new Iterator<Tuple>() {
             int loc = 0;
+            Tuple next;
             @Override
             public boolean hasNext() {
-                for (int i = loc; i < getNumTuples(); i++) {
-                    if (!isSlotUsed(i)) {
+                while (next == null && loc < numSlots) {
+                    int slot = loc++;
+                    if (!isSlotUsed(slot))
                         continue;
+                    if (preds == null && fields == null) {
+                        next = getTuple(slot);
+                        break;
+                    }
+                    Tuple t;
+                    synchronized (HeapPage.this) {
+                        t = tuples[slot];
+                    }
+                    if (t != null) {
+                        if (preds == null || preds.test(t))
+                            next = t;
+                    } else if (preds == null || preds.test(data, slotOffset(slot))) {
+                        next = fields == null ? getTuple(slot)
+                                : TupleParser.parse(td, new RecordId(pid, slot), data, slotOffset(slot), fields);
                     }
-                    return true;
                 }
-                return false;
+                return next != null;
             }
             @Override
             public Tuple next() {
                 if(!hasNext()) {
-                    throw new IllegalArgumentException("no next");
-                } else {
-                    while (loc < getNumTuples()) {
-                        if (tuples[loc] != null) {
-                            break;
-                        }
-                        loc++;
-                    }
-                    return tuples[loc++];
+                    throw new NoSuchElementException("no next");
                 }
+                Tuple t = next;
+                next = null;
+                return t;
             }
             @Override
             public void remove() {
@@ -398,4 +463,3 @@ public class HeapPage implements Page {
     }
 
 }
-
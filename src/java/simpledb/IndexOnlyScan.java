@@ -0,0 +1,33 @@
+package simpledb;
+
+/**
+ * IndexOnlyScan reads the tuples of a HeapFile table that satisfy a predicate
+ * on an indexed field from the entries of a covering {@link SecondaryIndex}
+ * alone, without reading the table. Only the indexed field and the fields
+ * the index includes are set in the returned tuples; the others are null, as
+ * for a {@link SeqScan} that reads only some fields. Tuples are returned in
+ * the order of the indexed field.
+ */
+public class IndexOnlyScan extends IndexScan {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates an index-only scan over the table of the specified index as a
+     * part of the specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to read tuples from
+     * @param tableAlias
+     *            the alias of the table; the returned tupleDesc has fields
+     *            with name tableAlias.fieldName, as for {@link SeqScan}
+     * @param ipred
+     *            The predicate on the indexed field. If null, the scan returns
+     *            all tuples in the order of the indexed field
+     */
+    public IndexOnlyScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+        super(tid, index, tableAlias, ipred, index.indexOnlyIterator(tid, ipred));
+    }
+}
@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * IndexScan reads the tuples of a HeapFile table that satisfy a predicate on
+ * an indexed field, by looking their RecordIds up in a {@link SecondaryIndex}
+ * rather than scanning the table. Tuples are returned in the order of the
+ * indexed field.
+ */
+public class IndexScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+    private TransactionId tid;
+    private transient SecondaryIndex index;
+    private String tableAlias;
+    private IndexPredicate ipred;
+    private transient DbFileIterator it;
+    private boolean isOpen = false;
+
+    /**
+     * Creates an index scan over the table of the specified index as a part
+     * of the specified transaction.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param index
+     *            the index to look tuples up in
+     * @param tableAlias
+     *            the alias of the table; the returned tupleDesc has fields
+     *            with name tableAlias.fieldName, as for {@link SeqScan}
+     * @param ipred
+     *            The predicate on the indexed field. If null, the scan returns
+     *            all tuples in the order of the indexed field
+     */
+    public IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred) {
+        this(tid, index, tableAlias, ipred, index.iterator(tid, ipred));
+    }
+
+    /**
+     * Creates an index scan that returns the tuples of an iterator over the
+     * index.
+     */
+    protected IndexScan(TransactionId tid, SecondaryIndex index, String tableAlias, IndexPredicate ipred,
+            DbFileIterator it) {
+        this.tid = tid;
+        this.index = index;
+        this.tableAlias = tableAlias;
+        this.ipred = ipred;
+        this.it = it;
+    }
+
+    /**
+     * @return the name of the table in the catalog of the database
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(index.getTableId());
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return tableAlias == null ? "NULL" : tableAlias;
+    }
+
+    /**
+     * @return the index this scan looks tuples up in
+     */
+    public SecondaryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the predicate on the indexed field, or null
+     */
+    public IndexPredicate getPredicate() {
+        return ipred;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        if (isOpen)
+            throw new DbException("double open on one DbIterator.");
+        it.open();
+        isOpen = true;
+    }
+
+    /**
+     * Returns the TupleDesc of the table, with field names prefixed with the
+     * table alias as "alias.fieldName".
+     */
+    public TupleDesc getTupleDesc() {
+        TupleDesc td = Database.getCatalog().getTupleDesc(index.getTableId());
+        Type[] types = new Type[td.numFields()];
+        String[] names = new String[td.numFields()];
+        for (int i = 0; i < td.numFields(); i++) {
+            types[i] = td.getFieldType(i);
+            names[i] = getAlias() + "." + td.getFieldName(i);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    public boolean hasNext() throws TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.hasNext();
+    }
+
+    public Tuple next() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (!isOpen)
+            throw new IllegalStateException("iterator is closed");
+        return it.next();
+    }
+
+    public void close() {
+        it.close();
+        isOpen = false;
+    }
+
+    public void rewind() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        close();
+        open();
+    }
+}
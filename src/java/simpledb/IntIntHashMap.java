@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * A hash map from int keys to non-negative int values, with open addressing
+ * and linear probing, so that batched operators can hash INT_TYPE columns
+ * without boxing each value.
+ */
+class IntIntHashMap implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private int[] keys;
+    /** value + 1 of each slot, or 0 if the slot is empty */
+    private int[] values;
+    private int size;
+
+    IntIntHashMap() {
+        keys = new int[16];
+        values = new int[16];
+    }
+
+    /**
+     * @return the value of key, or -1 if there is none
+     */
+    int get(int key) {
+        int mask = keys.length - 1;
+        for (int slot = hash(key) & mask; values[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key)
+                return values[slot] - 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Sets the value of key.
+     *
+     * @param value
+     *            the value, which must not be negative
+     */
+    void put(int key, int value) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        for (; values[slot] != 0; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                values[slot] = value + 1;
+                return;
+            }
+        }
+        keys[slot] = key;
+        values[slot] = value + 1;
+        // keep at most half of the slots in use
+        if (++size * 2 > keys.length)
+            grow();
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (values[slot] != 0)
+                    slot = (slot + 1) & mask;
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -78,6 +78,17 @@ public class IntegerAggregator implements Aggregator {
 
     }
 
+    public int numGroups() {
+        return values.size();
+    }
+
+    public boolean hasGroup(Tuple tup) {
+        if (this.gbfield == Aggregator.NO_GROUPING) {
+            return values.containsKey(NO_GROUPING);
+        }
+        return values.containsKey(tup.getField(this.gbfield));
+    }
+
     private int processMerge(int a, int b, Op op) {
         switch (op) {
             case MIN:
@@ -245,6 +245,10 @@ public class JoinOptimizer {
          * 11. return optjoin(j)
          */
 
+        // single-table queries have nothing to order
+        if (joins.isEmpty())
+            return joins;
+
         Set<LogicalJoinNode> set = new HashSet<>();
         set.addAll(joins);
         PlanCache pc = new PlanCache();
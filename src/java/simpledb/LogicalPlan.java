@@ -2,10 +2,14 @@ package simpledb;
 import java.util.Map;
 import java.util.Vector;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
+import java.util.List;
 
 /**
  * LogicalPlan represents a logical query plan that has been through
@@ -13,8 +17,8 @@ import java.util.NoSuchElementException;
  * <p>
  * A LogicalPlan consits of a collection of table scan nodes, join
  * nodes, filter nodes, a select list, and a group by field.
- * LogicalPlans can only represent queries with one aggregation field
- * and one group by field.
+ * LogicalPlans can represent queries with any number of aggregates,
+ * all computed in a single pass, and one group by field.
  * <p>
  * LogicalPlans can be converted to physical (optimized) plans using
  * the {@link #physicalPlan} method, which uses the
@@ -31,11 +35,24 @@ public class LogicalPlan {
     private Vector<LogicalSelectListNode> selectList;
     private String groupByField = null;
     private boolean hasAgg = false;
-    private String aggOp;
-    private String aggField;
-    private boolean oByAsc, hasOrderBy = false;
-    private String oByField;
+    private Vector<String> aggOps = new Vector<String>();
+    private Vector<String> aggFields = new Vector<String>();
+    private Vector<Boolean> aggDistinct = new Vector<Boolean>();
+    private boolean hasOrderBy = false;
+    private Vector<String> oByFields = new Vector<String>();
+    private Vector<Boolean> oByAsc = new Vector<Boolean>();
+    private int limit = NO_LIMIT;
+    private int parallelism = 1;
     private String query;
+
+    /** Value of the limit when the query has no LIMIT clause */
+    public static final int NO_LIMIT = -1;
+
+    /** Heap files with fewer pages than this are never scanned in parallel */
+    public static final int PARALLEL_SCAN_MIN_PAGES = 2 * ParallelSeqScan.DEFAULT_MORSEL_PAGES;
+
+    /** Filters and projections over tables with at least this many tuples run generated code */
+    public static final int COMPILE_MIN_TUPLES = 10000;
 //    private Query owner;
 
     /** Constructor -- generate an empty logical plan */
@@ -175,47 +192,110 @@ public class LogicalPlan {
      * @throws ParsingException 
     */
     public void addProjectField(String fname, String aggOp) throws ParsingException {
+        addProjectField(fname, aggOp, false);
+    }
+
+    /** Add a specified field/aggregate combination to the select list of the query.
+        @param fname the field to add to the output
+        @param aggOp the aggregate operation over the field.
+        @param distinct true if the aggregate is over the distinct values of the field only
+     * @throws ParsingException 
+    */
+    public void addProjectField(String fname, String aggOp, boolean distinct) throws ParsingException {
         fname=disambiguateName(fname);
         if (fname.equals("*"))
             fname="null.*";
         System.out.println("Added select list field " + fname);
         if (aggOp != null) {
-            System.out.println("\t with aggregator " + aggOp);
+            System.out.println("\t with aggregator " + aggOp + (distinct ? " distinct" : ""));
         }
-        selectList.addElement(new LogicalSelectListNode(aggOp, fname));
+        selectList.addElement(new LogicalSelectListNode(aggOp, fname, distinct));
     }
     
     /** Add an aggregate over the field with the specified grouping to
-        the query.  SimpleDb only supports a single aggregate
-        expression and GROUP BY field.
+        the query.  May be called several times to compute several
+        aggregates; all of them must use the same GROUP BY field.
         @param op the aggregation operator
         @param afield the field to aggregate over
         @param gfield the field to group by
      * @throws ParsingException 
     */
     public void addAggregate(String op, String afield, String gfield) throws ParsingException {
+        addAggregate(op, afield, false, gfield);
+    }
+
+    /** Add an aggregate over the field with the specified grouping to
+        the query.
+        @param op the aggregation operator
+        @param afield the field to aggregate over
+        @param distinct true if the aggregate is over the distinct values of afield only
+        @param gfield the field to group by
+     * @throws ParsingException if gfield differs from the GROUP BY field of an earlier aggregate
+    */
+    public void addAggregate(String op, String afield, boolean distinct, String gfield) throws ParsingException {
         afield=disambiguateName(afield);
         if (gfield!=null)
             gfield=disambiguateName(gfield);
-        aggOp = op;
-        aggField = afield;
+        if (hasAgg && (gfield == null ? groupByField != null : !gfield.equals(groupByField)))
+            throw new ParsingException("All aggregates must use the same GROUP BY field");
         groupByField = gfield;
         hasAgg = true;
+        if (aggregateIndex(op, afield, distinct) == -1) {
+            aggOps.addElement(op);
+            aggFields.addElement(afield);
+            aggDistinct.addElement(distinct);
+        }
+    }
+
+    /** @return the position of an aggregate among the aggregates of the query, or -1 if it was not added */
+    private int aggregateIndex(String op, String afield, boolean distinct) {
+        for (int i = 0; i < aggOps.size(); i++) {
+            if (aggOps.elementAt(i).equalsIgnoreCase(op) && aggFields.elementAt(i).equals(afield)
+                    && aggDistinct.elementAt(i) == distinct)
+                return i;
+        }
+        return -1;
     }
 
-    /** Add an ORDER BY expression in the specified order on the specified field.  SimpleDb only supports
-        a single ORDER BY field.
+    /** Add an ORDER BY expression in the specified order on the specified field.  May be called
+        several times; the first field added is the most significant sort key.
         @param field the field to order by
         @param asc true if should be ordered in ascending order, false for descending order
      * @throws ParsingException 
     */
     public void addOrderBy(String field, boolean asc) throws ParsingException {
         field=disambiguateName(field);
-        oByField = field;
-        oByAsc = asc;
+        oByFields.addElement(field);
+        oByAsc.addElement(asc);
         hasOrderBy = true;
     }
 
+    /** Set the number of worker threads that scans of large tables, and the
+        joins and aggregates above them, may use.
+        @param dop the degree of parallelism; 1 runs every plan sequentially
+    */
+    public void setParallelism(int dop) {
+        if (dop < 1)
+            throw new IllegalArgumentException("degree of parallelism must be at least 1");
+        parallelism = dop;
+    }
+
+    /** @return the number of worker threads that parallel plans may use */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /** Add a LIMIT clause, restricting the result to its first n tuples.  When
+        combined with an ORDER BY, the plan uses a {@link TopN} instead of a full sort.
+        @param n the maximum number of tuples to return
+     * @throws ParsingException if n is negative
+    */
+    public void addLimit(int n) throws ParsingException {
+        if (n < 0)
+            throw new ParsingException("LIMIT must not be negative");
+        limit = n;
+    }
+
     /** Given a name of a field, try to figure out what table it belongs to by looking
      *   through all of the tables added via {@link #addScan}. 
      *  @return A fully qualified name of the form tableAlias.name.  If the name parameter is already qualified
@@ -289,6 +369,10 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        // the predicates of each table, combined into one Filter per table
+        LinkedHashMap<String,ArrayList<Predicate>> tablePreds = new LinkedHashMap<String,ArrayList<Predicate>>();
+        HashMap<String,ArrayList<Double>> tableSelectivities = new HashMap<String,ArrayList<Double>>();
+        boolean largeInput = false;
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -299,10 +383,18 @@ public class LogicalPlan {
                 throw new ParsingException("Unknown table " + table.t);
             }
             
+            // decode only the fields the query refers to
+            int[] fields = referencedFields(table.alias, ss.getTupleDesc());
+            if (fields != null)
+                ss.setFields(fields);
+
             subplanMap.put(table.alias,ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
+            TableStats stats = baseTableStats.get(baseTableName);
+            if (stats != null && stats.estimateTableCardinality(1.0) >= COMPILE_MIN_TUPLES)
+                largeInput = true;
 
         }
 
@@ -334,20 +426,53 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
-            subplanMap.put(lf.tableAlias, new Filter(p, subplan));
+            if (!tablePreds.containsKey(lf.tableAlias)) {
+                tablePreds.put(lf.tableAlias, new ArrayList<Predicate>());
+                tableSelectivities.put(lf.tableAlias, new ArrayList<Double>());
+            }
+            tablePreds.get(lf.tableAlias).add(p);
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
             
             double sel= s.estimateSelectivity(subplan.getTupleDesc().fieldNameToIndex(lf.fieldQuantifiedName), lf.p, f);
             filterSelectivities.put(lf.tableAlias, filterSelectivities.get(lf.tableAlias) * sel);
+            tableSelectivities.get(lf.tableAlias).add(sel);
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        for (LogicalScanNode table : tables) {
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(table.t));
+            ArrayList<Predicate> preds = tablePreds.get(table.alias);
+            if (preds == null)
+                chooseIndexScan(t, table.alias, new ArrayList<Predicate>(), new ArrayList<Double>(), s);
+            else
+                chooseIndexScan(t, table.alias, preds, tableSelectivities.get(table.alias), s);
+        }
+
+        for (Map.Entry<String,ArrayList<Predicate>> e : tablePreds.entrySet()) {
+            // the filter tests the most selective and cheapest predicates first
+            ArrayList<Double> sels = tableSelectivities.get(e.getKey());
+            double[] selectivities = new double[sels.size()];
+            for (int i = 0; i < selectivities.length; i++)
+                selectivities[i] = sels.get(i);
+            Filter f = new Filter(e.getValue().toArray(new Predicate[0]), selectivities,
+                    subplanMap.get(e.getKey()));
+            TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(e.getKey())));
+            // the scan tests the predicates before building tuples; otherwise,
+            // generated code pays off once it runs on enough tuples to outweigh compiling it
+            if (!f.pushDown() && s != null && s.estimateTableCardinality(1.0) >= COMPILE_MIN_TUPLES)
+                f.compile();
+            subplanMap.put(e.getKey(), f);
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
         joins = jo.orderJoins(statsMap,filterSelectivities,explain);
 
+        if (parallelism > 1)
+            parallelizeScans(t);
+
         Iterator<LogicalJoinNode> joinIt = joins.iterator();
         while (joinIt.hasNext()) {
             LogicalJoinNode lj = joinIt.next();
@@ -383,6 +508,13 @@ public class LogicalPlan {
             
             DbIterator j;
             j = jo.instantiateJoin(lj,plan1,plan2);
+            if (parallelism > 1 && !isSubqueryJoin && lj.p == Predicate.Op.EQUALS
+                    && (plan1 instanceof Exchange || plan2 instanceof Exchange)) {
+                // broadcast a small inner table instead of repartitioning a large outer one
+                boolean broadcast = plan1 instanceof Exchange && !(plan2 instanceof Exchange);
+                j = new ParallelHashJoin(((Join) j).getJoinPredicate(), plan1, plan2,
+                        parallelism, broadcast);
+            }
             subplanMap.put(t1name, j);
 
             if (!isSubqueryJoin) {
@@ -414,7 +546,11 @@ public class LogicalPlan {
         for (int i = 0; i < selectList.size(); i++) {
             LogicalSelectListNode si = selectList.elementAt(i);
             if (si.aggOp != null) {
-                outFields.add(groupByField!=null?1:0);
+                int aggIndex = aggregateIndex(si.aggOp, si.fname, si.distinct);
+                if (aggIndex == -1) {
+                    throw new ParsingException("Aggregate " + si.aggOp + "(" + si.fname + ") in SELECT list was not added to the query");
+                }
+                outFields.add((groupByField!=null?1:0) + aggIndex);
                 TupleDesc td = node.getTupleDesc();
 //                int  id;
                 try {
@@ -460,12 +596,27 @@ public class LogicalPlan {
 
         if (hasAgg) {
             TupleDesc td = node.getTupleDesc();
-            Aggregate aggNode;
+            DbIterator aggNode;
             try {
-                aggNode = new Aggregate(node,
-                                        td.fieldNameToIndex(aggField),
-                                        groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField),
-                                getAggOp(aggOp));
+                int gfield = groupByField == null?Aggregator.NO_GROUPING:td.fieldNameToIndex(groupByField);
+                int[] afields = new int[aggOps.size()];
+                Aggregator.Op[] aops = new Aggregator.Op[aggOps.size()];
+                boolean[] distinct = new boolean[aggOps.size()];
+                for (int i = 0; i < afields.length; i++) {
+                    afields[i] = td.fieldNameToIndex(aggFields.elementAt(i));
+                    aops[i] = getAggOp(aggOps.elementAt(i));
+                    distinct[i] = aggDistinct.elementAt(i);
+                }
+                boolean anyDistinct = aggDistinct.contains(Boolean.TRUE);
+                if (node instanceof Exchange && (gfield != Aggregator.NO_GROUPING || !anyDistinct)) {
+                    // aggregate the producers of the parallel input, and merge the results
+                    aggNode = new ParallelAggregate(node, afields, aops, distinct, gfield, parallelism);
+                } else {
+                    // group one at a time, without a hash table, if the input is already grouped
+                    aggNode = new Aggregate(node, afields, aops, distinct, gfield,
+                                    Aggregate.DEFAULT_MEMORY_PAGES,
+                                    gfield != Aggregator.NO_GROUPING && isOrderedOn(node, gfield));
+                }
             } catch (NoSuchElementException e) {
                 throw new simpledb.ParsingException(e);
             } catch (IllegalArgumentException e) {
@@ -475,10 +626,262 @@ public class LogicalPlan {
         }
 
         if (hasOrderBy) {
-            node = new OrderBy(node.getTupleDesc().fieldNameToIndex(oByField), oByAsc, node);
+            int[] oByIndexes = new int[oByFields.size()];
+            boolean[] asc = new boolean[oByFields.size()];
+            for (int i = 0; i < oByIndexes.length; i++) {
+                try {
+                    oByIndexes[i] = node.getTupleDesc().fieldNameToIndex(oByFields.elementAt(i));
+                } catch (NoSuchElementException e) {
+                    throw new ParsingException("Unknown field " + oByFields.elementAt(i) + " in ORDER BY");
+                }
+                asc[i] = oByAsc.elementAt(i);
+            }
+            if (!hasAgg && oByIndexes.length == 1 && scanInOrder(node, oByIndexes[0], asc[0])) {
+                // the B+ tree returns the tuples in order, and the first ones are the top N
+                if (limit != NO_LIMIT)
+                    node = new Limit(limit, node);
+            } else if (limit != NO_LIMIT)
+                node = new TopN(oByIndexes, asc, limit, node);
+            else
+                node = new OrderBy(oByIndexes, asc, node);
+        } else if (limit != NO_LIMIT) {
+            node = new Limit(limit, node);
         }
 
-        return new Project(outFields, outTypes, node);
+        Project project = new Project(outFields, outTypes, node);
+        if (largeInput)
+            project.compile();
+        return project;
+    }
+
+    /** Find the fields of a table that the query refers to, in its select
+        list, filters, joins, aggregates and ORDER BY clause.
+        @param alias the alias of the table
+        @param td the TupleDesc of the scan of the table, with qualified names
+        @return the indexes of the referenced fields, or null if the query
+        refers to all of them
+    */
+    private int[] referencedFields(String alias, TupleDesc td) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (LogicalSelectListNode si : selectList)
+            names.add(si.fname);
+        for (LogicalFilterNode lf : filters)
+            names.add(lf.fieldQuantifiedName);
+        for (LogicalJoinNode lj : joins) {
+            names.add(lj.f1QuantifiedName);
+            names.add(lj.f2QuantifiedName);
+        }
+        names.addAll(aggFields);
+        if (groupByField != null)
+            names.add(groupByField);
+        names.addAll(oByFields);
+        boolean[] used = new boolean[td.numFields()];
+        int n = 0;
+        for (String name : names) {
+            if (name == null)
+                continue;
+            if (name.endsWith(".*") && (name.startsWith("null.") || name.startsWith(alias + ".")))
+                return null;
+            if (!name.startsWith(alias + "."))
+                continue;
+            try {
+                int i = td.fieldNameToIndex(name);
+                if (!used[i])
+                    n++;
+                used[i] = true;
+            } catch (NoSuchElementException e) {
+                // reported when the plan is built
+            }
+        }
+        if (n == used.length)
+            return null;
+        int[] fields = new int[n];
+        for (int i = 0, j = 0; i < used.length; i++) {
+            if (used[i])
+                fields[j++] = i;
+        }
+        return fields;
+    }
+
+    /** Replace the scan of a table by a scan of one of its secondary
+        indexes, if that is cheaper than scanning the table.  An index that
+        covers every field of the table the query refers to is read with an
+        {@link IndexOnlyScan}, which never reads the table; other indexes are
+        read with an {@link IndexScan}, using the most selective predicate on
+        the indexed field.  The filter over the table still tests every
+        predicate.
+        @param t the transaction the scan runs as part of
+        @param alias the alias of the table
+        @param preds the predicates on the table
+        @param sels the estimated selectivity of each predicate
+        @param stats the statistics of the table, or null
+    */
+    private void chooseIndexScan(TransactionId t, String alias, ArrayList<Predicate> preds,
+            ArrayList<Double> sels, TableStats stats) {
+        List<SecondaryIndex> indexes = Database.getCatalog().getIndexes(getTableId(alias));
+        if (indexes.isEmpty() || stats == null)
+            return;
+        DbIterator scan = subplanMap.get(alias);
+        int[] fields = scan instanceof SeqScan ? ((SeqScan) scan).getFields() : null;
+        SecondaryIndex best = null;
+        Predicate bestPred = null;
+        boolean bestCovers = false;
+        double bestCost = stats.estimateScanCost();
+        for (SecondaryIndex index : indexes) {
+            Predicate pred = null;
+            double sel = 1.0;
+            for (int i = 0; i < preds.size(); i++) {
+                Predicate p = preds.get(i);
+                if (p.getOp() == Predicate.Op.NOT_EQUALS || p.getOp() == Predicate.Op.LIKE
+                        || p.getField() != index.getField() || sels.get(i) >= sel)
+                    continue;
+                pred = p;
+                sel = sels.get(i);
+            }
+            boolean covers = index.covers(fields);
+            double cost;
+            if (covers)
+                cost = stats.estimateIndexOnlyScanCost(sel, index.getFile().numPages());
+            else if (pred != null)
+                cost = stats.estimateIndexScanCost(sel);
+            else
+                continue;
+            if (cost < bestCost) {
+                best = index;
+                bestPred = pred;
+                bestCovers = covers;
+                bestCost = cost;
+            }
+        }
+        if (best == null)
+            return;
+        IndexPredicate ipred = bestPred == null ? null : new IndexPredicate(bestPred.getOp(), bestPred.getOperand());
+        subplanMap.put(alias, bestCovers ? new IndexOnlyScan(t, best, alias, ipred) : new IndexScan(t, best, alias, ipred));
+    }
+
+    /** Replace the scans of large heap files, and the filters above them, by
+        parallel scans running the same filters on each worker.  Tables on
+        the inner side of a join other than an equality join are left alone,
+        since nested loops joins rescan their inner child for every outer
+        tuple; equality joins with a parallel input become
+        {@link ParallelHashJoin}s, which read each input once.
+        @param t the transaction the scans run as part of
+    */
+    private void parallelizeScans(TransactionId t) {
+        HashSet<String> inner = new HashSet<String>();
+        for (LogicalJoinNode lj : joins) {
+            if (!(lj instanceof LogicalSubplanJoinNode) && lj.p != Predicate.Op.EQUALS)
+                inner.add(lj.t2Alias);
+        }
+        for (LogicalScanNode table : tables) {
+            if (inner.contains(table.alias))
+                continue;
+            DbFile f = Database.getCatalog().getDatabaseFile(table.t);
+            if (!(f instanceof HeapFile) || ((HeapFile) f).numPages() < PARALLEL_SCAN_MIN_PAGES)
+                continue;
+            // the filters stacked on the scan, innermost first
+            ArrayList<Predicate> preds = new ArrayList<Predicate>();
+            ArrayList<Double> sels = new ArrayList<Double>();
+            boolean compiled = false;
+            DbIterator plan = subplanMap.get(table.alias);
+            while (plan instanceof Filter) {
+                Filter filter = (Filter) plan;
+                preds.addAll(0, Arrays.asList(filter.getPredicates()));
+                double[] filterSels = filter.getSelectivities();
+                for (int i = filterSels.length - 1; i >= 0; i--)
+                    sels.add(0, filterSels[i]);
+                compiled |= filter.isCompiled();
+                plan = filter.getChildren()[0];
+            }
+            if (plan instanceof IndexScan)
+                continue;
+            ParallelSeqScan scan = new ParallelSeqScan(t, table.t, table.alias,
+                    parallelism, new FilterPipeline(preds, sels, compiled));
+            if (plan instanceof SeqScan)
+                scan.setFields(((SeqScan) plan).getFields());
+            subplanMap.put(table.alias, scan);
+        }
+    }
+
+    /** Puts a filter on the scan of each worker of a parallel scan */
+    private static class FilterPipeline implements ParallelSeqScan.Pipeline {
+        private static final long serialVersionUID = 1L;
+        private final ArrayList<Predicate> preds;
+        private final double[] selectivities;
+        private final boolean compile;
+
+        FilterPipeline(ArrayList<Predicate> preds, ArrayList<Double> selectivities, boolean compile) {
+            this.preds = preds;
+            this.selectivities = new double[selectivities.size()];
+            for (int i = 0; i < this.selectivities.length; i++)
+                this.selectivities[i] = selectivities.get(i);
+            this.compile = compile;
+        }
+
+        public DbIterator build(DbIterator scan) {
+            if (preds.isEmpty())
+                return scan;
+            Filter f = new Filter(preds.toArray(new Predicate[0]), selectivities, scan);
+            if (!f.pushDown() && compile)
+                f.compile();
+            return f;
+        }
+    }
+
+    /** Make a plan return its tuples sorted on a field without sorting them,
+        if it is a scan of a B+ tree keyed on the field, under filters.  A
+        descending order is read with a reverse scan, which starts at the
+        largest key that can pass the filters.
+        @param node the plan, not yet opened
+        @param field the index of the field in the plan's TupleDesc
+        @param asc true for ascending order, false for descending order
+        @return true if the plan now returns its tuples in that order
+    */
+    private static boolean scanInOrder(DbIterator node, int field, boolean asc) {
+        while (node instanceof Filter)
+            node = ((Filter) node).getChildren()[0];
+        if (!(node instanceof SeqScan))
+            return false;
+        SeqScan scan = (SeqScan) node;
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(scan.getTableName()));
+        if (!(f instanceof BTreeFile) || ((BTreeFile) f).keyField() != field)
+            return false;
+        if (!asc)
+            scan.setReverse(true);
+        return true;
+    }
+
+    /** Determine whether a plan returns its tuples ordered on a field, so that
+        tuples with equal values of that field are returned consecutively.
+        Scans of a B+ tree are ordered on its key, sorts on their first key,
+        and filters, limits and nested loops joins keep the order of their
+        (outer) child.
+        @param node the plan
+        @param field the index of the field in the plan's TupleDesc
+        @return true if the plan is known to be ordered on the field
+    */
+    static boolean isOrderedOn(DbIterator node, int field) {
+        if (node instanceof OrderBy)
+            return ((OrderBy) node).getOrderByFields()[0] == field;
+        if (node instanceof TopN)
+            return ((TopN) node).getOrderByFields()[0] == field;
+        if (node instanceof Filter || node instanceof Limit)
+            return isOrderedOn(((Operator) node).getChildren()[0], field);
+        if (node instanceof Join) {
+            DbIterator outer = ((Join) node).getChildren()[0];
+            return field < outer.getTupleDesc().numFields() && isOrderedOn(outer, field);
+        }
+        if (node instanceof IndexScan)
+            return ((IndexScan) node).getIndex().getField() == field;
+        String tableName;
+        if (node instanceof SeqScan)
+            tableName = ((SeqScan) node).getTableName();
+        else if (node instanceof BTreeScan)
+            tableName = ((BTreeScan) node).getTableName();
+        else
+            return false;
+        DbFile f = Database.getCatalog().getDatabaseFile(Database.getCatalog().getTableId(tableName));
+        return f instanceof BTreeFile && ((BTreeFile) f).keyField() == field;
     }
 
     public static void main(String argv[]) {
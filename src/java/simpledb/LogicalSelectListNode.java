@@ -12,8 +12,16 @@ public class LogicalSelectListNode {
     /** The aggregation operation over the field (if any) */
     public String aggOp;
 
+    /** True if the aggregation is over the distinct values of the field only */
+    public boolean distinct;
+
     public LogicalSelectListNode(String aggOp, String fname) {
+        this(aggOp, fname, false);
+    }
+
+    public LogicalSelectListNode(String aggOp, String fname, boolean distinct) {
         this.aggOp = aggOp;
         this.fname = fname;
+        this.distinct = distinct;
     }
 }
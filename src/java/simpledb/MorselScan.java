@@ -0,0 +1,213 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MorselScan scans the pages of a {@link HeapFile} that it claims, a morsel
+ * (a range of consecutive pages) at a time, from a {@link Morsels} counter it
+ * shares with other MorselScans over the same table. Together, the scans
+ * sharing a counter read every page exactly once, and a scan that runs
+ * faster than the others simply claims more morsels.
+ */
+public class MorselScan implements DbIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The morsels of a table, handed out in page order */
+    public static class Morsels {
+        private final int numPages;
+        private final int pagesPerMorsel;
+        private final AtomicInteger next = new AtomicInteger();
+
+        /**
+         * @param numPages
+         *            the number of pages of the table
+         * @param pagesPerMorsel
+         *            the number of pages claimed at a time
+         */
+        public Morsels(int numPages, int pagesPerMorsel) {
+            if (pagesPerMorsel < 1)
+                throw new IllegalArgumentException("a morsel needs at least one page");
+            this.numPages = numPages;
+            this.pagesPerMorsel = pagesPerMorsel;
+        }
+
+        /**
+         * @return the first page of an unclaimed morsel, or -1 if all pages
+         *         have been claimed
+         */
+        public int claim() {
+            int start = next.getAndAdd(pagesPerMorsel);
+            return start < numPages ? start : -1;
+        }
+
+        /**
+         * @return the page after the last page of the morsel starting at start
+         */
+        public int end(int start) {
+            return Math.min(numPages, start + pagesPerMorsel);
+        }
+    }
+
+    private TransactionId tid;
+    private int tableid;
+    private TupleDesc td;
+    private Morsels morsels;
+    private Predicate[] preds;
+    private int[] fields;
+    private ArrayList<RawPredicate> filters = new ArrayList<RawPredicate>();
+    private transient RawConjunction rawPreds;
+    private transient ZoneMap zones;
+    private transient Predicate[] zonePreds;
+    private transient boolean[] mask;
+    private transient boolean open;
+    private transient int page;
+    private transient int end;
+    private transient Iterator<Tuple> it;
+
+    /**
+     * Creates a scan of the morsels of a table.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be stored in a HeapFile
+     * @param tableAlias
+     *            the alias of this table, used as the prefix of field names
+     * @param morsels
+     *            the counter this scan claims morsels from
+     */
+    public MorselScan(TransactionId tid, int tableid, String tableAlias, Morsels morsels) {
+        this.tid = tid;
+        this.tableid = tableid;
+        this.morsels = morsels;
+        TupleDesc fileTd = Database.getCatalog().getTupleDesc(tableid);
+        Type[] types = new Type[fileTd.numFields()];
+        String[] names = new String[fileTd.numFields()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = fileTd.getFieldType(i);
+            names[i] = tableAlias + "." + fileTd.getFieldName(i);
+        }
+        td = new TupleDesc(types, names);
+    }
+
+    /**
+     * Pushes a conjunction of predicates down into the scan, which tests them
+     * against the bytes of each tuple and only builds the tuples that pass.
+     *
+     * @param preds
+     *            the predicates, on the fields of this scan's TupleDesc, in
+     *            the order to test them until the scan has sampled their
+     *            pass rates; null or empty to return every tuple
+     */
+    public void setPredicates(Predicate[] preds) {
+        this.preds = preds == null || preds.length == 0 ? null : preds.clone();
+    }
+
+    /**
+     * @return the predicates pushed down into this scan, or null if it returns
+     *         every tuple
+     */
+    public Predicate[] getPredicates() {
+        return preds == null ? null : preds.clone();
+    }
+
+    /**
+     * Sets the fields the plan above refers to; the other fields of tuples
+     * that were not parsed before are left unset.
+     *
+     * @param fields
+     *            the indexes of the fields to read, or null to read them all
+     */
+    public void setFields(int[] fields) {
+        this.fields = fields == null ? null : fields.clone();
+    }
+
+    /**
+     * Adds a test that the returned tuples must pass, applied to the bytes of
+     * each tuple after the predicates (see {@link SeqScan#addRuntimeFilter}).
+     * Takes effect the next time the scan is opened.
+     */
+    public void addRuntimeFilter(RawPredicate filter) {
+        filters.add(filter);
+    }
+
+    /**
+     * Removes a test added by {@link #addRuntimeFilter}.
+     */
+    public void removeRuntimeFilter(RawPredicate filter) {
+        filters.remove(filter);
+    }
+
+    /**
+     * @return the tests added by {@link #addRuntimeFilter}
+     */
+    public List<RawPredicate> getRuntimeFilters() {
+        return Collections.unmodifiableList(filters);
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        TupleDesc fileTd = Database.getCatalog().getTupleDesc(tableid);
+        // each worker samples the pass rates of its own morsels
+        rawPreds = new RawConjunction(preds, filters.toArray(new RawPredicate[0]), fileTd);
+        if (rawPreds.isEmpty())
+            rawPreds = null;
+        zones = ((HeapFile) Database.getCatalog().getDatabaseFile(tableid)).getZoneMap();
+        zonePreds = zones.usable(preds);
+        if (zonePreds != null)
+            zones.prepare();
+        mask = TupleParser.mask(fields, fileTd.numFields());
+        open = true;
+        page = end = 0;
+        it = null;
+    }
+
+    public boolean hasNext() throws DbException, TransactionAbortedException {
+        if (!open)
+            throw new IllegalStateException("MorselScan not yet open");
+        while (it == null || !it.hasNext()) {
+            if (page == end) {
+                int start = morsels.claim();
+                if (start == -1) {
+                    it = null;
+                    return false;
+                }
+                page = start;
+                end = morsels.end(start);
+            }
+            if (zonePreds != null && !zones.mayMatch(page, zonePreds)) {
+                page++;
+                continue;
+            }
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(tid,
+                    new HeapPageId(tableid, page++), Permissions.READ_ONLY);
+            it = p.iterator(rawPreds, mask);
+        }
+        return true;
+    }
+
+    public Tuple next() throws DbException, TransactionAbortedException,
+            NoSuchElementException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return it.next();
+    }
+
+    /**
+     * Morsels are claimed from a shared counter, so a MorselScan cannot be
+     * rewound on its own; create a new counter and new scans instead.
+     */
+    public void rewind() throws DbException, TransactionAbortedException {
+        throw new DbException("MorselScan cannot be rewound");
+    }
+
+    public void close() {
+        open = false;
+        it = null;
+    }
+}
@@ -0,0 +1,174 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Knows how to compute several aggregates at once, each over its own field
+ * and optionally over the distinct values of that field only (as in
+ * COUNT(DISTINCT x)). The running state of all aggregates of a group is kept
+ * in a single entry of one hash table, so each input tuple is hashed once no
+ * matter how many aggregates are computed.
+ */
+public class MultiAggregator implements Aggregator {
+
+    private static final long serialVersionUID = 1L;
+
+    private int gbfield;
+    private Type gbfieldtype;
+    private int[] afields;
+    private boolean[] isInt;
+    private Op[] ops;
+    private boolean[] distinct;
+    private TupleDesc td;
+
+    /** The running value and count of each aggregate of a group */
+    private static class GroupState {
+        final int[] values;
+        final int[] counts;
+        /** for distinct aggregates, the values merged so far; null otherwise */
+        final ArrayList<HashSet<Field>> seen;
+
+        GroupState(boolean[] distinct) {
+            values = new int[distinct.length];
+            counts = new int[distinct.length];
+            seen = new ArrayList<HashSet<Field>>(distinct.length);
+            for (boolean d : distinct)
+                seen.add(d ? new HashSet<Field>() : null);
+        }
+    }
+
+    /** key is the group-by value, or null if there is no grouping */
+    private HashMap<Field, GroupState> groups = new HashMap<Field, GroupState>();
+
+    /**
+     * Aggregate constructor
+     *
+     * @param gbfield
+     *            the 0-based index of the group-by field in the tuple, or
+     *            NO_GROUPING if there is no grouping
+     * @param gbfieldtype
+     *            the type of the group by field (e.g., Type.INT_TYPE), or null
+     *            if there is no grouping
+     * @param afields
+     *            the 0-based indexes of the aggregate fields in the tuple
+     * @param afieldtypes
+     *            the types of the aggregate fields
+     * @param what
+     *            the aggregation operator of each aggregate
+     * @param distinct
+     *            for each aggregate, true if it only considers distinct values
+     *            of its field
+     * @throws IllegalArgumentException
+     *             if an aggregate other than COUNT is requested over a STRING
+     *             field, or if an operator is not supported
+     */
+    public MultiAggregator(int gbfield, Type gbfieldtype, int[] afields,
+            Type[] afieldtypes, Op[] what, boolean[] distinct) {
+        if (afields.length == 0 || afields.length != what.length
+                || afields.length != afieldtypes.length || afields.length != distinct.length)
+            throw new IllegalArgumentException("need a type, operator and distinct flag for each of at least one aggregate");
+        this.gbfield = gbfield;
+        this.gbfieldtype = gbfieldtype;
+        this.afields = afields.clone();
+        this.ops = what.clone();
+        this.distinct = distinct.clone();
+        this.isInt = new boolean[afields.length];
+        for (int i = 0; i < afields.length; i++) {
+            if (what[i] == Op.SUM_COUNT || what[i] == Op.SC_AVG)
+                throw new IllegalArgumentException("unsupported aggregate " + what[i]);
+            isInt[i] = afieldtypes[i] == Type.INT_TYPE;
+            if (!isInt[i] && what[i] != Op.COUNT)
+                throw new IllegalArgumentException("only COUNT is supported over STRING fields");
+        }
+
+        int offset = gbfield == NO_GROUPING ? 0 : 1;
+        Type[] types = new Type[offset + afields.length];
+        if (offset == 1)
+            types[0] = gbfieldtype;
+        for (int i = 0; i < afields.length; i++)
+            types[offset + i] = Type.INT_TYPE;
+        td = new TupleDesc(types);
+    }
+
+    /**
+     * Merge a new tuple into the aggregates of its group, creating the group
+     * if it has not been encountered yet
+     *
+     * @param tup
+     *            the Tuple containing the aggregate fields and a group-by field
+     */
+    public void mergeTupleIntoGroup(Tuple tup) {
+        Field key = gbfield == NO_GROUPING ? null : tup.getField(gbfield);
+        GroupState state = groups.get(key);
+        if (state == null) {
+            state = new GroupState(distinct);
+            groups.put(key, state);
+        }
+        for (int i = 0; i < afields.length; i++) {
+            Field f = tup.getField(afields[i]);
+            if (distinct[i] && !state.seen.get(i).add(f))
+                continue;
+            if (isInt[i]) {
+                int v = ((IntField) f).getValue();
+                if (state.counts[i] == 0) {
+                    state.values[i] = v;
+                } else {
+                    switch (ops[i]) {
+                    case MIN:
+                        state.values[i] = Math.min(state.values[i], v);
+                        break;
+                    case MAX:
+                        state.values[i] = Math.max(state.values[i], v);
+                        break;
+                    case SUM:
+                    case AVG:
+                        state.values[i] += v;
+                        break;
+                    default:
+                        break;
+                    }
+                }
+            }
+            state.counts[i]++;
+        }
+    }
+
+    public int numGroups() {
+        return groups.size();
+    }
+
+    public boolean hasGroup(Tuple tup) {
+        return groups.containsKey(gbfield == NO_GROUPING ? null : tup.getField(gbfield));
+    }
+
+    /**
+     * Create a DbIterator over group aggregate results.
+     *
+     * @return a DbIterator whose tuples are (groupVal, aggregateVal1, ...) if
+     *         using group, or (aggregateVal1, ...) if no grouping, with the
+     *         aggregates in the order given to the constructor.
+     */
+    public DbIterator iterator() {
+        ArrayList<Tuple> tuples = new ArrayList<Tuple>(groups.size());
+        int offset = gbfield == NO_GROUPING ? 0 : 1;
+        for (Map.Entry<Field, GroupState> e : groups.entrySet()) {
+            GroupState state = e.getValue();
+            Tuple t = new Tuple(td);
+            if (offset == 1)
+                t.setField(0, e.getKey());
+            for (int i = 0; i < afields.length; i++) {
+                int result;
+                if (ops[i] == Op.COUNT)
+                    result = state.counts[i];
+                else if (ops[i] == Op.AVG)
+                    result = state.values[i] / state.counts[i];
+                else
+                    result = state.values[i];
+                t.setField(offset + i, new IntField(result));
+            }
+            tuples.add(t);
+        }
+        return new TupleIterator(td, tuples);
+    }
+
+}
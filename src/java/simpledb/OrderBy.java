@@ -4,17 +4,21 @@ import java.util.*;
 
 /**
  * OrderBy is an operator that implements a relational ORDER BY.
+ * <p>
+ * Sorting is done with an {@link ExternalSort}, so the child does not have to
+ * fit in memory: once the memory budget is exhausted, sorted runs are spilled
+ * to temporary files and merged as the output is consumed.
  */
 public class OrderBy extends Operator {
 
     private static final long serialVersionUID = 1L;
     private DbIterator child;
     private TupleDesc td;
-    private ArrayList<Tuple> childTups = new ArrayList<Tuple>();
-    private int orderByField;
-    private String orderByFieldName;
-    private Iterator<Tuple> it;
-    private boolean asc;
+    private int[] orderByFields;
+    private boolean[] asc;
+    private int memoryPages;
+    private transient ExternalSort sorter;
+    private transient DbFileIterator it;
 
     /**
      * Creates a new OrderBy node over the tuples from the iterator.
@@ -27,26 +31,105 @@ public class OrderBy extends Operator {
      *            the tuples to sort.
      */
     public OrderBy(int orderbyField, boolean asc, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child);
+    }
+
+    /**
+     * Creates a new OrderBy node that sorts within the given memory budget.
+     * 
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param memoryPages
+     *            the number of pages of memory the sort may use before
+     *            spilling runs to disk.
+     */
+    public OrderBy(int orderbyField, boolean asc, DbIterator child, int memoryPages) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, child, memoryPages);
+    }
+
+    /**
+     * Creates a new OrderBy node on several fields. Tuples are ordered by the
+     * first field, ties are broken by the second, and so on.
+     * 
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child) {
+        this(orderbyFields, asc, child, ExternalSort.DEFAULT_MEMORY_PAGES);
+    }
+
+    /**
+     * Creates a new OrderBy node on several fields that sorts within the
+     * given memory budget.
+     * 
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param child
+     *            the tuples to sort.
+     * @param memoryPages
+     *            the number of pages of memory the sort may use before
+     *            spilling runs to disk.
+     */
+    public OrderBy(int[] orderbyFields, boolean[] asc, DbIterator child, int memoryPages) {
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one direction for each of at least one sort key");
         this.child = child;
         td = child.getTupleDesc();
-        this.orderByField = orderbyField;
-        this.orderByFieldName = td.getFieldName(orderbyField);
-        this.asc = asc;
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.memoryPages = memoryPages;
     }
     
+    /**
+     * @return true if the first sort key is ascending
+     */
     public boolean isASC()
     {
-	return this.asc;
+	return this.asc[0];
     }
     
+    /**
+     * @return the first sort key
+     */
     public int getOrderByField()
     {
-        return this.orderByField;
+        return this.orderByFields[0];
     }
     
+    /**
+     * @return the name of the first sort key
+     */
     public String getOrderFieldName()
     {
-	return this.orderByFieldName;
+	return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /**
+     * @return all sort keys, most significant first
+     */
+    public int[] getOrderByFields()
+    {
+        return this.orderByFields.clone();
+    }
+
+    /**
+     * @return for each sort key, true if it is ascending
+     */
+    public boolean[] getAscending()
+    {
+        return this.asc.clone();
     }
     
     public TupleDesc getTupleDesc() {
@@ -56,21 +139,28 @@ public class OrderBy extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
-        // load all the tuples in a collection, and sort it
+        // feed the child to the sorter, which spills runs as needed
+        sorter = new ExternalSort(td, TupleComparator.create(td, orderByFields, asc), memoryPages);
         while (child.hasNext())
-            childTups.add((Tuple) child.next());
-        Collections.sort(childTups, new TupleComparator(orderByField, asc));
-        it = childTups.iterator();
+            sorter.add(child.next());
+        it = sorter.finish();
+        it.open();
         super.open();
     }
 
     public void close() {
         super.close();
+        if (it != null)
+            it.close();
         it = null;
+        if (sorter != null)
+            sorter.close();
+        sorter = null;
+        child.close();
     }
 
     public void rewind() throws DbException, TransactionAbortedException {
-        it = childTups.iterator();
+        it.rewind();
     }
 
     /**
@@ -99,25 +189,3 @@ public class OrderBy extends Operator {
     }
 
 }
-
-class TupleComparator implements Comparator<Tuple> {
-    int field;
-    boolean asc;
-
-    public TupleComparator(int field, boolean asc) {
-        this.field = field;
-        this.asc = asc;
-    }
-
-    public int compare(Tuple o1, Tuple o2) {
-        Field t1 = (o1).getField(field);
-        Field t2 = (o2).getField(field);
-        if (t1.compare(Predicate.Op.EQUALS, t2))
-            return 0;
-        if (t1.compare(Predicate.Op.GREATER_THAN, t2))
-            return asc ? 1 : -1;
-        else
-            return asc ? -1 : 1;
-    }
-    
-}
@@ -0,0 +1,380 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ParallelAggregate computes the same aggregates as {@link Aggregate}, on
+ * worker threads. Its input is usually an {@link Exchange}, such as a
+ * {@link ParallelSeqScan}, whose producers it aggregates without gathering
+ * them first.
+ * <p>
+ * Each producer is first reduced by a partial aggregation, which keeps a
+ * running sum, count, minimum or maximum per group (AVG keeps a sum and a
+ * count). The partial results are then repartitioned on the group-by field,
+ * and each worker merges the partial results of its groups into the final
+ * ones. Without grouping, the partial results are gathered and merged by the
+ * consumer. When the partial table of a worker grows beyond its share of
+ * memory, it sends its groups on and starts over; the merge combines the
+ * partial results of a group however many there are.
+ * <p>
+ * DISTINCT aggregates cannot be merged from partial results, so with DISTINCT
+ * the input tuples themselves are repartitioned on the group-by field, and
+ * each worker runs an {@link Aggregate} over its partition.
+ */
+public class ParallelAggregate extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private DbIterator child;
+    private int[] afields;
+    private Aggregator.Op[] aops;
+    private boolean[] distinct;
+    private int gfield;
+    private int dop;
+    private boolean anyDistinct;
+    /** the ops of the partial aggregates, in the layout of partial tuples */
+    private Aggregator.Op[] partialOps;
+    private int[] partialFields;
+    private TupleDesc td;
+    private TupleDesc partialTd;
+    /** the redistribution of (partial) aggregates, which describes this operator */
+    private DbIterator template;
+    private transient boolean merged;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            The DbIterator that is feeding us tuples.
+     * @param afields
+     *            The columns over which we are computing aggregates.
+     * @param aops
+     *            The aggregation operators to use
+     * @param distinct
+     *            per aggregate, true to only aggregate distinct values
+     * @param gfield
+     *            The column over which we are grouping the result, or -1 if
+     *            there is no grouping
+     * @param dop
+     *            the number of workers merging groups
+     * @throws IllegalArgumentException
+     *             if a DISTINCT aggregate is asked for without grouping
+     */
+    public ParallelAggregate(DbIterator child, int[] afields, Aggregator.Op[] aops,
+            boolean[] distinct, int gfield, int dop) {
+        if (dop < 1)
+            throw new IllegalArgumentException("degree of parallelism must be at least 1");
+        // validates the aggregates, and names the output fields
+        Aggregate serial = new Aggregate(child, afields, aops, distinct, gfield,
+                Aggregate.DEFAULT_MEMORY_PAGES, false);
+        for (boolean d : distinct)
+            anyDistinct |= d;
+        if (anyDistinct && gfield == Aggregator.NO_GROUPING)
+            throw new IllegalArgumentException("DISTINCT aggregates need grouping to run in parallel");
+        this.child = child;
+        this.afields = afields.clone();
+        this.aops = aops.clone();
+        this.distinct = distinct.clone();
+        this.gfield = gfield;
+        this.dop = dop;
+        this.td = serial.getTupleDesc();
+
+        ArrayList<Integer> pFields = new ArrayList<Integer>();
+        ArrayList<Aggregator.Op> pOps = new ArrayList<Aggregator.Op>();
+        for (int i = 0; i < afields.length; i++) {
+            if (aops[i] == Aggregator.Op.AVG) {
+                pFields.add(afields[i]);
+                pOps.add(Aggregator.Op.SUM);
+                pFields.add(afields[i]);
+                pOps.add(Aggregator.Op.COUNT);
+            } else {
+                pFields.add(afields[i]);
+                pOps.add(aops[i]);
+            }
+        }
+        partialFields = new int[pFields.size()];
+        partialOps = new Aggregator.Op[pOps.size()];
+        for (int i = 0; i < partialFields.length; i++) {
+            partialFields[i] = pFields.get(i);
+            partialOps[i] = pOps.get(i);
+        }
+
+        DbIterator[] one = new DbIterator[] { child };
+        if (anyDistinct) {
+            template = new Repartition(one, gfield, dop).output(0);
+        } else {
+            Aggregate partial = new Aggregate(child, partialFields, partialOps,
+                    new boolean[partialFields.length], gfield, Aggregate.DEFAULT_MEMORY_PAGES, false);
+            partialTd = partial.getTupleDesc();
+            template = gfield == Aggregator.NO_GROUPING ? partial
+                    : new Repartition(new DbIterator[] { partial }, 0, dop).output(0);
+        }
+    }
+
+    /**
+     * @return the group by field of the input, or
+     *         {@link simpledb.Aggregator#NO_GROUPING}
+     */
+    public int groupField() {
+        return gfield;
+    }
+
+    /**
+     * @return the number of workers merging groups
+     */
+    public int getParallelism() {
+        return dop;
+    }
+
+    public String getName() {
+        String names = "";
+        int offset = gfield == Aggregator.NO_GROUPING ? 0 : 1;
+        for (int i = offset; i < td.numFields(); i++)
+            names += td.getFieldName(i) + ",";
+        if (gfield != Aggregator.NO_GROUPING)
+            names = "g(" + td.getFieldName(0) + ")," + names;
+        return "gather(" + names + "dop=" + dop + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        merged = false;
+        super.open();
+    }
+
+    protected DbIterator[] createProducers() throws DbException,
+            TransactionAbortedException {
+        DbIterator[] inputs = producersOf(child);
+        DbIterator[] workers = new DbIterator[dop];
+        if (anyDistinct) {
+            Repartition r = new Repartition(inputs, gfield, dop);
+            for (int i = 0; i < dop; i++)
+                workers[i] = new Aggregate(r.output(i), afields, aops, distinct, gfield,
+                        Aggregate.DEFAULT_MEMORY_PAGES, false);
+            return workers;
+        }
+        // each worker may use its share of the memory of a serial aggregate
+        int groupSize = Type.INT_TYPE.getLen() * 2 * partialFields.length
+                + (gfield == Aggregator.NO_GROUPING ? 0 : child.getTupleDesc().getFieldType(gfield).getLen());
+        int maxGroups = Math.max(1, (int) ((long) Aggregate.DEFAULT_MEMORY_PAGES
+                * BufferPool.getPageSize() / groupSize / inputs.length));
+        DbIterator[] partials = new DbIterator[inputs.length];
+        for (int i = 0; i < inputs.length; i++)
+            partials[i] = new Combine(inputs[i], false, maxGroups);
+        if (gfield == Aggregator.NO_GROUPING)
+            return partials;
+        Repartition r = new Repartition(partials, 0, dop);
+        for (int i = 0; i < dop; i++)
+            workers[i] = new Combine(r.output(i), true, Integer.MAX_VALUE);
+        return workers;
+    }
+
+    /**
+     * Operator.fetchNext implementation. Without grouping, merges the partial
+     * results of all workers into one tuple.
+     */
+    protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+        if (gfield != Aggregator.NO_GROUPING || anyDistinct)
+            return super.fetchNext();
+        if (merged)
+            return null;
+        merged = true;
+        Groups groups = new Groups();
+        Tuple t;
+        while ((t = super.fetchNext()) != null)
+            groups.addPartial(t);
+        Iterator<Tuple> it = groups.results().iterator();
+        return it.hasNext() ? it.next() : null;
+    }
+
+    /**
+     * @return the redistribution of the partial aggregates (or, with
+     *         DISTINCT, of the input); it is only used to describe and
+     *         estimate the plan
+     */
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { template };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        template = children[0];
+    }
+
+    /**
+     * The running aggregates of a set of groups. Each group keeps one int
+     * per partial aggregate: the sum, count, minimum or maximum.
+     */
+    private class Groups {
+        private final HashMap<Field, int[]> groups = new HashMap<Field, int[]>();
+
+        int size() {
+            return groups.size();
+        }
+
+        private int[] group(Field key) {
+            int[] values = groups.get(key);
+            if (values == null) {
+                values = new int[partialOps.length];
+                for (int i = 0; i < values.length; i++) {
+                    if (partialOps[i] == Aggregator.Op.MIN)
+                        values[i] = Integer.MAX_VALUE;
+                    else if (partialOps[i] == Aggregator.Op.MAX)
+                        values[i] = Integer.MIN_VALUE;
+                }
+                groups.put(key, values);
+            }
+            return values;
+        }
+
+        private void merge(int[] values, int i, int v) {
+            switch (partialOps[i]) {
+            case MIN:
+                values[i] = Math.min(values[i], v);
+                break;
+            case MAX:
+                values[i] = Math.max(values[i], v);
+                break;
+            default:
+                values[i] += v;
+            }
+        }
+
+        /** Adds an input tuple */
+        void addInput(Tuple t) {
+            int[] values = group(gfield == Aggregator.NO_GROUPING ? null : t.getField(gfield));
+            for (int i = 0; i < partialOps.length; i++) {
+                if (partialOps[i] == Aggregator.Op.COUNT)
+                    values[i]++;
+                else
+                    merge(values, i, ((IntField) t.getField(partialFields[i])).getValue());
+            }
+        }
+
+        /** Adds a partial result, in the layout of partialTd */
+        void addPartial(Tuple t) {
+            int offset = gfield == Aggregator.NO_GROUPING ? 0 : 1;
+            int[] values = group(offset == 0 ? null : t.getField(0));
+            for (int i = 0; i < partialOps.length; i++)
+                merge(values, i, ((IntField) t.getField(offset + i)).getValue());
+        }
+
+        /** @return the partial results, in the layout of partialTd */
+        ArrayList<Tuple> partials() {
+            ArrayList<Tuple> tuples = new ArrayList<Tuple>(groups.size());
+            int offset = gfield == Aggregator.NO_GROUPING ? 0 : 1;
+            for (Map.Entry<Field, int[]> e : groups.entrySet()) {
+                Tuple t = new Tuple(partialTd);
+                if (offset == 1)
+                    t.setField(0, e.getKey());
+                int[] values = e.getValue();
+                for (int i = 0; i < values.length; i++)
+                    t.setField(offset + i, new IntField(values[i]));
+                tuples.add(t);
+            }
+            return tuples;
+        }
+
+        /** @return the final results, in the layout of the output */
+        ArrayList<Tuple> results() {
+            ArrayList<Tuple> tuples = new ArrayList<Tuple>(groups.size());
+            int offset = gfield == Aggregator.NO_GROUPING ? 0 : 1;
+            for (Map.Entry<Field, int[]> e : groups.entrySet()) {
+                Tuple t = new Tuple(td);
+                if (offset == 1)
+                    t.setField(0, e.getKey());
+                int[] values = e.getValue();
+                for (int i = 0, j = 0; i < aops.length; i++, j++) {
+                    int result = values[j];
+                    if (aops[i] == Aggregator.Op.AVG)
+                        result /= values[++j];
+                    t.setField(offset + i, new IntField(result));
+                }
+                tuples.add(t);
+            }
+            return tuples;
+        }
+    }
+
+    /**
+     * Combine aggregates its child into groups: input tuples into partial
+     * results, or partial results into final ones. A partial aggregation that
+     * reaches its limit of groups returns them and starts over.
+     */
+    private class Combine extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private DbIterator child;
+        private final boolean merge;
+        private final int maxGroups;
+        private transient Iterator<Tuple> out;
+
+        /**
+         * @param merge
+         *            true if the child returns partial results, to be merged
+         *            into final results
+         * @param maxGroups
+         *            the number of groups after which partial results are
+         *            returned
+         */
+        Combine(DbIterator child, boolean merge, int maxGroups) {
+            this.child = child;
+            this.merge = merge;
+            this.maxGroups = maxGroups;
+        }
+
+        public TupleDesc getTupleDesc() {
+            return merge ? td : partialTd;
+        }
+
+        public void open() throws DbException, NoSuchElementException,
+                TransactionAbortedException {
+            child.open();
+            out = null;
+            super.open();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            while (out == null || !out.hasNext()) {
+                if (!child.hasNext())
+                    return null;
+                Groups groups = new Groups();
+                while (groups.size() < maxGroups && child.hasNext()) {
+                    if (merge)
+                        groups.addPartial(child.next());
+                    else
+                        groups.addInput(child.next());
+                }
+                out = (merge ? groups.results() : groups.partials()).iterator();
+            }
+            return out.next();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            child.rewind();
+            out = null;
+        }
+
+        public void close() {
+            super.close();
+            child.close();
+            out = null;
+        }
+
+        @Override
+        public DbIterator[] getChildren() {
+            return new DbIterator[] { child };
+        }
+
+        @Override
+        public void setChildren(DbIterator[] children) {
+            child = children[0];
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * ParallelHashJoin runs an equality join as several {@link HashEquiJoin}s on
+ * worker threads, each of which builds a hash table and probes it with its
+ * share of the outer tuples. Either input may be an {@link Exchange}, such as
+ * a {@link ParallelSeqScan}, whose producers then feed the join directly
+ * instead of being gathered first.
+ * <p>
+ * The inputs are split in one of two ways. By default both are repartitioned
+ * on their join fields, so that each worker joins one partition of each
+ * input, and every tuple is processed once. If the inner input is small, it
+ * can instead be broadcast to every worker, which then joins the full inner
+ * input with the tuples of one producer of the outer input; this avoids
+ * moving the outer tuples between threads.
+ * <p>
+ * Either way, the outer scans get a Bloom filter over the inner join keys
+ * before they start, so that tuples which cannot join are dropped before
+ * they are moved between threads. A broadcast worker pushes the filter of its
+ * own hash table; repartitioned workers wait for each other to build their
+ * partitions, and the last to finish pushes one filter over all of them.
+ */
+public class ParallelHashJoin extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    private JoinPredicate p;
+    private DbIterator child1;
+    private DbIterator child2;
+    private int dop;
+    private boolean broadcast;
+    /** a join of redistribution templates, which describes this operator */
+    private HashEquiJoin template;
+    private transient PartitionedBuild partitions;
+
+    /**
+     * Collects the join keys of the partitions of the inner relation that the
+     * workers of a repartitioned join build. Once every worker has built its
+     * partition, one Bloom filter over all the keys is pushed into the outer
+     * plans, which the workers then open.
+     */
+    static class PartitionedBuild {
+        private final DbIterator[] outer;
+        private final int field;
+        private final Type type;
+        private final int workers;
+        private final ArrayList<Set<Field>> keys = new ArrayList<Set<Field>>();
+        private final RuntimeFilters filters = new RuntimeFilters();
+        private int arrived;
+        private boolean abandoned;
+
+        PartitionedBuild(DbIterator[] outer, int field, Type type, int workers) {
+            this.outer = outer;
+            this.field = field;
+            this.type = type;
+            this.workers = workers;
+        }
+
+        /**
+         * Called by a worker that has built its partition; waits until every
+         * worker has.
+         *
+         * @param partition
+         *            the join keys of the partition
+         */
+        synchronized void built(Set<Field> partition) throws DbException {
+            keys.add(partition);
+            arrive();
+            try {
+                while (arrived < workers)
+                    wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for the other partitions");
+            }
+        }
+
+        /**
+         * Called by a worker that failed to build its partition; no filter is
+         * pushed, but the other workers no longer wait for it.
+         */
+        synchronized void abandon() {
+            abandoned = true;
+            arrive();
+        }
+
+        private void arrive() {
+            if (++arrived < workers)
+                return;
+            if (!abandoned) {
+                BloomFilter bloom = RuntimeFilters.build(type, keys);
+                if (bloom != null) {
+                    for (DbIterator plan : outer)
+                        filters.push(plan, field, bloom);
+                }
+            }
+            keys.clear();
+            notifyAll();
+        }
+
+        synchronized void removeAll() {
+            filters.removeAll();
+        }
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param p
+     *            The predicate to use to join the children; must be EQUALS
+     * @param child1
+     *            Iterator for the left(outer) relation to join
+     * @param child2
+     *            Iterator for the right(inner) relation to join
+     * @param dop
+     *            the number of workers if the inputs are repartitioned
+     * @param broadcast
+     *            true to broadcast the inner relation to one worker per
+     *            producer of the outer relation, instead of repartitioning
+     *            both
+     */
+    public ParallelHashJoin(JoinPredicate p, DbIterator child1, DbIterator child2,
+            int dop, boolean broadcast) {
+        if (p.getOperator() != Predicate.Op.EQUALS)
+            throw new IllegalArgumentException("hash joins need an equality predicate");
+        if (dop < 1)
+            throw new IllegalArgumentException("degree of parallelism must be at least 1");
+        this.p = p;
+        this.child1 = child1;
+        this.child2 = child2;
+        this.dop = dop;
+        this.broadcast = broadcast;
+        DbIterator[] one1 = new DbIterator[] { child1 };
+        DbIterator[] one2 = new DbIterator[] { child2 };
+        if (broadcast)
+            template = new HashEquiJoin(p, child1, new Broadcast(one2, dop).output(0));
+        else
+            template = new HashEquiJoin(p, new Repartition(one1, p.getField1(), dop).output(0),
+                    new Repartition(one2, p.getField2(), dop).output(0));
+    }
+
+    public JoinPredicate getJoinPredicate() {
+        return p;
+    }
+
+    /**
+     * @return true if the inner relation is broadcast to all workers
+     */
+    public boolean isBroadcast() {
+        return broadcast;
+    }
+
+    /**
+     * @return the number of workers if the inputs are repartitioned
+     */
+    public int getParallelism() {
+        return dop;
+    }
+
+    public String getName() {
+        return "gather(dop=" + dop + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return template.getTupleDesc();
+    }
+
+    protected DbIterator[] createProducers() throws DbException,
+            TransactionAbortedException {
+        DbIterator[] outer = producersOf(child1);
+        DbIterator[] inner = producersOf(child2);
+        DbIterator[] workers;
+        if (broadcast) {
+            Broadcast b = new Broadcast(inner, outer.length);
+            workers = new DbIterator[outer.length];
+            for (int i = 0; i < outer.length; i++)
+                workers[i] = new HashEquiJoin(p, outer[i], b.output(i));
+        } else {
+            Repartition r1 = new Repartition(outer, p.getField1(), dop);
+            Repartition r2 = new Repartition(inner, p.getField2(), dop);
+            partitions = new PartitionedBuild(outer, p.getField1(),
+                    child2.getTupleDesc().getFieldType(p.getField2()), dop);
+            workers = new DbIterator[dop];
+            for (int i = 0; i < dop; i++) {
+                HashEquiJoin worker = new HashEquiJoin(p, r1.output(i), r2.output(i));
+                worker.setPartitionedBuild(partitions);
+                workers[i] = worker;
+            }
+        }
+        return workers;
+    }
+
+    /**
+     * Stops the workers, and removes the Bloom filter pushed into the outer
+     * plans.
+     */
+    @Override
+    public void close() {
+        super.close();
+        if (partitions != null) {
+            partitions.removeAll();
+            partitions = null;
+        }
+    }
+
+    /**
+     * @return a join of the inputs through the redistributions; it is only
+     *         used to describe and estimate the plan
+     */
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { template };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        template = (HashEquiJoin) children[0];
+    }
+}
@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * ParallelSeqScan scans a {@link HeapFile} on several worker threads. The
+ * page range of the table is split into morsels, which the workers claim
+ * from a shared counter as they go (see {@link MorselScan}), so the load
+ * stays balanced even if some pages hold more qualifying tuples than others.
+ * Each worker runs its own copy of the pipeline above the scan, such as
+ * {@link Filter}s and a {@link Project}, and the results of all workers are
+ * gathered into the output of this operator in no particular order.
+ */
+public class ParallelSeqScan extends Exchange {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The default number of pages a worker claims at a time */
+    public static final int DEFAULT_MORSEL_PAGES = 16;
+
+    /** Builds the pipeline that a worker runs above its scan */
+    public interface Pipeline extends Serializable {
+        /**
+         * @param scan
+         *            the scan of the worker
+         * @return the plan to run above the scan, or scan itself
+         */
+        DbIterator build(DbIterator scan);
+    }
+
+    private TransactionId tid;
+    private int tableid;
+    private String tableAlias;
+    private int dop;
+    private int morselPages;
+    private Pipeline pipeline;
+    private int[] fields;
+    private ArrayList<RawPredicate> filters = new ArrayList<RawPredicate>();
+    /** the pipeline over a sequential scan, which describes this operator */
+    private DbIterator template;
+
+    /**
+     * Creates a parallel scan.
+     *
+     * @param tid
+     *            The transaction this scan is running as a part of.
+     * @param tableid
+     *            the table to scan; must be stored in a HeapFile
+     * @param tableAlias
+     *            the alias of this table, used as the prefix of field names
+     * @param dop
+     *            the degree of parallelism: the number of workers
+     * @param pipeline
+     *            builds the operators that each worker runs above its scan
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias,
+            int dop, Pipeline pipeline) {
+        this(tid, tableid, tableAlias, dop, DEFAULT_MORSEL_PAGES, pipeline);
+    }
+
+    /**
+     * Creates a parallel scan with a given morsel size.
+     *
+     * @param morselPages
+     *            the number of pages a worker claims at a time
+     */
+    public ParallelSeqScan(TransactionId tid, int tableid, String tableAlias,
+            int dop, int morselPages, Pipeline pipeline) {
+        if (dop < 1)
+            throw new IllegalArgumentException("degree of parallelism must be at least 1");
+        if (!(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+            throw new IllegalArgumentException("parallel scans need a HeapFile");
+        this.tid = tid;
+        this.tableid = tableid;
+        this.tableAlias = tableAlias;
+        this.dop = dop;
+        this.morselPages = morselPages;
+        this.pipeline = pipeline;
+        this.template = pipeline.build(new SeqScan(tid, tableid, tableAlias));
+    }
+
+    /**
+     * @return the table name of the table the operator scans
+     */
+    public String getTableName() {
+        return Database.getCatalog().getTableName(tableid);
+    }
+
+    /**
+     * @return the alias of the table this operator scans
+     */
+    public String getAlias() {
+        return tableAlias;
+    }
+
+    /**
+     * @return the number of workers
+     */
+    public int getParallelism() {
+        return dop;
+    }
+
+    /**
+     * Sets the fields the plan above refers to; the workers' scans may leave
+     * the other fields unset. Must be called before the scan is opened.
+     *
+     * @param fields
+     *            the indexes of the fields to read, or null to read them all
+     */
+    public void setFields(int[] fields) {
+        this.fields = fields == null ? null : fields.clone();
+    }
+
+    /**
+     * Adds a test that the workers' scans apply to the bytes of each tuple
+     * (see {@link SeqScan#addRuntimeFilter}), so that the tuples failing it
+     * never reach the pipelines or the exchange. Takes effect the next time
+     * the scan is opened.
+     *
+     * @param filter
+     *            the test, on the fields of the table
+     */
+    public void addRuntimeFilter(RawPredicate filter) {
+        filters.add(filter);
+    }
+
+    /**
+     * Removes a test added by {@link #addRuntimeFilter}.
+     */
+    public void removeRuntimeFilter(RawPredicate filter) {
+        filters.remove(filter);
+    }
+
+    /**
+     * @return the tests added by {@link #addRuntimeFilter}
+     */
+    public List<RawPredicate> getRuntimeFilters() {
+        return Collections.unmodifiableList(filters);
+    }
+
+    public String getName() {
+        return "parallel scan(" + tableAlias + ",dop=" + dop + ")";
+    }
+
+    public TupleDesc getTupleDesc() {
+        return template.getTupleDesc();
+    }
+
+    protected DbIterator[] createProducers() {
+        HeapFile f = (HeapFile) Database.getCatalog().getDatabaseFile(tableid);
+        MorselScan.Morsels morsels = new MorselScan.Morsels(f.numPages(), morselPages);
+        DbIterator[] workers = new DbIterator[dop];
+        for (int i = 0; i < dop; i++) {
+            MorselScan scan = new MorselScan(tid, tableid, tableAlias, morsels);
+            scan.setFields(fields);
+            for (RawPredicate filter : filters)
+                scan.addRuntimeFilter(filter);
+            workers[i] = pipeline.build(scan);
+        }
+        return workers;
+    }
+
+    /**
+     * @return the worker pipeline, over a sequential scan of the whole table;
+     *         it is only used to describe and estimate the plan
+     */
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { template };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        template = children[0];
+    }
+}
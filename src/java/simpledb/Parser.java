@@ -4,6 +4,8 @@ import Zql.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import jline.ArgumentCompletor;
 import jline.ConsoleReader;
@@ -207,8 +209,9 @@ public class Parser {
         // validity
         @SuppressWarnings("unchecked")
         Vector<ZSelectItem> selectList = q.getSelect();
-        String aggField = null;
-        String aggFun = null;
+        Vector<String> aggFields = new Vector<String>();
+        Vector<String> aggFuns = new Vector<String>();
+        Vector<Boolean> aggDistinct = new Vector<Boolean>();
 
         for (int i = 0; i < selectList.size(); i++) {
             ZSelectItem si = selectList.elementAt(i);
@@ -218,16 +221,20 @@ public class Parser {
                         "Expressions in SELECT list are not supported.");
             }
             if (si.getAggregate() != null) {
-                if (aggField != null) {
-                    throw new simpledb.ParsingException(
-                            "Aggregates over multiple fields not supported.");
-                }
-                aggField = ((ZConstant) ((ZExpression) si.getExpression())
+                String aggField = ((ZConstant) ((ZExpression) si.getExpression())
                         .getOperand(0)).getValue();
-                aggFun = si.getAggregate();
+                String aggFun = si.getAggregate();
+                // Zql keeps DISTINCT as a prefix of the aggregated column
+                Matcher m = DISTINCT_PREFIX.matcher(aggField);
+                boolean distinct = m.lookingAt();
+                if (distinct)
+                    aggField = aggField.substring(m.end());
                 System.out.println("Aggregate field is " + aggField
-                        + ", agg fun is : " + aggFun);
-                lp.addProjectField(aggField, aggFun);
+                        + ", agg fun is : " + aggFun + (distinct ? " distinct" : ""));
+                lp.addProjectField(aggField, aggFun, distinct);
+                aggFields.addElement(aggField);
+                aggFuns.addElement(aggFun);
+                aggDistinct.addElement(distinct);
             } else {
                 if (groupByField != null
                         && !(groupByField.equals(si.getTable() + "."
@@ -241,30 +248,28 @@ public class Parser {
             }
         }
 
-        if (groupByField != null && aggFun == null) {
+        if (groupByField != null && aggFuns.isEmpty()) {
             throw new simpledb.ParsingException("GROUP BY without aggregation.");
         }
 
-        if (aggFun != null) {
-            lp.addAggregate(aggFun, aggField, groupByField);
+        for (int i = 0; i < aggFuns.size(); i++) {
+            lp.addAggregate(aggFuns.elementAt(i), aggFields.elementAt(i),
+                    aggDistinct.elementAt(i), groupByField);
         }
         // sort the data
 
         if (q.getOrderBy() != null) {
             @SuppressWarnings("unchecked")
             Vector<ZOrderBy> obys = q.getOrderBy();
-            if (obys.size() > 1) {
-                throw new simpledb.ParsingException(
-                        "Multi-attribute ORDER BY is not supported.");
-            }
-            ZOrderBy oby = obys.elementAt(0);
-            if (!(oby.getExpression() instanceof ZConstant)) {
-                throw new simpledb.ParsingException(
-                        "Complex ORDER BY's are not supported");
-            }
-            ZConstant f = (ZConstant) oby.getExpression();
+            for (ZOrderBy oby : obys) {
+                if (!(oby.getExpression() instanceof ZConstant)) {
+                    throw new simpledb.ParsingException(
+                            "Complex ORDER BY's are not supported");
+                }
+                ZConstant f = (ZConstant) oby.getExpression();
 
-            lp.addOrderBy(f.getValue(), oby.getAscOrder());
+                lp.addOrderBy(f.getValue(), oby.getAscOrder());
+            }
 
         }
         return lp;
@@ -273,12 +278,82 @@ public class Parser {
     private Transaction curtrans = null;
     private boolean inUserTrans = false;
 
+    /**
+     * Zql parses COUNT(DISTINCT x) as COUNT over a column named "distinct x".
+     */
+    static final Pattern DISTINCT_PREFIX = Pattern.compile(
+            "DISTINCT\\s+", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Zql does not understand LIMIT, so a trailing "LIMIT n" is cut off the
+     * statement text before it is handed to Zql, and applied to the logical
+     * plan of the outermost query afterwards.
+     */
+    static final Pattern LIMIT_CLAUSE = Pattern.compile(
+            "\\s+LIMIT\\s+(\\d+)\\s*(;?)\\s*$", Pattern.CASE_INSENSITIVE);
+    private int limit = LogicalPlan.NO_LIMIT;
+
+    /**
+     * "SET PARALLELISM n" sets the number of worker threads that the
+     * queries that follow may use to scan a table.
+     */
+    static final Pattern SET_PARALLELISM = Pattern.compile(
+            "^\\s*SET\\s+PARALLELISM\\s+(\\d+)\\s*;?\\s*$", Pattern.CASE_INSENSITIVE);
+    private int parallelism = 1;
+
+    /**
+     * Handles a SET PARALLELISM statement.
+     *
+     * @param s the text of the statement
+     * @return true if s was a SET PARALLELISM statement
+     */
+    boolean setParallelism(String s) throws simpledb.ParsingException {
+        Matcher m = SET_PARALLELISM.matcher(s);
+        if (!m.find())
+            return false;
+        int dop;
+        try {
+            dop = Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("Invalid PARALLELISM " + m.group(1));
+        }
+        if (dop < 1)
+            throw new simpledb.ParsingException("PARALLELISM must be at least 1");
+        parallelism = dop;
+        System.out.println("Parallelism set to " + dop);
+        return true;
+    }
+
+    /**
+     * Removes a trailing LIMIT clause from a statement and remembers its
+     * value for the next query handled by this parser.
+     *
+     * @param s the text of the statement
+     * @return the statement without its LIMIT clause
+     */
+    String extractLimit(String s) throws simpledb.ParsingException {
+        Matcher m = LIMIT_CLAUSE.matcher(s);
+        if (!m.find()) {
+            limit = LogicalPlan.NO_LIMIT;
+            return s;
+        }
+        try {
+            limit = Integer.parseInt(m.group(1));
+        } catch (NumberFormatException e) {
+            throw new simpledb.ParsingException("Invalid LIMIT " + m.group(1));
+        }
+        return s.substring(0, m.start()) + m.group(2);
+    }
+
     public Query handleQueryStatement(ZQuery s, TransactionId tId)
             throws TransactionAbortedException, DbException, IOException,
             simpledb.ParsingException, Zql.ParseException {
         Query query = new Query(tId);
 
         LogicalPlan lp = parseQueryLogicalPlan(tId, s);
+        if (limit != LogicalPlan.NO_LIMIT)
+            lp.addLimit(limit);
+        lp.setParallelism(parallelism);
         DbIterator physicalPlan = lp.physicalPlan(tId,
                 TableStats.getStatsMap(), explain);
         query.setPhysicalPlan(physicalPlan);
@@ -465,12 +540,16 @@ public class Parser {
 
     public LogicalPlan generateLogicalPlan(TransactionId tid, String s)
             throws simpledb.ParsingException {
+        s = extractLimit(s);
         ByteArrayInputStream bis = new ByteArrayInputStream(s.getBytes());
         ZqlParser p = new ZqlParser(bis);
         try {
             ZStatement stmt = p.readStatement();
             if (stmt instanceof ZQuery) {
                 LogicalPlan lp = parseQueryLogicalPlan(tid, (ZQuery) stmt);
+                if (limit != LogicalPlan.NO_LIMIT)
+                    lp.addLimit(limit);
+                lp.setParallelism(parallelism);
                 return lp;
             }
         } catch (Zql.ParseException e) {
@@ -503,7 +582,18 @@ public class Parser {
 
     public void processNextStatement(InputStream is) {
         try {
-            ZqlParser p = new ZqlParser(is);
+            // read the whole statement so that a LIMIT clause can be removed
+            ByteArrayOutputStream statement = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = is.read(buf)) > 0)
+                statement.write(buf, 0, n);
+            String text = statement.toString("UTF-8");
+            if (setParallelism(text))
+                return;
+            text = extractLimit(text);
+            ZqlParser p = new ZqlParser(new ByteArrayInputStream(
+                    text.getBytes("UTF-8")));
             ZStatement s = p.readStatement();
 
             Query query = null;
@@ -11,6 +11,7 @@ public class Project extends Operator {
     private DbIterator child;
     private TupleDesc td;
     private ArrayList<Integer> outFieldIds;
+    private transient TupleProjector projector;
 
     /**
      * Constructor accepts a child operator to read tuples to apply projection
@@ -45,6 +46,38 @@ public class Project extends Operator {
         return td;
     }
 
+    /**
+     * Replaces the field-by-field copy of the projection by generated code,
+     * if the code can be compiled.
+     *
+     * @return true if the projection now runs generated code
+     */
+    public boolean compile() {
+        projector = ExpressionCompiler.compile(fieldArray(), td);
+        return isCompiled();
+    }
+
+    /**
+     * @return true if the projection runs generated code
+     */
+    public boolean isCompiled() {
+        return projector != null && ExpressionCompiler.isCompiled(projector);
+    }
+
+    /**
+     * @return the indexes of the fields of the child that make up the output
+     */
+    public int[] getFields() {
+        return fieldArray();
+    }
+
+    private int[] fieldArray() {
+        int[] fields = new int[outFieldIds.size()];
+        for (int i = 0; i < fields.length; i++)
+            fields[i] = outFieldIds.get(i);
+        return fields;
+    }
+
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         child.open();
@@ -68,15 +101,10 @@ public class Project extends Operator {
      */
     protected Tuple fetchNext() throws NoSuchElementException,
             TransactionAbortedException, DbException {
-        while (child.hasNext()) {
-            Tuple t = child.next();
-            Tuple newTuple = new Tuple(td);
-            newTuple.setRecordId(t.getRecordId());
-            for (int i = 0; i < td.numFields(); i++) {
-                newTuple.setField(i, t.getField(outFieldIds.get(i)));
-            }
-            return newTuple;
-        }
+        if (projector == null)
+            projector = ExpressionCompiler.interpret(fieldArray(), td);
+        if (child.hasNext())
+            return projector.project(child.next());
         return null;
     }
 
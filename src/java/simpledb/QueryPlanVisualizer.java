@@ -15,6 +15,8 @@ public class QueryPlanVisualizer {
     static final String SCAN = "scan";
     static final String ORDERBY = "o";
     static final String GROUPBY = "g";
+    static final String TOPN = "top";
+    static final String LIMIT = "limit";
     static final String SPACE = "  ";
 
     private int calculateQueryPlanTreeDepth(DbIterator root) {
@@ -39,6 +41,28 @@ public class QueryPlanVisualizer {
         return 2;
     }
 
+    private static String sortKeyNames(TupleDesc td, int[] fields, boolean[] asc) {
+        String names = "";
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                names += ",";
+            names += td.getFieldName(fields[i]) + (asc[i] ? "" : " desc");
+        }
+        return names;
+    }
+
+    private static String aggregateNames(Aggregate a) {
+        TupleDesc td = a.getTupleDesc();
+        int offset = a.groupField() == Aggregator.NO_GROUPING ? 0 : 1;
+        String names = "";
+        for (int i = 0; i < a.numAggregates(); i++) {
+            if (i > 0)
+                names += ",";
+            names += td.getFieldName(offset + i);
+        }
+        return names;
+    }
+
     private static class SubTreeDescriptor {
         int width;
         int upBarPosition;
@@ -65,10 +89,16 @@ public class QueryPlanVisualizer {
         int adjustDepth = currentDepth == 0 ? -1 : 0;
         SubTreeDescriptor thisNode = new SubTreeDescriptor(null, null);
 
-        if (queryPlan instanceof SeqScan) {
-            SeqScan s = (SeqScan) queryPlan;
-            String tableName = s.getTableName();
-            String alias = s.getAlias();
+        if (queryPlan instanceof SeqScan || queryPlan instanceof IndexScan) {
+            String tableName;
+            String alias;
+            if (queryPlan instanceof SeqScan) {
+                tableName = ((SeqScan) queryPlan).getTableName();
+                alias = ((SeqScan) queryPlan).getAlias();
+            } else {
+                tableName = ((IndexScan) queryPlan).getTableName();
+                alias = ((IndexScan) queryPlan).getAlias();
+            }
 //            TupleDesc td = s.getTupleDesc();
             if (!tableName.equals(alias))
                 alias = " " + alias;
@@ -76,6 +106,13 @@ public class QueryPlanVisualizer {
                 alias = "";
             thisNode.text = String
                     .format("%1$s(%2$s)", SCAN, tableName + alias);
+            if (queryPlan instanceof IndexScan) {
+                IndexScan is = (IndexScan) queryPlan;
+                thisNode.text += String.format(",index:%1$s", is.getTupleDesc()
+                        .getFieldName(is.getIndex().getField()));
+                if (is instanceof IndexOnlyScan)
+                    thisNode.text += ",index-only";
+            }
             if (SCAN.length() / 2 < parentUpperBarStartShift) {
                 thisNode.upBarPosition = currentStartPosition
                         + parentUpperBarStartShift;
@@ -173,13 +210,14 @@ public class QueryPlanVisualizer {
                 int gfield = a.groupField();
 
                 if (gfield == Aggregator.NO_GROUPING) {
-                    thisNode.text = String.format("%1$s(%2$s),card:%3$d",
-                            a.aggregateOp(), a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s,card:%2$d",
+                            aggregateNames(a), a.getEstimatedCardinality());
                     alignTxt = td.getFieldName(00);
                 } else {
-                    thisNode.text = String.format("%1$s(%2$s), %3$s(%4$s),card:%5$d",
-                            GROUPBY, a.groupFieldName(), a.aggregateOp(),
-                            a.aggregateFieldName(),a.getEstimatedCardinality());
+                    thisNode.text = String.format("%1$s(%2$s), %3$s%4$s,card:%5$d",
+                            GROUPBY, a.groupFieldName(), aggregateNames(a),
+                            a.isStreaming() ? ",sorted" : "",
+                            a.getEstimatedCardinality());
                     alignTxt = GROUPBY;
                 }
                 if (alignTxt.length() / 2 > parentUpperBarStartShift)
@@ -198,11 +236,16 @@ public class QueryPlanVisualizer {
                 thisNode.height = currentDepth;
             } else if (plan instanceof Filter) {
                 Filter f = (Filter) plan;
-                Predicate p = f.getPredicate();
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", SELECT, children[0]
-                        .getTupleDesc().getFieldName(p.getField())
-                        + p.getOp()
-                        + p.getOperand(),f.getEstimatedCardinality());
+                String preds = "";
+                for (Predicate p : f.getPredicates()) {
+                    if (preds.length() > 0)
+                        preds += " AND ";
+                    preds += children[0].getTupleDesc().getFieldName(p.getField())
+                            + p.getOp() + p.getOperand();
+                }
+                thisNode.text = String.format("%1$s(%2$s)%3$s,card:%4$d", SELECT, preds,
+                        f.isPushedDown() ? ",pushed" : f.isCompiled() ? ",compiled" : "",
+                        f.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (SELECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = SELECT.length() / 2;
@@ -222,8 +265,8 @@ public class QueryPlanVisualizer {
                 thisNode.text = String.format(
                         "%1$s(%2$s),card:%3$d",
                         ORDERBY,
-                        children[0].getTupleDesc().getFieldName(
-                                o.getOrderByField()),o.getEstimatedCardinality());
+                        sortKeyNames(children[0].getTupleDesc(),
+                                o.getOrderByFields(), o.getAscending()),o.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (ORDERBY.length() / 2 > parentUpperBarStartShift)
                     upBarShift = ORDERBY.length() / 2;
@@ -238,6 +281,45 @@ public class QueryPlanVisualizer {
                                 - currentStartPosition);
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
+            } else if (plan instanceof TopN) {
+                TopN o = (TopN) plan;
+                thisNode.text = String.format(
+                        "%1$s(%2$s,%3$d),card:%4$d",
+                        TOPN,
+                        sortKeyNames(children[0].getTupleDesc(),
+                                o.getOrderByFields(), o.getAscending()),o.getLimit(),o.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (TOPN.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = TOPN.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - TOPN.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
+            } else if (plan instanceof Limit) {
+                Limit l = (Limit) plan;
+                thisNode.text = String.format("%1$s(%2$d),card:%3$d", LIMIT,
+                        l.getLimit(),l.getEstimatedCardinality());
+                int upBarShift = parentUpperBarStartShift;
+                if (LIMIT.length() / 2 > parentUpperBarStartShift)
+                    upBarShift = LIMIT.length() / 2;
+                SubTreeDescriptor child = this.buildTree(queryPlanDepth,
+                        currentDepth + 2 + adjustDepth, children[0],
+                        currentStartPosition, upBarShift);
+                thisNode.upBarPosition = child.upBarPosition;
+                thisNode.textStartPosition = thisNode.upBarPosition
+                        - LIMIT.length() / 2;
+                thisNode.width = Math.max(child.width,
+                        thisNode.textStartPosition + thisNode.text.length()
+                                - currentStartPosition);
+                thisNode.leftChild = child;
+                thisNode.height = currentDepth;
             } else if (plan instanceof Project) {
                 Project p = (Project) plan;
                 String fields = "";
@@ -245,7 +327,8 @@ public class QueryPlanVisualizer {
                 while (it.hasNext())
                     fields += it.next().fieldName + ",";
                 fields = fields.substring(0, fields.length() - 1);
-                thisNode.text = String.format("%1$s(%2$s),card:%3$d", PROJECT, fields,p.getEstimatedCardinality());
+                thisNode.text = String.format("%1$s(%2$s)%3$s,card:%4$d", PROJECT, fields,
+                        p.isCompiled() ? ",compiled" : "", p.getEstimatedCardinality());
                 int upBarShift = parentUpperBarStartShift;
                 if (PROJECT.length() / 2 > parentUpperBarStartShift)
                     upBarShift = PROJECT.length() / 2;
@@ -261,15 +344,10 @@ public class QueryPlanVisualizer {
                 thisNode.leftChild = child;
                 thisNode.height = currentDepth;
             }
-            else if (plan.getClass().getSuperclass().getSuperclass().getSimpleName().equals("Exchange")) {
-                String name="Exchange";
-                int card=0;
-                try {
-                    name = (String) plan.getClass().getMethod("getName").invoke(plan);
-                    card = (Integer) plan.getClass().getMethod("getEstimatedCardinality").invoke(plan);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                } 
+            else if (plan instanceof Exchange || plan instanceof Redistribute.Output) {
+                String name = plan instanceof Exchange ? ((Exchange) plan).getName()
+                        : ((Redistribute.Output) plan).getName();
+                int card = plan.getEstimatedCardinality();
 
                 thisNode.text = String.format("%1$s,card:%2$d", name,card);
                 int upBarShift = parentUpperBarStartShift;
@@ -0,0 +1,153 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * RawConjunction tests a conjunction of predicates pushed down into a scan
+ * against the serialized form of tuples, with {@link RawPredicate}s. Like
+ * {@link Filter}, it tests the predicates in order of rank, tests a sample of
+ * the tuples against every predicate from time to time, and reorders the
+ * predicates when the observed pass rates make another order clearly
+ * cheaper. Tests added after the predicates, such as Bloom filters pushed
+ * down by a join, are applied last, in their given order.
+ * <p>
+ * The sampled pass rates are state of one scan: every scan, and every worker
+ * of a parallel scan, tests its tuples with its own RawConjunction.
+ */
+class RawConjunction {
+
+    private RawPredicate[] preds;
+    /** the estimated selectivity of each predicate, in the order of preds */
+    private double[] selectivities;
+    private double[] costs;
+    private final RawPredicate[] filters;
+    private int untilSample;
+    private int sampled;
+    private int[] passed;
+
+    /**
+     * @param preds
+     *            the predicates, in the order to test them until pass rates
+     *            have been observed, or null
+     * @param filters
+     *            the tests to apply after the predicates, or null
+     * @param td
+     *            the schema of the serialized tuples
+     */
+    RawConjunction(Predicate[] preds, RawPredicate[] filters, TupleDesc td) {
+        this.preds = preds == null ? new RawPredicate[0] : RawPredicate.of(preds, td);
+        this.filters = filters == null ? new RawPredicate[0] : filters.clone();
+        selectivities = new double[this.preds.length];
+        Arrays.fill(selectivities, 1.0);
+        costs = new double[this.preds.length];
+        for (int i = 0; i < costs.length; i++)
+            costs[i] = Filter.cost(preds[i], td);
+        reset();
+    }
+
+    /**
+     * @return true if there is nothing to test
+     */
+    boolean isEmpty() {
+        return preds.length == 0 && filters.length == 0;
+    }
+
+    /**
+     * Starts sampling pass rates again, at the next tuple; the current order
+     * is kept. Scans call this when they are opened.
+     */
+    void reset() {
+        untilSample = 0;
+        sampled = 0;
+        passed = new int[preds.length];
+    }
+
+    /**
+     * @return the predicates, in the order they are tested now
+     */
+    Predicate[] getPredicates() {
+        Predicate[] p = new Predicate[preds.length];
+        for (int i = 0; i < p.length; i++)
+            p[i] = preds[i].getPredicate();
+        return p;
+    }
+
+    /**
+     * Tests the serialized tuple starting at position start of data.
+     */
+    boolean test(byte[] data, int start) {
+        boolean pass;
+        if (sampleNext()) {
+            pass = true;
+            for (int i = 0; i < preds.length; i++) {
+                if (preds[i].test(data, start))
+                    passed[i]++;
+                else
+                    pass = false;
+            }
+            endSample();
+        } else {
+            pass = RawPredicate.testAll(preds, data, start);
+        }
+        return pass && RawPredicate.testAll(filters, data, start);
+    }
+
+    /**
+     * Tests a tuple that was already parsed.
+     */
+    boolean test(Tuple t) {
+        boolean pass;
+        if (sampleNext()) {
+            pass = true;
+            for (int i = 0; i < preds.length; i++) {
+                if (preds[i].test(t))
+                    passed[i]++;
+                else
+                    pass = false;
+            }
+            endSample();
+        } else {
+            pass = RawPredicate.testAll(preds, t);
+        }
+        return pass && RawPredicate.testAll(filters, t);
+    }
+
+    /** @return true if the next tuple belongs to a sample */
+    private boolean sampleNext() {
+        return preds.length > 1 && untilSample-- <= 0;
+    }
+
+    /**
+     * Counts a sampled tuple. At the end of a sample, the observed pass rates
+     * replace the estimated selectivities, and the predicates are reordered
+     * if that is worth it.
+     */
+    private void endSample() {
+        if (++sampled < Filter.SAMPLE_SIZE)
+            return;
+        Integer[] current = new Integer[preds.length];
+        for (int i = 0; i < preds.length; i++) {
+            current[i] = i;
+            // smoothed, so that no predicate looks certain from a sample
+            selectivities[i] = (passed[i] + 1.0) / (Filter.SAMPLE_SIZE + 2.0);
+        }
+        Integer[] best = Filter.bestOrder(selectivities, costs);
+        if (Filter.expectedCost(best, selectivities, costs)
+                < Filter.MIN_GAIN * Filter.expectedCost(current, selectivities, costs)) {
+            RawPredicate[] p = new RawPredicate[best.length];
+            double[] s = new double[best.length];
+            double[] c = new double[best.length];
+            for (int i = 0; i < best.length; i++) {
+                p[i] = preds[best[i]];
+                s[i] = selectivities[best[i]];
+                c[i] = costs[best[i]];
+            }
+            preds = p;
+            selectivities = s;
+            costs = c;
+        }
+        sampled = 0;
+        Arrays.fill(passed, 0);
+        untilSample = Filter.ADAPT_INTERVAL;
+    }
+}
@@ -0,0 +1,195 @@
+package simpledb;
+
+/**
+ * RawPredicate tests a {@link Predicate} against the serialized form of a
+ * tuple, as it is laid out in the slot of a page, without parsing the tuple.
+ * Scans use it to reject tuples before building them: an INT field is read
+ * and compared in place, and a STRING field is only decoded when it cannot be
+ * compared as bytes. A RawPredicate can also test that a field is in a
+ * {@link BloomFilter}.
+ */
+public class RawPredicate {
+
+    private final Predicate pred;
+    private final BloomFilter bloom;
+    private final int field;
+    private final Type type;
+    private final Predicate.Op op;
+    /** the offset of the field in a serialized tuple */
+    private final int offset;
+    private final int intValue;
+    private final String stringValue;
+    /** the bytes of stringValue, if it is ASCII and so compares as bytes */
+    private final byte[] stringBytes;
+
+    /**
+     * @param pred
+     *            the predicate
+     * @param td
+     *            the schema of the serialized tuples
+     */
+    public RawPredicate(Predicate pred, TupleDesc td) {
+        this.pred = pred;
+        this.bloom = null;
+        this.field = pred.getField();
+        this.type = td.getFieldType(field);
+        this.op = pred.getOp();
+        if (pred.getOperand().getType() != type)
+            throw new IllegalArgumentException("operand of " + pred + " does not match its field");
+        this.offset = offset(td, field);
+        if (type == Type.INT_TYPE) {
+            intValue = ((IntField) pred.getOperand()).getValue();
+            stringValue = null;
+            stringBytes = null;
+        } else {
+            intValue = 0;
+            stringValue = ((StringField) pred.getOperand()).getValue();
+            stringBytes = isAscii(stringValue) ? asciiBytes(stringValue) : null;
+        }
+    }
+
+    /**
+     * Creates a test that the value of a field might be in a Bloom filter.
+     *
+     * @param field
+     *            the index of the field
+     * @param bloom
+     *            the filter, over keys of the type of the field
+     * @param td
+     *            the schema of the serialized tuples
+     */
+    public RawPredicate(int field, BloomFilter bloom, TupleDesc td) {
+        this.pred = null;
+        this.bloom = bloom;
+        this.field = field;
+        this.type = td.getFieldType(field);
+        if (bloom.getType() != type)
+            throw new IllegalArgumentException("Bloom filter does not match field " + field);
+        this.op = null;
+        this.offset = offset(td, field);
+        intValue = 0;
+        stringValue = null;
+        stringBytes = null;
+    }
+
+    private static int offset(TupleDesc td, int field) {
+        int off = 0;
+        for (int i = 0; i < field; i++)
+            off += td.getFieldType(i).getLen();
+        return off;
+    }
+
+    /**
+     * Prepares predicates for testing tuples of the given schema.
+     */
+    public static RawPredicate[] of(Predicate[] preds, TupleDesc td) {
+        RawPredicate[] raw = new RawPredicate[preds.length];
+        for (int i = 0; i < preds.length; i++)
+            raw[i] = new RawPredicate(preds[i], td);
+        return raw;
+    }
+
+    /**
+     * @return the predicate this tests, or null if it tests a Bloom filter
+     */
+    public Predicate getPredicate() {
+        return pred;
+    }
+
+    /**
+     * Tests the serialized tuple starting at position start of data.
+     */
+    public boolean test(byte[] data, int start) {
+        int pos = start + offset;
+        if (bloom != null)
+            return bloom.mightContain(data, pos);
+        if (type == Type.INT_TYPE)
+            return compare(readInt(data, pos), intValue, op);
+        int len = readInt(data, pos);
+        pos += 4;
+        if (stringBytes != null && (op == Predicate.Op.EQUALS || op == Predicate.Op.NOT_EQUALS)) {
+            boolean equal = len == stringBytes.length;
+            for (int i = 0; equal && i < len; i++)
+                equal = data[pos + i] == stringBytes[i];
+            return equal == (op == Predicate.Op.EQUALS);
+        }
+        // decoded as Type.STRING_TYPE parses it
+        String value = new String(data, pos, len);
+        if (op == Predicate.Op.LIKE)
+            return value.indexOf(stringValue) >= 0;
+        return compare(value.compareTo(stringValue), 0, op);
+    }
+
+    /**
+     * Tests a tuple that was already parsed.
+     */
+    public boolean test(Tuple t) {
+        if (bloom != null)
+            return bloom.mightContain(t.getField(field));
+        return pred.filter(t);
+    }
+
+    /**
+     * Tests the serialized tuple starting at position start of data against
+     * every predicate of a conjunction.
+     */
+    public static boolean testAll(RawPredicate[] preds, byte[] data, int start) {
+        for (RawPredicate p : preds) {
+            if (!p.test(data, start))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tests a parsed tuple against every predicate of a conjunction.
+     */
+    public static boolean testAll(RawPredicate[] preds, Tuple t) {
+        for (RawPredicate p : preds) {
+            if (!p.test(t))
+                return false;
+        }
+        return true;
+    }
+
+    /** Reads a big-endian int, as written by DataOutputStream */
+    static int readInt(byte[] data, int pos) {
+        return ((data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+                | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+    }
+
+    /** Compares a to b the way IntField.compare does, where LIKE means EQUALS */
+    private static boolean compare(int a, int b, Predicate.Op op) {
+        switch (op) {
+        case EQUALS:
+        case LIKE:
+            return a == b;
+        case NOT_EQUALS:
+            return a != b;
+        case GREATER_THAN:
+            return a > b;
+        case GREATER_THAN_OR_EQ:
+            return a >= b;
+        case LESS_THAN:
+            return a < b;
+        default:
+            return a <= b;
+        }
+    }
+
+    private static boolean isAscii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) >= 0x80)
+                return false;
+        }
+        return true;
+    }
+
+    /** The bytes StringField.serialize writes for an ASCII string */
+    private static byte[] asciiBytes(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; i++)
+            b[i] = (byte) s.charAt(i);
+        return b;
+    }
+}
@@ -0,0 +1,281 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Redistribute connects several producer plans to several consumers. Each
+ * producer runs on a thread of the {@link Exchange} worker pool, and sends
+ * every tuple to one or more of the consumers, as decided by
+ * {@link #route}; each consumer reads from its own {@link Output}, in chunks
+ * passed through a bounded queue.
+ * <p>
+ * A Redistribute is used once: the producers start when the first output is
+ * opened and run until their plans are exhausted or every output is closed.
+ * Since producers block while the queue of an output is full, the outputs
+ * must be read concurrently, typically by the workers of an Exchange.
+ */
+public abstract class Redistribute implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** How long a producer waits on a full queue before checking if its consumer left */
+    private static final long OFFER_MILLIS = 10;
+
+    /** A chunk of tuples, or the end of a producer's output */
+    private static class Chunk {
+        final List<Tuple> tuples;
+        final Exception error;
+
+        Chunk(List<Tuple> tuples, Exception error) {
+            this.tuples = tuples;
+            this.error = error;
+        }
+
+        boolean isEnd() {
+            return tuples == null;
+        }
+    }
+
+    private final DbIterator[] producers;
+    private final int numOutputs;
+    private transient List<BlockingQueue<Chunk>> queues;
+    /** 1 for each output that was closed, whose tuples are dropped */
+    private transient AtomicIntegerArray closed;
+    private transient AtomicInteger numClosed;
+    private transient ArrayList<Future<?>> running;
+
+    /**
+     * @param producers
+     *            the plans whose tuples are redistributed
+     * @param numOutputs
+     *            the number of consumers
+     */
+    protected Redistribute(DbIterator[] producers, int numOutputs) {
+        if (producers.length == 0 || numOutputs < 1)
+            throw new IllegalArgumentException("need at least one producer and one output");
+        this.producers = producers;
+        this.numOutputs = numOutputs;
+        queues = new ArrayList<BlockingQueue<Chunk>>(numOutputs);
+        for (int i = 0; i < numOutputs; i++)
+            queues.add(new ArrayBlockingQueue<Chunk>(Math.max(2, 2 * producers.length)));
+        closed = new AtomicIntegerArray(numOutputs);
+        numClosed = new AtomicInteger();
+    }
+
+    /**
+     * @return a short description of this redistribution, shown in query plans
+     */
+    public abstract String getName();
+
+    /**
+     * Sends a tuple to outputs, by adding it to their buffers.
+     *
+     * @param t
+     *            a tuple of a producer
+     * @param buffers
+     *            the tuples of the producer waiting to be sent, one list per
+     *            output
+     */
+    protected abstract void route(Tuple t, List<List<Tuple>> buffers);
+
+    /**
+     * @return the schema of the redistributed tuples
+     */
+    public TupleDesc getTupleDesc() {
+        return producers[0].getTupleDesc();
+    }
+
+    /**
+     * @return the number of outputs
+     */
+    public int numOutputs() {
+        return numOutputs;
+    }
+
+    /**
+     * Returns the operator through which consumer i reads its tuples.
+     */
+    public Output output(int i) {
+        return new Output(i);
+    }
+
+    /** Starts the producers, unless an output already did */
+    private synchronized void start() {
+        if (running != null)
+            return;
+        running = new ArrayList<Future<?>>(producers.length);
+        for (final DbIterator plan : producers) {
+            running.add(Exchange.submit(new Runnable() {
+                public void run() {
+                    produce(plan);
+                }
+            }));
+        }
+    }
+
+    /** Runs one producer plan, routing its tuples to the outputs */
+    private void produce(DbIterator plan) {
+        Exception error = null;
+        try {
+            plan.open();
+            List<List<Tuple>> buffers = new ArrayList<List<Tuple>>(numOutputs);
+            for (int i = 0; i < numOutputs; i++)
+                buffers.add(new ArrayList<Tuple>(Exchange.CHUNK_SIZE));
+            while (numClosed.get() < numOutputs && plan.hasNext()) {
+                route(plan.next(), buffers);
+                for (int i = 0; i < numOutputs; i++) {
+                    if (buffers.get(i).size() >= Exchange.CHUNK_SIZE) {
+                        send(i, new Chunk(buffers.get(i), null));
+                        buffers.set(i, new ArrayList<Tuple>(Exchange.CHUNK_SIZE));
+                    }
+                }
+            }
+            for (int i = 0; i < numOutputs; i++) {
+                if (!buffers.get(i).isEmpty())
+                    send(i, new Chunk(buffers.get(i), null));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            error = e;
+        } finally {
+            plan.close();
+            try {
+                for (int i = 0; i < numOutputs; i++)
+                    send(i, new Chunk(null, error));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** Puts a chunk on the queue of an output, unless the output is closed */
+    private void send(int i, Chunk chunk) throws InterruptedException {
+        while (closed.get(i) == 0) {
+            if (queues.get(i).offer(chunk, OFFER_MILLIS, TimeUnit.MILLISECONDS))
+                return;
+        }
+    }
+
+    /**
+     * Marks an output as closed, and once all of them are, waits for the
+     * producers to close their plans.
+     */
+    private void close(int i) {
+        if (closed.getAndSet(i, 1) == 1)
+            return;
+        // unblock producers waiting for room on this output
+        queues.get(i).clear();
+        if (numClosed.incrementAndGet() < numOutputs)
+            return;
+        List<Future<?>> wait;
+        synchronized (this) {
+            wait = running;
+        }
+        if (wait == null)
+            return;
+        for (Future<?> f : wait) {
+            try {
+                f.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // produce() reports its errors through the queues
+            }
+        }
+    }
+
+    /**
+     * Output is the operator a consumer reads its share of the tuples from.
+     * It cannot be rewound, since the producers only run once.
+     */
+    public class Output extends Operator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int index;
+        private transient int ended;
+        private transient Iterator<Tuple> current;
+
+        Output(int index) {
+            this.index = index;
+        }
+
+        /**
+         * @return the Redistribute this is an output of
+         */
+        public Redistribute getRedistribute() {
+            return Redistribute.this;
+        }
+
+        public String getName() {
+            return Redistribute.this.getName();
+        }
+
+        public TupleDesc getTupleDesc() {
+            return Redistribute.this.getTupleDesc();
+        }
+
+        public void open() throws DbException, NoSuchElementException,
+                TransactionAbortedException {
+            ended = 0;
+            current = null;
+            start();
+            super.open();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            while (current == null || !current.hasNext()) {
+                if (ended == producers.length)
+                    return null;
+                Chunk chunk;
+                try {
+                    chunk = queues.get(index).take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new DbException("interrupted while waiting for " + getName());
+                }
+                if (chunk.isEnd()) {
+                    ended++;
+                    if (chunk.error instanceof TransactionAbortedException)
+                        throw (TransactionAbortedException) chunk.error;
+                    if (chunk.error != null)
+                        throw new DbException(getName() + " failed: " + chunk.error);
+                    current = null;
+                } else {
+                    current = chunk.tuples.iterator();
+                }
+            }
+            return current.next();
+        }
+
+        public void close() {
+            super.close();
+            current = null;
+            Redistribute.this.close(index);
+        }
+
+        public void rewind() throws DbException {
+            throw new DbException("cannot rewind " + getName());
+        }
+
+        /**
+         * @return the first producer, which describes the input of the
+         *         redistribution in query plans
+         */
+        @Override
+        public DbIterator[] getChildren() {
+            return new DbIterator[] { producers[0] };
+        }
+
+        @Override
+        public void setChildren(DbIterator[] children) {
+            producers[0] = children[0];
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * Repartition redistributes the tuples of several producers by the hash of
+ * one of their fields, so that all tuples with equal values of the field
+ * reach the same output. Consumers can then join or group their partitions
+ * independently of each other.
+ */
+public class Repartition extends Redistribute {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int field;
+
+    /**
+     * @param producers
+     *            the plans whose tuples are redistributed
+     * @param field
+     *            the index of the field to partition on
+     * @param numOutputs
+     *            the number of partitions
+     */
+    public Repartition(DbIterator[] producers, int field, int numOutputs) {
+        super(producers, numOutputs);
+        this.field = field;
+    }
+
+    /**
+     * @return the index of the field tuples are partitioned on
+     */
+    public int getField() {
+        return field;
+    }
+
+    public String getName() {
+        return "repartition(" + getTupleDesc().getFieldName(field) + ",dop=" + numOutputs() + ")";
+    }
+
+    /**
+     * @return the output that receives tuples with the given value of the
+     *         partitioning field
+     */
+    public static int partitionOf(Field f, int numOutputs) {
+        int h = f.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return Math.floorMod(h, numOutputs);
+    }
+
+    protected void route(Tuple t, List<List<Tuple>> buffers) {
+        buffers.get(partitionOf(t.getField(field), buffers.size())).add(t);
+    }
+}
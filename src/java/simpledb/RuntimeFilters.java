@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * RuntimeFilters pushes Bloom filters over the join keys of an inner
+ * relation down an outer plan, to the scan that reads the outer join field,
+ * and remembers where they went so that they can be removed again. A filter
+ * passes through Filters, Projects, either input of a HashEquiJoin and the
+ * pipeline of a ParallelSeqScan; it is not pushed past other operators.
+ */
+class RuntimeFilters {
+
+    /** inner relations with more distinct keys than this get no Bloom filter */
+    static final int MAX_KEYS = 1 << 22;
+
+    private static volatile boolean enabled = true;
+
+    /** the scans filters were pushed into, and the filters */
+    private final ArrayList<DbIterator> targets = new ArrayList<DbIterator>();
+    private final ArrayList<RawPredicate> filters = new ArrayList<RawPredicate>();
+
+    static void setEnabled(boolean enabled) {
+        RuntimeFilters.enabled = enabled;
+    }
+
+    /**
+     * Builds a Bloom filter over a set of join keys.
+     *
+     * @return the filter, or null if filters are off or there are too many
+     *         keys
+     */
+    static BloomFilter build(Type type, Collection<? extends Collection<Field>> keySets) {
+        if (!enabled)
+            return null;
+        long n = 0;
+        for (Collection<Field> keys : keySets)
+            n += keys.size();
+        if (n > MAX_KEYS)
+            return null;
+        BloomFilter bloom = new BloomFilter(type, (int) n);
+        for (Collection<Field> keys : keySets) {
+            for (Field key : keys)
+                bloom.add(key);
+        }
+        return bloom;
+    }
+
+    /**
+     * Pushes a Bloom filter on a field of the output of plan down to the scan
+     * that reads the field, if there is one.
+     */
+    void push(DbIterator plan, int field, BloomFilter bloom) {
+        push(plan, field, bloom, null);
+    }
+
+    /**
+     * @param parallel
+     *            the ParallelSeqScan whose pipeline plan is part of, or null
+     */
+    private void push(DbIterator plan, int field, BloomFilter bloom, ParallelSeqScan parallel) {
+        if (plan instanceof Filter) {
+            push(((Operator) plan).getChildren()[0], field, bloom, parallel);
+        } else if (plan instanceof Project) {
+            push(((Operator) plan).getChildren()[0], ((Project) plan).getFields()[field], bloom, parallel);
+        } else if (plan instanceof HashEquiJoin) {
+            DbIterator[] children = ((Operator) plan).getChildren();
+            int left = children[0].getTupleDesc().numFields();
+            if (field < left)
+                push(children[0], field, bloom, parallel);
+            else
+                push(children[1], field - left, bloom, parallel);
+        } else if (plan instanceof ParallelSeqScan) {
+            push(((Operator) plan).getChildren()[0], field, bloom, (ParallelSeqScan) plan);
+        } else if (plan instanceof SeqScan || plan instanceof MorselScan) {
+            TupleDesc td = plan.getTupleDesc();
+            if (td.getFieldType(field) != bloom.getType())
+                return;
+            RawPredicate filter = new RawPredicate(field, bloom, td);
+            DbIterator target = parallel != null ? parallel : plan;
+            if (target instanceof ParallelSeqScan)
+                ((ParallelSeqScan) target).addRuntimeFilter(filter);
+            else if (target instanceof SeqScan)
+                ((SeqScan) target).addRuntimeFilter(filter);
+            else
+                ((MorselScan) target).addRuntimeFilter(filter);
+            targets.add(target);
+            filters.add(filter);
+        }
+    }
+
+    /**
+     * Removes every filter pushed down so far.
+     */
+    void removeAll() {
+        for (int i = 0; i < targets.size(); i++) {
+            DbIterator target = targets.get(i);
+            if (target instanceof ParallelSeqScan)
+                ((ParallelSeqScan) target).removeRuntimeFilter(filters.get(i));
+            else if (target instanceof SeqScan)
+                ((SeqScan) target).removeRuntimeFilter(filters.get(i));
+            else
+                ((MorselScan) target).removeRuntimeFilter(filters.get(i));
+        }
+        targets.clear();
+        filters.clear();
+    }
+
+    /**
+     * @return the scans the filters were pushed into
+     */
+    List<DbIterator> getTargets() {
+        return Collections.unmodifiableList(targets);
+    }
+}
@@ -0,0 +1,474 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * SecondaryIndex is a non-clustered index on one column of a {@link HeapFile}
+ * table. It is a {@link BTreeFile} of (key, page number, slot) entries keyed
+ * on the column, which maps each value of the column to the RecordIds of the
+ * tuples holding it, so that predicates on the column can be answered
+ * without scanning the table.
+ * <p>
+ * An index may also include the values of other columns in its entries,
+ * after the slot. A query that only refers to the indexed column and the
+ * included columns is covered by the index, and can be answered from its
+ * entries alone, without reading the table; see {@link IndexOnlyScan}.
+ * <p>
+ * Indexes are declared with {@link Catalog#addIndex}, and kept up to date by
+ * {@link BufferPool#insertTuple} and {@link BufferPool#deleteTuple}. The
+ * entries are stored in a file next to the heap file, named after the heap
+ * file and the column. The header of the file marks whether the entries on
+ * disk are in step with the heap file: the mark is cleared before the table
+ * is first changed, and set again once {@link BufferPool#flushAllPages} has
+ * written both. An index file that is missing or not marked is rebuilt when
+ * the index is declared.
+ */
+public class SecondaryIndex {
+
+    /** the fraction of each leaf filled when the index is built */
+    static final double BUILD_FILL_FACTOR = 0.9;
+
+    /** the position of the first included column in an entry */
+    private static final int FIRST_INCLUDED = 3;
+
+    private final HeapFile table;
+    private final int field;
+    private final int[] include;
+    private final BTreeFile tree;
+    /** whether the header on disk marks the entries as in step with the table */
+    private boolean synced;
+    /** the changes of the table in progress */
+    private int changes;
+    /** the number of changes of the table begun */
+    private long version;
+
+    /**
+     * Opens the index of a column of a table, without registering it.
+     *
+     * @param table
+     *            the indexed table
+     * @param field
+     *            the index of the indexed column
+     * @param include
+     *            the indexes of the columns included in the entries, in
+     *            increasing order and without the indexed column
+     * @param file
+     *            the file of the entries
+     */
+    SecondaryIndex(HeapFile table, int field, int[] include, File file) {
+        this.table = table;
+        this.field = field;
+        this.include = include.clone();
+        this.tree = new BTreeFile(file, 0, entryDesc(table.getTupleDesc(), field, include));
+    }
+
+    /**
+     * @return the file an index of a column of a table, including some other
+     *         columns, is kept in
+     */
+    static File fileOf(HeapFile table, int field, int[] include) {
+        TupleDesc td = table.getTupleDesc();
+        StringBuilder name = new StringBuilder(table.getFile().getAbsolutePath());
+        name.append(".").append(td.getFieldName(field));
+        for (int i : include)
+            name.append("+").append(td.getFieldName(i));
+        return new File(name.append(".idx").toString());
+    }
+
+    /**
+     * @return the TupleDesc of the entries of an index on a column of a table
+     *         that includes some other columns
+     */
+    static TupleDesc entryDesc(TupleDesc td, int field, int[] include) {
+        Type[] types = new Type[FIRST_INCLUDED + include.length];
+        String[] names = new String[types.length];
+        types[0] = td.getFieldType(field);
+        names[0] = "key";
+        types[1] = types[2] = Type.INT_TYPE;
+        names[1] = "page";
+        names[2] = "slot";
+        for (int i = 0; i < include.length; i++) {
+            types[FIRST_INCLUDED + i] = td.getFieldType(include[i]);
+            names[FIRST_INCLUDED + i] = td.getFieldName(include[i]);
+        }
+        return new TupleDesc(types, names);
+    }
+
+    /**
+     * @return the id of the indexed table
+     */
+    public int getTableId() {
+        return table.getId();
+    }
+
+    /**
+     * @return the index of the indexed column
+     */
+    public int getField() {
+        return field;
+    }
+
+    /**
+     * @return the indexes of the columns included in the entries
+     */
+    public int[] getIncludedFields() {
+        return include.clone();
+    }
+
+    /**
+     * @param fields
+     *            the indexes of some columns of the table, or null for all
+     *            of them
+     * @return true if the entries hold every one of the columns
+     */
+    public boolean covers(int[] fields) {
+        if (fields == null)
+            return include.length + 1 == table.getTupleDesc().numFields();
+        for (int f : fields) {
+            if (f != field && Arrays.binarySearch(include, f) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the B+ tree of the entries
+     */
+    public BTreeFile getFile() {
+        return tree;
+    }
+
+    /**
+     * @return true if the entries on disk may not describe the table, because
+     *         they are missing or not marked as in step with it
+     * @throws DbException
+     *             if the header of the file cannot be read
+     */
+    boolean isStale() throws DbException {
+        if (tree.getFile().length() == 0)
+            return true;
+        boolean marked = rootPtr(new TransactionId()).isSynced();
+        synchronized (this) {
+            synced = marked;
+        }
+        return !marked;
+    }
+
+    /** @return the root pointer page of the entries, which holds the mark */
+    private BTreeRootPtrPage rootPtr(TransactionId tid) throws DbException {
+        try {
+            return tree.getRootPtrPage(tid, new HashMap<PageId, Page>());
+        } catch (IOException e) {
+            throw new DbException("could not read index " + tree.getFile() + ": " + e.getMessage());
+        } catch (TransactionAbortedException e) {
+            throw new DbException("could not read index " + tree.getFile() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Marks the entries on disk as in step with the table, or not, at once:
+     * the pages of the table do not wait for those of the index. The caller
+     * holds the monitor of this index, and reads the page before it takes it,
+     * since written() waits for the monitor while it holds the BufferPool's.
+     */
+    private void setSynced(BTreeRootPtrPage rootPtr, boolean synced) throws IOException {
+        rootPtr.setSynced(synced);
+        tree.writePage(rootPtr);
+        this.synced = synced;
+    }
+
+    /**
+     * Notes that the table is about to be changed, and marks the entries on
+     * disk as no longer in step with it. Every call must be followed by one
+     * to {@link #endChange}, once the entries are changed as well.
+     */
+    void beginChange(TransactionId tid) throws DbException, IOException {
+        BTreeRootPtrPage rootPtr = rootPtr(tid);
+        synchronized (this) {
+            if (synced)
+                setSynced(rootPtr, false);
+            changes++;
+            version++;
+        }
+    }
+
+    /** Notes that a change begun with {@link #beginChange} is complete. */
+    synchronized void endChange() {
+        changes--;
+    }
+
+    /**
+     * @return the number of changes of the table begun, or -1 while one is
+     *         in progress
+     */
+    synchronized long stableVersion() {
+        return changes > 0 ? -1 : version;
+    }
+
+    /**
+     * Marks the entries on disk as in step with the table, once all pages of
+     * both were written, unless the table was changed meanwhile.
+     *
+     * @param version
+     *            the {@link #stableVersion} before the pages were written
+     */
+    void written(long version) throws IOException {
+        synchronized (this) {
+            if (synced || version < 0 || version != this.version)
+                return;
+        }
+        BTreeRootPtrPage rootPtr;
+        try {
+            rootPtr = rootPtr(new TransactionId());
+        } catch (DbException e) {
+            throw new IOException(e.getMessage());
+        }
+        synchronized (this) {
+            if (!synced && version == this.version && changes == 0)
+                setSynced(rootPtr, true);
+        }
+    }
+
+    /**
+     * Replaces the entries with those of the tuples in the table, and writes
+     * them to disk. They are marked as in step with the table unless some of
+     * its pages are not written yet. The Catalog must already know the index
+     * file, through which the BufferPool reads its pages.
+     *
+     * @throws DbException
+     *             if the table cannot be read or the file cannot be written
+     */
+    void build() throws DbException {
+        File f = tree.getFile();
+        Database.getBufferPool().discardPages(tree.getId());
+        try {
+            new FileOutputStream(f).close();
+            synchronized (this) {
+                synced = false;
+            }
+            if (f.getParentFile() != null
+                    && f.getParentFile().equals(new File(System.getProperty("java.io.tmpdir")).getAbsoluteFile()))
+                f.deleteOnExit(); // temporary tables leave no index behind
+            TransactionId tid = new TransactionId();
+            DbIterator entries = new Entries(tid);
+            entries.open();
+            try {
+                tree.bulkLoad(tid, entries, BUILD_FILL_FACTOR);
+            } finally {
+                entries.close();
+            }
+            Database.getBufferPool().flushPages(tree.getId());
+            if (!Database.getBufferPool().holdsDirtyPages(table.getId())) {
+                BTreeRootPtrPage rootPtr = rootPtr(tid);
+                synchronized (this) {
+                    setSynced(rootPtr, true);
+                }
+            }
+        } catch (IOException e) {
+            throw new DbException("could not build index " + f + ": " + e.getMessage());
+        } catch (TransactionAbortedException e) {
+            throw new DbException("could not build index " + f + ": " + e.getMessage());
+        }
+    }
+
+    /** @return the entry of a tuple stored in the table */
+    private Tuple entryOf(Tuple t) {
+        Tuple entry = new Tuple(tree.getTupleDesc());
+        RecordId rid = t.getRecordId();
+        entry.setField(0, t.getField(field));
+        entry.setField(1, new IntField(rid.getPageId().pageNumber()));
+        entry.setField(2, new IntField(rid.tupleno()));
+        for (int i = 0; i < include.length; i++)
+            entry.setField(FIRST_INCLUDED + i, t.getField(include[i]));
+        return entry;
+    }
+
+    /**
+     * @return the tuple of the table an entry stands for, with the indexed and
+     *         included columns set, and the others null
+     */
+    private Tuple tupleOf(Tuple entry) {
+        Tuple t = new Tuple(table.getTupleDesc());
+        t.setField(field, entry.getField(0));
+        for (int i = 0; i < include.length; i++)
+            t.setField(include[i], entry.getField(FIRST_INCLUDED + i));
+        t.setRecordId(new RecordId(new HeapPageId(table.getId(), ((IntField) entry.getField(1)).getValue()),
+                ((IntField) entry.getField(2)).getValue()));
+        return t;
+    }
+
+    /**
+     * Adds the entry of a tuple just inserted into the table.
+     *
+     * @return the pages of the index that were modified
+     */
+    ArrayList<Page> insert(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        return tree.insertTuple(tid, entryOf(t));
+    }
+
+    /**
+     * Removes the entry of a tuple deleted from the table.
+     *
+     * @param t
+     *            the tuple, with all of its fields set
+     * @return the pages of the index that were modified
+     * @throws DbException
+     *             if the index has no entry for the tuple
+     */
+    ArrayList<Page> delete(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        DbFileIterator it = tree.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, t.getField(field)));
+        it.open();
+        try {
+            while (it.hasNext()) {
+                Tuple entry = it.next();
+                if (((IntField) entry.getField(1)).getValue() == rid.getPageId().pageNumber()
+                        && ((IntField) entry.getField(2)).getValue() == rid.tupleno())
+                    return tree.deleteTuple(tid, entry);
+            }
+        } finally {
+            it.close();
+        }
+        throw new DbException("no entry for " + rid + " in index on field " + field);
+    }
+
+    /**
+     * Returns the stored version of a tuple of a table, with all fields set,
+     * for tuples read with only some of their fields.
+     */
+    static Tuple storedTuple(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++) {
+            if (t.getField(i) == null) {
+                RecordId rid = t.getRecordId();
+                HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, rid.getPageId(), Permissions.READ_ONLY);
+                if (!page.isSlotUsed(rid.tupleno()))
+                    throw new DbException("slot is already empty");
+                return page.getTuple(rid.tupleno());
+            }
+        }
+        return t;
+    }
+
+    /**
+     * Returns an iterator over the tuples of the table whose indexed column
+     * satisfies a predicate, in the order of the column.
+     *
+     * @param ipred
+     *            the predicate, or null to return every tuple
+     */
+    public DbFileIterator iterator(final TransactionId tid, final IndexPredicate ipred) {
+        return new AbstractDbFileIterator() {
+            private DbFileIterator entries;
+
+            public void open() throws DbException, TransactionAbortedException {
+                entries = ipred == null ? tree.iterator(tid) : tree.indexIterator(tid, ipred);
+                entries.open();
+            }
+
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                while (entries != null && entries.hasNext()) {
+                    Tuple entry = entries.next();
+                    HeapPageId pid = new HeapPageId(table.getId(), ((IntField) entry.getField(1)).getValue());
+                    int slot = ((IntField) entry.getField(2)).getValue();
+                    HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+                    if (page.isSlotUsed(slot))
+                        return page.getTuple(slot);
+                }
+                return null;
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                close();
+                open();
+            }
+
+            public void close() {
+                super.close();
+                if (entries != null)
+                    entries.close();
+                entries = null;
+            }
+        };
+    }
+
+    /**
+     * Returns an iterator over the tuples of the table whose indexed column
+     * satisfies a predicate, in the order of the column, read from the
+     * entries alone. Only the indexed and included columns of the tuples are
+     * set; the tuples have their RecordIds, so they can be deleted.
+     *
+     * @param ipred
+     *            the predicate, or null to return every tuple
+     */
+    public DbFileIterator indexOnlyIterator(final TransactionId tid, final IndexPredicate ipred) {
+        return new AbstractDbFileIterator() {
+            private DbFileIterator entries;
+
+            public void open() throws DbException, TransactionAbortedException {
+                entries = ipred == null ? tree.iterator(tid) : tree.indexIterator(tid, ipred);
+                entries.open();
+            }
+
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                return entries != null && entries.hasNext() ? tupleOf(entries.next()) : null;
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                close();
+                open();
+            }
+
+            public void close() {
+                super.close();
+                if (entries != null)
+                    entries.close();
+                entries = null;
+            }
+        };
+    }
+
+    /** The entries of the tuples in the table, in no particular order */
+    private class Entries extends Operator {
+        private static final long serialVersionUID = 1L;
+
+        private final DbFileIterator tuples;
+
+        Entries(TransactionId tid) {
+            int[] fields = Arrays.copyOf(include, include.length + 1);
+            fields[include.length] = field;
+            tuples = table.iterator(tid, null, fields);
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            tuples.open();
+            super.open();
+        }
+
+        public void close() {
+            super.close();
+            tuples.close();
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            tuples.rewind();
+        }
+
+        protected Tuple fetchNext() throws DbException, TransactionAbortedException {
+            return tuples.hasNext() ? entryOf(tuples.next()) : null;
+        }
+
+        public DbIterator[] getChildren() {
+            return new DbIterator[0];
+        }
+
+        public void setChildren(DbIterator[] children) {
+        }
+
+        public TupleDesc getTupleDesc() {
+            return tree.getTupleDesc();
+        }
+    }
+}
@@ -13,6 +13,11 @@ public class SeqScan implements DbIterator {
     private TransactionId tid;
     private int tableid;
     private String tableAlias;
+    private Predicate[] preds;
+    private int[] fields;
+    private boolean reverse;
+    private ArrayList<RawPredicate> filters = new ArrayList<RawPredicate>();
+    private boolean filtersChanged;
     private DbFileIterator fileIterator;
 
     /**
@@ -82,8 +87,142 @@ public class SeqScan implements DbIterator {
         this(tid, tableid, Database.getCatalog().getTableName(tableid));
     }
 
+    /**
+     * Pushes a conjunction of predicates down into the scan: only the tuples
+     * that satisfy all of them are returned, and the file may test them
+     * before building tuples (see {@link DbFile#iterator(TransactionId, Predicate[])}).
+     * Must be called before the scan is opened.
+     *
+     * @param preds
+     *            the predicates, on the fields of this scan's TupleDesc, in
+     *            the order to test them until the scan has sampled their
+     *            pass rates; null or empty to return every tuple
+     */
+    public void setPredicates(Predicate[] preds) {
+        this.preds = preds == null || preds.length == 0 ? null : preds.clone();
+        resetIterator();
+    }
+
+    /**
+     * @return the predicates pushed down into this scan, or null if it returns
+     *         every tuple
+     */
+    public Predicate[] getPredicates() {
+        return preds == null ? null : preds.clone();
+    }
+
+    /**
+     * @return the pushed predicates, in the order the scan tests them now: a
+     *         scan of a HeapFile reorders them by the pass rates it samples
+     */
+    public Predicate[] getPredicateOrder() {
+        if (fileIterator instanceof HeapFileIterator)
+            return ((HeapFileIterator) fileIterator).getPredicateOrder();
+        return getPredicates();
+    }
+
+    /**
+     * Pushes the fields the plan above refers to down into the scan: the
+     * returned tuples keep the TupleDesc of the table, but the other fields
+     * may be left unset, so that the file never decodes them. Must be called
+     * before the scan is opened.
+     *
+     * @param fields
+     *            the indexes of the fields to read, or null to read them all
+     */
+    public void setFields(int[] fields) {
+        this.fields = fields == null ? null : fields.clone();
+        resetIterator();
+    }
+
+    /**
+     * @return the indexes of the fields this scan reads, or null if it reads
+     *         them all
+     */
+    public int[] getFields() {
+        return fields == null ? null : fields.clone();
+    }
+
+    /**
+     * Makes the scan of a table stored in a {@link BTreeFile} return its
+     * tuples in descending key order, starting from the largest key that can
+     * pass a pushed predicate on the key, so that ORDER BY key DESC needs no
+     * sort. Must be called before the scan is opened.
+     *
+     * @param reverse
+     *            whether to scan in descending key order
+     * @throws UnsupportedOperationException
+     *             if the table is not stored in a BTreeFile
+     */
+    public void setReverse(boolean reverse) {
+        if (reverse && !(Database.getCatalog().getDatabaseFile(tableid) instanceof BTreeFile))
+            throw new UnsupportedOperationException("only B+ tree tables can be scanned in reverse");
+        this.reverse = reverse;
+        resetIterator();
+    }
+
+    /**
+     * @return true if the scan returns the tuples of a B+ tree table in
+     *         descending key order
+     */
+    public boolean isReverse() {
+        return reverse;
+    }
+
+    /**
+     * Adds a test that the returned tuples must pass, such as a Bloom filter
+     * over the join keys of the inner relation of a {@link HashEquiJoin}
+     * this scan feeds. A HeapFile applies it to the bytes of each tuple, with
+     * the predicates. Takes effect the next time the scan is opened.
+     *
+     * @param filter
+     *            the test, on the fields of this scan's TupleDesc
+     */
+    public void addRuntimeFilter(RawPredicate filter) {
+        filters.add(filter);
+        filtersChanged = true;
+    }
+
+    /**
+     * Removes a test added by {@link #addRuntimeFilter}, from the next time
+     * the scan is opened.
+     */
+    public void removeRuntimeFilter(RawPredicate filter) {
+        if (filters.remove(filter))
+            filtersChanged = true;
+    }
+
+    /**
+     * @return the tests added by {@link #addRuntimeFilter}
+     */
+    public List<RawPredicate> getRuntimeFilters() {
+        return Collections.unmodifiableList(filters);
+    }
+
+    /** Creates the file iterator for the pushed predicates, fields and filters */
+    private void resetIterator() {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        filtersChanged = false;
+        if (reverse) {
+            DbFileIterator it = ((BTreeFile) file).reverseIterator(tid, preds, fields);
+            fileIterator = filters.isEmpty() ? it
+                    : new FilteredIterator(it, filters.toArray(new RawPredicate[0]));
+        } else if (!filters.isEmpty()) {
+            RawPredicate[] raw = filters.toArray(new RawPredicate[0]);
+            if (file instanceof HeapFile)
+                fileIterator = new HeapFileIterator(tid, (HeapFile) file, preds, fields, raw);
+            else
+                fileIterator = new FilteredIterator(file.iterator(tid, preds, fields), raw);
+        } else if (preds == null && fields == null)
+            fileIterator = file.iterator(tid);
+        else
+            fileIterator = file.iterator(tid, preds, fields);
+    }
+
     public void open() throws DbException, TransactionAbortedException {
         // Done
+        if (filtersChanged)
+            resetIterator();
         fileIterator.open();
     }
 
@@ -132,4 +271,39 @@ public class SeqScan implements DbIterator {
         // Done
         fileIterator.rewind();
     }
+
+    /** Drops the tuples of a file iterator that fail any of a set of tests */
+    private static class FilteredIterator extends AbstractDbFileIterator {
+        private final DbFileIterator it;
+        private final RawPredicate[] filters;
+
+        FilteredIterator(DbFileIterator it, RawPredicate[] filters) {
+            this.it = it;
+            this.filters = filters;
+        }
+
+        public void open() throws DbException, TransactionAbortedException {
+            it.open();
+        }
+
+        @Override
+        protected Tuple readNext() throws DbException, TransactionAbortedException {
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (RawPredicate.testAll(filters, t))
+                    return t;
+            }
+            return null;
+        }
+
+        public void rewind() throws DbException, TransactionAbortedException {
+            super.close();
+            it.rewind();
+        }
+
+        public void close() {
+            super.close();
+            it.close();
+        }
+    }
 }
@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.io.*;
+
+/**
+ * SpillFile is a temporary, append-only sequence of tuples stored on disk.
+ * Operators that exceed their memory budget write tuples here and read them
+ * back later, in insertion order. Tuples are stored back to back using the
+ * same fixed-width field encoding as HeapPage, so no header is needed.
+ * <p>
+ * A SpillFile is written once: call {@link #add} any number of times, then
+ * {@link #finish}, after which {@link #iterator} may be opened any number of
+ * times. {@link #delete} removes the backing file.
+ */
+public class SpillFile {
+
+    private final TupleDesc td;
+    private final File f;
+    private DataOutputStream out;
+    private int numTuples = 0;
+
+    /**
+     * Creates a new, empty spill file for tuples of the specified schema.
+     *
+     * @param td
+     *            the schema of the tuples that will be written
+     * @throws DbException
+     *             if the temporary file cannot be created
+     */
+    public SpillFile(TupleDesc td) throws DbException {
+        this.td = td;
+        try {
+            f = File.createTempFile("simpledb_spill", ".dat");
+            f.deleteOnExit();
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(f), BufferPool.getPageSize()));
+        } catch (IOException e) {
+            throw new DbException("could not create spill file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the schema of the tuples in this file
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of tuples written to this file
+     */
+    public int numTuples() {
+        return numTuples;
+    }
+
+    /**
+     * Appends a tuple to the end of this file. Fields that are not set, such
+     * as those a scan did not read, are stored as zeroes.
+     *
+     * @throws DbException
+     *             if the file was already finished or the write fails
+     */
+    public void add(Tuple t) throws DbException {
+        if (out == null)
+            throw new DbException("spill file is already finished");
+        try {
+            for (int i = 0; i < td.numFields(); i++) {
+                Field f = t.getField(i);
+                if (f != null)
+                    f.serialize(out);
+                else
+                    out.write(new byte[td.getFieldType(i).getLen()]);
+            }
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        numTuples++;
+    }
+
+    /**
+     * Flushes and closes the writer. No more tuples may be added.
+     */
+    public void finish() throws DbException {
+        if (out == null)
+            return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new DbException("could not write spill file: " + e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * Deletes the backing file. The file must not be read afterwards.
+     */
+    public void delete() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the file is going away anyway
+            }
+            out = null;
+        }
+        f.delete();
+    }
+
+    /**
+     * @return an iterator over the tuples of this file, in the order in which
+     *         they were added. The file must be finished first.
+     */
+    public DbFileIterator iterator() {
+        return new SpillFileIterator();
+    }
+
+    private class SpillFileIterator extends AbstractDbFileIterator {
+
+        private DataInputStream in;
+        private int read;
+
+        public void open() throws DbException {
+            if (out != null)
+                throw new DbException("spill file is not finished");
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(f), BufferPool.getPageSize()));
+            } catch (IOException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            read = 0;
+        }
+
+        protected Tuple readNext() throws DbException {
+            if (in == null || read >= numTuples)
+                return null;
+            Tuple t = new Tuple(td);
+            try {
+                for (int i = 0; i < td.numFields(); i++)
+                    t.setField(i, td.getFieldType(i).parse(in));
+            } catch (java.text.ParseException e) {
+                throw new DbException("could not read spill file: " + e.getMessage());
+            }
+            read++;
+            return t;
+        }
+
+        public void rewind() throws DbException {
+            close();
+            open();
+        }
+
+        public void close() {
+            super.close();
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing useful to do on a read-only stream
+                }
+            }
+            in = null;
+        }
+    }
+}
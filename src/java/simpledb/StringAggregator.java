@@ -57,6 +57,17 @@ public class StringAggregator implements Aggregator {
         map.put(group,val+1);
     }
 
+    public int numGroups() {
+        return map.size();
+    }
+
+    public boolean hasGroup(Tuple tup) {
+        if (gbField == NO_GROUPING) {
+            return map.containsKey(null);
+        }
+        return map.containsKey(tup.getField(gbField));
+    }
+
     /**
      * Create a DbIterator over group aggregate results.
      *
@@ -189,6 +189,37 @@ public class TableStats {
         //return 0;
     }
 
+    /**
+     * Estimates the cost of reading the tuples that satisfy a predicate of the
+     * given selectivity through a secondary index: one page for the index
+     * lookup, and then, since the tuples are not clustered on the indexed
+     * field, one page for each tuple selected.
+     *
+     * @param selectivityFactor
+     *            The selectivity of the predicate answered by the index
+     * @return The estimated cost of the index scan.
+     */
+    public double estimateIndexScanCost(double selectivityFactor) {
+        return costPerPageIO + baseTups * selectivityFactor * costPerPageIO;
+    }
+
+    /**
+     * Estimates the cost of reading the tuples that satisfy a predicate of the
+     * given selectivity from the entries of a covering index alone: one page
+     * for the index lookup, and then the leaves holding the selected entries,
+     * which are in the order of the indexed field.
+     *
+     * @param selectivityFactor
+     *            The selectivity of the predicate answered by the index, or 1
+     *            to read every entry
+     * @param indexPages
+     *            The number of pages of the index
+     * @return The estimated cost of the index-only scan.
+     */
+    public double estimateIndexOnlyScanCost(double selectivityFactor, int indexPages) {
+        return costPerPageIO + indexPages * selectivityFactor * costPerPageIO;
+    }
+
     /**
      * This method returns the number of tuples in the relation, given that a
      * predicate with selectivity selectivityFactor is applied.
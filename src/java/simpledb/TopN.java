@@ -0,0 +1,197 @@
+package simpledb;
+
+import java.util.*;
+
+/**
+ * TopN is an operator that implements ORDER BY combined with LIMIT n. Instead
+ * of sorting the whole child, it keeps the best n tuples seen so far in a
+ * bounded heap whose root is the worst of them, so each incoming tuple costs
+ * one comparison against the root, and memory use is O(n) regardless of the
+ * size of the child.
+ * <p>
+ * Like {@link OrderBy}, the ordering is stable: of two tuples that compare
+ * equal, the one the child returned first comes first.
+ */
+public class TopN extends Operator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private TupleDesc td;
+    private int[] orderByFields;
+    private boolean[] asc;
+    private int limit;
+    private transient ArrayList<Tuple> top;
+    private transient Iterator<Tuple> it;
+
+    /**
+     * Creates a new TopN node over the tuples from the iterator.
+     *
+     * @param orderbyField
+     *            the field to which the sort is applied.
+     * @param asc
+     *            true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int orderbyField, boolean asc, int limit, DbIterator child) {
+        this(new int[] { orderbyField }, new boolean[] { asc }, limit, child);
+    }
+
+    /**
+     * Creates a new TopN node on several fields.
+     *
+     * @param orderbyFields
+     *            the fields to which the sort is applied, most significant
+     *            first.
+     * @param asc
+     *            for each field, true if the sort order is ascending.
+     * @param limit
+     *            the number of tuples to return.
+     * @param child
+     *            the tuples to sort.
+     */
+    public TopN(int[] orderbyFields, boolean[] asc, int limit, DbIterator child) {
+        if (limit < 0)
+            throw new IllegalArgumentException("LIMIT must not be negative");
+        if (orderbyFields.length == 0 || orderbyFields.length != asc.length)
+            throw new IllegalArgumentException("need one direction for each of at least one sort key");
+        this.child = child;
+        td = child.getTupleDesc();
+        this.orderByFields = orderbyFields.clone();
+        this.asc = asc.clone();
+        this.limit = limit;
+    }
+
+    /**
+     * @return true if the first sort key is ascending
+     */
+    public boolean isASC() {
+        return this.asc[0];
+    }
+
+    /**
+     * @return the first sort key
+     */
+    public int getOrderByField() {
+        return this.orderByFields[0];
+    }
+
+    /**
+     * @return the name of the first sort key
+     */
+    public String getOrderFieldName() {
+        return td.getFieldName(this.orderByFields[0]);
+    }
+
+    /**
+     * @return all sort keys, most significant first
+     */
+    public int[] getOrderByFields() {
+        return this.orderByFields.clone();
+    }
+
+    /**
+     * @return for each sort key, true if it is ascending
+     */
+    public boolean[] getAscending() {
+        return this.asc.clone();
+    }
+
+    /**
+     * @return the number of tuples returned by this operator
+     */
+    public int getLimit() {
+        return this.limit;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /** A tuple together with its position in the child's output. */
+    private static class Entry {
+        final Tuple tuple;
+        final long seq;
+
+        Entry(Tuple tuple, long seq) {
+            this.tuple = tuple;
+            this.seq = seq;
+        }
+    }
+
+    public void open() throws DbException, NoSuchElementException,
+            TransactionAbortedException {
+        child.open();
+        final Comparator<Tuple> cmp = TupleComparator.create(td, orderByFields, asc);
+        // orders entries best first; later arrivals lose ties
+        final Comparator<Entry> order = new Comparator<Entry>() {
+            public int compare(Entry a, Entry b) {
+                int c = cmp.compare(a.tuple, b.tuple);
+                if (c != 0)
+                    return c;
+                return a.seq < b.seq ? -1 : (a.seq == b.seq ? 0 : 1);
+            }
+        };
+        // the root of the heap is the worst of the tuples kept so far
+        PriorityQueue<Entry> heap = new PriorityQueue<Entry>(Math.max(1, limit),
+                Collections.reverseOrder(order));
+        long seq = 0;
+        while (child.hasNext()) {
+            Tuple t = child.next();
+            if (heap.size() < limit) {
+                heap.add(new Entry(t, seq));
+            } else if (limit > 0 && cmp.compare(t, heap.peek().tuple) < 0) {
+                // strictly better than the current worst; a tie would lose on seq
+                heap.poll();
+                heap.add(new Entry(t, seq));
+            }
+            seq++;
+        }
+
+        Entry[] entries = heap.toArray(new Entry[heap.size()]);
+        Arrays.sort(entries, order);
+        top = new ArrayList<Tuple>(entries.length);
+        for (Entry e : entries)
+            top.add(e.tuple);
+        it = top.iterator();
+        super.open();
+    }
+
+    public void close() {
+        super.close();
+        it = null;
+        top = null;
+        child.close();
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        it = top.iterator();
+    }
+
+    /**
+     * Operator.fetchNext implementation. Returns the retained tuples in order.
+     *
+     * @return The next tuple in the ordering, or null if there are no more
+     *         tuples
+     */
+    protected Tuple fetchNext() throws NoSuchElementException,
+            TransactionAbortedException, DbException {
+        if (it != null && it.hasNext()) {
+            return it.next();
+        } else
+            return null;
+    }
+
+    @Override
+    public DbIterator[] getChildren() {
+        return new DbIterator[] { this.child };
+    }
+
+    @Override
+    public void setChildren(DbIterator[] children) {
+        this.child = children[0];
+    }
+
+}
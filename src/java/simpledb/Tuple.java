@@ -103,9 +103,9 @@ public class Tuple implements Serializable {
         StringBuffer strBuffer = new StringBuffer();
         for (int i = 0; i < fields.length; i++){
             if(i == fields.length - 1){
-                strBuffer.append(fields[i].toString());
+                strBuffer.append(String.valueOf(fields[i]));
             } else {
-                strBuffer.append(fields[i].toString()).append("\t");
+                strBuffer.append(String.valueOf(fields[i])).append("\t");
             }
         }
         return strBuffer.toString();
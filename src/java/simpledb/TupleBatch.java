@@ -0,0 +1,256 @@
+package simpledb;
+
+import java.io.Serializable;
+
+/**
+ * TupleBatch holds up to {@link #CAPACITY} rows in columnar form, as one
+ * int[] per INT_TYPE column and one String[] per STRING_TYPE column. Batches
+ * are what {@link BatchIterator}s pass to each other, so that operators can
+ * work on a column in a tight loop over primitive values instead of calling
+ * next() and allocating Fields for every tuple.
+ * <p>
+ * Rows removed by a filter stay in the columns: a batch carries a selection
+ * vector listing the positions of its live rows, in increasing order, or no
+ * selection vector if every row is live. Consumers therefore visit live rows
+ * as <code>row(0) .. row(numRows() - 1)</code>.
+ * <p>
+ * A field a tuple leaves unset, as scans that read only some fields do, stays
+ * unset: a STRING_TYPE column holds null, and an INT_TYPE column marks the
+ * row as null (see {@link #isNull}).
+ */
+public class TupleBatch implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /** The number of rows a batch can hold */
+    public static final int CAPACITY = 1024;
+
+    private final TupleDesc td;
+    /** per column, the values if it is an INT_TYPE column, or null */
+    private final int[][] ints;
+    /** per column, the values if it is a STRING_TYPE column, or null */
+    private final String[][] strings;
+    /** per INT_TYPE column, the rows without a value, or null while every row has one */
+    private final boolean[][] nulls;
+    private int size;
+    private int[] sel;
+    private int selSize;
+
+    /**
+     * Creates an empty batch.
+     *
+     * @param td
+     *            the schema of the rows of the batch
+     */
+    public TupleBatch(TupleDesc td) {
+        this.td = td;
+        int n = td.numFields();
+        ints = new int[n][];
+        strings = new String[n][];
+        nulls = new boolean[n][];
+        for (int i = 0; i < n; i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE)
+                ints[i] = new int[CAPACITY];
+            else
+                strings[i] = new String[CAPACITY];
+        }
+    }
+
+    private TupleBatch(TupleDesc td, int[][] ints, String[][] strings, boolean[][] nulls,
+            int size, int[] sel, int selSize) {
+        this.td = td;
+        this.ints = ints;
+        this.strings = strings;
+        this.nulls = nulls;
+        this.size = size;
+        this.sel = sel;
+        this.selSize = selSize;
+    }
+
+    /**
+     * @return the schema of the rows of this batch
+     */
+    public TupleDesc getTupleDesc() {
+        return td;
+    }
+
+    /**
+     * @return the number of live rows
+     */
+    public int numRows() {
+        return sel == null ? size : selSize;
+    }
+
+    /**
+     * @return the position in the columns of the i-th live row
+     */
+    public int row(int i) {
+        return sel == null ? i : sel[i];
+    }
+
+    /**
+     * @return the number of rows stored in the columns, live or not
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return true if no more rows can be added
+     */
+    public boolean isFull() {
+        return size == CAPACITY;
+    }
+
+    /**
+     * @return the values of an INT_TYPE column, indexed by row position
+     */
+    public int[] intColumn(int field) {
+        return ints[field];
+    }
+
+    /**
+     * @return the values of a STRING_TYPE column, indexed by row position
+     */
+    public String[] stringColumn(int field) {
+        return strings[field];
+    }
+
+    /**
+     * @return true if a row has no value in a field, because the tuple it was
+     *         added from left the field unset
+     */
+    public boolean isNull(int field, int row) {
+        if (strings[field] != null)
+            return strings[field][row] == null;
+        return nulls[field] != null && nulls[field][row];
+    }
+
+    /** Marks a row of an INT_TYPE column as having no value */
+    private void setNull(int field, int row) {
+        if (nulls[field] == null)
+            nulls[field] = new boolean[CAPACITY];
+        nulls[field][row] = true;
+    }
+
+    /**
+     * Restricts the live rows of this batch.
+     *
+     * @param sel
+     *            the positions of the live rows, in increasing order
+     * @param n
+     *            the number of entries of sel that are used
+     */
+    public void setSelection(int[] sel, int n) {
+        this.sel = sel;
+        this.selSize = n;
+    }
+
+    /**
+     * Removes all rows from this batch.
+     */
+    public void clear() {
+        size = 0;
+        sel = null;
+        selSize = 0;
+    }
+
+    /**
+     * Appends an empty row to this batch, whose values are then set directly
+     * in the columns.
+     *
+     * @return the position of the new row
+     */
+    public int addRow() {
+        if (size == CAPACITY)
+            throw new IllegalStateException("batch is full");
+        if (sel != null)
+            throw new IllegalStateException("cannot add rows to a filtered batch");
+        for (boolean[] col : nulls) {
+            if (col != null)
+                col[size] = false;
+        }
+        return size++;
+    }
+
+    /**
+     * Appends a tuple to this batch; its unset fields stay unset.
+     */
+    public void addTuple(Tuple t) {
+        int r = addRow();
+        for (int i = 0; i < ints.length; i++) {
+            Field f = t.getField(i);
+            if (ints[i] == null)
+                strings[i][r] = f == null ? null : ((StringField) f).getValue();
+            else if (f == null)
+                setNull(i, r);
+            else
+                ints[i][r] = ((IntField) f).getValue();
+        }
+    }
+
+    /**
+     * Copies all values of a row of another batch into a row of this one.
+     *
+     * @param src
+     *            the batch to copy from
+     * @param srcRow
+     *            the position of the row in src
+     * @param dstRow
+     *            the position of the row in this batch
+     * @param offset
+     *            the column of this batch that receives the first column of
+     *            src
+     */
+    void copyRow(TupleBatch src, int srcRow, int dstRow, int offset) {
+        for (int i = 0; i < src.ints.length; i++) {
+            if (src.ints[i] == null)
+                strings[offset + i][dstRow] = src.strings[i][srcRow];
+            else if (src.isNull(i, srcRow))
+                setNull(offset + i, dstRow);
+            else
+                ints[offset + i][dstRow] = src.ints[i][srcRow];
+        }
+    }
+
+    /**
+     * Materializes a live row as a Tuple.
+     *
+     * @param i
+     *            the index of the row among the live rows
+     */
+    public Tuple getTuple(int i) {
+        int r = row(i);
+        Tuple t = new Tuple(td);
+        for (int f = 0; f < ints.length; f++) {
+            if (isNull(f, r))
+                continue;
+            if (ints[f] != null)
+                t.setField(f, new IntField(ints[f][r]));
+            else
+                t.setField(f, new StringField(strings[f][r], Type.STRING_LEN));
+        }
+        return t;
+    }
+
+    /**
+     * Returns a batch with a subset of the columns of this one, sharing its
+     * column arrays and selection vector, so that no values are copied.
+     *
+     * @param fields
+     *            the columns of this batch to keep, in output order
+     * @param outTd
+     *            the schema of the returned batch
+     */
+    public TupleBatch project(int[] fields, TupleDesc outTd) {
+        int[][] pInts = new int[fields.length][];
+        String[][] pStrings = new String[fields.length][];
+        boolean[][] pNulls = new boolean[fields.length][];
+        for (int i = 0; i < fields.length; i++) {
+            pInts[i] = ints[fields[i]];
+            pStrings[i] = strings[fields[i]];
+            pNulls[i] = nulls[fields[i]];
+        }
+        return new TupleBatch(outTd, pInts, pStrings, pNulls, size, sel, selSize);
+    }
+}
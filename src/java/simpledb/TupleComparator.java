@@ -0,0 +1,122 @@
+package simpledb;
+
+import java.io.Serializable;
+import java.util.Comparator;
+
+/**
+ * TupleComparator orders tuples on a list of sort keys, each with its own
+ * direction. Comparators are built once per plan by {@link #create}, which
+ * looks at the key types in the TupleDesc and returns an implementation
+ * specialized for them: single INT_TYPE and STRING_TYPE keys get a dedicated
+ * class that compares the raw values directly, and composite keys loop over
+ * precomputed per-key type flags and signs. None of them go through
+ * {@link Field#compare}, which would need two calls (EQUALS, then
+ * GREATER_THAN) and a switch on the operator per comparison.
+ */
+public abstract class TupleComparator implements Comparator<Tuple>, Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a comparator on a single field.
+     *
+     * @param td
+     *            the schema of the tuples to compare
+     * @param field
+     *            the index of the sort key in td
+     * @param asc
+     *            true if the key is sorted in ascending order
+     */
+    public static TupleComparator create(TupleDesc td, int field, boolean asc) {
+        return create(td, new int[] { field }, new boolean[] { asc });
+    }
+
+    /**
+     * Creates a comparator on a list of fields. Tuples are ordered by the
+     * first key, ties are broken by the second key, and so on.
+     *
+     * @param td
+     *            the schema of the tuples to compare
+     * @param fields
+     *            the indices of the sort keys in td, most significant first
+     * @param asc
+     *            for each key, true if it is sorted in ascending order
+     */
+    public static TupleComparator create(TupleDesc td, int[] fields, boolean[] asc) {
+        if (fields.length == 0 || fields.length != asc.length)
+            throw new IllegalArgumentException("need one direction for each of at least one sort key");
+        if (fields.length == 1) {
+            if (td.getFieldType(fields[0]) == Type.INT_TYPE)
+                return new IntKey(fields[0], asc[0]);
+            return new StringKey(fields[0], asc[0]);
+        }
+        return new MultiKey(td, fields, asc);
+    }
+
+    private static final class IntKey extends TupleComparator {
+        private static final long serialVersionUID = 1L;
+        private final int field;
+        private final boolean asc;
+
+        IntKey(int field, boolean asc) {
+            this.field = field;
+            this.asc = asc;
+        }
+
+        public int compare(Tuple o1, Tuple o2) {
+            int v1 = ((IntField) o1.getField(field)).getValue();
+            int v2 = ((IntField) o2.getField(field)).getValue();
+            return asc ? Integer.compare(v1, v2) : Integer.compare(v2, v1);
+        }
+    }
+
+    private static final class StringKey extends TupleComparator {
+        private static final long serialVersionUID = 1L;
+        private final int field;
+        private final boolean asc;
+
+        StringKey(int field, boolean asc) {
+            this.field = field;
+            this.asc = asc;
+        }
+
+        public int compare(Tuple o1, Tuple o2) {
+            String v1 = ((StringField) o1.getField(field)).getValue();
+            String v2 = ((StringField) o2.getField(field)).getValue();
+            return asc ? v1.compareTo(v2) : v2.compareTo(v1);
+        }
+    }
+
+    private static final class MultiKey extends TupleComparator {
+        private static final long serialVersionUID = 1L;
+        private final int[] fields;
+        private final boolean[] isInt;
+        private final int[] signs;
+
+        MultiKey(TupleDesc td, int[] fields, boolean[] asc) {
+            this.fields = fields.clone();
+            this.isInt = new boolean[fields.length];
+            this.signs = new int[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                isInt[i] = td.getFieldType(fields[i]) == Type.INT_TYPE;
+                signs[i] = asc[i] ? 1 : -1;
+            }
+        }
+
+        public int compare(Tuple o1, Tuple o2) {
+            for (int i = 0; i < fields.length; i++) {
+                int c;
+                if (isInt[i]) {
+                    c = Integer.compare(((IntField) o1.getField(fields[i])).getValue(),
+                            ((IntField) o2.getField(fields[i])).getValue());
+                } else {
+                    c = ((StringField) o1.getField(fields[i])).getValue().compareTo(
+                            ((StringField) o2.getField(fields[i])).getValue());
+                }
+                if (c != 0)
+                    return c * signs[i];
+            }
+            return 0;
+        }
+    }
+}
@@ -66,8 +66,7 @@ public class TupleDesc implements Serializable {
             @Override
             public TDItem next() {
                 if (hasNext()) {
-                    loc++;
-                    return tdItems[loc];
+                    return tdItems[loc++];
                 }
                 throw new NoSuchElementException();
             }
@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+
+/**
+ * TupleParser builds tuples from the slots of a page, where each tuple is
+ * stored as its fields back to back, in the fixed-width encoding of their
+ * types. A tuple can be read with only some of its fields; the others are
+ * skipped by their length, without being decoded, and are left unset.
+ */
+class TupleParser {
+
+    private TupleParser() {
+    }
+
+    /**
+     * Turns a list of field indexes into a mask over the fields of a tuple.
+     *
+     * @param fields
+     *            the indexes of the fields to read, or null to read them all
+     * @param numFields
+     *            the number of fields of the tuples
+     * @return the mask, or null if every field is read
+     */
+    static boolean[] mask(int[] fields, int numFields) {
+        if (fields == null)
+            return null;
+        boolean[] mask = new boolean[numFields];
+        int n = 0;
+        for (int f : fields) {
+            if (!mask[f])
+                n++;
+            mask[f] = true;
+        }
+        return n == numFields ? null : mask;
+    }
+
+    /**
+     * Reads the tuple stored at position start of data.
+     *
+     * @param td
+     *            the schema of the tuple
+     * @param rid
+     *            the record id of the tuple
+     * @param fields
+     *            the mask of the fields to read, or null to read them all
+     * @throws NoSuchElementException
+     *             if the tuple cannot be parsed
+     */
+    static Tuple parse(TupleDesc td, RecordId rid, byte[] data, int start, boolean[] fields)
+            throws NoSuchElementException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data, start, td.getSize()));
+        Tuple t = new Tuple(td);
+        t.setRecordId(rid);
+        try {
+            for (int j = 0; j < td.numFields(); j++) {
+                Type type = td.getFieldType(j);
+                if (fields == null || fields[j])
+                    t.setField(j, type.parse(dis));
+                else
+                    dis.skipBytes(type.getLen());
+            }
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        } catch (IOException e) {
+            throw new NoSuchElementException("error reading tuple");
+        }
+        return t;
+    }
+
+    /**
+     * Decodes the tuple stored at position start of data straight into a row
+     * of a batch: each field is read at its offset, without building a Tuple
+     * or Fields.
+     *
+     * @param td
+     *            the schema of the tuple
+     * @param batch
+     *            the batch, whose columns have the types of td
+     * @param row
+     *            the position of the row in batch
+     */
+    static void parseInto(TupleDesc td, byte[] data, int start, TupleBatch batch, int row) {
+        int pos = start;
+        for (int j = 0; j < td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            if (type == Type.INT_TYPE) {
+                batch.intColumn(j)[row] = RawPredicate.readInt(data, pos);
+            } else {
+                // decoded as Type.STRING_TYPE parses it
+                batch.stringColumn(j)[row] = new String(data, pos + 4, RawPredicate.readInt(data, pos));
+            }
+            pos += type.getLen();
+        }
+    }
+}
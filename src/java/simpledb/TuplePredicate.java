@@ -0,0 +1,15 @@
+package simpledb;
+
+/**
+ * TuplePredicate tests whether a tuple satisfies a condition, such as a
+ * conjunction of {@link Predicate}s. Instances are created by
+ * {@link ExpressionCompiler}, as generated code or as an interpreter of the
+ * predicates; either way they keep no state, so one instance can be shared by
+ * several threads.
+ */
+public interface TuplePredicate {
+    /**
+     * @return true if t satisfies the condition
+     */
+    boolean test(Tuple t);
+}
@@ -0,0 +1,15 @@
+package simpledb;
+
+/**
+ * TupleProjector builds the output tuple of a projection from an input
+ * tuple. Instances are created by {@link ExpressionCompiler}, as generated
+ * code or as an interpreter of the list of fields; either way they keep no
+ * state, so one instance can be shared by several threads.
+ */
+public interface TupleProjector {
+    /**
+     * @return a new tuple with the projected fields of t, and the record id
+     *         of t
+     */
+    Tuple project(Tuple t);
+}
@@ -0,0 +1,49 @@
+package simpledb;
+
+/**
+ * TupleToBatch adapts a tuple-at-a-time {@link DbIterator} into a
+ * {@link BatchIterator}, so that batched operators can run above it.
+ */
+public class TupleToBatch implements BatchIterator {
+
+    private static final long serialVersionUID = 1L;
+    private DbIterator child;
+    private transient TupleBatch batch;
+
+    /**
+     * Constructor.
+     *
+     * @param child
+     *            the iterator whose tuples are gathered into batches
+     */
+    public TupleToBatch(DbIterator child) {
+        this.child = child;
+    }
+
+    public TupleDesc getTupleDesc() {
+        return child.getTupleDesc();
+    }
+
+    public void open() throws DbException, TransactionAbortedException {
+        child.open();
+        batch = new TupleBatch(child.getTupleDesc());
+    }
+
+    public TupleBatch nextBatch() throws DbException, TransactionAbortedException {
+        if (batch == null)
+            throw new IllegalStateException("TupleToBatch not yet open");
+        batch.clear();
+        while (!batch.isFull() && child.hasNext())
+            batch.addTuple(child.next());
+        return batch.numRows() == 0 ? null : batch;
+    }
+
+    public void rewind() throws DbException, TransactionAbortedException {
+        child.rewind();
+    }
+
+    public void close() {
+        child.close();
+        batch = null;
+    }
+}
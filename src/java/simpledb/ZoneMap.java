@@ -0,0 +1,351 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ZoneMap keeps, for every page of a {@link HeapFile}, the smallest and
+ * largest value of each INT_TYPE column on the page, so that scans can skip
+ * pages that cannot hold a tuple matching their predicates without reading
+ * them through the BufferPool. Tables loaded in the order of a column get
+ * index-like range scans on that column.
+ * <p>
+ * The ranges are kept in a sidecar file next to the heap file (its name with
+ * ".zonemap" appended), which records the length and modification time of
+ * the heap file it describes. A sidecar that does not match its heap file is
+ * rebuilt from the pages on disk the next time a scan needs it.
+ * <p>
+ * The range of a page is recomputed whenever the page is written to disk,
+ * which {@link HeapFile#insertTuple} does right away. Tuples deleted from a
+ * page in the BufferPool stay in its range until the page is written, so the
+ * ranges may be wider than the data but never narrower.
+ */
+public class ZoneMap {
+
+    private static final int MAGIC = 0x5a4f4e45;
+    /** magic, number of columns, heap length, heap modification time, number of pages */
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+    /** the zone maps of heap files, by the absolute path of the heap file */
+    private static final ConcurrentHashMap<String, ZoneMap> maps = new ConcurrentHashMap<String, ZoneMap>();
+
+    private final File heap;
+    private final File sidecar;
+    private final TupleDesc td;
+    /** the INT_TYPE columns, and their offsets in a serialized tuple */
+    private final int[] columns;
+    private final int[] offsets;
+    /** column c of page p ranges over [min[p * columns.length + c], max[...]] */
+    private int[] min;
+    private int[] max;
+    private int numPages;
+    /** the length and modification time of the heap file the ranges describe */
+    private long heapLength = -1;
+    private long heapModified = -1;
+    private boolean loaded;
+
+    private ZoneMap(File heap, TupleDesc td) {
+        this.heap = heap.getAbsoluteFile();
+        this.sidecar = new File(this.heap.getPath() + ".zonemap");
+        this.td = td;
+        ArrayList<Integer> cols = new ArrayList<Integer>();
+        ArrayList<Integer> offs = new ArrayList<Integer>();
+        int off = 0;
+        for (int i = 0; i < td.numFields(); i++) {
+            if (td.getFieldType(i) == Type.INT_TYPE) {
+                cols.add(i);
+                offs.add(off);
+            }
+            off += td.getFieldType(i).getLen();
+        }
+        columns = new int[cols.size()];
+        offsets = new int[cols.size()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = cols.get(i);
+            offsets[i] = offs.get(i);
+        }
+    }
+
+    /**
+     * Returns the zone map of a heap file, shared by every HeapFile object
+     * over the same file. The ranges are loaded or built on first use.
+     */
+    public static ZoneMap of(HeapFile hf) {
+        String path = hf.getFile().getAbsolutePath();
+        ZoneMap m = maps.get(path);
+        if (m == null || !m.td.equals(hf.getTupleDesc())) {
+            m = new ZoneMap(hf.getFile(), hf.getTupleDesc());
+            maps.put(path, m);
+        }
+        return m;
+    }
+
+    /**
+     * Returns the predicates that the ranges can answer: those on INT_TYPE
+     * columns with an INT operand.
+     *
+     * @return the predicates, or null if there are none
+     */
+    public Predicate[] usable(Predicate[] preds) {
+        if (preds == null)
+            return null;
+        ArrayList<Predicate> usable = new ArrayList<Predicate>();
+        for (Predicate p : preds) {
+            if (column(p.getField()) >= 0 && p.getOperand().getType() == Type.INT_TYPE)
+                usable.add(p);
+        }
+        return usable.isEmpty() ? null : usable.toArray(new Predicate[0]);
+    }
+
+    private int column(int field) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] == field)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Loads the ranges from the sidecar, or builds them from the heap file
+     * if the sidecar is missing or out of date. Scans call this before they
+     * use {@link #mayMatch}.
+     *
+     * @throws DbException
+     *             if the ranges cannot be loaded or built
+     */
+    public synchronized void prepare() throws DbException {
+        ensureCurrent();
+    }
+
+    /**
+     * Returns false if no tuple of a page can satisfy all of the predicates,
+     * judging by the ranges of the INT_TYPE columns; predicates on other
+     * columns are ignored. Pages the ranges do not describe may match.
+     *
+     * @param page
+     *            the number of the page
+     * @param preds
+     *            the predicates
+     */
+    public synchronized boolean mayMatch(int page, Predicate[] preds) {
+        if (!loaded || page >= numPages)
+            return true;
+        for (Predicate p : preds) {
+            int c = column(p.getField());
+            if (c < 0)
+                continue;
+            int lo = min[page * columns.length + c];
+            int hi = max[page * columns.length + c];
+            if (lo > hi)
+                return false; // no tuples
+            int v = ((IntField) p.getOperand()).getValue();
+            boolean may;
+            switch (p.getOp()) {
+            case EQUALS:
+            case LIKE:
+                may = lo <= v && v <= hi;
+                break;
+            case NOT_EQUALS:
+                may = !(lo == v && hi == v);
+                break;
+            case GREATER_THAN:
+                may = hi > v;
+                break;
+            case GREATER_THAN_OR_EQ:
+                may = hi >= v;
+                break;
+            case LESS_THAN:
+                may = lo < v;
+                break;
+            default:
+                may = lo <= v;
+            }
+            if (!may)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Recomputes the ranges of a page that was just written to the heap file,
+     * and stores them in the sidecar. Does nothing until the ranges are
+     * loaded; a sidecar left behind is then found out of date.
+     *
+     * @param page
+     *            the number of the page
+     * @param data
+     *            the bytes written
+     */
+    public synchronized void pageWritten(int page, byte[] data) {
+        if (!loaded)
+            return;
+        int first = page;
+        if (page >= numPages) {
+            first = numPages;
+            grow(page + 1);
+        }
+        summarize(page, data);
+        heapLength = heap.length();
+        heapModified = heap.lastModified();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(sidecar, "rw");
+            try {
+                writeHeader(raf);
+                raf.seek(entryOffset(first));
+                for (int p = first; p <= page; p++)
+                    writeEntry(raf, p);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            // the sidecar is rebuilt when it no longer matches the heap file
+            Debug.log("could not update zone map %s: %s", sidecar, e);
+        }
+    }
+
+    /** Loads or rebuilds the ranges, unless they describe the heap file as it is */
+    private void ensureCurrent() throws DbException {
+        if (loaded && heapLength == heap.length() && heapModified == heap.lastModified())
+            return;
+        loaded = false;
+        try {
+            if (!load())
+                build();
+        } catch (IOException e) {
+            throw new DbException("could not read zone map of " + heap + ": " + e.getMessage());
+        }
+        loaded = true;
+    }
+
+    /** Reads the sidecar, returning false if it is missing or out of date */
+    private boolean load() throws IOException {
+        if (!sidecar.exists())
+            return false;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != columns.length)
+                return false;
+            long length = in.readLong();
+            long modified = in.readLong();
+            if (length != heap.length() || modified != heap.lastModified())
+                return false;
+            int pages = in.readInt();
+            min = new int[pages * columns.length];
+            max = new int[pages * columns.length];
+            for (int i = 0; i < min.length; i++) {
+                min[i] = in.readInt();
+                max[i] = in.readInt();
+            }
+            numPages = pages;
+            heapLength = length;
+            heapModified = modified;
+            return true;
+        } catch (EOFException e) {
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** Computes the ranges from the pages on disk, and writes the sidecar */
+    private void build() throws IOException {
+        int pageSize = BufferPool.getPageSize();
+        heapLength = heap.length();
+        heapModified = heap.lastModified();
+        numPages = (int) ((heapLength + pageSize - 1) / pageSize);
+        min = new int[numPages * columns.length];
+        max = new int[numPages * columns.length];
+        byte[] data = new byte[pageSize];
+        InputStream in = new BufferedInputStream(new FileInputStream(heap));
+        try {
+            for (int p = 0; p < numPages; p++) {
+                Arrays.fill(data, (byte) 0);
+                int read = 0;
+                while (read < pageSize) {
+                    int n = in.read(data, read, pageSize - read);
+                    if (n < 0)
+                        break;
+                    read += n;
+                }
+                summarize(p, data);
+            }
+        } finally {
+            in.close();
+        }
+        if (heap.getParentFile() != null
+                && heap.getParentFile().equals(new File(System.getProperty("java.io.tmpdir")).getAbsoluteFile()))
+            sidecar.deleteOnExit(); // temporary tables leave no sidecar behind
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(columns.length);
+            out.writeLong(heapLength);
+            out.writeLong(heapModified);
+            out.writeInt(numPages);
+            for (int i = 0; i < min.length; i++) {
+                out.writeInt(min[i]);
+                out.writeInt(max[i]);
+            }
+        } catch (IOException e) {
+            Debug.log("could not write zone map %s: %s", sidecar, e);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Sets the ranges of a page from its bytes, in the format of HeapPage */
+    private void summarize(int page, byte[] data) {
+        int tupleSize = td.getSize();
+        int numSlots = (BufferPool.getPageSize() * 8) / (tupleSize * 8 + 1);
+        int headerSize = (numSlots + 7) / 8;
+        int base = page * columns.length;
+        for (int c = 0; c < columns.length; c++) {
+            min[base + c] = Integer.MAX_VALUE;
+            max[base + c] = Integer.MIN_VALUE;
+        }
+        for (int slot = 0; slot < numSlots; slot++) {
+            if (((data[slot / 8] >> (slot % 8)) & 1) == 0)
+                continue;
+            int start = headerSize + slot * tupleSize;
+            for (int c = 0; c < columns.length; c++) {
+                int v = RawPredicate.readInt(data, start + offsets[c]);
+                if (v < min[base + c])
+                    min[base + c] = v;
+                if (v > max[base + c])
+                    max[base + c] = v;
+            }
+        }
+    }
+
+    /** Adds pages, which match anything until they are summarized */
+    private void grow(int pages) {
+        int[] newMin = Arrays.copyOf(min, pages * columns.length);
+        int[] newMax = Arrays.copyOf(max, pages * columns.length);
+        Arrays.fill(newMin, min.length, newMin.length, Integer.MIN_VALUE);
+        Arrays.fill(newMax, max.length, newMax.length, Integer.MAX_VALUE);
+        min = newMin;
+        max = newMax;
+        numPages = pages;
+    }
+
+    private long entryOffset(int page) {
+        return HEADER_SIZE + (long) page * columns.length * 8;
+    }
+
+    private void writeHeader(RandomAccessFile raf) throws IOException {
+        raf.seek(0);
+        raf.writeInt(MAGIC);
+        raf.writeInt(columns.length);
+        raf.writeLong(heapLength);
+        raf.writeLong(heapModified);
+        raf.writeInt(numPages);
+    }
+
+    private void writeEntry(RandomAccessFile raf, int page) throws IOException {
+        for (int c = 0; c < columns.length; c++) {
+            raf.writeInt(min[page * columns.length + c]);
+            raf.writeInt(max[page * columns.length + c]);
+        }
+    }
+}
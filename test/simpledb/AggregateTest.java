@@ -176,6 +176,122 @@ public class AggregateTest extends SimpleDbTestBase {
     TestUtil.matchAllTuples(min, op);
   }
 
+  /**
+   * Unit test for Aggregate with more groups than fit in its memory budget,
+   * so that groups are spilled to partitions and aggregated afterwards
+   */
+  @Test public void spillingGroupBy() throws Exception {
+    int numTuples = 5000;
+    java.util.Random r = new java.util.Random(11);
+    int[] data = new int[numTuples * 2];
+    java.util.TreeMap<Integer, Integer> sums = new java.util.TreeMap<Integer, Integer>();
+    for (int i = 0; i < numTuples; i++) {
+      int group = r.nextInt(3000);
+      int value = r.nextInt(100);
+      data[i * 2] = group;
+      data[i * 2 + 1] = value;
+      Integer sum = sums.get(group);
+      sums.put(group, (sum == null ? 0 : sum) + value);
+    }
+    int[] expected = new int[sums.size() * 2];
+    int i = 0;
+    for (java.util.Map.Entry<Integer, Integer> e : sums.entrySet()) {
+      expected[i++] = e.getKey();
+      expected[i++] = e.getValue();
+    }
+
+    Aggregate op = new Aggregate(TestUtil.createTupleList(2, data), 1, 0,
+        Aggregator.Op.SUM, 3);
+    op.open();
+    assertTrue(op.numPendingPartitions() > 0);
+    DbIterator sum = TestUtil.createTupleList(2, expected);
+    sum.open();
+    TestUtil.matchAllTuples(sum, op);
+    op.rewind();
+    TestUtil.matchAllTuples(sum, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for the size of the group table: a group costs more than its
+   * fields, and groups spill exactly once the table holds as many as the
+   * memory budget allows
+   */
+  @Test public void spillThreshold() throws Exception {
+    int pages = 3;
+    int maxGroups = Aggregate.maxGroups(Type.INT_TYPE, 1, pages);
+    assertEquals(pages * BufferPool.getPageSize() / (3 * Type.INT_TYPE.getLen()
+        + Aggregate.GROUP_OVERHEAD + Aggregate.AGGREGATE_OVERHEAD), maxGroups);
+    assertTrue(maxGroups < pages * BufferPool.getPageSize() / (3 * Type.INT_TYPE.getLen()));
+    assertTrue(Aggregate.maxGroups(Type.INT_TYPE, 2, pages) < maxGroups);
+
+    for (int groups : new int[] { maxGroups, maxGroups + 1 }) {
+      int[] data = new int[groups * 2 * 2];
+      for (int i = 0; i < groups * 2; i++) {
+        data[i * 2] = i % groups;
+        data[i * 2 + 1] = i;
+      }
+      Aggregate op = new Aggregate(TestUtil.createTupleList(2, data), 1, 0,
+          Aggregator.Op.COUNT, pages);
+      op.open();
+      assertEquals(groups == maxGroups, op.numPendingPartitions() == 0);
+      int n = 0;
+      while (op.hasNext()) {
+        assertEquals(2, ((IntField) op.next().getField(1)).getValue());
+        n++;
+      }
+      assertEquals(groups, n);
+      op.close();
+    }
+  }
+
+  /**
+   * Unit test for Aggregate in streaming mode, over input sorted on the
+   * group-by field
+   */
+  @Test public void streamingGroupBy() throws Exception {
+    for (Aggregator.Op aop : new Aggregator.Op[] { Aggregator.Op.SUM,
+        Aggregator.Op.MIN, Aggregator.Op.MAX, Aggregator.Op.AVG, Aggregator.Op.COUNT }) {
+      DbIterator sorted = new OrderBy(0, true, TestUtil.createTupleList(width1,
+          new int[] { 3, 2, 1, 2, 3, 4, 1, 6, 3, 8, 1, 10, 2, 12 }));
+      assertTrue(LogicalPlan.isOrderedOn(sorted, 0));
+      assertTrue(!LogicalPlan.isOrderedOn(sorted, 1));
+      Aggregate op = new Aggregate(sorted, 1, 0, aop, true);
+      assertTrue(op.isStreaming());
+      Aggregate expected = new Aggregate(TestUtil.createTupleList(width1,
+          new int[] { 3, 2, 1, 2, 3, 4, 1, 6, 3, 8, 1, 10, 2, 12 }), 1, 0, aop);
+      op.open();
+      expected.open();
+      TestUtil.matchAllTuples(expected, op);
+      op.rewind();
+      TestUtil.matchAllTuples(expected, op);
+      op.close();
+      expected.close();
+    }
+  }
+
+  /**
+   * Unit test for Aggregate computing several aggregates, one of them
+   * distinct, in one pass, with and without spilling
+   */
+  @Test public void multipleAggregates() throws Exception {
+    int[] data = new int[] { 1, 2, 1, 4, 1, 2, 3, 2, 3, 4, 3, 6, 5, 7 };
+    int[] expected = new int[] { 1, 8, 4, 2, 3, 12, 6, 3, 5, 7, 7, 1 };
+    for (boolean sorted : new boolean[] { false, true }) {
+      Aggregate op = new Aggregate(TestUtil.createTupleList(width1, data),
+          new int[] { 1, 1, 1 },
+          new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.MAX, Aggregator.Op.COUNT },
+          new boolean[] { false, false, true }, 0, 3, sorted);
+      assertEquals(3, op.numAggregates());
+      assertTrue(op.getTupleDesc().getFieldName(3).startsWith("count (distinct "));
+      op.open();
+      DbIterator sum = TestUtil.createTupleList(4, expected);
+      sum.open();
+      TestUtil.matchAllTuples(sum, op);
+      op.close();
+    }
+  }
+
   /**
    * JUnit suite target
    */
@@ -201,6 +201,121 @@ public class BTreeFileReadTest extends SimpleDbTestBase {
 
 	}
 
+	/**
+	 * Unit test for BTreeFile.iterator() with pushed-down predicates, one of
+	 * them on the key, reading only some of the fields
+	 */
+	@Test public void predicatesAndFields() throws Exception {
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(3, 2000, 1000, null, tuples, 0);
+		Predicate[] preds = new Predicate[] {
+				new Predicate(2, Op.LESS_THAN, new IntField(500)),
+				new Predicate(0, Op.GREATER_THAN_OR_EQ, new IntField(300)) };
+		int expected = 0;
+		for (ArrayList<Integer> t : tuples) {
+			if (t.get(2) < 500 && t.get(0) >= 300)
+				expected++;
+		}
+		DbFileIterator it = bf.iterator(tid, preds, new int[] { 1 });
+		it.open();
+		int count = 0;
+		Field prev = null;
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			assertTrue(preds[0].filter(t) && preds[1].filter(t));
+			assertNotNull(t.getField(1));
+			assertTrue(prev == null || prev.compare(Op.LESS_THAN_OR_EQ, t.getField(0)));
+			prev = t.getField(0);
+			count++;
+		}
+		assertEquals(expected, count);
+		it.close();
+	}
+
+	/** Counts the pages read from disk, by any thread */
+	private static class CountingBTreeFile extends BTreeFile {
+		final java.util.concurrent.atomic.AtomicInteger reads = new java.util.concurrent.atomic.AtomicInteger();
+
+		CountingBTreeFile(BTreeFile f) {
+			super(f.getFile(), f.keyField(), f.getTupleDesc());
+		}
+
+		@Override
+		public Page readPage(PageId pid) {
+			reads.incrementAndGet();
+			return super.readPage(pid);
+		}
+	}
+
+	/** Waits up to a few seconds for a number of pages to have been read, and returns how many were */
+	private static int awaitReads(CountingBTreeFile cf, int n) throws InterruptedException {
+		for (int i = 0; i < 100 && cf.reads.get() < n; i++)
+			Thread.sleep(50);
+		Thread.sleep(100); // and for any read too many
+		return cf.reads.get();
+	}
+
+	/**
+	 * Unit test for reading leaf pages ahead of long scans: a scan that has followed
+	 * a few sibling pointers reads the next pages in the background, but no page the
+	 * scan would not read itself, and no page twice
+	 */
+	@Test public void readAhead() throws Exception {
+		final int LEAF_PAGES = 30;
+		final int PER_LEAF = 502;
+		CountingBTreeFile cf = new CountingBTreeFile(
+				BTreeUtility.createBTreeFile(2, LEAF_PAGES * PER_LEAF, null, null, 0));
+		Database.getCatalog().addTable(cf, "readahead");
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+		// a short scan reads no page ahead
+		DbFileIterator it = cf.iterator(tid);
+		it.open();
+		for (int i = 0; i < PER_LEAF * BTreeLeafCursor.READ_AHEAD_AFTER; i++)
+			it.next();
+		// root pointer page + root + the leaf pages read
+		assertEquals(2 + BTreeLeafCursor.READ_AHEAD_AFTER, awaitReads(cf, 2 + BTreeLeafCursor.READ_AHEAD_AFTER));
+
+		// the next leaf is the first one reached after enough sibling pointers
+		it.next();
+		int expected = 3 + BTreeLeafCursor.READ_AHEAD_AFTER + BTreeLeafCursor.READ_AHEAD_PAGES;
+		assertEquals(expected, awaitReads(cf, expected));
+		int count = PER_LEAF * BTreeLeafCursor.READ_AHEAD_AFTER + 1;
+		while (it.hasNext()) {
+			assertEquals(++count, ((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		assertEquals(LEAF_PAGES * PER_LEAF, count);
+		assertEquals(2 + LEAF_PAGES, awaitReads(cf, 2 + LEAF_PAGES));
+
+		// a range scan reads no further ahead than the leaf page it ends on
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		cf.reads.set(0);
+		int bound = 10 * PER_LEAF + 100;
+		it = cf.indexIterator(tid, new IndexPredicate(Op.LESS_THAN, new IntField(bound)));
+		it.open();
+		count = 0;
+		while (it.hasNext()) {
+			assertEquals(++count, ((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		assertEquals(bound - 1, count);
+		assertEquals(2 + 11, awaitReads(cf, 2 + 11));
+
+		// and neither does a reverse one
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		cf.reads.set(0);
+		it = cf.reverseIndexIterator(tid, new IndexPredicate(Op.GREATER_THAN_OR_EQ, new IntField(bound)));
+		it.open();
+		count = 0;
+		while (it.hasNext()) {
+			assertEquals(LEAF_PAGES * PER_LEAF - count++, ((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		assertEquals(LEAF_PAGES * PER_LEAF - bound + 1, count);
+		assertEquals(2 + LEAF_PAGES - 10, awaitReads(cf, 2 + LEAF_PAGES - 10));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -313,6 +313,42 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/** The child a linear search of the entries descends to */
+	private static BTreePageId linearFindChild(BTreeInternalPage page, Field f) {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = it.next();
+		if (f == null)
+			return e.getLeftChild();
+		while (it.hasNext() && f.compare(Predicate.Op.GREATER_THAN, e.getKey()))
+			e = it.next();
+		return f.compare(Predicate.Op.LESS_THAN_OR_EQ, e.getKey()) ? e.getLeftChild() : e.getRightChild();
+	}
+
+	/**
+	 * Unit test for BTreeInternalPage.findChild(), before and after deletions
+	 */
+	@Test public void findChild() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		assertEquals(linearFindChild(page, null), page.findChild(null));
+		for (int round = 0; round < 2; round++) {
+			for (int[] entry : EXAMPLE_VALUES) {
+				for (int d = -1; d <= 1; d++) {
+					IntField f = new IntField(entry[1] + d);
+					assertEquals(linearFindChild(page, f), page.findChild(f));
+				}
+			}
+			assertEquals(linearFindChild(page, new IntField(0)), page.findChild(new IntField(0)));
+			assertEquals(linearFindChild(page, new IntField(100000)), page.findChild(new IntField(100000)));
+			// leave holes in the slots
+			Iterator<BTreeEntry> it = page.iterator();
+			for (int i = 0; it.hasNext(); i++) {
+				BTreeEntry e = it.next();
+				if (i % 3 == 1)
+					page.deleteKeyAndRightChild(e);
+			}
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -336,6 +336,47 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.findSlot() and iterating from the slot found,
+	 * before and after deletions
+	 */
+	@Test public void findSlot() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		for (int round = 0; round < 2; round++) {
+			for (int[] tuple : EXAMPLE_VALUES) {
+				for (int d = -1; d <= 1; d++) {
+					for (boolean strict : new boolean[] { false, true }) {
+						IntField f = new IntField(tuple[0] + d);
+						Predicate.Op op = strict ? Predicate.Op.GREATER_THAN : Predicate.Op.GREATER_THAN_OR_EQ;
+						Iterator<Tuple> expected = page.iterator();
+						Tuple first = null;
+						while (expected.hasNext() && first == null) {
+							Tuple t = expected.next();
+							if (t.getField(0).compare(op, f))
+								first = t;
+						}
+						Iterator<Tuple> actual = page.iterator(null, page.findSlot(f, strict));
+						if (first == null) {
+							assertFalse(actual.hasNext());
+						} else {
+							assertEquals(first, actual.next());
+							while (expected.hasNext())
+								assertEquals(expected.next(), actual.next());
+							assertFalse(actual.hasNext());
+						}
+					}
+				}
+			}
+			// leave holes in the slots
+			Iterator<Tuple> it = page.iterator();
+			for (int i = 0; it.hasNext(); i++) {
+				Tuple t = it.next();
+				if (i % 3 == 1)
+					page.deleteTuple(t);
+			}
+		}
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -0,0 +1,263 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.*;
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BatchTest extends SimpleDbTestBase {
+
+  int testWidth = 3;
+  int numTuples = 3000;
+  int[] data;
+
+  /**
+   * Initialize each unit test with more tuples than fit in one batch
+   */
+  @Before public void createData() {
+    Random r = new Random(3);
+    data = new int[numTuples * testWidth];
+    for (int i = 0; i < data.length; i++)
+      data[i] = r.nextInt(200);
+  }
+
+  /** Sorts a plan on all of its columns, so results can be compared in order */
+  private DbIterator sorted(DbIterator it) {
+    int n = it.getTupleDesc().numFields();
+    int[] fields = new int[n];
+    boolean[] asc = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      fields[i] = i;
+      asc[i] = true;
+    }
+    return new OrderBy(fields, asc, it);
+  }
+
+  private void compare(DbIterator expected, DbIterator actual) throws Exception {
+    expected.open();
+    actual.open();
+    TestUtil.compareDbIterators(expected, actual);
+    actual.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, actual);
+    expected.close();
+    actual.close();
+  }
+
+  /**
+   * Unit test for the adapters between tuples and batches
+   */
+  @Test public void adapters() throws Exception {
+    compare(TestUtil.createTupleList(testWidth, data),
+        new BatchToTuple(new TupleToBatch(TestUtil.createTupleList(testWidth, data))));
+  }
+
+  /**
+   * Unit test for BatchFilter and BatchProject, stacked so that a filter
+   * narrows an already filtered batch
+   */
+  @Test public void filterAndProject() throws Exception {
+    for (Predicate.Op op : Predicate.Op.values()) {
+      Predicate p1 = new Predicate(0, op, TestUtil.getField(100));
+      Predicate p2 = new Predicate(1, Predicate.Op.LESS_THAN, TestUtil.getField(150));
+      ArrayList<Integer> fields = new ArrayList<Integer>(Arrays.asList(2, 0));
+      DbIterator expected = new Project(fields, new Type[] { Type.INT_TYPE, Type.INT_TYPE },
+          new Filter(p2, new Filter(p1, TestUtil.createTupleList(testWidth, data))));
+      DbIterator actual = new BatchToTuple(new BatchProject(new int[] { 2, 0 },
+          new BatchFilter(p2, new BatchFilter(p1,
+              new TupleToBatch(TestUtil.createTupleList(testWidth, data))))));
+      compare(expected, actual);
+    }
+  }
+
+  /**
+   * Unit test for BatchFilter over a STRING_TYPE column
+   */
+  @Test public void filterStrings() throws Exception {
+    Object[] strings = new Object[] { "apple", 1, "pear", 2, "fig", 3, "grape", 4 };
+    DbIterator actual = new BatchToTuple(new BatchFilter(
+        new Predicate(0, Predicate.Op.GREATER_THAN, new StringField("fig", Type.STRING_LEN)),
+        new TupleToBatch(TestUtil.createTupleList(2, strings))));
+    compare(TestUtil.createTupleList(2, new Object[] { "pear", 2, "grape", 4 }), actual);
+  }
+
+  /**
+   * Unit test for BatchHashEquiJoin, with a build side spanning several
+   * batches and keys matching several rows
+   */
+  @Test public void hashJoin() throws Exception {
+    int[] inner = Arrays.copyOf(data, 1500 * testWidth);
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    DbIterator expected = sorted(new HashEquiJoin(p,
+        TestUtil.createTupleList(testWidth, data), TestUtil.createTupleList(testWidth, inner)));
+    DbIterator actual = sorted(new BatchToTuple(new BatchHashEquiJoin(p,
+        new TupleToBatch(TestUtil.createTupleList(testWidth, data)),
+        new TupleToBatch(TestUtil.createTupleList(testWidth, inner)))));
+    compare(expected, actual);
+  }
+
+  /**
+   * Unit test for BatchAggregate with and without grouping
+   */
+  @Test public void aggregate() throws Exception {
+    int[] afields = new int[] { 1, 1, 1, 2, 2 };
+    Aggregator.Op[] aops = new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX,
+        Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT };
+    boolean[] distinct = new boolean[afields.length];
+    for (int gfield : new int[] { 0, Aggregator.NO_GROUPING }) {
+      DbIterator expected = sorted(new Aggregate(TestUtil.createTupleList(testWidth, data),
+          afields, aops, distinct, gfield, Aggregate.DEFAULT_MEMORY_PAGES, false));
+      BatchAggregate agg = new BatchAggregate(
+          new TupleToBatch(TestUtil.createTupleList(testWidth, data)), afields, aops, gfield);
+      assertEquals(expected.getTupleDesc(), agg.getTupleDesc());
+      compare(expected, sorted(new BatchToTuple(agg)));
+    }
+  }
+
+  /**
+   * Unit test for BatchAggregate over no input, which like Aggregate returns
+   * no rows, with or without grouping
+   */
+  @Test public void aggregateEmpty() throws Exception {
+    int[] afields = new int[] { 1, 2 };
+    Aggregator.Op[] aops = new Aggregator.Op[] { Aggregator.Op.COUNT, Aggregator.Op.SUM };
+    boolean[] distinct = new boolean[afields.length];
+    for (int gfield : new int[] { 0, Aggregator.NO_GROUPING }) {
+      DbIterator expected = new Aggregate(TestUtil.createTupleList(testWidth, new int[0]),
+          afields, aops, distinct, gfield, Aggregate.DEFAULT_MEMORY_PAGES, false);
+      DbIterator actual = new BatchToTuple(new BatchAggregate(
+          new TupleToBatch(TestUtil.createTupleList(testWidth, new int[0])), afields, aops, gfield));
+      actual.open();
+      assertTrue(TestUtil.checkExhausted(actual));
+      actual.close();
+      compare(expected, actual);
+    }
+  }
+
+  /**
+   * Unit test for BatchSeqScan against SeqScan over a heap file
+   */
+  @Test public void seqScan() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(testWidth, numTuples, null, null);
+    Database.getCatalog().addTable(f, "batch");
+    TransactionId tid = new TransactionId();
+    BatchSeqScan scan = new BatchSeqScan(tid, f.getId(), "b");
+    SeqScan expected = new SeqScan(tid, f.getId(), "b");
+    assertEquals(expected.getTupleDesc(), scan.getTupleDesc());
+    compare(expected, new BatchToTuple(scan));
+  }
+
+  /**
+   * Unit test for BatchSeqScan over a STRING_TYPE column, with slots emptied
+   * and filled since the pages were read
+   */
+  @Test public void seqScanStrings() throws Exception {
+    File in = File.createTempFile("batch", ".txt");
+    in.deleteOnExit();
+    PrintWriter w = new PrintWriter(new FileWriter(in));
+    for (int i = 0; i < numTuples; i++)
+      w.println("s" + data[i] + "," + i);
+    w.close();
+    File out = File.createTempFile("batch", ".dat");
+    out.deleteOnExit();
+    Type[] types = new Type[] { Type.STRING_TYPE, Type.INT_TYPE };
+    HeapFileEncoder.convert(in, out, BufferPool.getPageSize(), 2, types);
+    HeapFile f = new HeapFile(out, new TupleDesc(types, new String[] { "s", "i" }));
+    Database.getCatalog().addTable(f, "batchStrings");
+    TransactionId tid = new TransactionId();
+
+    // the pages hold the changed slots as Tuples rather than in their bytes
+    ArrayList<Tuple> first = new ArrayList<Tuple>();
+    DbFileIterator it = f.iterator(tid);
+    it.open();
+    for (int i = 0; i < 10; i++)
+      first.add(it.next());
+    it.close();
+    for (int i = 0; i < first.size(); i += 3)
+      Database.getBufferPool().deleteTuple(tid, first.get(i));
+    Tuple t = new Tuple(f.getTupleDesc());
+    t.setField(0, new StringField("inserted", Type.STRING_LEN));
+    t.setField(1, new IntField(-1));
+    Database.getBufferPool().insertTuple(tid, f.getId(), t);
+
+    compare(new SeqScan(tid, f.getId(), "b"), new BatchToTuple(new BatchSeqScan(tid, f.getId(), "b")));
+  }
+
+  /**
+   * Unit test for batches of tuples from a scan that reads only some fields:
+   * the other fields stay unset through a filter and a join
+   */
+  @Test public void projectedScan() throws Exception {
+    HeapFile f = SystemTestUtil.createRandomHeapFile(testWidth, numTuples, 200, null, null);
+    Database.getCatalog().addTable(f, "projected");
+    TransactionId tid = new TransactionId();
+    int[] fields = new int[] { 0, 2 };
+    Predicate p = new Predicate(0, Predicate.Op.LESS_THAN, TestUtil.getField(100));
+    SeqScan scan = new SeqScan(tid, f.getId(), "p");
+    scan.setFields(fields);
+    SeqScan batchScan = new SeqScan(tid, f.getId(), "p");
+    batchScan.setFields(fields);
+    SeqScan inner = new SeqScan(tid, f.getId(), "q");
+    inner.setFields(fields);
+    JoinPredicate jp = new JoinPredicate(2, Predicate.Op.EQUALS, 2);
+    DbIterator expected = new Filter(p, scan);
+    DbIterator actual = new BatchToTuple(new BatchHashEquiJoin(jp,
+        new BatchFilter(p, new TupleToBatch(batchScan)),
+        new TupleToBatch(inner)));
+
+    // tuples with unset fields, which TestUtil.compareTuples cannot compare
+    ArrayList<Integer> keys = new ArrayList<Integer>();
+    expected.open();
+    while (expected.hasNext()) {
+      Tuple t = expected.next();
+      assertEquals(null, t.getField(1));
+      keys.add(((IntField) t.getField(2)).getValue());
+    }
+    expected.close();
+    actual.open();
+    int n = 0;
+    while (actual.hasNext()) {
+      Tuple t = actual.next();
+      assertTrue(((IntField) t.getField(0)).getValue() < 100);
+      assertEquals(null, t.getField(1));
+      assertEquals(null, t.getField(4));
+      assertEquals(t.getField(2), t.getField(5));
+      n++;
+    }
+    actual.close();
+
+    // read last, since the pages keep the tuples they parse with every field
+    HashMap<Integer, Integer> innerCounts = new HashMap<Integer, Integer>();
+    DbFileIterator it = f.iterator(tid);
+    it.open();
+    while (it.hasNext()) {
+      int key = ((IntField) it.next().getField(2)).getValue();
+      Integer c = innerCounts.get(key);
+      innerCounts.put(key, c == null ? 1 : c + 1);
+    }
+    it.close();
+    int rows = 0;
+    for (int key : keys) {
+      Integer c = innerCounts.get(key);
+      rows += c == null ? 0 : c;
+    }
+    assertEquals(rows, n);
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(BatchTest.class);
+  }
+}
@@ -0,0 +1,76 @@
+package simpledb;
+
+import java.io.*;
+import java.util.*;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class BloomFilterTest extends SimpleDbTestBase {
+
+    private static byte[] serialize(Field f) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        f.serialize(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+
+    /**
+     * Every key added is found, in a Field and in its bytes, and few others are
+     */
+    @Test public void intKeys() throws Exception {
+        BloomFilter bloom = new BloomFilter(Type.INT_TYPE, 1000);
+        for (int i = 0; i < 1000; i++)
+            bloom.add(new IntField(i * 7));
+        assertEquals(1000, bloom.size());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(bloom.mightContain(new IntField(i * 7)));
+            assertTrue(bloom.mightContain(serialize(new IntField(i * 7)), 0));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (bloom.mightContain(new IntField(-1 - i)))
+                falsePositives++;
+        }
+        assertTrue("false positive rate " + falsePositives / 10000.0, falsePositives < 300);
+    }
+
+    /**
+     * String keys hash alike as Fields and as bytes
+     */
+    @Test public void stringKeys() throws Exception {
+        BloomFilter bloom = new BloomFilter(Type.STRING_TYPE, 10);
+        bloom.add(new StringField("alpha", Type.STRING_LEN));
+        bloom.add(new StringField("beta", Type.STRING_LEN));
+        assertTrue(bloom.mightContain(new StringField("alpha", Type.STRING_LEN)));
+        assertTrue(bloom.mightContain(serialize(new StringField("beta", Type.STRING_LEN)), 0));
+        assertFalse(new BloomFilter(Type.STRING_TYPE, 10).mightContain(new StringField("alpha", Type.STRING_LEN)));
+    }
+
+    /**
+     * A RawPredicate over a Bloom filter tests tuples and their bytes
+     */
+    @Test public void rawPredicate() throws Exception {
+        TupleDesc td = Utility.getTupleDesc(2);
+        BloomFilter bloom = new BloomFilter(Type.INT_TYPE, 1);
+        bloom.add(new IntField(42));
+        RawPredicate in = new RawPredicate(1, bloom, td);
+        assertNull(in.getPredicate());
+        Tuple t = Utility.getHeapTuple(new int[] { 0, 42 });
+        assertTrue(in.test(t));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(serialize(new IntField(0)));
+        out.write(serialize(new IntField(42)));
+        assertTrue(in.test(out.toByteArray(), 0));
+        assertFalse(in.test(Utility.getHeapTuple(new int[] { 42, 0 })));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BloomFilterTest.class);
+    }
+}
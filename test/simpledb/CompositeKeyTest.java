@@ -0,0 +1,284 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.*;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class CompositeKeyTest extends SimpleDbTestBase {
+	private static final String[] NAMES = { "", "a", "ab", "abc", "abd", "b", "ba", "zz" };
+	private static final int ROWS = 2000;
+
+	private TupleDesc td;
+	private BTreeFile bf;
+
+	/**
+	 * Creates an empty B+ tree of (name, n, v) keyed on (name, n)
+	 */
+	@Before
+	public void setUp() throws Exception {
+		td = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE, Type.INT_TYPE },
+				new String[] { "name", "n", "v" });
+		File f = File.createTempFile("composite", ".dat");
+		f.deleteOnExit();
+		bf = BTreeUtility.createEmptyBTreeFile(f.getAbsolutePath(), td, new int[] { 0, 1 });
+	}
+
+	private Tuple tuple(String name, int n, int v) {
+		Tuple t = new Tuple(td);
+		t.setField(0, new StringField(name, Type.STRING_LEN));
+		t.setField(1, new IntField(n));
+		t.setField(2, new IntField(v));
+		return t;
+	}
+
+	private static CompositeField key(String name, int n) {
+		return new CompositeField(new StringField(name, Type.STRING_LEN), new IntField(n));
+	}
+
+	/** @return the tuples of the tree in the order given by a predicate, as name/n strings */
+	private ArrayList<String> scan(IndexPredicate ipred) throws Exception {
+		TransactionId tid = new TransactionId();
+		DbFileIterator it = ipred == null ? bf.iterator(tid) : bf.indexIterator(tid, ipred);
+		it.open();
+		ArrayList<String> keys = new ArrayList<String>();
+		while (it.hasNext()) {
+			Tuple t = it.next();
+			keys.add(((StringField) t.getField(0)).getValue() + "/" + ((IntField) t.getField(1)).getValue());
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+		return keys;
+	}
+
+	/**
+	 * Normalized keys compare as their fields do, one after the other
+	 */
+	@Test public void encodingOrder() {
+		String[] names = { "", "a", "a\u0000", "a\u007f", "a\u0080", "a\u07ff", "a\u0800", "a\uffff", "ab", "b" };
+		int[] ns = { Integer.MIN_VALUE, -1, 0, 1, 255, 256, Integer.MAX_VALUE };
+		for (String n1 : names) {
+			for (int i1 : ns) {
+				for (String n2 : names) {
+					for (int i2 : ns) {
+						int expected = n1.compareTo(n2) != 0 ? n1.compareTo(n2) : Integer.compare(i1, i2);
+						int actual = key(n1, i1).compareTo(key(n2, i2));
+						assertEquals(n1 + "/" + i1 + " vs " + n2 + "/" + i2, Integer.signum(expected), Integer.signum(actual));
+						assertEquals(expected == 0, key(n1, i1).equals(key(n2, i2)));
+					}
+				}
+			}
+		}
+		// a key of the first field matches every key starting with it
+		assertEquals(0, key("ab", 5).compareTo(new StringField("ab", Type.STRING_LEN)));
+		assertTrue(key("ab", 5).compare(Predicate.Op.GREATER_THAN, new StringField("a", Type.STRING_LEN)));
+		assertTrue(key("ab", 5).compare(Predicate.Op.LESS_THAN, new CompositeField(new StringField("abc", Type.STRING_LEN))));
+	}
+
+	/**
+	 * A tree keyed on (STRING, INT) keeps its tuples in key order through
+	 * splits, and answers searches on whole keys and on their first field
+	 */
+	@Test public void insertAndSearch() throws Exception {
+		Random r = new Random(47);
+		ArrayList<String> expected = new ArrayList<String>();
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < ROWS; i++) {
+			String name = NAMES[r.nextInt(NAMES.length)];
+			int n = r.nextInt(1000) - 500;
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(name, n, i));
+			expected.add(name + "/" + n);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		assertTrue(bf.numPages() > 50);
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Database.getBufferPool().transactionComplete(tid);
+
+		Collections.sort(expected, new Comparator<String>() {
+			public int compare(String a, String b) {
+				String[] x = a.split("/", -1), y = b.split("/", -1);
+				int c = x[0].compareTo(y[0]);
+				return c != 0 ? c : Integer.compare(Integer.parseInt(x[1]), Integer.parseInt(y[1]));
+			}
+		});
+		assertEquals(expected, scan(null));
+
+		// the tuples of one name
+		ArrayList<String> ab = new ArrayList<String>();
+		for (String k : expected) {
+			if (k.startsWith("ab/"))
+				ab.add(k);
+		}
+		assertFalse(ab.isEmpty());
+		assertEquals(ab, scan(new IndexPredicate(Predicate.Op.EQUALS, new StringField("ab", Type.STRING_LEN))));
+
+		// one whole key, and the keys after it
+		String first = ab.get(0);
+		int n = Integer.parseInt(first.substring(3));
+		int copies = Collections.frequency(expected, first);
+		assertEquals(Collections.nCopies(copies, first), scan(new IndexPredicate(Predicate.Op.EQUALS, key("ab", n))));
+		int at = expected.indexOf(first);
+		assertEquals(expected.subList(at + copies, expected.size()),
+				scan(new IndexPredicate(Predicate.Op.GREATER_THAN, key("ab", n))));
+		assertEquals(expected.subList(0, at), scan(new IndexPredicate(Predicate.Op.LESS_THAN, key("ab", n))));
+	}
+
+	/**
+	 * Bulk loading sorts tuples on every key field, and deletes find their
+	 * tuples by the whole key
+	 */
+	@Test public void bulkLoadAndDelete() throws Exception {
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for (int i = 0; i < ROWS; i++)
+			tuples.add(tuple(NAMES[i % NAMES.length], ROWS - i, i));
+		TransactionId tid = new TransactionId();
+		TupleIterator it = new TupleIterator(td, tuples);
+		it.open();
+		assertEquals(ROWS, bf.bulkLoad(tid, it, 0.8));
+		it.close();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Database.getBufferPool().transactionComplete(tid);
+		ArrayList<String> keys = scan(null);
+		assertEquals(ROWS, keys.size());
+		assertEquals("/" + (ROWS - 1992), keys.get(0));
+		assertEquals("zz/" + (ROWS - 7), keys.get(ROWS - 1));
+
+		tid = new TransactionId();
+		DbFileIterator b = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new StringField("b", Type.STRING_LEN)));
+		b.open();
+		ArrayList<Tuple> deleted = new ArrayList<Tuple>();
+		while (b.hasNext())
+			deleted.add(b.next());
+		b.close();
+		assertEquals(ROWS / NAMES.length, deleted.size());
+		for (Tuple t : deleted)
+			Database.getBufferPool().deleteTuple(tid, t);
+		Database.getBufferPool().transactionComplete(tid);
+		assertTrue(scan(new IndexPredicate(Predicate.Op.EQUALS, new StringField("b", Type.STRING_LEN))).isEmpty());
+		assertEquals(ROWS - deleted.size(), scan(null).size());
+	}
+
+	/**
+	 * The file encoder builds trees with STRING keys from text files
+	 */
+	@Test public void encodeStringKeys() throws Exception {
+		File in = File.createTempFile("strings", ".txt");
+		in.deleteOnExit();
+		PrintWriter w = new PrintWriter(new FileWriter(in));
+		for (int i = 0; i < ROWS; i++)
+			w.println("k" + (i * 7919 % ROWS) + "," + i);
+		w.close();
+		File hFile = File.createTempFile("strings", ".dat");
+		hFile.deleteOnExit();
+		File bFile = File.createTempFile("strings", ".idx");
+		bFile.deleteOnExit();
+		BTreeFile sf = BTreeFileEncoder.convert(in, hFile, bFile, BufferPool.getPageSize(), 2,
+				new Type[] { Type.STRING_TYPE, Type.INT_TYPE }, ',', 0);
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(sf, tid, new HashMap<PageId, Page>(), true);
+		DbFileIterator it = sf.indexIterator(tid, new IndexPredicate(Predicate.Op.EQUALS, new StringField("k1234", Type.STRING_LEN)));
+		it.open();
+		assertTrue(it.hasNext());
+		assertEquals(1234, ((IntField) it.next().getField(1)).getValue() * 7919 % ROWS);
+		assertFalse(it.hasNext());
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+	}
+
+	/**
+	 * Separators are cut to the shortest prefix of the right key that is
+	 * greater than the left key, and route the keys starting with them right
+	 */
+	@Test public void separators() {
+		assertEquals(new CompositeField(new StringField("abz", Type.STRING_LEN)),
+				BTreePage.separator(key("ab", 9), key("abzzz", 1)));
+		assertEquals(new CompositeField(new StringField("abd", Type.STRING_LEN)),
+				BTreePage.separator(key("abc", 9), key("abd", 1)));
+		assertEquals(key("x", 5), BTreePage.separator(key("x", 1), key("x", 5)));
+		assertEquals(key("x", 5), BTreePage.separator(key("x", 5), key("x", 5)));
+		assertEquals(new StringField("b", Type.STRING_LEN),
+				BTreePage.separator(new StringField("azzz", Type.STRING_LEN), new StringField("bcd", Type.STRING_LEN)));
+
+		Field sep = BTreePage.separator(key("ab", 9), key("abzzz", 1));
+		assertTrue(BTreePage.compareSeparator(sep, key("ab", 9)) > 0);
+		assertTrue(BTreePage.compareSeparator(sep, key("abz", Integer.MIN_VALUE)) < 0);
+		assertTrue(BTreePage.compareSeparator(sep, key("abzzz", 1)) < 0);
+		assertEquals(0, BTreePage.compareSeparator(sep, new CompositeField(new StringField("abz", Type.STRING_LEN))));
+	}
+
+	/**
+	 * Internal pages of a tree keyed on long STRINGs hold cut separators, many
+	 * more of them than full keys would fit, and the tree reads back from disk,
+	 * searches the tuples in place, and stays balanced through deletes
+	 */
+	@Test public void longStringKeys() throws Exception {
+		Random r = new Random(1047);
+		ArrayList<String> names = new ArrayList<String>();
+		TransactionId tid = new TransactionId();
+		for (int i = 0; i < ROWS; i++) {
+			char[] name = new char[120];
+			for (int j = 0; j < name.length; j++)
+				name[j] = (char) ('a' + r.nextInt(26));
+			names.add(new String(name));
+			Database.getBufferPool().insertTuple(tid, bf.getId(), tuple(names.get(i), i % 3, i));
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		BTreeRootPtrPage rootPtr = bf.getRootPtrPage(tid, new HashMap<PageId, Page>());
+		BTreeInternalPage root = (BTreeInternalPage) Database.getBufferPool().getPage(tid, rootPtr.getRootId(), Permissions.READ_ONLY);
+		// one internal page over all the leaves, where full keys would need several
+		assertEquals(BTreePageId.LEAF, root.iterator().next().getLeftChild().pgcateg());
+		assertTrue(root.getNumEntries() > 2 * root.getMaxEntries());
+		Iterator<BTreeEntry> entries = root.iterator();
+		while (entries.hasNext()) {
+			StringField sep = (StringField) ((CompositeField) entries.next().getKey()).getField(0);
+			assertTrue(sep.getValue().length() < 10);
+		}
+		Database.getBufferPool().transactionComplete(tid);
+
+		Collections.sort(names);
+		ArrayList<String> keys = scan(null);
+		assertEquals(ROWS, keys.size());
+		for (int i = 0; i < ROWS; i++)
+			assertTrue(keys.get(i).startsWith(names.get(i) + "/"));
+		for (int i = 0; i < ROWS; i += 97)
+			assertEquals(Collections.singletonList(keys.get(i)),
+					scan(new IndexPredicate(Predicate.Op.EQUALS, new StringField(names.get(i), Type.STRING_LEN))));
+
+		// delete every other tuple, merging and redistributing pages; steals
+		// move tuples, so each is looked up again before it is deleted
+		tid = new TransactionId();
+		for (int i = 0; i < ROWS; i += 2) {
+			DbFileIterator it = bf.indexIterator(tid,
+					new IndexPredicate(Predicate.Op.EQUALS, new StringField(names.get(i), Type.STRING_LEN)));
+			it.open();
+			Database.getBufferPool().deleteTuple(tid, it.next());
+			it.close();
+		}
+		Database.getBufferPool().transactionComplete(tid);
+		tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), true);
+		Database.getBufferPool().transactionComplete(tid);
+		keys = scan(null);
+		assertEquals(ROWS / 2, keys.size());
+		for (int i = 0; i < ROWS / 2; i++)
+			assertTrue(keys.get(i).startsWith(names.get(2 * i + 1) + "/"));
+	}
+
+	/**
+	 * JUnit suite target
+	 */
+	public static junit.framework.JUnit4TestAdapter suite() {
+		return new JUnit4TestAdapter(CompositeKeyTest.class);
+	}
+}
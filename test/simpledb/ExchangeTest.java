@@ -0,0 +1,208 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExchangeTest extends SimpleDbTestBase {
+
+  int testWidth = 3;
+  int numTuples = 5000;
+  int[] data;
+  int[] inner;
+
+  /**
+   * Initialize each unit test with more tuples than fit in a few chunks
+   */
+  @Before public void createData() {
+    Random r = new Random(5);
+    data = new int[numTuples * testWidth];
+    for (int i = 0; i < data.length; i++)
+      data[i] = r.nextInt(300);
+    inner = new int[600 * testWidth];
+    for (int i = 0; i < inner.length; i++)
+      inner[i] = r.nextInt(300);
+  }
+
+  /** Sorts a plan on all of its columns, so results can be compared in order */
+  private DbIterator sorted(DbIterator it) {
+    int n = it.getTupleDesc().numFields();
+    int[] fields = new int[n];
+    boolean[] asc = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      fields[i] = i;
+      asc[i] = true;
+    }
+    return new OrderBy(fields, asc, it);
+  }
+
+  private void compare(DbIterator expected, DbIterator actual) throws Exception {
+    expected.open();
+    actual.open();
+    TestUtil.compareDbIterators(expected, actual);
+    actual.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, actual);
+    expected.close();
+    actual.close();
+  }
+
+  /** Splits the test data over n producers */
+  private DbIterator[] split(int[] values, int n) {
+    DbIterator[] producers = new DbIterator[n];
+    int rows = values.length / testWidth;
+    for (int i = 0; i < n; i++) {
+      int from = rows * i / n * testWidth;
+      int to = rows * (i + 1) / n * testWidth;
+      producers[i] = TestUtil.createTupleList(testWidth, Arrays.copyOfRange(values, from, to));
+    }
+    return producers;
+  }
+
+  /**
+   * Unit test for Gather over several producers
+   */
+  @Test public void gather() throws Exception {
+    compare(sorted(TestUtil.createTupleList(testWidth, data)), sorted(new Gather(split(data, 3))));
+  }
+
+  /**
+   * Unit test for Repartition: every tuple reaches exactly one output, and
+   * all tuples of a key reach the same one
+   */
+  @Test public void repartition() throws Exception {
+    Repartition r = new Repartition(split(data, 3), 1, 4);
+    DbIterator[] outputs = new DbIterator[4];
+    for (int i = 0; i < 4; i++)
+      outputs[i] = r.output(i);
+    Gather g = new Gather(outputs);
+    HashMap<Field, Integer> seen = new HashMap<Field, Integer>();
+    int count = 0;
+    g.open();
+    while (g.hasNext()) {
+      Field key = g.next().getField(1);
+      int partition = Repartition.partitionOf(key, 4);
+      Integer first = seen.put(key, partition);
+      assertTrue(first == null || first == partition);
+      count++;
+    }
+    g.close();
+    assertEquals(numTuples, count);
+  }
+
+  /**
+   * Unit test for Broadcast: every output receives every tuple
+   */
+  @Test public void broadcast() throws Exception {
+    Broadcast b = new Broadcast(split(inner, 2), 3);
+    DbIterator[] outputs = new DbIterator[3];
+    for (int i = 0; i < 3; i++)
+      outputs[i] = b.output(i);
+    Gather g = new Gather(outputs);
+    g.open();
+    int count = 0;
+    while (g.hasNext()) {
+      g.next();
+      count++;
+    }
+    g.close();
+    assertEquals(3 * inner.length / testWidth, count);
+  }
+
+  /**
+   * Unit test for ParallelHashJoin, with repartitioned and broadcast inputs
+   */
+  @Test public void hashJoin() throws Exception {
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    for (boolean broadcast : new boolean[] { false, true }) {
+      DbIterator expected = sorted(new HashEquiJoin(p,
+          TestUtil.createTupleList(testWidth, data), TestUtil.createTupleList(testWidth, inner)));
+      ParallelHashJoin join = new ParallelHashJoin(p, new Gather(split(data, 4)),
+          new Gather(split(inner, 2)), 3, broadcast);
+      assertEquals(expected.getTupleDesc(), join.getTupleDesc());
+      compare(expected, sorted(join));
+    }
+  }
+
+  /** Stores rows of the test data in a new table */
+  private HeapFile table(int[] values) throws Exception {
+    ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < values.length; i += testWidth) {
+      ArrayList<Integer> row = new ArrayList<Integer>();
+      for (int j = 0; j < testWidth; j++)
+        row.add(values[i + j]);
+      rows.add(row);
+    }
+    java.io.File f = java.io.File.createTempFile("exchange", ".dat");
+    f.deleteOnExit();
+    HeapFileEncoder.convert(rows, f, BufferPool.getPageSize(), testWidth);
+    return Utility.openHeapFile(testWidth, f);
+  }
+
+  /**
+   * ParallelHashJoin pushes a Bloom filter over a small inner relation into
+   * the morsel scans of the outer relation, without changing the result
+   */
+  @Test public void hashJoinRuntimeFilter() throws Exception {
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 1);
+    int[] few = Arrays.copyOf(inner, 10 * testWidth);
+    HeapFile outerTable = table(data);
+    HeapFile innerTable = table(few);
+    TransactionId tid = new TransactionId();
+    ParallelSeqScan.Pipeline none = new ParallelSeqScan.Pipeline() {
+      private static final long serialVersionUID = 1L;
+      public DbIterator build(DbIterator scan) {
+        return scan;
+      }
+    };
+    for (boolean broadcast : new boolean[] { false, true }) {
+      DbIterator expected = sorted(new HashEquiJoin(p,
+          TestUtil.createTupleList(testWidth, data), TestUtil.createTupleList(testWidth, few)));
+      ParallelSeqScan outer = new ParallelSeqScan(tid, outerTable.getId(), "o", 3, 1, none);
+      ParallelHashJoin join = new ParallelHashJoin(p, outer,
+          new SeqScan(tid, innerTable.getId(), "i"), 3, broadcast);
+      compare(expected, sorted(join));
+      assertEquals(0, outer.getRuntimeFilters().size());
+    }
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /**
+   * Unit test for ParallelAggregate with and without grouping, and with a
+   * DISTINCT aggregate
+   */
+  @Test public void aggregate() throws Exception {
+    int[] afields = new int[] { 1, 1, 1, 2, 2 };
+    Aggregator.Op[] aops = new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX,
+        Aggregator.Op.SUM, Aggregator.Op.AVG, Aggregator.Op.COUNT };
+    for (boolean withDistinct : new boolean[] { false, true }) {
+      boolean[] distinct = new boolean[afields.length];
+      distinct[4] = withDistinct;
+      for (int gfield : new int[] { 0, Aggregator.NO_GROUPING }) {
+        if (withDistinct && gfield == Aggregator.NO_GROUPING)
+          continue;
+        DbIterator expected = sorted(new Aggregate(TestUtil.createTupleList(testWidth, data),
+            afields, aops, distinct, gfield, Aggregate.DEFAULT_MEMORY_PAGES, false));
+        ParallelAggregate agg = new ParallelAggregate(new Gather(split(data, 4)),
+            afields, aops, distinct, gfield, 3);
+        assertEquals(expected.getTupleDesc(), agg.getTupleDesc());
+        compare(expected, sorted(agg));
+      }
+    }
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExchangeTest.class);
+  }
+}
@@ -0,0 +1,96 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class ExpressionCompilerTest extends SimpleDbTestBase {
+
+  private static final String[] WORDS = { "apple", "fig", "grape", "pear", "plum" };
+
+  @After public void enable() {
+    ExpressionCompiler.setEnabled(true);
+  }
+
+  /** Tuples of an INT_TYPE and a STRING_TYPE field */
+  private ArrayList<Tuple> tuples() {
+    TupleDesc td = new TupleDesc(new Type[] { Type.INT_TYPE, Type.STRING_TYPE });
+    ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+    for (int i = 0; i < 20; i++) {
+      Tuple t = new Tuple(td);
+      t.setField(0, new IntField(i));
+      t.setField(1, new StringField(WORDS[i % WORDS.length], Type.STRING_LEN));
+      tuples.add(t);
+    }
+    return tuples;
+  }
+
+  /**
+   * Unit test for compiled conjunctions, against interpreted ones, for every
+   * operator over both types
+   */
+  @Test public void predicates() {
+    ArrayList<Tuple> tuples = tuples();
+    TupleDesc td = tuples.get(0).getTupleDesc();
+    for (Predicate.Op intOp : Predicate.Op.values()) {
+      for (Predicate.Op stringOp : Predicate.Op.values()) {
+        Predicate[] preds = new Predicate[] {
+            new Predicate(0, intOp, new IntField(7)),
+            new Predicate(1, stringOp, new StringField(stringOp == Predicate.Op.LIKE ? "p" : "grape",
+                Type.STRING_LEN)) };
+        TuplePredicate compiled = ExpressionCompiler.compile(preds, td);
+        assertEquals(ExpressionCompiler.isAvailable(), ExpressionCompiler.isCompiled(compiled));
+        TuplePredicate interpreted = ExpressionCompiler.interpret(preds);
+        for (Tuple t : tuples)
+          assertEquals(interpreted.test(t), compiled.test(t));
+      }
+    }
+  }
+
+  /**
+   * Unit test for compiled projections
+   */
+  @Test public void projection() {
+    ArrayList<Tuple> tuples = tuples();
+    TupleDesc outTd = new TupleDesc(new Type[] { Type.STRING_TYPE, Type.INT_TYPE, Type.INT_TYPE });
+    TupleProjector compiled = ExpressionCompiler.compile(new int[] { 1, 0, 0 }, outTd);
+    assertEquals(ExpressionCompiler.isAvailable(), ExpressionCompiler.isCompiled(compiled));
+    for (Tuple t : tuples) {
+      Tuple out = compiled.project(t);
+      assertEquals(outTd, out.getTupleDesc());
+      assertEquals(t.getField(1), out.getField(0));
+      assertEquals(t.getField(0), out.getField(1));
+      assertEquals(t.getField(0), out.getField(2));
+    }
+  }
+
+  /**
+   * Unit test for the fallback to interpretation when compilation is off
+   */
+  @Test public void fallback() {
+    ArrayList<Tuple> tuples = tuples();
+    ExpressionCompiler.setEnabled(false);
+    assertFalse(ExpressionCompiler.isAvailable());
+    Predicate[] preds = new Predicate[] { new Predicate(0, Predicate.Op.LESS_THAN, new IntField(3)) };
+    TuplePredicate p = ExpressionCompiler.compile(preds, tuples.get(0).getTupleDesc());
+    assertFalse(ExpressionCompiler.isCompiled(p));
+    assertTrue(p.test(tuples.get(2)));
+    assertFalse(p.test(tuples.get(3)));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ExpressionCompilerTest.class);
+  }
+}
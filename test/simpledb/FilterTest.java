@@ -1,14 +1,19 @@
 package simpledb;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
+import java.io.File;
+import java.util.*;
+
 import org.junit.Before;
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
 
 public class FilterTest extends SimpleDbTestBase {
 
@@ -120,6 +125,135 @@ public class FilterTest extends SimpleDbTestBase {
     op.close();
   }
 
+  /**
+   * Unit test for Filter.getNext() using a conjunction of predicates,
+   * interpreted and compiled
+   */
+  @Test public void filterConjunction() throws Exception {
+    Predicate[] preds = new Predicate[] {
+        new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, TestUtil.getField(-2)),
+        new Predicate(1, Predicate.Op.LESS_THAN, TestUtil.getField(3)) };
+    for (boolean compile : new boolean[] { false, true }) {
+      Filter op = new Filter(preds, new TestUtil.MockScan(-5, 5, testWidth));
+      if (compile)
+        assertEquals(ExpressionCompiler.isAvailable(), op.compile());
+      op.open();
+      TestUtil.compareDbIterators(op, new TestUtil.MockScan(-2, 3, testWidth));
+      op.close();
+    }
+  }
+
+  /**
+   * Unit test for ordering predicates by estimated selectivity, and for
+   * reordering them when the observed pass rates disagree
+   */
+  @Test public void reorderPredicates() throws Exception {
+    Predicate loose = new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, TestUtil.getField(0));
+    Predicate tight = new Predicate(1, Predicate.Op.LESS_THAN, TestUtil.getField(10));
+    Predicate[] preds = new Predicate[] { loose, tight };
+
+    Filter estimated = new Filter(preds, new double[] { 0.9, 0.1 }, scan);
+    assertEquals(tight, estimated.getPredicates()[0]);
+
+    // wrong estimates are corrected by the first sample
+    Filter op = new Filter(preds, new double[] { 0.01, 0.9 },
+        new TestUtil.MockScan(0, 2 * Filter.SAMPLE_SIZE, testWidth));
+    assertEquals(loose, op.getPredicates()[0]);
+    op.open();
+    TestUtil.compareDbIterators(op, new TestUtil.MockScan(0, 10, testWidth));
+    op.close();
+    assertEquals(tight, op.getPredicates()[0]);
+  }
+
+  /**
+   * Unit test for pushing the predicates down into a scan of a table
+   */
+  @Test public void pushDown() throws Exception {
+    Predicate[] preds = new Predicate[] {
+        new Predicate(0, Predicate.Op.GREATER_THAN, TestUtil.getField(200)),
+        new Predicate(1, Predicate.Op.LESS_THAN_OR_EQ, TestUtil.getField(600)) };
+    assertFalse(new Filter(preds, scan).pushDown());
+
+    HeapFile f = SystemTestUtil.createRandomHeapFile(testWidth, 3000, 1000, null, null);
+    Database.getCatalog().addTable(f, "pushdown");
+    TransactionId tid = new TransactionId();
+    Filter expected = new Filter(preds, new SeqScan(tid, f.getId(), "t"));
+    Filter pushed = new Filter(preds, new SeqScan(tid, f.getId(), "t"));
+    assertTrue(pushed.pushDown());
+    assertTrue(pushed.isPushedDown());
+    expected.open();
+    pushed.open();
+    TestUtil.compareDbIterators(expected, pushed);
+    expected.rewind();
+    pushed.rewind();
+    TestUtil.compareDbIterators(expected, pushed);
+    expected.close();
+    pushed.close();
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
+  /** Creates a table of two columns, (c0(i), c1(i)) for i in 0..rows-1 */
+  private HeapFile table(int rows, int c0, int c1) throws Exception {
+    ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+    for (int i = 0; i < rows; i++)
+      tuples.add(new ArrayList<Integer>(Arrays.asList(i % 100 + c0, i * 7 % 100 + c1)));
+    File f = File.createTempFile("reorder", ".dat");
+    f.deleteOnExit();
+    HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+    return Utility.openHeapFile(2, "c", f);
+  }
+
+  private static SeqScan findSeqScan(DbIterator plan) {
+    if (plan instanceof SeqScan)
+      return (SeqScan) plan;
+    if (!(plan instanceof Operator))
+      return null;
+    for (DbIterator child : ((Operator) plan).getChildren()) {
+      SeqScan scan = child == null ? null : findSeqScan(child);
+      if (scan != null)
+        return scan;
+    }
+    return null;
+  }
+
+  /**
+   * Unit test for a planned filter pushed down into its scan, which still
+   * reorders the predicates when the pass rates disagree with the estimates
+   */
+  @Test public void pushedReorder() throws Exception {
+    // the statistics come from a table where c0 < 90 is the selective predicate
+    HeapFile t = table(3000, 0, 0);
+    HeapFile stale = table(3000, 85, -85);
+    HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+    stats.put(Database.getCatalog().getTableName(t.getId()), new TableStats(stale.getId(), 1000));
+    TupleDesc td = t.getTupleDesc();
+
+    LogicalPlan lp = new LogicalPlan();
+    lp.addScan(t.getId(), "t");
+    lp.addFilter("t." + td.getFieldName(0), Predicate.Op.LESS_THAN, "90");
+    lp.addFilter("t." + td.getFieldName(1), Predicate.Op.LESS_THAN, "5");
+    lp.addProjectField("*", null);
+    TransactionId tid = new TransactionId();
+    DbIterator plan = lp.physicalPlan(tid, stats, false);
+    SeqScan scan = findSeqScan(plan);
+    assertNotNull(scan);
+    assertEquals(0, scan.getPredicateOrder()[0].getField());
+
+    plan.open();
+    int n = 0;
+    while (plan.hasNext()) {
+      Tuple tuple = plan.next();
+      assertTrue(((IntField) tuple.getField(0)).getValue() < 90);
+      assertTrue(((IntField) tuple.getField(1)).getValue() < 5);
+      n++;
+    }
+    plan.close();
+    Database.getBufferPool().transactionComplete(tid);
+    // i * 7 % 100 < 5 picks five residues of i % 100, all of them under 90
+    assertEquals(150, n);
+    assertEquals(1, scan.getPredicateOrder()[0].getField());
+  }
+
   /**
    * JUnit suite target
    */
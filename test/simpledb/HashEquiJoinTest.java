@@ -130,6 +130,65 @@ public class HashEquiJoinTest extends SimpleDbTestBase {
       validateJoin(1,10,1,30001);
   }
 
+  /** Counts the tuples of a join, optionally checking what it filtered */
+  private int count(HashEquiJoin join, DbIterator probe, boolean filtered) throws Exception {
+    join.open();
+    assertEquals(filtered ? 1 : 0, join.getFilteredScans().size());
+    if (filtered)
+      assertTrue(join.getFilteredScans().get(0) == probe);
+    int cnt = 0;
+    while (join.hasNext()) {
+      join.next();
+      cnt++;
+    }
+    join.close();
+    assertEquals(0, join.getFilteredScans().size());
+    return cnt;
+  }
+
+  /**
+   * A Bloom filter over the inner keys is pushed into the outer scan, through
+   * a Filter and a ParallelSeqScan, and does not change the result
+   */
+  @Test public void runtimeFilter() throws Exception {
+    ArrayList<ArrayList<Integer>> t1Tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile table1 = SystemTestUtil.createRandomHeapFile(COLUMNS, 5000, 1000, null, t1Tuples);
+    ArrayList<ArrayList<Integer>> t2Tuples = new ArrayList<ArrayList<Integer>>();
+    HeapFile table2 = SystemTestUtil.createRandomHeapFile(COLUMNS, 20, 1000, null, t2Tuples);
+    int expected = 0;
+    for (ArrayList<Integer> t1 : t1Tuples)
+      for (ArrayList<Integer> t2 : t2Tuples)
+        if (t1.get(0).equals(t2.get(0)) && t1.get(1) > 10)
+          expected++;
+
+    TransactionId tid = new TransactionId();
+    JoinPredicate p = new JoinPredicate(0, Predicate.Op.EQUALS, 0);
+    SeqScan probe = new SeqScan(tid, table1.getId(), "a");
+    DbIterator outer = new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(10)), probe);
+    HashEquiJoin join = new HashEquiJoin(p, outer, new SeqScan(tid, table2.getId(), "b"));
+    assertEquals(expected, count(join, probe, true));
+    assertEquals(0, probe.getRuntimeFilters().size());
+
+    HashEquiJoin.setRuntimeFilters(false);
+    try {
+      assertEquals(expected, count(join, probe, false));
+    } finally {
+      HashEquiJoin.setRuntimeFilters(true);
+    }
+
+    ParallelSeqScan parallel = new ParallelSeqScan(tid, table1.getId(), "a", 3, 1,
+        new ParallelSeqScan.Pipeline() {
+          private static final long serialVersionUID = 1L;
+          public DbIterator build(DbIterator scan) {
+            return new Filter(new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(10)), scan);
+          }
+        });
+    join = new HashEquiJoin(p, parallel, new SeqScan(tid, table2.getId(), "b"));
+    assertEquals(expected, count(join, parallel, true));
+    assertEquals(0, parallel.getRuntimeFilters().size());
+    Database.getBufferPool().transactionComplete(tid);
+  }
+
   /**
    * JUnit suite target
    */
@@ -121,6 +121,66 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.iterator() with predicates pushed down, over
+     * pages whose tuples were partly parsed before
+     */
+    @Test
+    public void testIteratorPredicates() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 2000, 100, null, tuples);
+        Predicate[] preds = new Predicate[] {
+                new Predicate(0, Predicate.Op.LESS_THAN, new IntField(30)),
+                new Predicate(2, Predicate.Op.NOT_EQUALS, new IntField(5)) };
+
+        // parse the first tuples of the first page
+        DbFileIterator all = f.iterator(tid);
+        all.open();
+        for (int i = 0; i < 100; i++)
+            all.next();
+        all.close();
+
+        int expected = 0;
+        for (ArrayList<Integer> t : tuples) {
+            if (t.get(0) < 30 && t.get(2) != 5)
+                expected++;
+        }
+        DbFileIterator it = f.iterator(tid, preds, null);
+        it.open();
+        for (int pass = 0; pass < 2; pass++) {
+            int count = 0;
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                assertTrue(preds[0].filter(t) && preds[1].filter(t));
+                count++;
+            }
+            assertEquals(expected, count);
+            it.rewind();
+        }
+        it.close();
+    }
+
+    /**
+     * Unit test for HeapFile.iterator() reading only some of the fields
+     */
+    @Test
+    public void testIteratorFields() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(3, 1000, null, tuples);
+        DbFileIterator it = f.iterator(tid, null, new int[] { 2 });
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            assertNull(t.getField(0));
+            assertNull(t.getField(1));
+            assertEquals(tuples.get(count).get(2), (Integer) ((IntField) t.getField(2)).getValue());
+            count++;
+        }
+        assertEquals(1000, count);
+        it.close();
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,90 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class MultiAggregatorTest extends SimpleDbTestBase {
+
+  int width1 = 3;
+  DbIterator scan1;
+
+  /**
+   * Initialize each unit test with tuples (group, value, value)
+   */
+  @Before public void createTupleList() throws Exception {
+    this.scan1 = TestUtil.createTupleList(width1,
+        new int[] { 1, 2, 5,
+                    1, 4, 5,
+                    1, 6, 7,
+                    3, 2, 1,
+                    3, 4, 1,
+                    3, 6, 1,
+                    5, 7, 2 });
+  }
+
+  private MultiAggregator merge(int gbfield, int[] afields, Aggregator.Op[] ops,
+      boolean[] distinct) throws Exception {
+    Type[] types = new Type[afields.length];
+    for (int i = 0; i < types.length; i++)
+      types[i] = Type.INT_TYPE;
+    MultiAggregator agg = new MultiAggregator(gbfield,
+        gbfield == Aggregator.NO_GROUPING ? null : Type.INT_TYPE, afields, types, ops, distinct);
+    scan1.open();
+    while (scan1.hasNext())
+      agg.mergeTupleIntoGroup(scan1.next());
+    scan1.close();
+    return agg;
+  }
+
+  /**
+   * Test several aggregates, including a distinct one, grouped in one pass
+   */
+  @Test public void mergeGrouped() throws Exception {
+    MultiAggregator agg = merge(0, new int[] { 1, 1, 1, 2, 2 },
+        new Aggregator.Op[] { Aggregator.Op.MIN, Aggregator.Op.MAX,
+            Aggregator.Op.AVG, Aggregator.Op.COUNT, Aggregator.Op.COUNT },
+        new boolean[] { false, false, false, true, false });
+    assertEquals(3, agg.numGroups());
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(6,
+        new int[] { 1, 2, 6, 4, 2, 3,
+                    3, 2, 6, 4, 1, 3,
+                    5, 7, 7, 7, 1, 1 }), it);
+  }
+
+  /**
+   * Test distinct sums and averages without grouping
+   */
+  @Test public void mergeDistinctNoGrouping() throws Exception {
+    MultiAggregator agg = merge(Aggregator.NO_GROUPING, new int[] { 2, 2, 2 },
+        new Aggregator.Op[] { Aggregator.Op.SUM, Aggregator.Op.SUM, Aggregator.Op.AVG },
+        new boolean[] { true, false, true });
+    DbIterator it = agg.iterator();
+    it.open();
+    TestUtil.matchAllTuples(TestUtil.createTupleList(3,
+        new int[] { 15, 22, 3 }), it);
+  }
+
+  /**
+   * Test that only COUNT is accepted over STRING fields
+   */
+  @Test(expected = IllegalArgumentException.class) public void stringSum() {
+    new MultiAggregator(Aggregator.NO_GROUPING, null, new int[] { 0 },
+        new Type[] { Type.STRING_TYPE }, new Aggregator.Op[] { Aggregator.Op.SUM },
+        new boolean[] { false });
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(MultiAggregatorTest.class);
+  }
+}
@@ -0,0 +1,169 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class OrderByTest extends SimpleDbTestBase {
+
+  int testWidth = 2;
+  int numTuples = 20000;
+  int[] data;
+
+  /**
+   * Initialize each unit test with tuples (key, insertion order), where
+   * keys repeat so that stability can be checked
+   */
+  @Before public void createData() {
+    Random r = new Random(42);
+    data = new int[numTuples * testWidth];
+    for (int i = 0; i < numTuples; i++) {
+      data[i * testWidth] = r.nextInt(1000);
+      data[i * testWidth + 1] = i;
+    }
+  }
+
+  private void checkSorted(DbIterator op, boolean asc) throws Exception {
+    int count = 0;
+    int lastKey = asc ? Integer.MIN_VALUE : Integer.MAX_VALUE;
+    int lastSeq = -1;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      int key = ((IntField) t.getField(0)).getValue();
+      int seq = ((IntField) t.getField(1)).getValue();
+      assertTrue(asc ? key >= lastKey : key <= lastKey);
+      if (key == lastKey)
+        assertTrue("sort is not stable", seq > lastSeq);
+      lastKey = key;
+      lastSeq = seq;
+      count++;
+    }
+    assertEquals(numTuples, count);
+  }
+
+  /**
+   * Unit test for OrderBy with enough memory to sort in place
+   */
+  @Test public void sortInMemory() throws Exception {
+    OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(testWidth, data),
+        1000);
+    op.open();
+    checkSorted(op, true);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy with a budget small enough to spill many runs and
+   * require more than one merge pass
+   */
+  @Test public void sortExternal() throws Exception {
+    OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(testWidth, data), 3);
+    op.open();
+    checkSorted(op, true);
+    op.close();
+
+    op = new OrderBy(0, false, TestUtil.createTupleList(testWidth, data), 3);
+    op.open();
+    checkSorted(op, false);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy.rewind() after spilling
+   */
+  @Test public void rewind() throws Exception {
+    OrderBy op = new OrderBy(0, true, TestUtil.createTupleList(testWidth, data), 3);
+    op.open();
+    checkSorted(op, true);
+    op.rewind();
+    checkSorted(op, true);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy on two keys with opposite directions
+   */
+  @Test public void sortMultipleKeys() throws Exception {
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { true, false },
+        TestUtil.createTupleList(testWidth, data), 3);
+    op.open();
+    int count = 0;
+    int lastKey = Integer.MIN_VALUE;
+    int lastSeq = Integer.MAX_VALUE;
+    while (op.hasNext()) {
+      Tuple t = op.next();
+      int key = ((IntField) t.getField(0)).getValue();
+      int seq = ((IntField) t.getField(1)).getValue();
+      assertTrue(key >= lastKey);
+      if (key == lastKey)
+        assertTrue(seq < lastSeq);
+      lastKey = key;
+      lastSeq = seq;
+      count++;
+    }
+    assertEquals(numTuples, count);
+    op.close();
+  }
+
+  /**
+   * Unit test for OrderBy on a string key followed by an int key
+   */
+  @Test public void sortStringKeys() throws Exception {
+    DbIterator input = TestUtil.createTupleList(2, new Object[] {
+        "pear", 1, "apple", 2, "fig", 3, "apple", 1, "pear", 0 });
+    OrderBy op = new OrderBy(new int[] { 0, 1 }, new boolean[] { false, true }, input);
+    DbIterator expected = TestUtil.createTupleList(2, new Object[] {
+        "pear", 0, "pear", 1, "fig", 3, "apple", 1, "apple", 2 });
+    op.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+  }
+
+  /**
+   * Unit test for ExternalSort run generation and multi-pass merging
+   */
+  @Test public void externalSortRuns() throws Exception {
+    TupleDesc td = Utility.getTupleDesc(testWidth);
+    ExternalSort sorter = new ExternalSort(td, TupleComparator.create(td, 0, true), 3);
+    DbIterator input = TestUtil.createTupleList(testWidth, data);
+    while (input.hasNext())
+      sorter.add(input.next());
+    int expectedRuns = (numTuples + sorter.getMaxTuplesInMemory() - 1)
+        / sorter.getMaxTuplesInMemory();
+    assertEquals(expectedRuns - 1, sorter.numRuns());
+    assertTrue(expectedRuns > sorter.getMaxFanIn());
+
+    DbFileIterator it = sorter.finish();
+    assertTrue(sorter.numRuns() <= sorter.getMaxFanIn());
+    it.open();
+    int count = 0;
+    int last = Integer.MIN_VALUE;
+    while (it.hasNext()) {
+      int key = ((IntField) it.next().getField(0)).getValue();
+      assertTrue(key >= last);
+      last = key;
+      count++;
+    }
+    assertEquals(numTuples, count);
+    assertFalse(it.hasNext());
+    it.close();
+    sorter.close();
+    assertEquals(0, sorter.numRuns());
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(OrderByTest.class);
+  }
+}
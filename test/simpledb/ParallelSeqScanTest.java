@@ -0,0 +1,120 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class ParallelSeqScanTest extends SimpleDbTestBase {
+
+  int testWidth = 2;
+  HeapFile f;
+  TransactionId tid;
+
+  /**
+   * Initialize each unit test with a heap file of a few dozen pages
+   */
+  @Before public void createFile() throws Exception {
+    f = SystemTestUtil.createRandomHeapFile(testWidth, 20000, 1000, null, null);
+    Database.getCatalog().addTable(f, "parallel");
+    tid = new TransactionId();
+  }
+
+  /** Sorts a plan on all of its columns, so results can be compared in order */
+  private DbIterator sorted(DbIterator it) {
+    return new OrderBy(new int[] { 0, 1 }, new boolean[] { true, true }, it);
+  }
+
+  private static class FilterPipeline implements ParallelSeqScan.Pipeline {
+    private static final long serialVersionUID = 1L;
+    final Predicate p;
+
+    FilterPipeline(Predicate p) {
+      this.p = p;
+    }
+
+    public DbIterator build(DbIterator scan) {
+      return new Filter(p, scan);
+    }
+  }
+
+  /**
+   * Unit test for ParallelSeqScan with a filter in each worker, at several
+   * degrees of parallelism and morsel sizes
+   */
+  @Test public void filteredScan() throws Exception {
+    Predicate p = new Predicate(1, Predicate.Op.LESS_THAN, new IntField(300));
+    for (int dop : new int[] { 1, 4 }) {
+      for (int morselPages : new int[] { 1, ParallelSeqScan.DEFAULT_MORSEL_PAGES }) {
+        DbIterator expected = sorted(new Filter(p, new SeqScan(tid, f.getId(), "t")));
+        ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "t", dop, morselPages,
+            new FilterPipeline(p));
+        assertEquals(expected.getTupleDesc(), scan.getTupleDesc());
+        DbIterator actual = sorted(scan);
+        expected.open();
+        actual.open();
+        TestUtil.compareDbIterators(expected, actual);
+        expected.rewind();
+        actual.rewind();
+        TestUtil.compareDbIterators(expected, actual);
+        expected.close();
+        actual.close();
+      }
+    }
+  }
+
+  /**
+   * Unit test for closing a ParallelSeqScan before it is exhausted
+   */
+  @Test public void closeEarly() throws Exception {
+    ParallelSeqScan scan = new ParallelSeqScan(tid, f.getId(), "t", 4, 1,
+        new FilterPipeline(new Predicate(0, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(0))));
+    scan.open();
+    for (int i = 0; i < 10; i++)
+      assertTrue(scan.hasNext());
+    scan.next();
+    scan.close();
+  }
+
+  /**
+   * Unit test for MorselScans sharing a counter: every tuple is read once
+   */
+  @Test public void morsels() throws Exception {
+    MorselScan.Morsels morsels = new MorselScan.Morsels(f.numPages(), 3);
+    MorselScan a = new MorselScan(tid, f.getId(), "t", morsels);
+    MorselScan b = new MorselScan(tid, f.getId(), "t", morsels);
+    a.open();
+    b.open();
+    int count = 0;
+    boolean more = true;
+    while (more) {
+      more = false;
+      for (MorselScan s : new MorselScan[] { a, b }) {
+        if (s.hasNext()) {
+          s.next();
+          count++;
+          more = true;
+        }
+      }
+    }
+    assertEquals(20000, count);
+    assertEquals(-1, morsels.claim());
+    a.close();
+    b.close();
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(ParallelSeqScanTest.class);
+  }
+}
@@ -0,0 +1,323 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SecondaryIndexTest extends SimpleDbTestBase {
+    private static final int ROWS = 3000;
+
+    private HeapFile hf;
+    private SecondaryIndex index;
+
+    /**
+     * Creates a table of (i, 7 * i % ROWS), whose second column is a
+     * permutation of 0..ROWS-1 in no useful order, and indexes that column.
+     */
+    @Before
+    public void setUp() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, 7 * i % ROWS)));
+        File f = File.createTempFile("secondary", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        hf = Utility.openHeapFile(2, "c", f);
+        index = Database.getCatalog().addIndex(hf.getId(), hf.getTupleDesc().getFieldName(1));
+    }
+
+    private Tuple tuple(int a, int b) {
+        Tuple t = new Tuple(hf.getTupleDesc());
+        t.setField(0, new IntField(a));
+        t.setField(1, new IntField(b));
+        return t;
+    }
+
+    private ArrayList<Integer> scan(IndexPredicate ipred) throws Exception {
+        TransactionId tid = new TransactionId();
+        IndexScan scan = new IndexScan(tid, index, "t", ipred);
+        scan.open();
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            int key = ((IntField) t.getField(1)).getValue();
+            int row = ((IntField) t.getField(0)).getValue();
+            if (row >= 0)
+                assertEquals(key, 7 * row % ROWS);
+            keys.add(key);
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return keys;
+    }
+
+    /**
+     * Index scans return the tuples that satisfy their predicate, in the
+     * order of the indexed field
+     */
+    @Test public void indexScan() throws Exception {
+        assertEquals(Arrays.asList(1234), scan(new IndexPredicate(Predicate.Op.EQUALS, new IntField(1234))));
+        assertEquals(Arrays.asList(0, 1, 2), scan(new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(3))));
+        ArrayList<Integer> high = scan(new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(ROWS - 100)));
+        assertEquals(100, high.size());
+        for (int i = 0; i < high.size(); i++)
+            assertEquals(ROWS - 100 + i, (int) high.get(i));
+        assertEquals(ROWS, scan(null).size());
+        assertTrue(scan(new IndexPredicate(Predicate.Op.EQUALS, new IntField(ROWS))).isEmpty());
+    }
+
+    /**
+     * The BufferPool adds and removes the entries of the tuples it inserts
+     * and deletes
+     */
+    @Test public void maintenance() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(-1, 5 * ROWS));
+        Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(-2, 5 * ROWS));
+        assertEquals(2, scan(new IndexPredicate(Predicate.Op.EQUALS, new IntField(5 * ROWS))).size());
+
+        // delete a tuple read with only its first field
+        DbFileIterator it = hf.iterator(tid, new Predicate[] {
+                new Predicate(0, Predicate.Op.EQUALS, new IntField(5)) }, new int[] { 0 });
+        it.open();
+        Tuple t = it.next();
+        it.close();
+        assertNull(t.getField(1));
+        Database.getBufferPool().deleteTuple(tid, t);
+        assertTrue(scan(new IndexPredicate(Predicate.Op.EQUALS, new IntField(35))).isEmpty());
+
+        // and one read through the index
+        IndexScan scan = new IndexScan(tid, index, "t", new IndexPredicate(Predicate.Op.EQUALS, new IntField(10)));
+        scan.open();
+        Database.getBufferPool().deleteTuple(tid, scan.next());
+        scan.close();
+        assertTrue(scan(new IndexPredicate(Predicate.Op.EQUALS, new IntField(10))).isEmpty());
+        assertEquals(ROWS, scan(null).size());
+        assertEquals(2, scan(new IndexPredicate(Predicate.Op.EQUALS, new IntField(5 * ROWS))).size());
+    }
+
+    /** Declares the index again in a new database, after a restart */
+    private void reopen() throws Exception {
+        Database.reset();
+        hf = Utility.openHeapFile(2, "c", hf.getFile());
+        assertTrue(Database.getCatalog().getIndexes(hf.getId()).isEmpty());
+        index = Database.getCatalog().addIndex(hf.getId(), hf.getTupleDesc().getFieldName(1));
+    }
+
+    /**
+     * Declaring an index again reuses it, and an index file marked as in
+     * step with its table is not rebuilt, however old it is
+     */
+    @Test public void reuse() throws Exception {
+        assertSame(index, Database.getCatalog().addIndex(hf.getId(), hf.getTupleDesc().getFieldName(1)));
+        File idx = index.getFile().getFile();
+        assertTrue(idx.length() > 0);
+        assertFalse(index.isStale());
+        assertTrue(idx.setLastModified(hf.getFile().lastModified() - 2000));
+        long length = idx.length();
+
+        reopen();
+        assertEquals(hf.getFile().lastModified() - 2000, idx.lastModified());
+        assertEquals(length, idx.length());
+        assertEquals(ROWS, scan(null).size());
+    }
+
+    /**
+     * Changing the table marks the index file as out of step with it until
+     * all pages are flushed: an index whose entries did not reach the disk
+     * with the table is rebuilt, and one flushed with it is reused
+     */
+    @Test public void staleness() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(-1, 5 * ROWS));
+        assertTrue(index.isStale());
+
+        // the heap file writes the new tuple at once, the index keeps its entry
+        reopen();
+        assertFalse(index.isStale());
+        assertEquals(1, scan(new IndexPredicate(Predicate.Op.EQUALS, new IntField(5 * ROWS))).size());
+        assertEquals(ROWS + 1, scan(null).size());
+
+        tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), tuple(-2, 5 * ROWS));
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Database.getBufferPool().deleteTuple(tid, it.next());
+        it.close();
+        Database.getBufferPool().flushAllPages();
+        assertFalse(index.isStale());
+        File idx = index.getFile().getFile();
+        assertTrue(idx.setLastModified(hf.getFile().lastModified() - 2000));
+
+        reopen();
+        assertEquals(hf.getFile().lastModified() - 2000, idx.lastModified());
+        assertEquals(2, scan(new IndexPredicate(Predicate.Op.EQUALS, new IntField(5 * ROWS))).size());
+        assertTrue(scan(new IndexPredicate(Predicate.Op.EQUALS, new IntField(0))).isEmpty());
+        assertEquals(ROWS + 1, scan(null).size());
+    }
+
+    /**
+     * The optimizer reads selective predicates on indexed fields through the
+     * index, and scans the table otherwise
+     */
+    @Test public void physicalPlan() throws Exception {
+        String name = Database.getCatalog().getTableName(hf.getId());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(hf.getId(), 1000));
+        String field = "t." + hf.getTupleDesc().getFieldName(1);
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter(field, Predicate.Op.EQUALS, "42");
+        lp.addProjectField("*", null);
+        DbIterator plan = lp.physicalPlan(new TransactionId(), stats, false);
+        assertTrue(findIndexScan(plan));
+        plan.open();
+        assertTrue(plan.hasNext());
+        assertEquals(42, ((IntField) plan.next().getField(1)).getValue());
+        assertFalse(plan.hasNext());
+        plan.close();
+
+        lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter(field, Predicate.Op.GREATER_THAN, "10");
+        lp.addProjectField("*", null);
+        assertFalse(findIndexScan(lp.physicalPlan(new TransactionId(), stats, false)));
+    }
+
+    /**
+     * An index that includes the other fields of the table answers scans
+     * from its entries, without reading the table
+     */
+    @Test public void indexOnlyScan() throws Exception {
+        TupleDesc td = hf.getTupleDesc();
+        SecondaryIndex covering = Database.getCatalog().addIndex(hf.getId(), td.getFieldName(1),
+                new String[] { td.getFieldName(0) });
+        assertNotSame(index, covering);
+        assertSame(covering, Database.getCatalog().addIndex(hf.getId(), td.getFieldName(1),
+                new String[] { td.getFieldName(0), td.getFieldName(1) }));
+        assertTrue(covering.covers(null));
+        assertTrue(index.covers(new int[] { 1 }));
+        assertFalse(index.covers(new int[] { 0, 1 }));
+
+        // the table is unreadable, but its entries still hold every field
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        RandomAccessFile raf = new RandomAccessFile(hf.getFile(), "rw");
+        raf.write(new byte[(int) raf.length()]);
+        raf.close();
+        TransactionId tid = new TransactionId();
+        IndexOnlyScan scan = new IndexOnlyScan(tid, covering, "t",
+                new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(ROWS - 100)));
+        scan.open();
+        int n = 0;
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            int key = ((IntField) t.getField(1)).getValue();
+            assertEquals(ROWS - 100 + n, key);
+            assertEquals(key, 7 * ((IntField) t.getField(0)).getValue() % ROWS);
+            n++;
+        }
+        scan.close();
+        assertEquals(100, n);
+        IndexScan heap = new IndexScan(tid, covering, "t", null);
+        heap.open();
+        assertFalse(heap.hasNext());
+        heap.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * Tuples read from the index alone carry record ids that resolve to the
+     * table, so a Delete over an IndexOnlyScan removes them from the table
+     * and from every index
+     */
+    @Test public void deleteThroughIndexOnlyScan() throws Exception {
+        TupleDesc td = hf.getTupleDesc();
+        SecondaryIndex covering = Database.getCatalog().addIndex(hf.getId(), td.getFieldName(1),
+                new String[] { td.getFieldName(0) });
+        TransactionId tid = new TransactionId();
+        Delete delete = new Delete(tid, new IndexOnlyScan(tid, covering, "t",
+                new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(100))));
+        delete.open();
+        assertEquals(100, ((IntField) delete.next().getField(0)).getValue());
+        delete.close();
+        Database.getBufferPool().transactionComplete(tid);
+
+        assertTrue(scan(new IndexPredicate(Predicate.Op.LESS_THAN, new IntField(100))).isEmpty());
+        assertEquals(ROWS - 100, scan(null).size());
+        tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            assertTrue(((IntField) it.next().getField(1)).getValue() >= 100);
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(ROWS - 100, n);
+    }
+
+    /**
+     * The optimizer reads queries covered by an index from the index alone,
+     * even when looking the tuples up in the table would cost too much
+     */
+    @Test public void coveringPlan() throws Exception {
+        String name = Database.getCatalog().getTableName(hf.getId());
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(hf.getId(), 1000));
+        TupleDesc td = hf.getTupleDesc();
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(hf.getId(), "t");
+        lp.addFilter("t." + td.getFieldName(1), Predicate.Op.LESS_THAN, "100");
+        lp.addProjectField("t." + td.getFieldName(0), null);
+        assertFalse(findIndexScan(lp.physicalPlan(new TransactionId(), stats, false)));
+
+        Database.getCatalog().addIndex(hf.getId(), td.getFieldName(1), new String[] { td.getFieldName(0) });
+        DbIterator plan = lp.physicalPlan(new TransactionId(), stats, false);
+        assertTrue(findIndexOnlyScan(plan));
+        plan.open();
+        HashSet<Integer> rows = new HashSet<Integer>();
+        while (plan.hasNext())
+            rows.add(((IntField) plan.next().getField(0)).getValue());
+        plan.close();
+        assertEquals(100, rows.size());
+        for (int row : rows)
+            assertTrue(7 * row % ROWS < 100);
+    }
+
+    private static boolean findIndexScan(DbIterator plan) {
+        return find(plan, IndexScan.class);
+    }
+
+    private static boolean findIndexOnlyScan(DbIterator plan) {
+        return find(plan, IndexOnlyScan.class);
+    }
+
+    private static boolean find(DbIterator plan, Class<?> c) {
+        if (c.isInstance(plan))
+            return true;
+        if (!(plan instanceof Operator))
+            return false;
+        for (DbIterator child : ((Operator) plan).getChildren()) {
+            if (child != null && find(child, c))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.JUnit4TestAdapter suite() {
+        return new JUnit4TestAdapter(SecondaryIndexTest.class);
+    }
+}
@@ -236,6 +236,10 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public DbFileIterator iterator(TransactionId tid, Predicate[] preds, int[] fields) {
+            throw new RuntimeException("not implemented");
+        }
+
 		public TupleDesc getTupleDesc() {			
 			return td;
 		}
@@ -0,0 +1,95 @@
+package simpledb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class TopNTest extends SimpleDbTestBase {
+
+  int testWidth = 2;
+  int numTuples = 5000;
+  int[] data;
+
+  /**
+   * Initialize each unit test with tuples (key, insertion order) whose keys
+   * repeat, so that ties have to be broken the same way OrderBy breaks them
+   */
+  @Before public void createData() {
+    Random r = new Random(7);
+    data = new int[numTuples * testWidth];
+    for (int i = 0; i < numTuples; i++) {
+      data[i * testWidth] = r.nextInt(100);
+      data[i * testWidth + 1] = i;
+    }
+  }
+
+  private void checkAgainstOrderBy(int n, boolean asc) throws Exception {
+    TopN op = new TopN(0, asc, n, TestUtil.createTupleList(testWidth, data));
+    Limit expected = new Limit(n,
+        new OrderBy(0, asc, TestUtil.createTupleList(testWidth, data)));
+    op.open();
+    expected.open();
+    TestUtil.compareDbIterators(expected, op);
+    op.rewind();
+    expected.rewind();
+    TestUtil.compareDbIterators(expected, op);
+    op.close();
+    expected.close();
+  }
+
+  /**
+   * Unit test for TopN ascending and descending, including ties
+   */
+  @Test public void topN() throws Exception {
+    checkAgainstOrderBy(20, true);
+    checkAgainstOrderBy(20, false);
+    checkAgainstOrderBy(1, true);
+  }
+
+  /**
+   * Unit test for TopN with a limit of zero or larger than the input
+   */
+  @Test public void topNEdgeCases() throws Exception {
+    checkAgainstOrderBy(0, true);
+    checkAgainstOrderBy(numTuples + 10, false);
+  }
+
+  /**
+   * Unit test for Limit without ordering
+   */
+  @Test public void limit() throws Exception {
+    Limit op = new Limit(3, TestUtil.createTupleList(testWidth,
+        new int[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 }));
+    op.open();
+    TestUtil.compareDbIterators(TestUtil.createTupleList(testWidth,
+        new int[] { 1, 2, 3, 4, 5, 6 }), op);
+    op.close();
+  }
+
+  /**
+   * Unit test for stripping LIMIT clauses from statements
+   */
+  @Test public void parseLimit() throws Exception {
+    Parser p = new Parser();
+    assertEquals("SELECT * FROM t ORDER BY t.a;",
+        p.extractLimit("SELECT * FROM t ORDER BY t.a LIMIT 20;"));
+    assertEquals("select * from t", p.extractLimit("select * from t limit 5"));
+    String noLimit = "SELECT * FROM limits;";
+    assertTrue(noLimit == p.extractLimit(noLimit));
+  }
+
+  /**
+   * JUnit suite target
+   */
+  public static junit.framework.Test suite() {
+    return new JUnit4TestAdapter(TopNTest.class);
+  }
+}
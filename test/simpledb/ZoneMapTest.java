@@ -0,0 +1,137 @@
+package simpledb;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import java.io.File;
+import java.util.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ZoneMapTest extends SimpleDbTestBase {
+    private static final int ROWS = 2000;
+
+    private HeapFile hf;
+    private ZoneMap zones;
+
+    /**
+     * Creates a table of (i, ROWS - i), ordered by its first column, so that
+     * each page holds a distinct range of both columns.
+     */
+    @Before
+    public void setUp() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        for (int i = 0; i < ROWS; i++)
+            tuples.add(new ArrayList<Integer>(Arrays.asList(i, ROWS - i)));
+        File f = File.createTempFile("zonemap", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), 2);
+        hf = Utility.openHeapFile(2, f);
+        zones = hf.getZoneMap();
+        zones.prepare();
+    }
+
+    private static Predicate[] pred(int field, Predicate.Op op, int value) {
+        return new Predicate[] { new Predicate(field, op, new IntField(value)) };
+    }
+
+    private int count(Predicate[] preds) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid, preds, null);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        return n;
+    }
+
+    /**
+     * Unit test for ZoneMap.mayMatch()
+     */
+    @Test public void mayMatch() throws Exception {
+        int pages = hf.numPages();
+        assertTrue(pages > 2);
+        Predicate[] first = pred(0, Predicate.Op.LESS_THAN, 10);
+        Predicate[] last = pred(1, Predicate.Op.LESS_THAN_OR_EQ, 10);
+        assertTrue(zones.mayMatch(0, first));
+        assertFalse(zones.mayMatch(0, last));
+        for (int p = 1; p < pages - 1; p++) {
+            assertFalse(zones.mayMatch(p, first));
+            assertFalse(zones.mayMatch(p, last));
+        }
+        assertFalse(zones.mayMatch(pages - 1, first));
+        assertTrue(zones.mayMatch(pages - 1, last));
+
+        assertFalse(zones.mayMatch(0, pred(0, Predicate.Op.EQUALS, ROWS)));
+        assertFalse(zones.mayMatch(0, pred(0, Predicate.Op.GREATER_THAN, ROWS)));
+        assertTrue(zones.mayMatch(0, pred(0, Predicate.Op.NOT_EQUALS, 0)));
+        // pages the ranges do not describe may hold anything
+        assertTrue(zones.mayMatch(pages, first));
+    }
+
+    /**
+     * Unit test for ZoneMap.usable()
+     */
+    @Test public void usable() throws Exception {
+        assertNull(zones.usable(null));
+        assertEquals(1, zones.usable(pred(1, Predicate.Op.EQUALS, 3)).length);
+    }
+
+    /**
+     * Scans skip pages by their ranges, but still return every match
+     */
+    @Test public void scan() throws Exception {
+        assertEquals(10, count(pred(0, Predicate.Op.LESS_THAN, 10)));
+        assertEquals(1, count(pred(0, Predicate.Op.EQUALS, 1000)));
+        assertEquals(0, count(pred(0, Predicate.Op.GREATER_THAN_OR_EQ, ROWS)));
+        assertEquals(ROWS - 1, count(pred(0, Predicate.Op.NOT_EQUALS, 5)));
+    }
+
+    /**
+     * Tuples inserted after the ranges were built widen them
+     */
+    @Test public void insert() throws Exception {
+        Predicate[] big = pred(0, Predicate.Op.GREATER_THAN, 10 * ROWS);
+        assertEquals(0, count(big));
+
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] { 20 * ROWS, 0 }));
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(1, count(big));
+
+        // a fresh HeapFile over the same file shares the ranges
+        HeapFile other = Utility.openHeapFile(2, hf.getFile());
+        assertSame(zones, other.getZoneMap());
+    }
+
+    /**
+     * A sidecar that no longer matches its heap file is rebuilt
+     */
+    @Test public void rebuild() throws Exception {
+        File sidecar = new File(hf.getFile().getAbsolutePath() + ".zonemap");
+        assertTrue(sidecar.exists());
+        sidecar.delete();
+        File copy = SystemTestUtil.createRandomHeapFileUnopened(2, 10, 5, null, new ArrayList<ArrayList<Integer>>());
+        copy.deleteOnExit();
+        java.nio.file.Files.copy(copy.toPath(), hf.getFile().toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+        hf.getFile().setLastModified(hf.getFile().lastModified() + 2000);
+        Database.getBufferPool().discardPage(new HeapPageId(hf.getId(), 0));
+        assertEquals(10, count(pred(0, Predicate.Op.LESS_THAN, 5)));
+        assertTrue(sidecar.exists());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.JUnit4TestAdapter suite() {
+        return new JUnit4TestAdapter(ZoneMapTest.class);
+    }
+}
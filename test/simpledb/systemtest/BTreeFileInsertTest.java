@@ -6,6 +6,8 @@ import simpledb.*;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.junit.After;
 import org.junit.Before;
@@ -49,16 +51,16 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 			assertEquals(1, empty.numPages());
 		}
 
-		// the next 251 tuples should live on page 2 since they are greater than
-		// all existing tuples in the file
-		for (int i = 502; i < 753; ++i) {
+		// appending splits the page 90/10, so the next 452 tuples should live
+		// on page 2 since they are greater than all existing tuples in the file
+		for (int i = 502; i < 954; ++i) {
 			tup = BTreeUtility.getBTreeTuple(i, 2);
 			empty.insertTuple(tid, tup);
 			assertEquals(3, empty.numPages());
 		}
 
-		// one more insert greater than 502 should cause page 2 to split
-		tup = BTreeUtility.getBTreeTuple(753, 2);
+		// one more insert greater than 953 should cause page 2 to split
+		tup = BTreeUtility.getBTreeTuple(954, 2);
 		empty.insertTuple(tid, tup);
 		assertEquals(4, empty.numPages());
 
@@ -278,6 +280,328 @@ public class BTreeFileInsertTest extends SimpleDbTestBase {
 		
 	}
 
+	@Test
+	public void testConcurrentInsertsAndDeletes() throws Exception {
+		// small pages, so that leaves and internal pages split and merge, and a small
+		// buffer pool, so that pages are evicted while other threads change them
+		BufferPool.setPageSize(1024);
+		final BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 5000,
+				null, null, 0);
+		Database.resetBufferPool(100);
+
+		final int threads = 16;
+		final int rounds = 300;
+		final BlockingQueue<ArrayList<Integer>> insertedTuples = new ArrayBlockingQueue<ArrayList<Integer>>(threads * rounds);
+		final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+		final int[] deleted = new int[1];
+		ArrayList<Thread> workers = new ArrayList<Thread>();
+		for(int w = 0; w < threads; w++) {
+			final Random rand = new Random(w);
+			workers.add(new Thread() {
+				public void run() {
+					BTreeUtility.BTreeInserter inserter = new BTreeUtility.BTreeInserter(bigFile,
+							new int[] {0, 0}, insertedTuples);
+					BTreeUtility.BTreeDeleter deleter = new BTreeUtility.BTreeDeleter(bigFile, insertedTuples);
+					for(int i = 0; i < rounds && errors.isEmpty(); i++) {
+						int[] tupdata = new int[] {rand.nextInt(BTreeUtility.MAX_RAND_VALUE), i};
+						inserter.rerun(bigFile, tupdata, insertedTuples);
+						if(inserter.getError() != null) {
+							errors.add(inserter.getError());
+						}
+						if(i % 3 == 2) {
+							deleter.rerun(bigFile, insertedTuples);
+							if(deleter.getError() != null) {
+								errors.add(deleter.getError());
+							}
+							else {
+								synchronized(deleted) {
+									deleted[0]++;
+								}
+							}
+						}
+					}
+				}
+			});
+		}
+		// a scan running alongside sees every key in sorted order
+		Thread scanner = new Thread() {
+			public void run() {
+				try {
+					for(int i = 0; i < 5 && errors.isEmpty(); i++) {
+						TransactionId stid = new TransactionId();
+						DbFileIterator it = bigFile.iterator(stid);
+						it.open();
+						Tuple prev = null;
+						int count = 0;
+						while(it.hasNext()) {
+							Tuple tup = it.next();
+							if(prev != null && tup.getField(0).compare(Op.LESS_THAN, prev.getField(0)))
+								throw new DbException("scan out of order");
+							prev = tup;
+							count++;
+						}
+						it.close();
+						if(count < 5000 - threads * rounds / 3)
+							throw new DbException("scan missed tuples: " + count);
+					}
+				} catch (Exception e) {
+					errors.add(e);
+				}
+			}
+		};
+		workers.add(scanner);
+		for(Thread t : workers)
+			t.start();
+		for(Thread t : workers)
+			t.join();
+		assertEquals(Collections.<Exception>emptyList(), errors);
+
+		BTreeChecker.checkRep(bigFile, tid, new HashMap<PageId, Page>(), true);
+		DbFileIterator it = bigFile.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		assertEquals(5000 + threads * rounds - deleted[0], count);
+		// every tuple that was inserted and not deleted again can be found
+		for(ArrayList<Integer> tuple : insertedTuples) {
+			DbFileIterator fit = bigFile.indexIterator(tid, new IndexPredicate(Op.EQUALS, new IntField(tuple.get(0))));
+			fit.open();
+			boolean found = false;
+			while(!found && fit.hasNext())
+				found = SystemTestUtil.tupleToList(fit.next()).equals(tuple);
+			fit.close();
+			assertTrue(found);
+		}
+	}
+
+	@Test
+	public void testLeafInsertsWithEvictions() throws Exception {
+		// half-full leaves, so that most inserts change one latched leaf, and a buffer
+		// pool barely larger than the pages the threads pin, so that the leaves are
+		// evicted and read back while other threads latch and change them
+		BufferPool.setPageSize(1024);
+		final BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 0,
+				null, null, 0);
+		Random rand = new Random(5);
+		ArrayList<Tuple> initial = new ArrayList<Tuple>();
+		for(int i = 0; i < 5000; i++)
+			initial.add(BTreeUtility.getBTreeTuple(new int[] {rand.nextInt(BTreeUtility.MAX_RAND_VALUE), -1}));
+		TupleIterator input = new TupleIterator(bigFile.getTupleDesc(), initial);
+		input.open();
+		bigFile.bulkLoad(tid, input, 0.5);
+		input.close();
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(12);
+
+		final int threads = 8;
+		final int rounds = 400;
+		final BlockingQueue<ArrayList<Integer>> insertedTuples = new ArrayBlockingQueue<ArrayList<Integer>>(threads * rounds);
+		final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+		ArrayList<Thread> workers = new ArrayList<Thread>();
+		for(int w = 0; w < threads; w++) {
+			final Random wrand = new Random(w);
+			workers.add(new Thread() {
+				public void run() {
+					BTreeUtility.BTreeInserter inserter = new BTreeUtility.BTreeInserter(bigFile,
+							new int[] {0, 0}, insertedTuples);
+					for(int i = 0; i < rounds && errors.isEmpty(); i++) {
+						inserter.rerun(bigFile, new int[] {wrand.nextInt(BTreeUtility.MAX_RAND_VALUE), i}, insertedTuples);
+						if(inserter.getError() != null)
+							errors.add(inserter.getError());
+					}
+				}
+			});
+		}
+		// optimistic scans read leaves back from disk while they are being changed
+		for(int r = 0; r < 2; r++) {
+			workers.add(new Thread() {
+				public void run() {
+					try {
+						TransactionId stid = new TransactionId();
+						for(int i = 0; i < 10 && errors.isEmpty(); i++) {
+							DbFileIterator it = bigFile.iterator(stid);
+							it.open();
+							while(it.hasNext())
+								it.next();
+							it.close();
+						}
+					} catch (Exception e) {
+						errors.add(e);
+					}
+				}
+			});
+		}
+		for(Thread t : workers)
+			t.start();
+		for(Thread t : workers)
+			t.join();
+		assertEquals(Collections.<Exception>emptyList(), errors);
+
+		// no insert was lost to a stale copy of its leaf
+		Database.getBufferPool().flushAllPages();
+		Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+		BTreeChecker.checkRep(bigFile, tid, new HashMap<PageId, Page>(), true);
+		HashSet<ArrayList<Integer>> found = new HashSet<ArrayList<Integer>>();
+		DbFileIterator it = bigFile.iterator(tid);
+		it.open();
+		int count = 0;
+		while(it.hasNext()) {
+			found.add(SystemTestUtil.tupleToList(it.next()));
+			count++;
+		}
+		it.close();
+		assertEquals(5000 + threads * rounds, count);
+		assertTrue(found.containsAll(insertedTuples));
+	}
+
+	@Test
+	public void testLookupsDuringSplits() throws Exception {
+		BufferPool.setPageSize(1024);
+		final ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		final BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 5000,
+				null, tuples, 0);
+		Database.resetBufferPool(100);
+
+		final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+		final BlockingQueue<ArrayList<Integer>> insertedTuples = new ArrayBlockingQueue<ArrayList<Integer>>(8 * 500);
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(int w = 0; w < 8; w++) {
+			final Random rand = new Random(w);
+			threads.add(new Thread() {
+				public void run() {
+					BTreeUtility.BTreeInserter inserter = new BTreeUtility.BTreeInserter(bigFile,
+							new int[] {0, 0}, insertedTuples);
+					for(int i = 0; i < 500 && errors.isEmpty(); i++) {
+						inserter.rerun(bigFile, new int[] {rand.nextInt(BTreeUtility.MAX_RAND_VALUE), -1}, insertedTuples);
+						if(inserter.getError() != null)
+							errors.add(inserter.getError());
+					}
+				}
+			});
+		}
+		// point lookups of tuples that are never deleted always find them, while
+		// the pages around them split
+		for(int r = 0; r < 4; r++) {
+			final Random rand = new Random(100 + r);
+			threads.add(new Thread() {
+				public void run() {
+					try {
+						TransactionId rtid = new TransactionId();
+						for(int i = 0; i < 2000 && errors.isEmpty(); i++) {
+							ArrayList<Integer> tuple = tuples.get(rand.nextInt(tuples.size()));
+							DbFileIterator fit = bigFile.indexIterator(rtid,
+									new IndexPredicate(Op.EQUALS, new IntField(tuple.get(0))));
+							fit.open();
+							boolean found = false;
+							while(!found && fit.hasNext())
+								found = SystemTestUtil.tupleToList(fit.next()).equals(tuple);
+							fit.close();
+							if(!found)
+								throw new DbException("lookup missed " + tuple);
+						}
+					} catch (Exception e) {
+						errors.add(e);
+					}
+				}
+			});
+		}
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+		assertEquals(Collections.<Exception>emptyList(), errors);
+		BTreeChecker.checkRep(bigFile, tid, new HashMap<PageId, Page>(), true);
+	}
+
+	@Test
+	public void testBulkLoad() throws Exception {
+		BufferPool.setPageSize(1024);
+		ArrayList<ArrayList<Integer>> expected = new ArrayList<ArrayList<Integer>>();
+		BTreeFile bigFile = BTreeUtility.createRandomBTreeFile(2, 1000,
+				null, expected, 0);
+		Database.resetBufferPool(100);
+
+		// more tuples than the sort and the buffer pool can hold in memory
+		Random rand = new Random(3);
+		ArrayList<Tuple> tuples = new ArrayList<Tuple>();
+		for(int i = 0; i < 40000; i++) {
+			int[] tupdata = new int[] {rand.nextInt(BTreeUtility.MAX_RAND_VALUE), i};
+			tuples.add(BTreeUtility.getBTreeTuple(tupdata));
+			expected.add(new ArrayList<Integer>(Arrays.asList(tupdata[0], tupdata[1])));
+		}
+		TupleIterator input = new TupleIterator(bigFile.getTupleDesc(), tuples);
+		input.open();
+		assertEquals(40000, bigFile.bulkLoad(tid, input, 0.8));
+		input.close();
+
+		BTreeChecker.checkRep(bigFile, tid, new HashMap<PageId, Page>(), true);
+		Collections.sort(expected, new Comparator<ArrayList<Integer>>() {
+			public int compare(ArrayList<Integer> a, ArrayList<Integer> b) {
+				return a.get(0).compareTo(b.get(0));
+			}
+		});
+		DbFileIterator it = bigFile.iterator(tid);
+		it.open();
+		ArrayList<ArrayList<Integer>> actual = new ArrayList<ArrayList<Integer>>();
+		while(it.hasNext())
+			actual.add(SystemTestUtil.tupleToList(it.next()));
+		it.close();
+		assertEquals(expected.size(), actual.size());
+		for(int i = 0; i < actual.size(); i++)
+			assertEquals(expected.get(i).get(0), actual.get(i).get(0));
+		assertEquals(new HashSet<ArrayList<Integer>>(expected), new HashSet<ArrayList<Integer>>(actual));
+
+		// 124 tuples fit in a 1024-byte leaf page, so 80% full leaves take 415 pages,
+		// with 6 internal pages above them and the pages of the old tree, now free
+		assertTrue(bigFile.numPages() < 440);
+
+		// the tree stays usable, and inserts go into the room left in the leaves
+		int pages = bigFile.numPages();
+		for(int i = 0; i < 100; i++) {
+			Database.getBufferPool().insertTuple(tid, bigFile.getId(),
+					BTreeUtility.getBTreeTuple(new int[] {rand.nextInt(BTreeUtility.MAX_RAND_VALUE), -1}));
+		}
+		assertEquals(pages, bigFile.numPages());
+		BTreeChecker.checkRep(bigFile, tid, new HashMap<PageId, Page>(), true);
+	}
+
+	@Test
+	public void testAscendingInserts() throws Exception {
+		BufferPool.setPageSize(1024);
+		File emptyFile = File.createTempFile("empty", ".dat");
+		emptyFile.deleteOnExit();
+		Database.reset();
+		BTreeFile empty = BTreeUtility.createEmptyBTreeFile(emptyFile.getAbsolutePath(), 2, 0);
+
+		// ascending keys split the right-most leaf 90/10, leaving full pages behind
+		for(int i = 0; i < 20000; i++) {
+			Database.getBufferPool().insertTuple(tid, empty.getId(), BTreeUtility.getBTreeTuple(i, 2));
+		}
+		BTreeChecker.checkRep(empty, tid, new HashMap<PageId, Page>(), true);
+
+		// 124 tuples fit in a 1024-byte leaf page: 50/50 splits would take over 320 leaves
+		assertTrue(empty.numPages() < 200);
+
+		DbFileIterator it = empty.iterator(tid);
+		it.open();
+		int expected = 0;
+		while(it.hasNext()) {
+			assertEquals(expected++, ((IntField) it.next().getField(0)).getValue());
+		}
+		it.close();
+		assertEquals(20000, expected);
+
+		// keys inside the tree still find their leaves
+		for(int i = 0; i < 500; i++) {
+			Database.getBufferPool().insertTuple(tid, empty.getId(), BTreeUtility.getBTreeTuple(i * 40, 2));
+		}
+		BTreeChecker.checkRep(empty, tid, new HashMap<PageId, Page>(), true);
+	}
+
 	/**
 	 * JUnit suite target
 	 */
@@ -9,6 +9,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.Iterator;
@@ -282,6 +283,135 @@ public class BTreeScanTest extends SimpleDbTestBase {
         Database.getBufferPool().transactionComplete(tid);
     }
 
+    /** @return the key fields of the tuples of a scan, in the order it returns them */
+    private static ArrayList<Integer> scanKeys(DbIterator scan, int keyField)
+            throws DbException, TransactionAbortedException {
+        ArrayList<Integer> keys = new ArrayList<Integer>();
+        scan.open();
+        while (scan.hasNext())
+            keys.add(((IntField) scan.next().getField(keyField)).getValue());
+        scan.close();
+        return keys;
+    }
+
+    /** Test that reverse scans return the matching tuples in descending key order. */
+    @Test public void testReverse() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        int keyField = r.nextInt(3);
+        BTreeFile f = BTreeUtility.createRandomBTreeFile(3, 5000, null, tuples, keyField);
+        Collections.sort(tuples, Collections.reverseOrder(new TupleComparator(keyField)));
+
+        TransactionId tid = new TransactionId();
+        BTreeScan scan = new BTreeScan(tid, f.getId(), "table", null, true);
+        assertTrue(scan.isReverse());
+        SystemTestUtil.matchTuples(scan, tuples);
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+        for (ArrayList<Integer> tup : tuples)
+            expected.add(tup.get(keyField));
+        assertEquals(expected, scanKeys(scan, keyField));
+
+        Op[] ops = { Op.EQUALS, Op.LESS_THAN, Op.LESS_THAN_OR_EQ, Op.GREATER_THAN, Op.GREATER_THAN_OR_EQ };
+        for (Op op : ops) {
+            // a key of the table, so that EQUALS and the inclusive bounds match something
+            IntField key = new IntField(expected.get(r.nextInt(expected.size())));
+            ArrayList<Integer> filtered = new ArrayList<Integer>();
+            for (int k : expected) {
+                if (new IntField(k).compare(op, key))
+                    filtered.add(k);
+            }
+            scan = new BTreeScan(tid, f.getId(), "table", new IndexPredicate(op, key), true);
+            assertEquals(op.toString(), filtered, scanKeys(scan, keyField));
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that a reverse scan starts at its upper bound, and reads only the leaves it returns */
+    @Test public void testReverseReadPage() throws Exception {
+        final int LEAF_PAGES = 30;
+
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        int keyField = 0;
+        BTreeFile f = BTreeUtility.createBTreeFile(2, LEAF_PAGES*502, null, tuples, keyField);
+        TupleDesc td = Utility.getTupleDesc(2);
+        InstrumentedBTreeFile table = new InstrumentedBTreeFile(f.getFile(), keyField, td);
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+
+        // the largest 100 keys: root pointer page + root + the right-most leaf page
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        BTreeScan scan = new BTreeScan(tid, table.getId(), "table", null, true);
+        scan.open();
+        int last = Integer.MAX_VALUE;
+        for (int i = 0; i < 100; i++) {
+            assertTrue(scan.hasNext());
+            int key = ((IntField) scan.next().getField(keyField)).getValue();
+            assertTrue(key <= last);
+            last = key;
+        }
+        scan.close();
+        assertEquals(3, table.readCount);
+
+        // the largest 100 keys below the middle of the table start at the leaf holding it
+        int bound = LEAF_PAGES*502/2;
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        table.readCount = 0;
+        scan = new BTreeScan(tid, table.getId(), "table", new IndexPredicate(Op.LESS_THAN, new IntField(bound)), true);
+        scan.open();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(scan.hasNext());
+            int key = ((IntField) scan.next().getField(keyField)).getValue();
+            assertTrue(key < bound);
+        }
+        scan.close();
+        // root pointer page + root + at most two leaf pages
+        assertTrue(table.readCount == 3 || table.readCount == 4);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Test that ORDER BY the key descending reads the B+ tree backwards instead of sorting. */
+    @Test public void testOrderByKeyDesc() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        BTreeFile random = BTreeUtility.createRandomBTreeFile(2, 3000, null, tuples, 0);
+        BTreeFile f = new BTreeFile(random.getFile(), 0, Utility.getTupleDesc(2, "c"));
+        String name = SystemTestUtil.getUUID();
+        Database.getCatalog().addTable(f, name);
+        HashMap<String, TableStats> stats = new HashMap<String, TableStats>();
+        stats.put(name, new TableStats(f.getId(), 1000));
+        int bound = BTreeUtility.MAX_RAND_VALUE / 2;
+
+        LogicalPlan lp = new LogicalPlan();
+        lp.addScan(f.getId(), "t");
+        lp.addFilter("t." + f.getTupleDesc().getFieldName(0), Op.LESS_THAN, String.valueOf(bound));
+        lp.addProjectField("*", null);
+        lp.addOrderBy("t." + f.getTupleDesc().getFieldName(0), false);
+        lp.addLimit(20);
+        TransactionId tid = new TransactionId();
+        DbIterator plan = lp.physicalPlan(tid, stats, false);
+        assertFalse(find(plan, TopN.class) || find(plan, OrderBy.class));
+
+        ArrayList<Integer> expected = new ArrayList<Integer>();
+        for (ArrayList<Integer> tup : tuples) {
+            if (tup.get(0) < bound)
+                expected.add(tup.get(0));
+        }
+        Collections.sort(expected, Collections.reverseOrder());
+        assertEquals(expected.subList(0, 20), scanKeys(plan, 0));
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static boolean find(DbIterator plan, Class<?> c) {
+        if (c.isInstance(plan))
+            return true;
+        if (!(plan instanceof Operator))
+            return false;
+        for (DbIterator child : ((Operator) plan).getChildren()) {
+            if (child != null && find(child, c))
+                return true;
+        }
+        return false;
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(BTreeScanTest.class);